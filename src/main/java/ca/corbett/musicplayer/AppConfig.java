@@ -2,7 +2,6 @@ package ca.corbett.musicplayer;
 
 import ca.corbett.extensions.AppProperties;
 import ca.corbett.extras.audio.WaveformConfig;
-import ca.corbett.extras.audio.WaveformConfigField;
 import ca.corbett.extras.gradient.ColorSelectionType;
 import ca.corbett.extras.properties.AbstractProperty;
 import ca.corbett.extras.properties.BooleanProperty;
@@ -20,6 +19,8 @@ import ca.corbett.extras.properties.dialog.PropertiesDialog;
 import ca.corbett.forms.fields.CheckBoxField;
 import ca.corbett.forms.fields.ComboField;
 import ca.corbett.musicplayer.actions.ReloadUIAction;
+import ca.corbett.musicplayer.audio.AudioSink;
+import ca.corbett.musicplayer.audio.PlaybackEngine;
 import ca.corbett.musicplayer.extensions.MusicPlayerExtension;
 import ca.corbett.musicplayer.extensions.MusicPlayerExtensionManager;
 import ca.corbett.musicplayer.ui.AppTheme;
@@ -85,8 +86,11 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
     private ColorProperty waveformFillColor;
     private ColorProperty waveformOutlineColor;
     private IntegerProperty waveformOutlineThickness;
-    private EnumProperty<WaveformConfigField.Compression> waveformResolution;
-    private EnumProperty<WaveformConfigField.WidthLimit> waveformWidthLimit;
+    private IntegerProperty waveformCacheSizeMB;
+    private IntegerProperty waveformPeakMemoryMB;
+    private IntegerProperty backgroundIndexerCores;
+    private BooleanProperty backgroundIndexerPauseForVisualizer;
+    private BooleanProperty backgroundIndexerPauseOnBattery;
     private BooleanProperty enableSingleInstance;
     private ComboProperty<String> applicationTheme;
     private ShortTextProperty playlistFormatString;
@@ -118,6 +122,9 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
     private ColorProperty visualizerOverlayProgressBackground;
     private ColorProperty visualizerOverlayProgressForeground;
     private ComboProperty<String> visualizerOldHardwareDelay;
+    private IntegerProperty prerollSeconds;
+    private IntegerProperty playbackBufferDepth;
+    private EnumProperty<AudioSink.Type> audioSinkType;
 
     /**
      * This is only used for setting default waveform prefs.
@@ -238,12 +245,36 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
         return waveformOutlineThickness.getValue();
     }
 
-    public WaveformConfigField.Compression getWaveformResolution() {
-        return waveformResolution.getSelectedItem();
+    /**
+     * Returns the maximum size of the on-disk waveform peak cache, in megabytes.
+     * Zero means the cache is disabled.
+     */
+    public int getWaveformCacheSizeMB() {
+        return waveformCacheSizeMB.getValue();
+    }
+
+    /**
+     * Returns the most memory that the waveform peaks of a single track may use, in megabytes.
+     * Very long tracks have their waveform resolution reduced to stay within this.
+     */
+    public int getWaveformPeakMemoryMB() {
+        return waveformPeakMemoryMB.getValue();
     }
 
-    public WaveformConfigField.WidthLimit getWaveformWidthLimit() {
-        return waveformWidthLimit.getSelectedItem();
+    /**
+     * Returns the number of cores that may be used to pre-compute waveforms for the rest
+     * of the playlist in the background. Zero means background indexing is disabled.
+     */
+    public int getBackgroundIndexerCores() {
+        return backgroundIndexerCores.getValue();
+    }
+
+    public boolean isBackgroundIndexerPauseForVisualizer() {
+        return backgroundIndexerPauseForVisualizer.getValue();
+    }
+
+    public boolean isBackgroundIndexerPauseOnBattery() {
+        return backgroundIndexerPauseOnBattery.getValue();
     }
 
     public boolean isSingleInstanceEnabled() {
@@ -442,6 +473,40 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
         return getOldHardwareDelayFromStringOption(visualizerOldHardwareDelay.getSelectedItem());
     }
 
+    /**
+     * Gapless playback works by pre-rolling the upcoming track (parsing its metadata, opening
+     * its decoder and buffering its first audio frames) during the last few seconds of the
+     * current track. This returns how many seconds before the end of the current track that
+     * should start. Zero means gapless pre-roll is disabled.
+     *
+     * @return A count of seconds, or 0 if pre-roll is disabled.
+     */
+    public int getPrerollSeconds() {
+        return prerollSeconds.getValue();
+    }
+
+    /**
+     * Returns how many buffers the PlaybackEngine should keep between its decoder thread
+     * and its output thread. Each buffer holds about 93ms of audio at 44.1kHz. Higher
+     * values ride out longer decode hiccups at the cost of a little memory.
+     *
+     * @return The decode ring depth, in buffers.
+     */
+    public int getPlaybackBufferDepth() {
+        return playbackBufferDepth.getValue();
+    }
+
+    /**
+     * Returns where decoded audio should go. Normally this is the sound card, but for
+     * machines without one, audio can be discarded or written to a WAV file instead.
+     * Note that the AUDIO_SINK system property, if set, takes precedence over this.
+     *
+     * @return The configured AudioSink type.
+     */
+    public AudioSink.Type getAudioSinkType() {
+        return audioSinkType.getSelectedItem();
+    }
+
     /**
      * Returns the subset of all our configuration properties that are KeyStrokeProperties.
      */
@@ -492,10 +557,21 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
         waveformOutlineThickness = new IntegerProperty("Waveform.Waveform graphics.outlineWidth", "Outline width:",
                                                        defaultWaveform.getOutlineThickness(), 0, 24, 1);
 
-        waveformResolution = new EnumProperty<>("Waveform.Resolution.resolution", "Resolution:",
-                                                WaveformConfigField.Compression.HIGH);
-        waveformWidthLimit = new EnumProperty<>("Waveform.Resolution.widthLimit", "Width limit:",
-                                                WaveformConfigField.WidthLimit.LARGE);
+        waveformCacheSizeMB = new IntegerProperty("Waveform.Cache.sizeMB", "Peak cache size (MB):",
+                                                  256, 0, 16384, 16);
+        waveformCacheSizeMB.setHelpText("Waveforms of previously played tracks are cached on disk (0 to disable)");
+        waveformPeakMemoryMB = new IntegerProperty("Waveform.Resolution.peakMemoryMB", "Waveform memory per track (MB):",
+                                                   32, 1, 1024, 1);
+        waveformPeakMemoryMB.setHelpText("Waveform detail is reduced for very long tracks to stay within this limit");
+        backgroundIndexerCores = new IntegerProperty("Waveform.Background indexing.maxCores", "Background indexing cores:",
+                                                     1, 0, 64, 1);
+        backgroundIndexerCores.setHelpText("Waveforms for the rest of the playlist are prepared in advance (0 to disable)");
+        backgroundIndexerPauseForVisualizer = new BooleanProperty("Waveform.Background indexing.pauseForVisualizer",
+                                                                  "Pause background indexing while the visualizer is running",
+                                                                  true);
+        backgroundIndexerPauseOnBattery = new BooleanProperty("Waveform.Background indexing.pauseOnBattery",
+                                                              "Pause background indexing on battery power",
+                                                              true);
 
         applicationTheme = buildCombo("UI.Theme.theme", "Theme:", getAppThemeChoices(), true);
 
@@ -587,6 +663,15 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
                                                                 "Progress foreground:", ColorSelectionType.SOLID);
         visualizerOverlayProgressForeground.setSolidColor(Color.BLUE);
 
+        prerollSeconds = new IntegerProperty("Audio.Playback.prerollSeconds", "Gapless pre-roll (seconds):",
+                                             10, 0, 60, 1);
+        prerollSeconds.setHelpText("Prepare the next track this many seconds before the current one ends (0 to disable)");
+        playbackBufferDepth = new IntegerProperty("Audio.Playback.bufferDepth", "Decode buffers:",
+                                                  PlaybackEngine.DEFAULT_BUFFER_DEPTH, 2, 64, 1);
+        playbackBufferDepth.setHelpText("Increase this if playback stutters under heavy CPU load");
+        audioSinkType = new EnumProperty<>("Audio.Playback.outputSink", "Audio output:", AudioSink.Type.LINE);
+        audioSinkType.setHelpText("Use one of the \"None\" or WAV options on machines with no sound card");
+
         // Add our internal hidden properties (not exposed to the user but available to the code):
         shuffleEnabled = new BooleanProperty("hidden.props.shuffleEnabled", "shuffleEnabled");
         repeatEnabled = new BooleanProperty("hidden.props.repeatEnabled", "repeatEnabled");
@@ -608,8 +693,11 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
                        waveformFillColor,
                        waveformOutlineColor,
                        waveformOutlineThickness,
-                       waveformResolution,
-                       waveformWidthLimit,
+                       waveformCacheSizeMB,
+                       waveformPeakMemoryMB,
+                       backgroundIndexerCores,
+                       backgroundIndexerPauseForVisualizer,
+                       backgroundIndexerPauseOnBattery,
                        applicationTheme,
                        playlistFormatString,
                        playlistCustomSortString,
@@ -639,7 +727,10 @@ public class AppConfig extends AppProperties<MusicPlayerExtension> {
                        visualizerOverlayHeaderColor,
                        visualizerOverlayTrackColor,
                        visualizerOverlayProgressBackground,
-                       visualizerOverlayProgressForeground);
+                       visualizerOverlayProgressForeground,
+                       prerollSeconds,
+                       playbackBufferDepth,
+                       audioSinkType);
     }
 
     /**
@@ -48,20 +48,21 @@ public class PlaylistAddAction extends EnhancedAction {
     public void actionPerformed(ActionEvent e) {
         fileChooser.setCurrentDirectory(AppConfig.getInstance().getLastBrowseDir());
         if (fileChooser.showDialog(MainWindow.getInstance(), "Open") == JFileChooser.APPROVE_OPTION) {
+            List<File> filesToAdd = new ArrayList<>();
             for (File file : fileChooser.getSelectedFiles()) {
                 if (file.isDirectory()) {
                     List<String> extList = new ArrayList<>();
                     extList.add("mp3");
                     extList.add("wav");
-                    List<File> list = FileSystemUtil.findFiles(file, true, extList);
-                    for (File f : list) {
-                        Playlist.getInstance().addItem(f);
-                    }
+                    filesToAdd.addAll(FileSystemUtil.findFiles(file, true, extList));
                 } else {
-                    Playlist.getInstance().addItem(file);
+                    filesToAdd.add(file);
                 }
             }
 
+            // Add them all at once - their metadata is filled in in the background:
+            Playlist.getInstance().addItems(filesToAdd);
+
             // Make a note of the directory that we ended up in,
             // so other file choosers across the app can
             // start there:
@@ -0,0 +1,165 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes a track once and hands every block of PCM to each of a list of Analyzers,
+ * collecting their results into a TrackAnalysis. Decoding (mp3 especially) is by far the
+ * most expensive thing we do with a track, so any new per-track analysis should be written
+ * as an Analyzer and registered here, rather than opening its own stream.
+ * <p>
+ * WaveformBuildThread runs the pipeline for every track it builds peaks for, with a
+ * PeakAnalyzer plus one new instance of each registered analyzer. Registration is
+ * typically done once at startup (extensions are a good place for it).
+ * </p>
+ * <p>
+ * Every finished TrackAnalysis is handed to the registered listeners, whichever thread
+ * decoded it: the waveform build for the track that's playing, or PlaylistIndexer working
+ * ahead through the playlist. The one for the track that's playing is also kept on its
+ * AudioData. Tracks whose peaks are already in the WaveformPeakCache aren't decoded by the
+ * indexer at all, and are only decoded again when they're played if there are registered
+ * analyzers, so that those analyzers still get to see them.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class AnalysisPipeline {
+
+    private static final Logger logger = Logger.getLogger(AnalysisPipeline.class.getName());
+
+    private static final int BUFFER_FRAMES = 2048;
+
+    private static AnalysisPipeline instance;
+
+    private final List<Supplier<? extends Analyzer>> factories = new CopyOnWriteArrayList<>();
+    private final List<Consumer<TrackAnalysis>> listeners = new CopyOnWriteArrayList<>();
+
+    AnalysisPipeline() {
+    }
+
+    public static synchronized AnalysisPipeline getInstance() {
+        if (instance == null) {
+            instance = new AnalysisPipeline();
+        }
+        return instance;
+    }
+
+    /**
+     * Registers an analyzer to be run over every track from now on. The factory is called
+     * once per track, so that each track gets an analyzer with fresh state.
+     * <p>
+     * Analyzers need to see the whole track in order, so while any are registered,
+     * WaveformBuildThread decodes every track in a single sequential pass, even long
+     * tracks that it would otherwise split up and decode in parallel.
+     * </p>
+     */
+    public void register(Supplier<? extends Analyzer> factory) {
+        if (factory != null) {
+            if (factories.isEmpty()) {
+                logger.info("Analyzer registered: waveforms will be decoded sequentially from now on.");
+            }
+            factories.add(factory);
+        }
+    }
+
+    public void unregister(Supplier<? extends Analyzer> factory) {
+        factories.remove(factory);
+    }
+
+    /**
+     * Adds a listener to be given each TrackAnalysis as it's finished. Listeners are called
+     * on the decoding thread, which is never the EDT, so they should be quick about it.
+     */
+    public void addAnalysisListener(Consumer<TrackAnalysis> listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeAnalysisListener(Consumer<TrackAnalysis> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Hands the given analysis to every listener. Called by whoever ran the pipeline,
+     * once the analysis is complete.
+     */
+    public void publish(TrackAnalysis analysis) {
+        if (analysis == null) {
+            return;
+        }
+        for (Consumer<TrackAnalysis> listener : listeners) {
+            try {
+                listener.accept(analysis);
+            }
+            catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Analysis listener failed for " + analysis.getSourceFile(), e);
+            }
+        }
+    }
+
+    public boolean hasRegisteredAnalyzers() {
+        return !factories.isEmpty();
+    }
+
+    /**
+     * Returns a new instance of each registered analyzer, in registration order.
+     */
+    public List<Analyzer> createAnalyzers() {
+        List<Analyzer> analyzers = new ArrayList<>(factories.size());
+        for (Supplier<? extends Analyzer> factory : factories) {
+            analyzers.add(factory.get());
+        }
+        return analyzers;
+    }
+
+    /**
+     * Reads the given stream to the end, feeding each block to every one of the given analyzers.
+     * The stream is not closed.
+     *
+     * @param sourceFile The file the stream was opened from. Only recorded in the result.
+     * @param stream     A decoded PCM stream, positioned at the start of the track.
+     * @param analyzers  The analyzers to run. Each should be a fresh instance.
+     * @param keepGoing  Checked before each block. Can be null.
+     * @return The collected results, or null if keepGoing told us to stop before the end.
+     */
+    public static TrackAnalysis run(File sourceFile, AudioInputStream stream, List<? extends Analyzer> analyzers,
+                                    BooleanSupplier keepGoing) throws IOException {
+        AudioFormat format = stream.getFormat();
+        int frameSize = Math.max(1, format.getFrameSize());
+        byte[] buffer = new byte[frameSize * BUFFER_FRAMES];
+        for (Analyzer analyzer : analyzers) {
+            analyzer.begin(format);
+        }
+
+        long totalBytes = 0;
+        int bytesRead;
+        while ((bytesRead = stream.read(buffer)) > 0) {
+            if (keepGoing != null && !keepGoing.getAsBoolean()) {
+                return null;
+            }
+            for (Analyzer analyzer : analyzers) {
+                analyzer.process(buffer, bytesRead);
+            }
+            totalBytes += bytesRead;
+        }
+
+        TrackAnalysis analysis = new TrackAnalysis(sourceFile, format, totalBytes / frameSize);
+        for (Analyzer analyzer : analyzers) {
+            analyzer.finish(analysis);
+        }
+        return analysis;
+    }
+}
@@ -0,0 +1,44 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A single kind of per-track analysis (peaks, loudness, silence detection, and so on),
+ * fed with decoded PCM by an AnalysisPipeline. Every analyzer registered with the pipeline
+ * sees the same decode pass, so adding an analysis never means decoding the track again.
+ * <p>
+ * A new instance is created for each track, so analyzers are free to keep whatever state
+ * they need between blocks. The pipeline calls begin() once, then process() for each block
+ * of PCM in order from the start of the track, then finish() once at the end. If the
+ * pipeline is cancelled partway through, finish() is never called.
+ * </p>
+ * <p>
+ * The byte array given to process() is reused by the pipeline for the next block,
+ * so analyzers must not hold on to it after process() returns.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public interface Analyzer {
+
+    /**
+     * Called once before any PCM is processed.
+     *
+     * @param format The format of the PCM that will be given to process().
+     */
+    void begin(AudioFormat format);
+
+    /**
+     * Called for each block of decoded PCM, in order.
+     *
+     * @param pcm    The decoded audio. Only valid until this method returns.
+     * @param length The number of valid bytes in pcm. Always a whole number of frames.
+     */
+    void process(byte[] pcm, int length);
+
+    /**
+     * Called once after the last block, to store this analyzer's results in the given record.
+     */
+    void finish(TrackAnalysis analysis);
+}
@@ -7,9 +7,9 @@ import ca.corbett.musicplayer.ui.AppTheme;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,7 +18,8 @@ import java.util.logging.Logger;
  * The current pipeline keeps this object lightweight:
  * source file identity + parsed metadata + compact waveform peaks.
  * Playback streams directly from the source file and waveform data is
- * generated asynchronously by {@link ca.corbett.musicplayer.ui.WaveformBuildThread}.
+ * generated asynchronously by {@link ca.corbett.musicplayer.ui.WaveformBuildThread},
+ * unless it's already in the {@link WaveformPeakCache}, in which case it's available immediately.
  *
  * @author scorbo2
  * @since 2025-03-23
@@ -31,39 +32,79 @@ public class AudioData {
     private static final int DEFAULT_WAVEFORM_FRAMES_PER_BUCKET = 512;
 
     private final File sourceFile;
-    private BufferedImage waveformImage;
     private AudioMetadata metadata;
     private final int durationSeconds;
     private final WaveformPeaks waveformPeaks;
+    private final WaveformRenderer waveformRenderer = new WaveformRenderer();
+    private AudioInputStream primedPlaybackStream;
+    private volatile TrackAnalysis analysis;
 
     /**
      * Lightweight constructor used by the new streaming pipeline.
      */
     public AudioData(File sourceFile) {
-        this.sourceFile = sourceFile;
-        this.metadata = AudioMetadata.fromFile(sourceFile);
-        this.durationSeconds = Math.max(0, this.metadata.getDurationSeconds());
-        this.waveformPeaks = createWaveformPeaks(sourceFile);
+        this(AudioProbe.probe(sourceFile, null));
     }
 
-    private static WaveformPeaks createWaveformPeaks(File sourceFile) {
+    /**
+     * Builds the track from an AudioProbe, without going back to the file. The probe's
+     * playback stream, if it has one, becomes our primed playback stream, so that
+     * starting playback from the top doesn't have to open the file again.
+     */
+    public AudioData(AudioProbe probe) {
+        this.sourceFile = probe.getSourceFile();
+        this.metadata = probe.getMetadata();
+        this.durationSeconds = (int) Math.max(0L, probe.getDurationMillis() / 1000L);
+        WaveformPeaks cachedPeaks = WaveformPeakCache.getInstance().load(sourceFile);
+        if (cachedPeaks != null) {
+            this.waveformPeaks = cachedPeaks;
+        }
+        else if (probe.getFormat() != null) {
+            this.waveformPeaks = createWaveformPeaks(probe.getFormat());
+        }
+        else {
+            logger.log(Level.WARNING, "Unable to determine audio format for waveform peak initialization, "
+                + "using defaults for {0}", sourceFile);
+            this.waveformPeaks = createWaveformPeaks((AudioFormat) null);
+        }
+        this.primedPlaybackStream = probe.takePlaybackStream();
+    }
+
+    /**
+     * Creates an empty WaveformPeaks sized for the given source file, ready for a
+     * WaveformBuildThread to fill in.
+     */
+    public static WaveformPeaks createWaveformPeaks(File sourceFile) {
         try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(sourceFile)) {
-            AudioFormat format = audioInputStream.getFormat();
-            int channels = format.getChannels() > 0 ? format.getChannels() : DEFAULT_WAVEFORM_CHANNELS;
-            float sampleRate = format.getSampleRate() > 0 ? format.getSampleRate() : DEFAULT_WAVEFORM_SAMPLE_RATE;
-            return new WaveformPeaks(channels, sampleRate, DEFAULT_WAVEFORM_FRAMES_PER_BUCKET);
+            return createWaveformPeaks(audioInputStream.getFormat());
         } catch (Exception ex) {
             logger.log(Level.WARNING,
                     "Unable to determine audio format for waveform peak initialization, using defaults for "
                             + sourceFile,
                     ex);
-            return new WaveformPeaks(
-                    DEFAULT_WAVEFORM_CHANNELS,
-                    DEFAULT_WAVEFORM_SAMPLE_RATE,
-                    DEFAULT_WAVEFORM_FRAMES_PER_BUCKET);
+            return createWaveformPeaks((AudioFormat) null);
         }
     }
 
+    /**
+     * Creates an empty WaveformPeaks sized for audio in the given format, or using
+     * sensible defaults for anything the format doesn't tell us (or if it's null).
+     */
+    public static WaveformPeaks createWaveformPeaks(AudioFormat format) {
+        int channels = format != null && format.getChannels() > 0 ? format.getChannels() : DEFAULT_WAVEFORM_CHANNELS;
+        float sampleRate = format != null && format.getSampleRate() > 0
+            ? format.getSampleRate()
+            : DEFAULT_WAVEFORM_SAMPLE_RATE;
+        return new WaveformPeaks(channels, sampleRate, DEFAULT_WAVEFORM_FRAMES_PER_BUCKET, getPeakMemoryLimit());
+    }
+
+    /**
+     * Returns the configured memory limit for a single track's waveform peaks, in bytes.
+     */
+    private static long getPeakMemoryLimit() {
+        return AppConfig.getInstance().getWaveformPeakMemoryMB() * 1024L * 1024L;
+    }
+
     public int getDurationSeconds() {
         if (durationSeconds > 0) {
             return durationSeconds;
@@ -95,154 +136,99 @@ public class AudioData {
         return metadata;
     }
 
+    public WaveformPeaks getWaveformPeaks() {
+        return waveformPeaks;
+    }
+
     /**
-     * Gets the waveform image that we generated for this audio clip, or
-     * generates one if we haven't done that yet.
-     *
-     * @return A BufferedImage using the waveform prefs from app config.
+     * Returns the results of the AnalysisPipeline for this track, or null if it hasn't been
+     * decoded yet. If our peaks came out of the WaveformPeakCache, the track is only decoded
+     * again if there are registered analyzers (see AnalysisPipeline), so with none registered
+     * this stays null, and the peaks are all there is, available from getWaveformPeaks().
      */
-    public BufferedImage getWaveformImage() {
-        if (waveformImage == null) {
-            waveformImage = generateWaveformImageSnapshot();
-        }
-        return waveformImage;
+    public TrackAnalysis getAnalysis() {
+        return analysis;
     }
 
-    public WaveformPeaks getWaveformPeaks() {
-        return waveformPeaks;
+    public void setAnalysis(TrackAnalysis analysis) {
+        this.analysis = analysis;
     }
 
     /**
-     * Force a regeneration of our waveform image. Useful if app preferences
-     * have changed and the waveform config (colors, background, etc) have changed.
+     * Attaches an already-opened and primed playback stream to this track. This is used
+     * by the gapless pre-roll in AudioLoadCoordinator: the decoder for the upcoming track is
+     * opened and its first PCM frames are buffered while the current track is still playing,
+     * so that playback of this track can start without waiting on the disk or the decoder.
+     * Any previously attached stream that was never used is closed.
      *
-     * @return A BufferedImage representing audio data for our clip.
+     * @param stream A stream as returned by AudioUtil.primePlaybackStream(), or null to clear.
      */
-    public BufferedImage regenerateWaveformImage() {
-        waveformImage = generateWaveformImageSnapshot();
-        return waveformImage;
+    public synchronized void setPrimedPlaybackStream(AudioInputStream stream) {
+        discardPrimedPlaybackStream();
+        primedPlaybackStream = stream;
     }
 
     /**
-     * Generates a fresh waveform image from whichever backing data is currently available.
-     * This is synchronized so callers can safely invoke it from a background thread.
+     * Returns and clears the primed playback stream for this track, if there is one.
+     * A primed stream is only good for one playback from the start of the track, so
+     * the caller takes ownership of it and is responsible for closing it.
+     *
+     * @return A primed playback stream positioned at the start of the track, or null.
      */
-    public synchronized BufferedImage generateWaveformImageSnapshot() {
-        if (waveformPeaks.getBucketCount() > 0) {
-            return generateWaveformImage(waveformPeaks.snapshotByChannel(), waveformPeaks.getFramesPerBucket());
-        }
-        return null;
+    public synchronized AudioInputStream takePrimedPlaybackStream() {
+        AudioInputStream stream = primedPlaybackStream;
+        primedPlaybackStream = null;
+        return stream;
     }
 
     /**
-     * Invoked internally to generate the waveform image for our audio data.
-     *
-     * @return A BufferedImage representing our audio, or null if we have no audio.
+     * Closes and clears the primed playback stream for this track, if there is one.
      */
-    private BufferedImage generateWaveformImage(int[][] audioData, int frameMultiplier) {
-        BufferedImage waveform = null;
-        if (audioData == null) {
-            return waveform;
-        }
-        WaveformConfig config = getWaveformConfig();
-
-        // Make sure our audio channel indexes make sense:
-        int topChannelIndex = Math.max(config.getTopChannelIndex(), 0);
-        int btmChannelIndex = Math.max(config.getBottomChannelIndex(), 0);
-        topChannelIndex = (topChannelIndex >= audioData.length) ? audioData.length - 1 : topChannelIndex;
-        btmChannelIndex = (btmChannelIndex >= audioData.length) ? audioData.length - 1 : btmChannelIndex;
-
-        // Determine the horizontal sampling scale we will use in both passes.
-        int xScale = Math.max(1, config.getCompression().getXValue() / Math.max(1, frameMultiplier));
-        int width = Math.max(1, audioData[0].length / xScale);
-        if (width > config.getWidthLimit().getLimit()) {
-            width = config.getWidthLimit().getLimit();
-            xScale = Math.max(1, audioData[0].length / config.getWidthLimit().getLimit());
-            logger.log(Level.INFO, "AudioUtil: scaling waveform image down to fit X limit of {2} (you can change this in settings).",
-                       new Object[]{config.getCompression().getXValue(), xScale, config.getWidthLimit().getLimit()});
-        }
-
-        // Go through the data and find our highest y values using the final xScale:
-        int averagedSample1 = 0;
-        int averagedSample2 = 0;
-        int averagedSampleCount = 0;
-        int maxY1 = 0;
-        int maxY2 = 0;
-        for (int i = 0; i < audioData[0].length; i++) {
-            int sample1 = Math.abs(audioData[topChannelIndex][i] / config.getCompression().getYValue());
-            int sample2 = Math.abs(audioData[btmChannelIndex][i] / config.getCompression().getYValue());
-
-            averagedSample1 += sample1;
-            averagedSample2 += sample2;
-            averagedSampleCount++;
-            if (averagedSampleCount >= xScale) {
-                averagedSample1 /= averagedSampleCount;
-                averagedSample2 /= averagedSampleCount;
-
-                maxY1 = Math.max(averagedSample1, maxY1);
-                maxY2 = Math.max(averagedSample2, maxY2);
-                averagedSample1 = 0;
-                averagedSample2 = 0;
-                averagedSampleCount = 0;
+    public synchronized void discardPrimedPlaybackStream() {
+        if (primedPlaybackStream != null) {
+            try {
+                primedPlaybackStream.close();
             }
-        }
-
-        int height = maxY1 + maxY2;
-        height = (height <= 0) ? 100 : height; // height can be zero if there's no audio data.
-        int verticalMargin = 0; // (int)((maxY1+maxY2)*0.1); // disabling margin for now
-        int centerY = maxY1 + verticalMargin;
-        waveform = new BufferedImage(width, height + (verticalMargin * 2), BufferedImage.TYPE_INT_RGB);
-
-        // Flood the blank image with our background colour and get ready to draw on it:
-        Graphics2D graphics = waveform.createGraphics();
-        graphics.setColor(config.getBgColor());
-        graphics.fillRect(0, 0, width, height + (verticalMargin * 2));
-
-        // Now generate the waveform:
-        int previousSample1 = 0;
-        int previousSample2 = 0;
-        int x = 0;
-        for (int sample = 0; sample < audioData[0].length && x < width; sample++) {
-            averagedSample1 += Math.abs(audioData[topChannelIndex][sample] / config.getCompression().getYValue());
-            averagedSample2 += Math.abs(audioData[btmChannelIndex][sample] / config.getCompression().getYValue());
-            averagedSampleCount++;
-
-            if (averagedSampleCount >= xScale) {
-                averagedSample1 /= averagedSampleCount;
-                averagedSample2 /= averagedSampleCount;
-
-                graphics.setColor(config.getFillColor());
-                graphics.drawLine(x, centerY, x, centerY - averagedSample1);
-                graphics.drawLine(x, centerY, x, centerY + averagedSample2);
-
-                if (config.isOutlineEnabled()) {
-                    graphics.setColor(config.getOutlineColor());
-                    for (int lineI = 0; lineI < config.getOutlineThickness(); lineI++) {
-                        graphics.drawLine(x - 1, centerY - previousSample1 - lineI, x, centerY - averagedSample1 - lineI);
-                        graphics.drawLine(x - 1, centerY + previousSample2 + lineI, x, centerY + averagedSample2 + lineI);
-                    }
-                }
-
-                previousSample1 = averagedSample1;
-                previousSample2 = averagedSample2;
-                averagedSample1 = 0;
-                averagedSample2 = 0;
-                averagedSampleCount = 0;
-                x++;
+            catch (IOException ignored) {
             }
+            primedPlaybackStream = null;
         }
+    }
 
-        if (config.isBaselineEnabled()) {
-            int thickness = Math.max(1, config.getBaselineThickness() / 2);
-            graphics.setColor(config.getBaselineColor());
-            for (int y = centerY - thickness; y <= centerY + thickness; y++) {
-                graphics.drawLine(0, y, width, y);
-            }
-        }
+    /**
+     * Returns a waveform image of this clip at exactly the given size, rendered from whichever
+     * peaks are currently available. While the waveform build is in progress, only the peaks
+     * added since the last call are drawn, so the returned image may be the same instance as
+     * last time. This is synchronized so callers can safely invoke it from a background thread.
+     *
+     * @param width  The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @return A BufferedImage using the waveform prefs from app config, or null if we have no peaks yet.
+     */
+    public synchronized BufferedImage getWaveformImage(int width, int height) {
+        return waveformRenderer.render(waveformPeaks, getWaveformConfig(), getExpectedBucketCount(), width, height);
+    }
 
-        graphics.dispose();
+    /**
+     * Force a regeneration of our waveform image. Useful if app preferences
+     * have changed and the waveform config (colors, background, etc) have changed.
+     *
+     * @param width  The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @return A BufferedImage representing audio data for our clip.
+     */
+    public synchronized BufferedImage regenerateWaveformImage(int width, int height) {
+        waveformRenderer.invalidate();
+        return getWaveformImage(width, height);
+    }
 
-        return waveform;
+    /**
+     * Returns the number of peak buckets we expect to have once the waveform build is
+     * complete, based on the track's duration, or 0 if we don't know the duration.
+     */
+    private int getExpectedBucketCount() {
+        WaveformPeaks.View view = waveformPeaks.view();
+        return (int) (getDurationSeconds() * (double) waveformPeaks.getSampleRate() / view.getFramesPerBucket());
     }
 
     /**
@@ -265,8 +251,6 @@ public class AudioData {
         // User wants to override the current app theme with custom settings:
         else {
             config = new WaveformConfig();
-            config.setCompression(AppConfig.getInstance().getWaveformResolution());
-            config.setWidthLimit(AppConfig.getInstance().getWaveformWidthLimit());
             config.setBgColor(AppConfig.getInstance().getWaveformBgColor());
             config.setFillColor(AppConfig.getInstance().getWaveformFillColor());
             config.setOutlineColor(AppConfig.getInstance().getWaveformOutlineColor());
@@ -44,11 +44,17 @@ public class AudioMetadata {
     private String author = "";
     private String album = "";
     private String genre = "";
-    private String lyrics = "";
+    private String lyrics = ""; // null means not loaded yet; see getLyrics()
     private int durationSeconds = 0;
     private File sourceFile;
     private int trackNumber = 0;
 
+    // Set if we couldn't open the file at all, in which case our values are just guesses:
+    private boolean unreadable;
+
+    // Set for the stand-ins created by placeholder(), until the real metadata replaces them:
+    private boolean placeholder;
+
     static {
         NOTHING_PLAYING = new AudioMetadata();
         NOTHING_PLAYING.title = "(n/a)";
@@ -99,17 +105,43 @@ public class AudioMetadata {
     /**
      * Parses an AudioMetadata instance from the given audio file.
      * JAudioTagger is used to try to extract id3 tags or similar from the
-     * file, if present.
+     * file, if present. Results are remembered in the MetadataLibrary, so
+     * if the file hasn't changed since the last time we read it, we don't
+     * need to open it at all.
      */
     public static AudioMetadata fromFile(File file) {
-        AudioMetadata meta = new AudioMetadata();
-        meta.sourceFile = file;
         if (file == null) {
-            return meta;
+            return new AudioMetadata();
+        }
+
+        AudioMetadata cached = MetadataLibrary.getInstance().lookup(file);
+        if (cached != null) {
+            return cached;
+        }
+        AudioMetadata meta = readFromFile(file);
+        if (!meta.unreadable) {
+            MetadataLibrary.getInstance().store(meta);
+        }
+        return meta;
+    }
+
+    /**
+     * Does the actual work of fromFile(), without consulting the MetadataLibrary.
+     * Most mp3 files can be handled by the much cheaper Id3TagReader, which doesn't read
+     * lyrics (those are loaded on demand by getLyrics()). Everything else goes to jaudiotagger.
+     */
+    private static AudioMetadata readFromFile(File file) {
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+        if (tags != null) {
+            return fromTags(file, tags);
         }
 
+        AudioMetadata meta = new AudioMetadata();
+        meta.sourceFile = file;
         try {
+            meta.unreadable = true;
             AudioFile audioFile = AudioFileIO.read(file);
+            meta.unreadable = false;
 
             // Try to grab the track length, if available:
             AudioHeader header = audioFile.getAudioHeader();
@@ -134,26 +166,71 @@ public class AudioMetadata {
 
         // If JAudioTagger is unable to extract metadata, then we can try
         // to fill in some guesses based on the file itself.
-        if (meta.title == null || meta.title.isBlank()) {
-            meta.title = file.getName();
-        }
-        if (meta.album == null || meta.album.isBlank()) {
-            File parent = file.getParentFile();
-            meta.album = (parent != null) ? parent.getName() : "(unknown)"; // arbitrary guess
-        }
-        if (meta.genre == null) {
-            meta.genre = "";
-        }
-        if (meta.author == null) {
-            meta.author = "";
-        }
+        meta.fillInBlanks();
         if (meta.lyrics == null) {
             meta.lyrics = "";
         }
+        return meta;
+    }
 
+    /**
+     * Builds the metadata for the given file from tags that Id3TagReader has already read,
+     * for callers that had the file open anyway (see AudioProbe). As with everything that
+     * comes from Id3TagReader, the lyrics are left to be loaded on demand.
+     */
+    static AudioMetadata fromTags(File file, Id3TagReader.Tags tags) {
+        AudioMetadata meta = new AudioMetadata();
+        meta.sourceFile = file;
+        meta.title = tags.title();
+        meta.author = tags.artist();
+        meta.album = tags.album();
+        meta.genre = tags.genre();
+        meta.trackNumber = tags.trackNumber();
+        meta.durationSeconds = tags.durationSeconds();
+        meta.lyrics = null;
+        meta.fillInBlanks();
         return meta;
     }
 
+    /**
+     * Returns a stand-in for the given file, filled in only with what we can guess from the
+     * file name and location, without opening the file at all. The Playlist uses these so that
+     * it can show new rows immediately, and replaces them with the result of fromFile() as soon
+     * as that's available (see MetadataPopulator).
+     */
+    public static AudioMetadata placeholder(File file) {
+        AudioMetadata meta = new AudioMetadata();
+        meta.sourceFile = file;
+        meta.placeholder = true;
+        if (file != null) {
+            meta.fillInBlanks();
+        }
+        return meta;
+    }
+
+    /**
+     * Reports whether this is a stand-in created by placeholder(), still waiting for the real metadata.
+     */
+    public boolean isPlaceholder() {
+        return placeholder;
+    }
+
+    private void fillInBlanks() {
+        if (title == null || title.isBlank()) {
+            title = sourceFile.getName();
+        }
+        if (album == null || album.isBlank()) {
+            File parent = sourceFile.getParentFile();
+            album = (parent != null) ? parent.getName() : "(unknown)"; // arbitrary guess
+        }
+        if (genre == null) {
+            genre = "";
+        }
+        if (author == null) {
+            author = "";
+        }
+    }
+
     /**
      * Attempts to save this metadata back to the audio source file, if possible.
      * Currently, this is only supported for mp3 files - attempt to save metadata
@@ -175,6 +252,7 @@ public class AudioMetadata {
             tag.setField(FieldKey.TRACK, Integer.toString(getTrackNumber()));
             tag.setField(FieldKey.LYRICS, getLyrics());
             audioFile.commit();
+            MetadataLibrary.getInstance().store(this); // The file has changed, so our old entry is stale.
             fireChangeEvent(); // Only send a change event after a successful save, not when our fields are updated.
         }
         catch (Exception e) {
@@ -322,9 +400,51 @@ public class AudioMetadata {
     }
 
     public String getLyrics() {
+        if (lyrics == null) {
+            lyrics = readLyrics(sourceFile);
+        }
         return lyrics;
     }
 
+    /**
+     * Returns our lyrics if we have them, or null if they haven't been loaded yet,
+     * without going to the file for them.
+     */
+    public String getLyricsIfLoaded() {
+        return lyrics;
+    }
+
+    private static String readLyrics(File file) {
+        if (file == null) {
+            return "";
+        }
+
+        // If they were read with the rest of the track at some point, the library will have them:
+        MetadataLibrary library = MetadataLibrary.getInstance();
+        AudioMetadata stored = library.lookup(file);
+        if (stored != null && stored.lyrics != null) {
+            return stored.lyrics;
+        }
+        String value;
+        try {
+            Tag tag = AudioFileIO.read(file).getTag();
+            value = tag == null ? null : tag.getFirst(FieldKey.LYRICS);
+            value = value == null ? "" : value;
+        }
+        catch (Exception e) {
+            log.fine("Unable to read lyrics from file: " + file.getAbsolutePath() + " - " + e.getMessage());
+            return "";
+        }
+
+        // Add them to the library's entry, so that we only ever have to parse the whole file for them once.
+        // We go through the stored entry rather than our own fields, which may hold unsaved edits:
+        if (stored != null) {
+            stored.lyrics = value;
+            library.store(stored);
+        }
+        return value;
+    }
+
     public void setTitle(String title) {
         this.title = title == null ? "" : title;
     }
@@ -381,6 +501,10 @@ public class AudioMetadata {
         return this.sourceFile.equals(other.sourceFile);
     }
 
+    /**
+     * Lyrics are left out of this (and hashCode()), as they're loaded on demand: the same track
+     * shouldn't stop being equal to itself, or change its hash, the first time someone reads them.
+     */
     @Override
     public boolean equals(Object object) {
         if (!(object instanceof AudioMetadata that)) { return false; }
@@ -390,13 +514,12 @@ public class AudioMetadata {
             && Objects.equals(album, that.album)
             && Objects.equals(genre, that.genre)
             && Objects.equals(trackNumber, that.trackNumber)
-            && Objects.equals(sourceFile, that.sourceFile)
-            && Objects.equals(lyrics, that.lyrics);
+            && Objects.equals(sourceFile, that.sourceFile);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(title, author, album, genre, durationSeconds, sourceFile, trackNumber, lyrics);
+        return Objects.hash(title, author, album, genre, durationSeconds, sourceFile, trackNumber);
     }
 
     private void fireChangeEvent() {
@@ -0,0 +1,182 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything we need to know about a track before we can start playing it, gathered with
+ * as few trips to the file as possible. Loading a track used to open the file once for
+ * the metadata, once more just to read the audio format, and again for playback, which
+ * adds up quickly on network storage.
+ * <p>
+ * A probe opens the playback stream exactly once and takes the format from it. That same
+ * stream is then handed on to be played, so the decoder doesn't have to be opened a second
+ * time. If the caller already has the track's metadata (the Playlist always does), that is
+ * used as-is, otherwise we look for it in the MetadataLibrary, which doesn't touch the file
+ * at all. Failing that, an mp3's tags are read through the same file handle that the
+ * decoder is then started on, and stored in the library as AudioMetadata.fromFile() would
+ * have. Only files that Id3TagReader can't handle are opened separately for their metadata.
+ * </p>
+ * <p>
+ * The probe owns its playback stream until someone takes it with takePlaybackStream().
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class AudioProbe {
+
+    private static final Logger logger = Logger.getLogger(AudioProbe.class.getName());
+
+    private final File sourceFile;
+    private final AudioMetadata metadata;
+    private final AudioFormat format;
+    private final long durationMillis;
+    private AudioInputStream playbackStream;
+
+    private AudioProbe(File sourceFile, AudioMetadata metadata, AudioFormat format, long durationMillis,
+                       AudioInputStream playbackStream) {
+        this.sourceFile = sourceFile;
+        this.metadata = metadata;
+        this.format = format;
+        this.durationMillis = durationMillis;
+        this.playbackStream = playbackStream;
+    }
+
+    /**
+     * Probes the given file. If the playback stream can't be opened, the probe still
+     * succeeds, but getFormat() and takePlaybackStream() will return null, and playback
+     * will report the problem when it tries to open the file itself.
+     *
+     * @param sourceFile The audio file to probe.
+     * @param knownMetadata Metadata for this file that the caller already has, or null.
+     *                      Placeholders, and metadata for some other file, are ignored.
+     * @return A probe for the given file.
+     */
+    public static AudioProbe probe(File sourceFile, AudioMetadata knownMetadata) {
+        AudioMetadata metadata = knownMetadata;
+        if (metadata == null || metadata.isPlaceholder() || !sourceFile.equals(metadata.getSourceFile())) {
+            metadata = MetadataLibrary.getInstance().lookup(sourceFile);
+            if (metadata == null) {
+                AudioProbe probe = probeMp3(sourceFile);
+                if (probe != null) {
+                    return probe;
+                }
+                metadata = AudioMetadata.fromFile(sourceFile);
+            }
+        }
+
+        AudioInputStream stream = null;
+        AudioFormat format = null;
+        try {
+            stream = AudioUtil.openPlaybackStream(sourceFile);
+            format = stream.getFormat();
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to open {0} for playback: {1}",
+                       new Object[]{sourceFile.getName(), e.getMessage()});
+        }
+
+        return new AudioProbe(sourceFile, metadata, format, durationMillis(metadata, stream), stream);
+    }
+
+    /**
+     * Reads an mp3's tags and opens it for playback through one file handle, remembering the
+     * tags in the MetadataLibrary. Returns null if this isn't an mp3 that Id3TagReader can
+     * handle, in which case the caller should go the long way around.
+     */
+    private static AudioProbe probeMp3(File sourceFile) {
+        if (!sourceFile.getName().toLowerCase().endsWith(".mp3")) {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(sourceFile, "r");
+            Id3TagReader.Tags tags = Id3TagReader.read(file);
+            if (tags == null) {
+                file.close();
+                return null;
+            }
+            AudioMetadata metadata = AudioMetadata.fromTags(sourceFile, tags);
+            MetadataLibrary.getInstance().store(metadata);
+
+            AudioInputStream stream = null;
+            AudioFormat format = null;
+            try {
+                stream = AudioUtil.openMp3PlaybackStream(file);
+                format = stream.getFormat();
+            }
+            catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to open {0} for playback: {1}",
+                           new Object[]{sourceFile.getName(), e.getMessage()});
+                file.close();
+            }
+            return new AudioProbe(sourceFile, metadata, format, durationMillis(metadata, stream), stream);
+        }
+        catch (IOException | RuntimeException e) {
+            // Anything malformed enough to trip up Id3TagReader is jaudiotagger's problem:
+            if (file != null) {
+                try {
+                    file.close();
+                }
+                catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Takes the metadata's word for the duration if it has one, since decoded mp3 streams
+     * generally don't know their own length. Otherwise, asks the stream.
+     */
+    private static long durationMillis(AudioMetadata metadata, AudioInputStream stream) {
+        if (metadata.getDurationSeconds() > 0) {
+            return metadata.getDurationSeconds() * 1000L;
+        }
+        if (stream == null || stream.getFrameLength() <= 0 || stream.getFormat().getFrameRate() <= 0) {
+            return 0L;
+        }
+        return (long) (stream.getFrameLength() * 1000d / stream.getFormat().getFrameRate());
+    }
+
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    public AudioMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the PCM format that the track will be played in, or null if it couldn't be opened.
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the track's duration in milliseconds, or 0 if we don't know it.
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Returns and clears the playback stream that was opened by this probe, positioned at the
+     * start of the track. The caller takes ownership of it and is responsible for closing it.
+     *
+     * @return The playback stream, or null if it couldn't be opened or has already been taken.
+     */
+    public synchronized AudioInputStream takePlaybackStream() {
+        AudioInputStream stream = playbackStream;
+        playbackStream = null;
+        return stream;
+    }
+}
@@ -0,0 +1,165 @@
+package ca.corbett.musicplayer.audio;
+
+import ca.corbett.musicplayer.AppConfig;
+import ca.corbett.musicplayer.Version;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Somewhere for a PlaybackEngine to send decoded PCM audio. Normally this is the sound card
+ * (via a Java Sound SourceDataLine), but on machines with no sound card at all (build and
+ * benchmark boxes, CI) we can instead discard the audio, either paced in real time or as fast
+ * as it can be decoded, or write it out to a WAV file for inspection.
+ * <p>
+ * The methods here deliberately mirror the subset of SourceDataLine that the playback
+ * engine actually uses, with the same semantics: in particular, write() blocks while
+ * the sink's buffer is full, and stop() followed by flush() unblocks it.
+ * </p>
+ * <p>
+ * The sink type comes from the AUDIO_SINK system property if it's set (one of
+ * "line", "null", "null-fast" or "wav"), otherwise from application config. For WAV
+ * output, the AUDIO_SINK_FILE system property names the output file; by default it's
+ * written to playback.wav in the settings directory.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public interface AudioSink {
+
+    /**
+     * The available kinds of sink.
+     */
+    enum Type {
+        LINE("line", "Sound card"),
+        NULL_REALTIME("null", "None (real-time)"),
+        NULL_FAST("null-fast", "None (as fast as possible)"),
+        WAV_FILE("wav", "WAV file");
+
+        private final String key;
+        private final String label;
+
+        Type(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+
+        /**
+         * Returns the short name of this type, as used in the AUDIO_SINK system property.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        /**
+         * Returns the Type with the given key, or null if there isn't one.
+         */
+        public static Type fromKey(String key) {
+            for (Type type : values()) {
+                if (type.key.equalsIgnoreCase(key)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the sink type to use: the AUDIO_SINK system property, if set to something valid,
+     * otherwise whatever is selected in application config.
+     */
+    static Type getConfiguredType() {
+        String property = System.getProperty("AUDIO_SINK");
+        if (property != null && Type.fromKey(property.trim()) != null) {
+            return Type.fromKey(property.trim());
+        }
+        return AppConfig.getInstance().getAudioSinkType();
+    }
+
+    /**
+     * Opens a new sink of the given type, ready to accept audio in the given format.
+     *
+     * @throws LineUnavailableException If the sink could not be opened.
+     */
+    static AudioSink open(Type type, AudioFormat format) throws LineUnavailableException {
+        switch (type) {
+            case NULL_REALTIME:
+                return new NullAudioSink(format, true);
+            case NULL_FAST:
+                return new NullAudioSink(format, false);
+            case WAV_FILE:
+                File file = new File(System.getProperty("AUDIO_SINK_FILE",
+                                                        new File(Version.SETTINGS_DIR, "playback.wav").getAbsolutePath()));
+                try {
+                    return new WavFileAudioSink(format, file);
+                }
+                catch (IOException e) {
+                    LineUnavailableException lue = new LineUnavailableException(
+                        "Unable to open " + file.getAbsolutePath() + ": " + e.getMessage());
+                    lue.initCause(e);
+                    throw lue;
+                }
+            default:
+                return LineAudioSink.open(format);
+        }
+    }
+
+    /**
+     * Returns the type of this sink.
+     */
+    Type getType();
+
+    /**
+     * Returns the PCM format this sink accepts.
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Starts (or resumes) consuming audio.
+     */
+    void start();
+
+    /**
+     * Stops consuming audio. Anything already buffered stays buffered until start() or flush().
+     */
+    void stop();
+
+    /**
+     * Discards anything buffered but not yet played, and unblocks any write() that is waiting.
+     */
+    void flush();
+
+    /**
+     * Writes PCM data to the sink, blocking while its buffer is full.
+     *
+     * @return The number of bytes actually written, which will be less than len if the sink was flushed.
+     */
+    int write(byte[] buffer, int offset, int len);
+
+    /**
+     * Returns the number of frames played since the sink was opened.
+     */
+    long getLongFramePosition();
+
+    /**
+     * Returns the size of the sink's buffer, in bytes.
+     */
+    int getBufferSize();
+
+    /**
+     * Returns how many bytes can currently be written without blocking.
+     */
+    int available();
+
+    boolean isOpen();
+
+    void close();
+}
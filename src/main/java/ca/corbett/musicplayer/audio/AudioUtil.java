@@ -1,15 +1,21 @@
 package ca.corbett.musicplayer.audio;
 
-import ca.corbett.extras.audio.PlaybackListener;
-import ca.corbett.extras.audio.PlaybackThread;
+import ca.corbett.musicplayer.AppConfig;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
 
 /**
  * Utility helpers for audio-file validation and streaming playback.
@@ -22,6 +28,12 @@ import java.io.IOException;
  */
 public class AudioUtil {
 
+    /**
+     * When seeking within an mp3, we aim for a seek point at least this far before the target,
+     * so that a couple of frames are decoded (and discarded) before anything audible.
+     */
+    private static final long SEEK_GUARD_MILLIS = 60;
+
     private AudioUtil() {
     }
 
@@ -55,29 +67,44 @@ public class AudioUtil {
             filename.endsWith(".mplist");
     }
 
-    public static PlaybackThread play(AudioData data, PlaybackListener listener) throws IOException, LineUnavailableException {
+    public static PlaybackEngine play(AudioData data, PlaybackEngine.Listener listener) throws IOException, LineUnavailableException {
         return play(data, 0, listener);
     }
 
     /**
      * Starts playback from the given track at the requested millisecond offset.
      *
-     * Playback is streamed from the source file and decoded to PCM on demand.
+     * Playback is streamed from the source file and decoded to PCM on demand,
+     * using a PlaybackEngine with the decode buffer depth from AppConfig.
+     * For mp3 files, the stream is positioned using the file's seek index,
+     * so starting near the end of a long track is about as quick as starting near the beginning.
      *
      * @param data     Track wrapper with a valid source file.
      * @param offset   Start offset in milliseconds.
      * @param listener Playback callback listener.
-     * @return The running playback thread.
+     * @return The running playback engine.
      */
-    public static PlaybackThread play(AudioData data, long offset, PlaybackListener listener) throws IOException, LineUnavailableException {
+    public static PlaybackEngine play(AudioData data, long offset, PlaybackEngine.Listener listener) throws IOException, LineUnavailableException {
         if (data == null || data.getSourceFile() == null) {
             throw new IOException("No audio source file is available for playback.");
         }
 
-        AudioInputStream audioStream = openPlaybackStream(data.getSourceFile());
-        PlaybackThread thread = new PlaybackThread(audioStream, offset, 0, listener);
-        new Thread(thread).start();
-        return thread;
+        // If the track was pre-rolled, its decoder is already open and primed, so use that:
+        AudioInputStream audioStream = offset == 0 ? data.takePrimedPlaybackStream() : null;
+        if (audioStream == null) {
+            audioStream = openPlaybackStream(data.getSourceFile(), offset);
+        }
+        PlaybackEngine engine = new PlaybackEngine(audioStream, offset,
+                                                   AppConfig.getInstance().getPlaybackBufferDepth(),
+                                                   listener);
+        try {
+            engine.start();
+        }
+        catch (LineUnavailableException | RuntimeException e) {
+            audioStream.close();
+            throw e;
+        }
+        return engine;
     }
 
     /**
@@ -89,16 +116,163 @@ public class AudioUtil {
      * @return A stream in a playback-compatible PCM format.
      */
     public static AudioInputStream openPlaybackStream(File sourceFile) throws IOException {
-        AudioInputStream sourceStream;
+        return openPlaybackStream(sourceFile, 0L);
+    }
+
+    /**
+     * Opens a playback stream as with openPlaybackStream(File), but positioned at the given
+     * millisecond offset into the track. For mp3 files, we consult the file's Mp3SeekIndex and
+     * start decoding at the nearest indexed frame before the offset, so only a short stretch
+     * of audio has to be decoded and thrown away no matter how far into the track we're going.
+     * We deliberately land a little before the target so that the decoder's bit reservoir
+     * is filled by the time we reach audio that will actually be heard.
+     * <p>
+     * If the total length of the stream is known, the returned stream's frame length
+     * counts only the frames from the offset onward.
+     * </p>
+     * <p>
+     * The offset is converted to a PCM frame using the file's sample rate, and the actual
+     * seeking is done by openPlaybackStreamAtFrame().
+     * </p>
+     *
+     * @param sourceFile   Audio file to open.
+     * @param offsetMillis Where in the track the returned stream should begin.
+     * @return A stream in a playback-compatible PCM format, positioned at the given offset.
+     */
+    public static AudioInputStream openPlaybackStream(File sourceFile, long offsetMillis) throws IOException {
+        if (offsetMillis <= 0) {
+            return openPlaybackStreamAtFrame(sourceFile, 0L);
+        }
+        long targetFrame = (long) (offsetMillis * (double) getSampleRate(sourceFile) / 1000d);
+        return openPlaybackStreamAtFrame(sourceFile, targetFrame);
+    }
+
+    /**
+     * Opens a playback stream as with openPlaybackStream(File), but positioned at an exact PCM frame.
+     * This is for callers that split a track into pieces and need those pieces to meet up exactly,
+     * like WaveformBuildThread, and it's what openPlaybackStream(File, long) uses to get there.
+     * <p>
+     * For wav files, getting there is just a file seek. For mp3 files, we start decoding at the
+     * nearest seek point before the target (less the usual guard), and discard the rest.
+     * </p>
+     *
+     * @param sourceFile Audio file to open.
+     * @param startFrame The first PCM frame that the returned stream should produce.
+     * @return A stream in a playback-compatible PCM format, positioned at the given frame.
+     */
+    public static AudioInputStream openPlaybackStreamAtFrame(File sourceFile, long startFrame) throws IOException {
+        AudioInputStream stream = null;
+        long streamStartFrame = 0L;
+        if (startFrame > 0) {
+            Mp3SeekIndex index = Mp3SeekIndex.forFile(sourceFile);
+            if (index != null) {
+                long guardFrames = SEEK_GUARD_MILLIS * index.getSampleRate() / 1000L;
+                Mp3SeekIndex.SeekPoint seekPoint = index.seekPointForFrame(startFrame - guardFrames);
+                if (seekPoint.pcmFrame() > 0) {
+                    stream = openMp3At(sourceFile, seekPoint.byteOffset());
+                    if (stream != null) {
+                        streamStartFrame = seekPoint.pcmFrame();
+                    }
+                }
+            }
+        }
+        if (stream == null) {
+            try {
+                stream = toPlaybackFormat(AudioSystem.getAudioInputStream(sourceFile));
+            }
+            catch (UnsupportedAudioFileException e) {
+                throw new IOException("Unsupported source audio file: " + sourceFile.getName(), e);
+            }
+        }
+        if (startFrame <= 0) {
+            return stream;
+        }
+        return skipFrames(stream, startFrame - streamStartFrame, streamStartFrame == 0);
+    }
+
+    /**
+     * Returns the sample rate of the given file, which is also the frame rate of its playback stream,
+     * without decoding anything. For mp3 files we take it from the seek index, since the file format
+     * reports a frame rate in mp3 frames rather than PCM frames.
+     */
+    private static float getSampleRate(File sourceFile) throws IOException {
+        Mp3SeekIndex index = Mp3SeekIndex.forFile(sourceFile);
+        if (index != null) {
+            return index.getSampleRate();
+        }
         try {
-            sourceStream = AudioSystem.getAudioInputStream(sourceFile);
+            return AudioSystem.getAudioFileFormat(sourceFile).getFormat().getSampleRate();
         }
         catch (UnsupportedAudioFileException e) {
             throw new IOException("Unsupported source audio file: " + sourceFile.getName(), e);
         }
-        AudioFormat sourceFormat = sourceStream.getFormat();
+    }
+
+    /**
+     * Skips the given number of frames in the given stream. If the stream was opened at the start
+     * of the track and its length is known, the returned stream's frame length counts only the
+     * frames that remain.
+     */
+    private static AudioInputStream skipFrames(AudioInputStream stream, long framesToSkip, boolean fromTrackStart) throws IOException {
+        AudioFormat format = stream.getFormat();
+        int frameSize = Math.max(1, format.getFrameSize());
+        long bytesToSkip = Math.max(0L, framesToSkip) * frameSize;
+        long remaining = bytesToSkip;
+        while (remaining > 0) {
+            long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+
+        long frameLength = stream.getFrameLength();
+        if (frameLength <= 0 || !fromTrackStart) {
+            return stream;
+        }
+        return new AudioInputStream(stream, format, Math.max(0L, frameLength - (bytesToSkip - remaining) / frameSize));
+    }
+
+    /**
+     * Opens the given mp3 file for decoding starting at the frame header found at the given
+     * byte offset. Returns null if the decoder won't accept the stream from that point,
+     * in which case the caller should fall back to decoding from the start of the file.
+     */
+    private static AudioInputStream openMp3At(File sourceFile, long byteOffset) throws IOException {
+        FileInputStream fileStream = new FileInputStream(sourceFile);
+        try {
+            fileStream.getChannel().position(byteOffset);
+            return toPlaybackFormat(AudioSystem.getAudioInputStream(new BufferedInputStream(fileStream, 64 * 1024)));
+        }
+        catch (UnsupportedAudioFileException | IOException e) {
+            fileStream.close();
+            return null;
+        }
+    }
 
-        // Keep playback format consistent for mp3/wav by targeting signed 16-bit little-endian PCM.
+    /**
+     * Opens a playback stream from the start of an mp3 file that the caller already has open,
+     * so that AudioProbe can read the tags and start the decoder with a single open. The
+     * returned stream takes over the file, and closing it closes the file. If this throws,
+     * the file is still the caller's to close.
+     */
+    static AudioInputStream openMp3PlaybackStream(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        InputStream fileStream = new BufferedInputStream(Channels.newInputStream(file.getChannel()), 64 * 1024);
+        try {
+            return toPlaybackFormat(AudioSystem.getAudioInputStream(fileStream));
+        }
+        catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported source audio file", e);
+        }
+    }
+
+    /**
+     * Wraps the given source stream with a conversion to signed 16-bit little-endian PCM,
+     * which keeps the playback format consistent for mp3 and wav.
+     */
+    private static AudioInputStream toPlaybackFormat(AudioInputStream sourceStream) throws IOException {
+        AudioFormat sourceFormat = sourceStream.getFormat();
         AudioFormat targetFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
                                                    sourceFormat.getSampleRate(),
                                                    16,
@@ -122,4 +296,40 @@ public class AudioUtil {
         sourceStream.close();
         throw new IOException("Unsupported playback format: " + sourceFormat);
     }
+
+    /**
+     * Reads (and decodes, in the case of mp3) roughly the first primeMillis worth of PCM
+     * from the given playback stream into memory, and returns a new stream that will
+     * replay those buffered frames followed by the remainder of the original stream.
+     * The point is to get the expensive parts of starting playback (opening the file,
+     * spinning up the decoder, the first disk reads) out of the way ahead of time.
+     * <p>
+     * The returned stream owns the given stream - closing one closes the other.
+     * </p>
+     *
+     * @param stream      A stream as returned from openPlaybackStream().
+     * @param primeMillis How much audio to buffer up front, in milliseconds.
+     * @return A stream that starts with the buffered PCM frames.
+     */
+    public static AudioInputStream primePlaybackStream(AudioInputStream stream, long primeMillis) throws IOException {
+        AudioFormat format = stream.getFormat();
+        int frameSize = Math.max(1, format.getFrameSize());
+        float frameRate = format.getFrameRate() > 0 ? format.getFrameRate() : format.getSampleRate();
+        long frames = Math.max(1L, (long) (frameRate * primeMillis / 1000f));
+        byte[] primed = new byte[(int) Math.min(Integer.MAX_VALUE - 8, frames * frameSize)];
+
+        int total = 0;
+        while (total < primed.length) {
+            int bytesRead = stream.read(primed, total, primed.length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        total -= total % frameSize; // only whole frames - a partial frame would never have been returned anyway
+
+        return new AudioInputStream(new SequenceInputStream(new ByteArrayInputStream(primed, 0, total), stream),
+                                    format,
+                                    stream.getFrameLength());
+    }
 }
@@ -0,0 +1,488 @@
+package ca.corbett.musicplayer.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A lean reader for the handful of fields the playlist actually shows (artist, title, album,
+ * genre, track number and duration), as an alternative to jaudiotagger's AudioFileIO.read().
+ * jaudiotagger parses the whole structure of the file and every frame in the tag (album art
+ * and lyrics included), which is a lot of work and a lot of garbage when we're loading a
+ * playlist of thousands of tracks.
+ * <p>
+ * Instead, we do one small read from the start of the file into a per-thread buffer. That's
+ * nearly always enough to cover the ID3v2 header, the few text frames we care about, and the
+ * first mp3 frame after the tag, from which we get the duration: exactly, from the Xing/Info
+ * or VBRI header if there is one, or otherwise from the bitrate and the file size. If the tag
+ * is bigger than the buffer (large embedded cover art, usually) we skip over the frames we don't
+ * need without reading them. The ID3v1 tag at the end of the file is only read if there's no
+ * ID3v2 tag, or it's missing a title.
+ * </p>
+ * <p>
+ * Lyrics are deliberately not read; AudioMetadata loads those on demand.
+ * Anything unusual (unsynchronised, compressed or encrypted tags, files that aren't mp3,
+ * or mp3 files we can't find a frame in) gets a null back, and the caller should fall
+ * back to jaudiotagger.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class Id3TagReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * How far past the end of the tag we'll look for the first mp3 frame.
+     */
+    private static final int FRAME_SEARCH_BYTES = 4 * 1024;
+
+    private static final int ID3V1_LENGTH = 128;
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    /**
+     * The ID3v1 genre list, including the Winamp extensions, which ID3v2 also uses for "(17)" style genres.
+     */
+    private static final String[] GENRES = {
+        "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop", "Jazz", "Metal",
+        "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno", "Industrial",
+        "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop",
+        "Vocal", "Jazz+Funk", "Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game",
+        "Sound Clip", "Gospel", "Noise", "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative",
+        "Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic", "Darkwave", "Techno-Industrial",
+        "Electronic", "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta", "Top 40",
+        "Christian Rap", "Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave", "Psychadelic", "Rave",
+        "Showtunes", "Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical",
+        "Rock & Roll", "Hard Rock", "Folk", "Folk-Rock", "National Folk", "Swing", "Fast Fusion", "Bebob",
+        "Latin", "Revival", "Celtic", "Bluegrass", "Avantgarde", "Gothic Rock", "Progressive Rock",
+        "Psychedelic Rock", "Symphonic Rock", "Slow Rock", "Big Band", "Chorus", "Easy Listening", "Acoustic",
+        "Humour", "Speech", "Chanson", "Opera", "Chamber Music", "Sonata", "Symphony", "Booty Bass", "Primus",
+        "Porn Groove", "Satire", "Slow Jam", "Club", "Tango", "Samba", "Folklore", "Ballad", "Power Ballad",
+        "Rhythmic Soul", "Freestyle", "Duet", "Punk Rock", "Drum Solo", "A capella", "Euro-House", "Dance Hall"
+    };
+
+    /**
+     * The fields we read. Strings are empty, not null, if the tag didn't have them,
+     * and durationSeconds is 0 if we couldn't work it out.
+     */
+    public record Tags(String title, String artist, String album, String genre, int trackNumber,
+                       int durationSeconds) {
+    }
+
+    private Id3TagReader() {
+    }
+
+    /**
+     * Reads the display fields from the given file.
+     *
+     * @return The fields, or null if this isn't a file we can handle, in which case use jaudiotagger.
+     */
+    public static Tags read(File file) {
+        if (file == null || !file.getName().toLowerCase().endsWith(".mp3")) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return read(raf);
+        }
+        catch (IOException | RuntimeException e) {
+            // Anything malformed enough to trip us up is jaudiotagger's problem:
+            return null;
+        }
+    }
+
+    static Tags read(RandomAccessFile raf) throws IOException {
+        byte[] buffer = BUFFER.get();
+        long fileLength = raf.length();
+        int bufferLength = readAt(raf, 0, buffer);
+        Fields fields = new Fields();
+
+        int tagLength = Mp3SeekIndex.id3v2Length(buffer, 0, bufferLength);
+        boolean hasId3v2 = tagLength > 0;
+        if (hasId3v2 && !readId3v2(raf, buffer, bufferLength, tagLength, fields)) {
+            return null;
+        }
+        if (tagLength > bufferLength) {
+            bufferLength = 0; // readId3v2() will have reused the buffer for later parts of the tag
+        }
+
+        // Find the end of any further ID3v2 tags (rare, but legal) to get to the audio:
+        long audioStart = tagLength;
+        while (true) {
+            int headerLength = audioStart + 10 <= bufferLength ? bufferLength : 0;
+            byte[] header = buffer;
+            int headerOffset = (int) audioStart;
+            if (headerLength == 0) {
+                header = new byte[10];
+                headerLength = readAt(raf, audioStart, header);
+                headerOffset = 0;
+            }
+            int nextTag = Mp3SeekIndex.id3v2Length(header, headerOffset, headerLength);
+            if (nextTag == 0) {
+                break;
+            }
+            audioStart += nextTag;
+        }
+
+        int durationSeconds = readDuration(raf, buffer, bufferLength, audioStart, fileLength);
+        if (durationSeconds < 0) {
+            return null;
+        }
+
+        if ((!hasId3v2 || fields.title.isEmpty()) && fileLength >= ID3V1_LENGTH) {
+            // readDuration() may have reused the buffer, so read the ID3v1 tag fresh:
+            if (readAt(raf, fileLength - ID3V1_LENGTH, buffer) == ID3V1_LENGTH) {
+                readId3v1(buffer, fields);
+            }
+        }
+
+        return new Tags(fields.title, fields.artist, fields.album, parseGenre(fields.genre),
+                        parseTrackNumber(fields.track), durationSeconds);
+    }
+
+    /**
+     * Reads the text frames we care about out of the ID3v2 tag at the start of the file,
+     * the first bufferLength bytes of which are already in the buffer.
+     *
+     * @return false if the tag uses a feature we don't handle.
+     */
+    private static boolean readId3v2(RandomAccessFile raf, byte[] buffer, int bufferLength, int tagLength,
+                                     Fields fields) throws IOException {
+        int version = buffer[3];
+        int flags = buffer[5] & 0xFF;
+        if (version < 2 || version > 4 || (flags & 0x80) != 0 || (version == 2 && (flags & 0x40) != 0)) {
+            return false; // Unknown version, whole-tag unsynchronisation, or v2.2 compression
+        }
+        boolean hasFooter = (flags & 0x10) != 0;
+        long end = tagLength - (hasFooter ? 10 : 0);
+        long pos = 10;
+        if (version > 2 && (flags & 0x40) != 0) {
+            if (bufferLength < 14) {
+                return false;
+            }
+            // Extended header: v2.3 gives its size excluding the size field, v2.4 syncsafe and including it
+            pos += version == 3 ? 4 + Mp3FrameHeader.readInt(buffer, 10) : syncsafe(buffer, 10);
+        }
+
+        int idLength = version == 2 ? 3 : 4;
+        int frameHeaderLength = version == 2 ? 6 : 10;
+        long bufferStart = 0;
+        while (pos + frameHeaderLength <= end && !fields.isComplete()) {
+            if (pos + frameHeaderLength > bufferStart + bufferLength) {
+                bufferStart = pos;
+                bufferLength = readAt(raf, pos, buffer);
+                if (bufferLength < frameHeaderLength) {
+                    break;
+                }
+            }
+            int i = (int) (pos - bufferStart);
+            if (buffer[i] == 0) {
+                break; // Padding
+            }
+            String id = new String(buffer, i, idLength, StandardCharsets.ISO_8859_1);
+            int size;
+            if (version == 2) {
+                size = ((buffer[i + 3] & 0xFF) << 16) | ((buffer[i + 4] & 0xFF) << 8) | (buffer[i + 5] & 0xFF);
+            }
+            else if (version == 3) {
+                size = Mp3FrameHeader.readInt(buffer, i + 4);
+            }
+            else {
+                size = syncsafe(buffer, i + 4);
+            }
+            if (size <= 0 || pos + frameHeaderLength + size > end) {
+                break; // Corrupt, or we've run into junk. Keep what we have.
+            }
+
+            int field = fieldFor(id);
+            if (field >= 0 && size + frameHeaderLength <= buffer.length) {
+                if (pos + frameHeaderLength + size > bufferStart + bufferLength) {
+                    bufferStart = pos;
+                    bufferLength = readAt(raf, pos, buffer);
+                    i = 0;
+                    if (bufferLength < frameHeaderLength + size) {
+                        break;
+                    }
+                }
+                int dataStart = i + frameHeaderLength;
+                int dataLength = size;
+                if (version > 2) {
+                    int frameFlags = buffer[i + 9] & 0xFF;
+                    boolean grouped = version == 3 ? (frameFlags & 0x20) != 0 : (frameFlags & 0x40) != 0;
+                    boolean unsupported = version == 3 ? (frameFlags & 0xC0) != 0 : (frameFlags & 0x0E) != 0;
+                    boolean dataLengthIndicator = version == 4 && (frameFlags & 0x01) != 0;
+                    if (unsupported) {
+                        return false; // Compressed, encrypted or unsynchronised frame
+                    }
+                    int skip = (grouped ? 1 : 0) + (dataLengthIndicator ? 4 : 0);
+                    dataStart += skip;
+                    dataLength -= skip;
+                }
+                fields.set(field, decodeText(buffer, dataStart, dataLength));
+            }
+            pos += frameHeaderLength + size;
+        }
+        return true;
+    }
+
+    /**
+     * Works out the duration from the first mp3 frame at or shortly after audioStart.
+     *
+     * @return The duration in seconds, or -1 if we couldn't find a frame.
+     */
+    private static int readDuration(RandomAccessFile raf, byte[] buffer, int bufferLength, long audioStart,
+                                    long fileLength) throws IOException {
+        int offset = (int) Math.min(audioStart, Integer.MAX_VALUE);
+        int length = bufferLength;
+        if (audioStart + FRAME_SEARCH_BYTES > bufferLength && bufferLength < fileLength) {
+            length = readAt(raf, audioStart, buffer);
+            offset = 0;
+        }
+
+        for (int i = offset; i + 4 <= length && i < offset + FRAME_SEARCH_BYTES; i++) {
+            Mp3FrameHeader header = Mp3FrameHeader.parse(buffer, i, length);
+            if (header == null || header.getLayer() != 3) {
+                continue;
+            }
+
+            // Make sure it's a real frame and not a stray sync pattern, if we can see the next one:
+            int next = i + header.getFrameLength();
+            if (next + 4 <= length && !header.isCompatibleWith(Mp3FrameHeader.parse(buffer, next, length))) {
+                continue;
+            }
+
+            long frames = xingFrameCount(header, buffer, i, length);
+            if (frames < 0) {
+                frames = vbriFrameCount(buffer, i, length);
+            }
+            double seconds;
+            if (frames >= 0) {
+                seconds = frames * (double) header.getSamplesPerFrame() / header.getSampleRate();
+            }
+            else {
+                // Constant bitrate. We don't bother excluding an ID3v1 tag; it's 128 bytes, or a few milliseconds:
+                long frameOffset = audioStart + (i - offset);
+                seconds = (fileLength - frameOffset) * 8d / (header.getBitrateKbps() * 1000d);
+            }
+            return (int) Math.round(seconds);
+        }
+        return -1;
+    }
+
+    private static long xingFrameCount(Mp3FrameHeader header, byte[] buffer, int frameOffset, int length) {
+        int tagOffset = frameOffset + 4 + header.getSideInfoLength();
+        if (tagOffset + 12 > length) {
+            return -1;
+        }
+        String tag = new String(buffer, tagOffset, 4, StandardCharsets.ISO_8859_1);
+        if (!"Xing".equals(tag) && !"Info".equals(tag)) {
+            return -1;
+        }
+        int flags = Mp3FrameHeader.readInt(buffer, tagOffset + 4);
+        if ((flags & 0x1) == 0) {
+            return -1;
+        }
+        return Mp3FrameHeader.readInt(buffer, tagOffset + 8) & 0xFFFFFFFFL;
+    }
+
+    private static long vbriFrameCount(byte[] buffer, int frameOffset, int length) {
+        int tagOffset = frameOffset + 4 + 32;
+        if (tagOffset + 18 > length
+            || !"VBRI".equals(new String(buffer, tagOffset, 4, StandardCharsets.ISO_8859_1))) {
+            return -1;
+        }
+        return Mp3FrameHeader.readInt(buffer, tagOffset + 14) & 0xFFFFFFFFL;
+    }
+
+    private static void readId3v1(byte[] buffer, Fields fields) {
+        if (buffer[0] != 'T' || buffer[1] != 'A' || buffer[2] != 'G') {
+            return;
+        }
+        fields.setIfEmpty(Fields.TITLE, latin1(buffer, 3, 30));
+        fields.setIfEmpty(Fields.ARTIST, latin1(buffer, 33, 30));
+        fields.setIfEmpty(Fields.ALBUM, latin1(buffer, 63, 30));
+
+        // ID3v1.1 puts the track number in the last byte of the comment:
+        if (buffer[125] == 0 && buffer[126] != 0) {
+            fields.setIfEmpty(Fields.TRACK, Integer.toString(buffer[126] & 0xFF));
+        }
+        int genre = buffer[127] & 0xFF;
+        if (genre < GENRES.length) {
+            fields.setIfEmpty(Fields.GENRE, GENRES[genre]);
+        }
+    }
+
+    /**
+     * Decodes an ID3v2 text frame: an encoding byte, then the text. ID3v2.4 allows several
+     * null-separated values; we only want the first.
+     */
+    static String decodeText(byte[] buffer, int offset, int length) {
+        if (length < 1) {
+            return "";
+        }
+        int encoding = buffer[offset];
+        int start = offset + 1;
+        int end = offset + length;
+        Charset charset;
+        boolean wide;
+        switch (encoding) {
+            case 1 -> {
+                charset = StandardCharsets.UTF_16;
+                wide = true;
+            }
+            case 2 -> {
+                charset = StandardCharsets.UTF_16BE;
+                wide = true;
+            }
+            case 3 -> {
+                charset = StandardCharsets.UTF_8;
+                wide = false;
+            }
+            default -> {
+                charset = StandardCharsets.ISO_8859_1;
+                wide = false;
+            }
+        }
+
+        int terminator = start;
+        if (wide) {
+            while (terminator + 1 < end && (buffer[terminator] != 0 || buffer[terminator + 1] != 0)) {
+                terminator += 2;
+            }
+            terminator = Math.min(terminator, end);
+        }
+        else {
+            while (terminator < end && buffer[terminator] != 0) {
+                terminator++;
+            }
+        }
+        return new String(buffer, start, terminator - start, charset).trim();
+    }
+
+    /**
+     * Turns "(17)", "(17)Rock", "17" or "Rock" into "Rock".
+     */
+    static String parseGenre(String genre) {
+        String value = genre.trim();
+        String number = value;
+        if (value.startsWith("(")) {
+            int close = value.indexOf(')');
+            if (close > 0) {
+                String rest = value.substring(close + 1).trim();
+                if (!rest.isEmpty()) {
+                    return rest;
+                }
+                number = value.substring(1, close);
+            }
+        }
+        if (!number.isEmpty() && number.chars().allMatch(Character::isDigit) && number.length() <= 3) {
+            int index = Integer.parseInt(number);
+            if (index < GENRES.length) {
+                return GENRES[index];
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Turns "3" or "3/12" into 3, and anything else into 0.
+     */
+    static int parseTrackNumber(String track) {
+        int slash = track.indexOf('/');
+        String number = (slash >= 0 ? track.substring(0, slash) : track).trim();
+        try {
+            return Math.max(0, Integer.parseInt(number));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int fieldFor(String id) {
+        return switch (id) {
+            case "TIT2", "TT2" -> Fields.TITLE;
+            case "TPE1", "TP1" -> Fields.ARTIST;
+            case "TALB", "TAL" -> Fields.ALBUM;
+            case "TCON", "TCO" -> Fields.GENRE;
+            case "TRCK", "TRK" -> Fields.TRACK;
+            default -> -1;
+        };
+    }
+
+    private static int syncsafe(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0x7F) << 21)
+            | ((buffer[offset + 1] & 0x7F) << 14)
+            | ((buffer[offset + 2] & 0x7F) << 7)
+            | (buffer[offset + 3] & 0x7F);
+    }
+
+    private static String latin1(byte[] buffer, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buffer[end] != 0) {
+            end++;
+        }
+        return new String(buffer, offset, end - offset, StandardCharsets.ISO_8859_1).trim();
+    }
+
+    private static int readAt(RandomAccessFile raf, long position, byte[] buffer) throws IOException {
+        raf.seek(position);
+        int total = 0;
+        while (total < buffer.length) {
+            int read = raf.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * The raw text we've found so far.
+     */
+    private static final class Fields {
+        static final int TITLE = 0;
+        static final int ARTIST = 1;
+        static final int ALBUM = 2;
+        static final int GENRE = 3;
+        static final int TRACK = 4;
+
+        String title = "";
+        String artist = "";
+        String album = "";
+        String genre = "";
+        String track = "";
+
+        void set(int field, String value) {
+            switch (field) {
+                case TITLE -> title = value;
+                case ARTIST -> artist = value;
+                case ALBUM -> album = value;
+                case GENRE -> genre = value;
+                case TRACK -> track = value;
+                default -> { }
+            }
+        }
+
+        void setIfEmpty(int field, String value) {
+            boolean empty = switch (field) {
+                case TITLE -> title.isEmpty();
+                case ARTIST -> artist.isEmpty();
+                case ALBUM -> album.isEmpty();
+                case GENRE -> genre.isEmpty();
+                case TRACK -> track.isEmpty();
+                default -> false;
+            };
+            if (empty) {
+                set(field, value);
+            }
+        }
+
+        boolean isComplete() {
+            return !title.isEmpty() && !artist.isEmpty() && !album.isEmpty() && !genre.isEmpty() && !track.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * An AudioSink that plays to the sound card via a Java Sound SourceDataLine.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+final class LineAudioSink implements AudioSink {
+
+    private final SourceDataLine line;
+
+    private LineAudioSink(SourceDataLine line) {
+        this.line = line;
+    }
+
+    static LineAudioSink open(AudioFormat format) throws LineUnavailableException {
+        SourceDataLine line = AudioSystem.getSourceDataLine(format);
+        line.open(format);
+        return new LineAudioSink(line);
+    }
+
+    @Override
+    public Type getType() {
+        return Type.LINE;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return line.getFormat();
+    }
+
+    @Override
+    public void start() {
+        line.start();
+    }
+
+    @Override
+    public void stop() {
+        line.stop();
+    }
+
+    @Override
+    public void flush() {
+        line.flush();
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int len) {
+        return line.write(buffer, offset, len);
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return line.getLongFramePosition();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return line.getBufferSize();
+    }
+
+    @Override
+    public int available() {
+        return line.available();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return line.isOpen();
+    }
+
+    @Override
+    public void close() {
+        line.close();
+    }
+}
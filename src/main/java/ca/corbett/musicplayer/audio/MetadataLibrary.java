@@ -0,0 +1,404 @@
+package ca.corbett.musicplayer.audio;
+
+import ca.corbett.musicplayer.Version;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent store of track metadata, kept in an SQLite database in the settings directory,
+ * so that AudioMetadata.fromFile() doesn't have to open and parse every file with jaudiotagger
+ * each time it's added to a playlist. On a network share in particular, that parse is slow
+ * enough to make loading a big playlist take minutes.
+ * <p>
+ * Entries are keyed by canonical path, and are only used if the file's size and last modified
+ * time still match what they were when the entry was written. Anything else about the file
+ * changing (including us saving new tags to it) makes the entry stale, and it will be replaced
+ * the next time the file is read.
+ * </p>
+ * <p>
+ * Writes are queued and inserted in batches, each in a single transaction, either once enough
+ * of them have piled up or shortly after the last one. Lookups check the queue first, so a
+ * queued entry is visible immediately. If the database can't be opened for any reason, the
+ * library quietly does nothing and every lookup is a miss.
+ * </p>
+ * <p>
+ * Lookups are made from several threads at once (the MetadataPopulator's workers, for one),
+ * so the database is never queried while holding our lock. Each lookup borrows a read-only
+ * connection of its own from a small pool (waiting for one to come back if they're all in
+ * use), and because the database is in WAL mode, those readers don't wait for each other or
+ * for a batch that's being written. Queued entries stay
+ * in the queue until their batch has been committed, so they're never invisible in between.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class MetadataLibrary {
+
+    private static final Logger logger = Logger.getLogger(MetadataLibrary.class.getName());
+
+    /**
+     * Bump this whenever the table layout changes. Old databases are simply rebuilt.
+     */
+    private static final int SCHEMA_VERSION = 1;
+
+    private static final int BATCH_SIZE = 500;
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final int MAX_READERS = 4;
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS tracks ("
+        + "path TEXT PRIMARY KEY, size INTEGER NOT NULL, modified INTEGER NOT NULL, "
+        + "title TEXT, author TEXT, album TEXT, genre TEXT, lyrics TEXT, "
+        + "duration INTEGER NOT NULL, track_number INTEGER NOT NULL)";
+    private static final String SELECT = "SELECT size, modified, title, author, album, genre, lyrics, "
+        + "duration, track_number FROM tracks WHERE path = ?";
+    private static final String UPSERT = "INSERT OR REPLACE INTO tracks (path, size, modified, title, author, "
+        + "album, genre, lyrics, duration, track_number) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static MetadataLibrary instance;
+
+    private final File databaseFile;
+    private final ScheduledExecutorService flusher;
+    private final Map<String, Row> pending = new LinkedHashMap<>();
+    private final Queue<Reader> readers = new ConcurrentLinkedQueue<>();
+    private final Semaphore readerPermits = new Semaphore(MAX_READERS);
+
+    /**
+     * Held for the whole of a flush, so that only one batch is written at a time. Never
+     * acquired while holding our own lock.
+     */
+    private final Object writeLock = new Object();
+
+    private Connection connection;
+    private boolean unavailable;
+    private boolean flushScheduled;
+
+    MetadataLibrary(File databaseFile) {
+        this.databaseFile = databaseFile;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "musicplayer-metadata-library");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized MetadataLibrary getInstance() {
+        if (instance == null) {
+            instance = new MetadataLibrary(new File(Version.SETTINGS_DIR, "library.db"));
+
+            // Don't lose whatever is still queued when the application exits:
+            Runtime.getRuntime().addShutdownHook(new Thread(instance::flush, "musicplayer-metadata-library-shutdown"));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the stored metadata for the given file, or null if we don't have any,
+     * or if the file has changed since we stored it.
+     */
+    public AudioMetadata lookup(File file) {
+        FileKey key = FileKey.of(file);
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            Row row = pending.get(key.path());
+            if (row != null) {
+                return row.key().equals(key) ? row.toMetadata(file) : null;
+            }
+            if (!open()) {
+                return null;
+            }
+        }
+
+        Reader reader = null;
+        readerPermits.acquireUninterruptibly();
+        try {
+            reader = takeReader();
+            reader.select().setString(1, key.path());
+            try (ResultSet rs = reader.select().executeQuery()) {
+                if (!rs.next() || rs.getLong(1) != key.size() || rs.getLong(2) != key.modified()) {
+                    return null;
+                }
+                return AudioMetadata.fromRawValues(rs.getString(3), rs.getString(5), rs.getString(4),
+                                                   rs.getString(6), file, rs.getInt(8), rs.getInt(9),
+                                                   rs.getString(7));
+            }
+        }
+        catch (SQLException e) {
+            logger.log(Level.FINE, "Metadata library lookup failed for {0}: {1}",
+                       new Object[]{file.getName(), e.getMessage()});
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+            return null;
+        }
+        finally {
+            if (reader != null) {
+                readers.add(reader);
+            }
+            readerPermits.release();
+        }
+    }
+
+    /**
+     * Queues the given metadata to be written to the library, keyed by the current state of its
+     * source file. Does nothing if the metadata has no source file, or it can't be read.
+     */
+    public void store(AudioMetadata metadata) {
+        if (metadata == null) {
+            return;
+        }
+        FileKey key = FileKey.of(metadata.getSourceFile());
+        if (key == null) {
+            return;
+        }
+
+        boolean flushNow;
+        synchronized (this) {
+            if (unavailable) {
+                return;
+            }
+            pending.put(key.path(), Row.of(key, metadata));
+            flushNow = pending.size() >= BATCH_SIZE;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes everything that is queued, in a single transaction. The entries stay in the
+     * queue (and so stay visible to lookups) until the transaction is committed.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<Row> rows;
+            synchronized (this) {
+                flushScheduled = false;
+                if (pending.isEmpty() || !open()) {
+                    return;
+                }
+                rows = new ArrayList<>(pending.values());
+            }
+
+            write(rows);
+
+            // Anything stored again while we were writing is left for the next batch. Failed rows are
+            // dropped too; not worth retrying, they'll just be read from the files again next time.
+            synchronized (this) {
+                for (Row row : rows) {
+                    pending.remove(row.key().path(), row);
+                }
+            }
+        }
+    }
+
+    private void write(List<Row> rows) {
+        try (PreparedStatement upsert = connection.prepareStatement(UPSERT)) {
+            connection.setAutoCommit(false);
+            for (Row row : rows) {
+                upsert.setString(1, row.key().path());
+                upsert.setLong(2, row.key().size());
+                upsert.setLong(3, row.key().modified());
+                upsert.setString(4, row.title());
+                upsert.setString(5, row.author());
+                upsert.setString(6, row.album());
+                upsert.setString(7, row.genre());
+                upsert.setString(8, row.lyrics());
+                upsert.setInt(9, row.durationSeconds());
+                upsert.setInt(10, row.trackNumber());
+                upsert.addBatch();
+            }
+            upsert.executeBatch();
+            connection.commit();
+            logger.log(Level.FINE, "Wrote {0} entries to the metadata library", rows.size());
+        }
+        catch (SQLException e) {
+            logger.log(Level.WARNING, "Unable to write to the metadata library: {0}", e.getMessage());
+            try {
+                connection.rollback();
+            }
+            catch (SQLException ignored) {
+            }
+        }
+        finally {
+            try {
+                connection.setAutoCommit(true);
+            }
+            catch (SQLException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Writes anything still queued and closes the database. For tests.
+     */
+    void close() {
+        flush();
+        flusher.shutdownNow();
+        synchronized (writeLock) {
+            synchronized (this) {
+                Reader reader;
+                while ((reader = readers.poll()) != null) {
+                    reader.close();
+                }
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    }
+                    catch (SQLException ignored) {
+                    }
+                    connection = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an idle read connection from the pool, or opens a new one if they're all in use.
+     * The caller must be holding one of our reader permits, which keeps the pool to at most
+     * MAX_READERS connections, and gives the connection back by adding it to the pool when done.
+     */
+    private Reader takeReader() throws SQLException {
+        Reader reader = readers.poll();
+        if (reader != null) {
+            return reader;
+        }
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        Connection readConnection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath(),
+                                                                config.toProperties());
+        try {
+            return new Reader(readConnection, readConnection.prepareStatement(SELECT));
+        }
+        catch (SQLException e) {
+            readConnection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the database and creates or upgrades our table if needed. Returns false if the
+     * library is unavailable, in which case we won't try again.
+     */
+    private boolean open() {
+        if (connection != null) {
+            return true;
+        }
+        if (unavailable) {
+            return false;
+        }
+        try {
+            Files.createDirectories(databaseFile.getAbsoluteFile().getParentFile().toPath());
+            connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA synchronous=NORMAL");
+                int version;
+                try (ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+                    version = rs.next() ? rs.getInt(1) : 0;
+                }
+                if (version != SCHEMA_VERSION) {
+                    statement.execute("DROP TABLE IF EXISTS tracks");
+                    statement.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+                }
+                statement.execute(CREATE_TABLE);
+            }
+            return true;
+        }
+        catch (SQLException | IOException e) {
+            logger.log(Level.WARNING, "Metadata library is unavailable, track metadata will be read from each file: {0}",
+                       e.getMessage());
+            unavailable = true;
+            pending.clear();
+            if (connection != null) {
+                try {
+                    connection.close();
+                }
+                catch (SQLException ignored) {
+                }
+                connection = null;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A connection used only for lookups, with its query ready to go.
+     */
+    private record Reader(Connection connection, PreparedStatement select) {
+        void close() {
+            try {
+                connection.close();
+            }
+            catch (SQLException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Identifies a file in a particular state.
+     */
+    private record FileKey(String path, long size, long modified) {
+        static FileKey of(File file) {
+            if (file == null) {
+                return null;
+            }
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    return null;
+                }
+                return new FileKey(file.getCanonicalPath(), attributes.size(), attributes.lastModifiedTime().toMillis());
+            }
+            catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of one track's metadata, waiting to be written. Lyrics are null if they
+     * were never loaded, and will be loaded on demand by whoever looks them up later.
+     */
+    private record Row(FileKey key, String title, String author, String album, String genre, String lyrics,
+                       int durationSeconds, int trackNumber) {
+        static Row of(FileKey key, AudioMetadata meta) {
+            return new Row(key, meta.getTitle(), meta.getAuthor(), meta.getAlbum(), meta.getGenre(), meta.getLyricsIfLoaded(),
+                           meta.getDurationSeconds(), meta.getTrackNumber());
+        }
+
+        AudioMetadata toMetadata(File file) {
+            return AudioMetadata.fromRawValues(title, album, author, genre, file, durationSeconds, trackNumber, lyrics);
+        }
+    }
+}
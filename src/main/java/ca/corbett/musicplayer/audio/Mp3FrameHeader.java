@@ -0,0 +1,203 @@
+package ca.corbett.musicplayer.audio;
+
+/**
+ * Parses the fixed four-byte header found at the start of every MPEG audio frame.
+ * This is just enough of the mp3 format to walk a file frame by frame without
+ * decoding anything: from the header alone we know how long the frame is, how many
+ * PCM samples it will decode to, and at what sample rate.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class Mp3FrameHeader {
+
+    public static final int MPEG1 = 1;
+    public static final int MPEG2 = 2;
+    public static final int MPEG25 = 25;
+
+    private static final int[][] BITRATES_MPEG1 = {
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448}, // layer 1
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},    // layer 2
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}      // layer 3
+    };
+
+    private static final int[][] BITRATES_MPEG2 = {
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},    // layer 1
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},         // layer 2
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}          // layer 3
+    };
+
+    private static final int[] SAMPLE_RATES_MPEG1 = {44100, 48000, 32000};
+
+    private final int version;
+    private final int layer;
+    private final int bitrateKbps;
+    private final int sampleRate;
+    private final boolean padded;
+    private final int channels;
+    private final boolean crcProtected;
+    private final boolean midSideStereo;
+    private final int frameLength;
+    private final int samplesPerFrame;
+
+    private Mp3FrameHeader(int version, int layer, int bitrateKbps, int sampleRate, boolean padded, int channels,
+                           boolean crcProtected, boolean midSideStereo) {
+        this.version = version;
+        this.layer = layer;
+        this.bitrateKbps = bitrateKbps;
+        this.sampleRate = sampleRate;
+        this.padded = padded;
+        this.channels = channels;
+        this.crcProtected = crcProtected;
+        this.midSideStereo = midSideStereo;
+
+        int padding = padded ? 1 : 0;
+        if (layer == 1) {
+            frameLength = (12 * bitrateKbps * 1000 / sampleRate + padding) * 4;
+            samplesPerFrame = 384;
+        }
+        else if (layer == 3 && version != MPEG1) {
+            frameLength = 72 * bitrateKbps * 1000 / sampleRate + padding;
+            samplesPerFrame = 576;
+        }
+        else {
+            frameLength = 144 * bitrateKbps * 1000 / sampleRate + padding;
+            samplesPerFrame = 1152;
+        }
+    }
+
+    /**
+     * Attempts to parse a frame header from the given four bytes, packed big-endian into an int.
+     * Free-format and otherwise invalid or reserved headers are rejected.
+     *
+     * @param header The four header bytes.
+     * @return A parsed header, or null if the given bytes are not a valid frame header.
+     */
+    public static Mp3FrameHeader parse(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) {
+            return null; // no frame sync
+        }
+        int versionBits = (header >>> 19) & 0x3;
+        int layerBits = (header >>> 17) & 0x3;
+        int bitrateIndex = (header >>> 12) & 0xF;
+        int sampleRateIndex = (header >>> 10) & 0x3;
+        if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return null; // reserved values, or free format which we can't walk
+        }
+
+        int version = switch (versionBits) {
+            case 0 -> MPEG25;
+            case 2 -> MPEG2;
+            default -> MPEG1;
+        };
+        int layer = 4 - layerBits;
+        int bitrate = (version == MPEG1 ? BITRATES_MPEG1 : BITRATES_MPEG2)[layer - 1][bitrateIndex];
+        int sampleRate = SAMPLE_RATES_MPEG1[sampleRateIndex];
+        if (version == MPEG2) {
+            sampleRate /= 2;
+        }
+        else if (version == MPEG25) {
+            sampleRate /= 4;
+        }
+        boolean padded = ((header >>> 9) & 0x1) != 0;
+        int channelMode = (header >>> 6) & 0x3;
+        int channels = channelMode == 3 ? 1 : 2;
+        boolean crcProtected = ((header >>> 16) & 0x1) == 0;
+        boolean midSideStereo = layer == 3 && channelMode == 1 && ((header >>> 5) & 0x1) != 0; // joint stereo, M/S on
+        return new Mp3FrameHeader(version, layer, bitrate, sampleRate, padded, channels, crcProtected, midSideStereo);
+    }
+
+    /**
+     * Convenience method to parse a header out of the given buffer at the given offset.
+     * Returns null if there are fewer than four bytes available or the header is not valid.
+     */
+    public static Mp3FrameHeader parse(byte[] buffer, int offset, int length) {
+        if (offset < 0 || offset + 4 > length) {
+            return null;
+        }
+        return parse(readInt(buffer, offset));
+    }
+
+    /**
+     * Returns true if the given header describes the same stream as this one - that is,
+     * same MPEG version, layer and sample rate. Used to weed out false frame syncs.
+     */
+    public boolean isCompatibleWith(Mp3FrameHeader other) {
+        return other != null && other.version == version && other.layer == layer && other.sampleRate == sampleRate;
+    }
+
+    /**
+     * Returns the size of the layer 3 side information block that immediately follows
+     * this header. The Xing/Info and LAME tags are found right after it in the first frame.
+     */
+    public int getSideInfoLength() {
+        if (version == MPEG1) {
+            return channels == 1 ? 17 : 32;
+        }
+        return channels == 1 ? 9 : 17;
+    }
+
+    /**
+     * Returns the playing time of one frame, in milliseconds (fractional).
+     */
+    public double getFrameMillis() {
+        return samplesPerFrame * 1000d / sampleRate;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getLayer() {
+        return layer;
+    }
+
+    public int getBitrateKbps() {
+        return bitrateKbps;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public boolean isPadded() {
+        return padded;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Reports whether this header is followed by a 16-bit CRC (before the side information).
+     */
+    public boolean isCrcProtected() {
+        return crcProtected;
+    }
+
+    /**
+     * Reports whether this is a layer 3 joint stereo frame coded as mid/side rather than left/right,
+     * in which case the two channels of side information describe the mid and side signals.
+     */
+    public boolean isMidSideStereo() {
+        return midSideStereo;
+    }
+
+    /**
+     * Returns the total length of this frame in bytes, including the four header bytes.
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+            | ((buffer[offset + 1] & 0xFF) << 16)
+            | ((buffer[offset + 2] & 0xFF) << 8)
+            | (buffer[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,178 @@
+package ca.corbett.musicplayer.audio;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Builds a rough waveform preview for an mp3 file without decoding any audio.
+ * <p>
+ * Every layer 3 frame starts with a block of side information, which tells the decoder
+ * (among other things) the global_gain of each granule of each channel: the overall
+ * quantizer step size, where each step of 4 doubles the amplitude of everything in that
+ * granule. A granule with no coded bits at all (part2_3_length of zero) is silent.
+ * That's nowhere near a real decode, but it tracks loudness well enough to show the shape
+ * of the track, so we can have something to show (and click on) within a moment of loading
+ * a track, while WaveformBuildThread gets on with the real peaks.
+ * </p>
+ * <p>
+ * The side information sits right behind each frame header, so rather than walk the file
+ * a second time, Mp3SeekIndex feeds every frame to one of these while it walks the headers
+ * to build its index, and keeps the result. The index for a track is normally prefetched as
+ * soon as it's loaded, so by the time scan() is called the preview is usually ready. Indexes
+ * built from a VBRI table of contents don't walk the file at all, so those tracks (and
+ * anything that isn't layer 3) don't get a preview.
+ * </p>
+ * <p>
+ * The preview has one bucket per mp3 frame. Its values are only relative: they're scaled so
+ * that the loudest frame comes out at PREVIEW_CEILING, which is roughly where the RMS of a loud,
+ * modern master sits. The renderer calibrates it against the real peaks as they arrive.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class Mp3PreviewScanner {
+
+    static final int PREVIEW_CEILING = 12000;
+
+    /**
+     * global_gain is offset by 210 in the dequantizer: a gain of 210 is unity.
+     */
+    private static final int GAIN_OFFSET = 210;
+
+    private final int channels;
+    private final float sampleRate;
+    private final int samplesPerFrame;
+    private final float[] frameLoudness = new float[2];
+    private float[] loudness; // interleaved by channel, one entry per frame
+    private int frames;
+    private float max;
+
+    /**
+     * Starts a preview for a stream whose frames are compatible with the given one.
+     */
+    Mp3PreviewScanner(Mp3FrameHeader firstHeader) {
+        channels = firstHeader.getChannels();
+        sampleRate = firstHeader.getSampleRate();
+        samplesPerFrame = firstHeader.getSamplesPerFrame();
+        loudness = new float[channels * 1024];
+    }
+
+    /**
+     * Returns a complete, coarse WaveformPeaks for the given file, taken from its seek index.
+     *
+     * @param file Any file.
+     * @return A preview, or null if the file is not a layer 3 mp3 or could not be scanned.
+     */
+    public static WaveformPeaks scan(File file) {
+        Mp3SeekIndex index = Mp3SeekIndex.forFile(file);
+        return index == null ? null : index.getPreview();
+    }
+
+    /**
+     * Adds the next frame to the preview, from the side information that follows its header.
+     *
+     * @param header   The frame's header.
+     * @param sideInfo A buffer holding the side information.
+     * @param offset   Where in the buffer the side information starts (after any CRC).
+     */
+    void addFrame(Mp3FrameHeader header, byte[] sideInfo, int offset) {
+        readLoudness(header, sideInfo, offset, frameLoudness);
+        if ((frames + 1) * channels > loudness.length) {
+            loudness = Arrays.copyOf(loudness, loudness.length * 2);
+        }
+        for (int ch = 0; ch < channels; ch++) {
+            // A mono frame in a stereo stream (unusual, but legal) goes to both sides:
+            float value = frameLoudness[Math.min(ch, header.getChannels() - 1)];
+            loudness[frames * channels + ch] = value;
+            max = Math.max(max, value);
+        }
+        frames++;
+    }
+
+    /**
+     * Returns the finished preview, or null if no frames were added.
+     */
+    WaveformPeaks finish() {
+        if (frames == 0) {
+            return null;
+        }
+        WaveformPeaks preview = new WaveformPeaks(channels, sampleRate, samplesPerFrame);
+        float scale = max > 0f ? PREVIEW_CEILING / max : 0f;
+        short[] bucket = new short[channels];
+        for (int i = 0; i < frames; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                bucket[ch] = (short) Math.round(loudness[i * channels + ch] * scale);
+            }
+            preview.addBucket(bucket);
+        }
+        preview.setComplete(true);
+        return preview;
+    }
+
+    /**
+     * Reads the global_gain of each granule and channel out of the given layer 3 side information,
+     * and stores a relative loudness for each channel of the frame into the given array.
+     */
+    static void readLoudness(Mp3FrameHeader header, byte[] sideInfo, int offset, float[] out) {
+        boolean mpeg1 = header.getVersion() == Mp3FrameHeader.MPEG1;
+        int channels = header.getChannels();
+        int granules = mpeg1 ? 2 : 1;
+        BitReader bits = new BitReader(sideInfo, offset);
+
+        bits.skip(mpeg1 ? 9 : 8); // main_data_begin
+        bits.skip(mpeg1 ? (channels == 1 ? 5 : 3) : (channels == 1 ? 1 : 2)); // private_bits
+        if (mpeg1) {
+            bits.skip(4 * channels); // scfsi
+        }
+
+        Arrays.fill(out, 0f);
+        for (int gr = 0; gr < granules; gr++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int part23Length = bits.read(12);
+                bits.skip(9); // big_values
+                int globalGain = bits.read(8);
+                bits.skip(mpeg1 ? 4 : 9); // scalefac_compress
+                bits.skip(1 + 22); // window_switching_flag and either set of block/region fields
+                bits.skip(mpeg1 ? 3 : 2); // preflag (mpeg1 only), scalefac_scale, count1table_select
+                if (part23Length > 0) {
+                    out[ch] += (float) Math.pow(2d, (globalGain - GAIN_OFFSET) / 4d) / granules;
+                }
+            }
+        }
+
+        // Mid/side frames describe the sum and difference instead of left and right.
+        // Either side of the real output is roughly the two combined:
+        if (channels == 2 && header.isMidSideStereo()) {
+            float combined = (out[0] + out[1]) * 0.7071f;
+            out[0] = combined;
+            out[1] = combined;
+        }
+    }
+
+    /**
+     * Reads big-endian bit fields from a byte array.
+     */
+    private static final class BitReader {
+        private final byte[] buffer;
+        private int bitPosition;
+
+        BitReader(byte[] buffer, int byteOffset) {
+            this.buffer = buffer;
+            this.bitPosition = byteOffset * 8;
+        }
+
+        int read(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++, bitPosition++) {
+                int bit = (buffer[bitPosition >> 3] >> (7 - (bitPosition & 7))) & 0x1;
+                value = (value << 1) | bit;
+            }
+            return value;
+        }
+
+        void skip(int count) {
+            bitPosition += count;
+        }
+    }
+}
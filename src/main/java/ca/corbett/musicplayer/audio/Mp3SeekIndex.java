@@ -0,0 +1,478 @@
+package ca.corbett.musicplayer.audio;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A compact table of frame byte offsets for an mp3 file, allowing playback to start
+ * decoding at (or just before) any point in the track without having to decode and
+ * throw away everything that comes before it.
+ * <p>
+ * If the file has a VBRI header, the index is built from its table of contents, which
+ * gives the exact size of each run of frames, so it's both near-instant and exact.
+ * Otherwise, the file is walked frame by frame, reading only the four-byte frame headers
+ * and skipping over the frame bodies, and every STRIDE frames a seek point is recorded.
+ * Either way, seek latency ends up roughly constant regardless of the target position.
+ * The walk also reads the side information behind each layer 3 frame header, which gives
+ * us a waveform preview (see Mp3PreviewScanner) without reading the file again.
+ * </p>
+ * <p>
+ * The Xing/Info table of contents (which LAME writes into nearly every file, CBR included)
+ * is deliberately not used. Its entries are quantized to 1/256 of the audio size, so they
+ * don't land on frame boundaries, and the track time of the frame that decoding actually
+ * resumes from can't be known without counting the frames before it. Taking the TOC at its
+ * word puts seeks and the reported position off by up to 0.4% of the track. Those files get
+ * a header scan like any other, which resyncs on real frame headers and counts every frame.
+ * </p>
+ * <p>
+ * Indexes are cached in memory per file (keyed by path, size and modification time),
+ * so each file is only indexed once per session. Use prefetch() to build an index in
+ * the background before it's needed.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class Mp3SeekIndex {
+
+    private static final Logger logger = Logger.getLogger(Mp3SeekIndex.class.getName());
+
+    /**
+     * When scanning frame headers, a seek point is recorded every this many frames (~0.8s for 44.1kHz).
+     */
+    static final int STRIDE = 32;
+
+    private static final int CACHE_SIZE = 64;
+    private static final int MAX_RESYNC_BYTES = 64 * 1024;
+
+    private static final Map<String, CompletableFuture<Mp3SeekIndex>> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Mp3SeekIndex>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static ExecutorService prefetchExecutor;
+
+    /**
+     * A position in the file from which decoding can begin.
+     *
+     * @param byteOffset The file offset of the frame header at which to start decoding.
+     * @param millis     The track time at which audio decoded from that frame begins.
+     * @param pcmFrame   The same position as millis, but as an exact count of PCM frames.
+     */
+    public record SeekPoint(long byteOffset, long millis, long pcmFrame) {
+    }
+
+    private final int sampleRate;
+    private final int samplesPerFrame;
+    private final long[] byteOffsets;
+    private final long[] pcmFrames;
+    private final long totalPcmFrames;
+    private final boolean fromToc;
+    private final WaveformPeaks preview;
+
+    private Mp3SeekIndex(int sampleRate, int samplesPerFrame, long[] byteOffsets, long[] pcmFrames,
+                         long totalPcmFrames, boolean fromToc, WaveformPeaks preview) {
+        this.sampleRate = sampleRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.byteOffsets = byteOffsets;
+        this.pcmFrames = pcmFrames;
+        this.totalPcmFrames = totalPcmFrames;
+        this.fromToc = fromToc;
+        this.preview = preview;
+    }
+
+    /**
+     * Returns the seek index for the given file, building it if necessary. If an index
+     * for this file is already being built (by prefetch(), for example), this waits for it.
+     *
+     * @param file Any mp3 file.
+     * @return A seek index, or null if the file is not an mp3 or could not be indexed.
+     */
+    public static Mp3SeekIndex forFile(File file) {
+        if (file == null || !file.getName().toLowerCase().endsWith(".mp3") || !file.isFile()) {
+            return null;
+        }
+
+        String key = cacheKey(file);
+        CompletableFuture<Mp3SeekIndex> future;
+        boolean isBuilder = false;
+        synchronized (cache) {
+            future = cache.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                cache.put(key, future);
+                isBuilder = true;
+            }
+        }
+
+        if (isBuilder) {
+            try {
+                long start = System.currentTimeMillis();
+                Mp3SeekIndex index = build(file);
+                logger.log(Level.FINE, "Built mp3 seek index for {0} in {1}ms ({2} points, from TOC: {3})",
+                           new Object[]{file.getName(), System.currentTimeMillis() - start,
+                               index == null ? 0 : index.size(), index != null && index.fromToc});
+                future.complete(index);
+            }
+            catch (Exception e) {
+                logger.log(Level.FINE, "Unable to build seek index for {0}: {1}",
+                           new Object[]{file.getName(), e.getMessage()});
+                future.complete(null);
+            }
+        }
+        return future.join();
+    }
+
+    /**
+     * Builds the seek index for the given file on a background thread, if it isn't already
+     * cached, so that the first seek into that file doesn't have to wait for it.
+     */
+    public static void prefetch(File file) {
+        if (file == null || !file.getName().toLowerCase().endsWith(".mp3")) {
+            return;
+        }
+        getPrefetchExecutor().submit(() -> forFile(file));
+    }
+
+    private static synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "musicplayer-seek-indexer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Returns the best place to start decoding in order to reach the given track time:
+     * the last seek point at or before that time. The caller is expected to decode and
+     * discard the (short) distance from the seek point to the actual target.
+     *
+     * @param millis The desired track position in milliseconds.
+     * @return A SeekPoint at or before the given time.
+     */
+    public SeekPoint seekPointFor(long millis) {
+        return seekPointForFrame(Math.max(0L, (long) (millis * (double) sampleRate / 1000d)));
+    }
+
+    /**
+     * Returns the last seek point at or before the given PCM frame.
+     *
+     * @param pcmFrame The desired track position in PCM frames (samples per channel).
+     * @return A SeekPoint at or before the given frame.
+     */
+    public SeekPoint seekPointForFrame(long pcmFrame) {
+        int i = Arrays.binarySearch(pcmFrames, Math.max(0L, pcmFrame));
+        if (i < 0) {
+            i = Math.max(0, -i - 2); // insertion point minus one: the last point before the target
+        }
+        return new SeekPoint(byteOffsets[i], (long) (pcmFrames[i] * 1000d / sampleRate), pcmFrames[i]);
+    }
+
+    /**
+     * Returns the number of seek points in this index.
+     */
+    public int size() {
+        return byteOffsets.length;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    /**
+     * Returns the track duration as determined while building this index.
+     */
+    public long getDurationMillis() {
+        return (long) (totalPcmFrames * 1000d / sampleRate);
+    }
+
+    /**
+     * Returns the track length in PCM frames as determined while building this index.
+     */
+    public long getTotalPcmFrames() {
+        return totalPcmFrames;
+    }
+
+    /**
+     * Reports whether this index was built from an encoder table of contents (VBRI) rather
+     * than by walking the frame headers. TOC-based indexes have far fewer seek points.
+     */
+    public boolean isFromToc() {
+        return fromToc;
+    }
+
+    /**
+     * Returns the waveform preview gathered while walking the frame headers, or null if
+     * this index came from a table of contents or the file isn't layer 3. The preview is
+     * shared by everyone who asks for it, so it mustn't be modified.
+     */
+    public WaveformPeaks getPreview() {
+        return preview;
+    }
+
+    /**
+     * Builds a seek index for the given file without consulting the cache.
+     *
+     * @return A seek index, or null if no mp3 frames could be found.
+     */
+    static Mp3SeekIndex build(File file) throws IOException {
+        long firstFrameOffset;
+        Mp3FrameHeader firstHeader;
+        byte[] firstFrame;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            firstFrameOffset = findFirstFrame(raf);
+            if (firstFrameOffset < 0) {
+                return null;
+            }
+            raf.seek(firstFrameOffset);
+            byte[] header = new byte[4];
+            raf.readFully(header);
+            firstHeader = Mp3FrameHeader.parse(header, 0, 4);
+            if (firstHeader == null) {
+                return null;
+            }
+            firstFrame = new byte[firstHeader.getFrameLength()];
+            raf.seek(firstFrameOffset);
+            int read = raf.read(firstFrame);
+            if (read < firstFrame.length) {
+                firstFrame = Arrays.copyOf(firstFrame, Math.max(0, read));
+            }
+        }
+
+        Mp3SeekIndex index = fromVbri(firstHeader, firstFrame, firstFrameOffset);
+        if (index == null) {
+            index = scan(file, firstFrameOffset, firstHeader);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the length of the ID3v2 tag starting at the given offset in the given buffer,
+     * including its header (and footer, if present), or 0 if there is no ID3v2 tag there.
+     */
+    static int id3v2Length(byte[] buffer, int offset, int length) {
+        if (offset + 10 > length
+            || buffer[offset] != 'I' || buffer[offset + 1] != 'D' || buffer[offset + 2] != '3') {
+            return 0;
+        }
+        int size = ((buffer[offset + 6] & 0x7F) << 21)
+            | ((buffer[offset + 7] & 0x7F) << 14)
+            | ((buffer[offset + 8] & 0x7F) << 7)
+            | (buffer[offset + 9] & 0x7F);
+        boolean hasFooter = (buffer[offset + 5] & 0x10) != 0;
+        return 10 + size + (hasFooter ? 10 : 0);
+    }
+
+    /**
+     * Skips over any ID3v2 tag(s) and returns the offset of the first genuine frame header,
+     * where genuine means it is immediately followed by another compatible frame header.
+     * Returns -1 if nothing was found.
+     */
+    private static long findFirstFrame(RandomAccessFile raf) throws IOException {
+        long offset = 0;
+        byte[] buffer = new byte[10];
+        while (true) {
+            raf.seek(offset);
+            int read = raf.read(buffer);
+            int tagLength = read < 10 ? 0 : id3v2Length(buffer, 0, read);
+            if (tagLength == 0) {
+                break;
+            }
+            offset += tagLength;
+        }
+
+        byte[] window = new byte[MAX_RESYNC_BYTES + 4];
+        raf.seek(offset);
+        int length = raf.read(window);
+        for (int i = 0; i + 4 <= length; i++) {
+            Mp3FrameHeader header = Mp3FrameHeader.parse(window, i, length);
+            if (header == null) {
+                continue;
+            }
+            long next = offset + i + header.getFrameLength();
+            if (next + 4 > raf.length()) {
+                return offset + i; // single-frame file, take it as-is
+            }
+            raf.seek(next);
+            byte[] nextHeader = new byte[4];
+            raf.readFully(nextHeader);
+            if (header.isCompatibleWith(Mp3FrameHeader.parse(nextHeader, 0, 4))) {
+                return offset + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds an index from the Fraunhofer VBRI tag, if the given first frame has one.
+     * The VBRI table gives the byte size of each run of framesPerEntry frames, so
+     * (unlike the Xing TOC) its seek points land on exact frame boundaries, and we know
+     * exactly how many frames come before each one.
+     */
+    private static Mp3SeekIndex fromVbri(Mp3FrameHeader header, byte[] frame, long frameOffset) {
+        int tagOffset = 4 + 32;
+        if (tagOffset + 26 > frame.length
+            || !"VBRI".equals(new String(frame, tagOffset, 4, StandardCharsets.ISO_8859_1))) {
+            return null;
+        }
+
+        long frames = Mp3FrameHeader.readInt(frame, tagOffset + 14) & 0xFFFFFFFFL;
+        int entries = readShort(frame, tagOffset + 18);
+        int scale = readShort(frame, tagOffset + 20);
+        int entrySize = readShort(frame, tagOffset + 22);
+        int framesPerEntry = readShort(frame, tagOffset + 24);
+        int tableOffset = tagOffset + 26;
+        if (frames <= 0 || entries <= 0 || entrySize < 1 || entrySize > 4 || framesPerEntry <= 0
+            || tableOffset + entries * entrySize > frame.length) {
+            return null;
+        }
+
+        long[] byteOffsets = new long[entries + 1];
+        long[] pcmFrames = new long[entries + 1];
+        byteOffsets[0] = frameOffset + header.getFrameLength();
+        for (int i = 0; i < entries; i++) {
+            long entry = 0;
+            for (int b = 0; b < entrySize; b++) {
+                entry = (entry << 8) | (frame[tableOffset + i * entrySize + b] & 0xFF);
+            }
+            byteOffsets[i + 1] = byteOffsets[i] + entry * scale;
+            pcmFrames[i + 1] = (long) (i + 1) * framesPerEntry * header.getSamplesPerFrame();
+        }
+        return new Mp3SeekIndex(header.getSampleRate(), header.getSamplesPerFrame(),
+                                byteOffsets, pcmFrames, frames * header.getSamplesPerFrame(), true, null);
+    }
+
+    /**
+     * Walks every frame header in the file, skipping the frame bodies, and records a
+     * seek point every STRIDE frames. For layer 3, each frame's side information is
+     * read as well, for the preview. If sync is lost (junk data, a trailing tag),
+     * we try to resync within a limited window before giving up.
+     */
+    private static Mp3SeekIndex scan(File file, long firstFrameOffset, Mp3FrameHeader firstHeader) throws IOException {
+        long[] byteOffsets = new long[256];
+        long[] pcmFrames = new long[256];
+        int count = 0;
+        long frameIndex = 0;
+        long pcmFrame = 0;
+        Mp3PreviewScanner preview = firstHeader.getLayer() == 3 ? new Mp3PreviewScanner(firstHeader) : null;
+        byte[] sideInfo = new byte[2 + 32]; // optional CRC, plus the largest side info block
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            skipFully(in, firstFrameOffset);
+            long position = firstFrameOffset;
+            int window = 0;
+            int windowBytes = 0;
+            int resyncBytes = 0;
+            while (true) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                window = (window << 8) | b;
+                windowBytes++;
+                if (windowBytes < 4) {
+                    continue;
+                }
+
+                Mp3FrameHeader header = Mp3FrameHeader.parse(window);
+                if (header == null || !firstHeader.isCompatibleWith(header)) {
+                    // Lost sync - slide forward one byte at a time, but not forever:
+                    if (++resyncBytes > MAX_RESYNC_BYTES) {
+                        break;
+                    }
+                    continue;
+                }
+
+                long frameStart = position + windowBytes - 4;
+                if (frameIndex % STRIDE == 0) {
+                    if (count == byteOffsets.length) {
+                        byteOffsets = Arrays.copyOf(byteOffsets, count * 2);
+                        pcmFrames = Arrays.copyOf(pcmFrames, count * 2);
+                    }
+                    byteOffsets[count] = frameStart;
+                    pcmFrames[count] = pcmFrame;
+                    count++;
+                }
+                frameIndex++;
+                pcmFrame += header.getSamplesPerFrame();
+
+                long bodyBytes = header.getFrameLength() - 4;
+                if (preview != null) {
+                    int sideInfoLength = (header.isCrcProtected() ? 2 : 0) + header.getSideInfoLength();
+                    if (in.readNBytes(sideInfo, 0, sideInfoLength) < sideInfoLength) {
+                        break;
+                    }
+                    preview.addFrame(header, sideInfo, header.isCrcProtected() ? 2 : 0);
+                    bodyBytes -= sideInfoLength;
+                }
+                if (skipFully(in, bodyBytes) < bodyBytes) {
+                    break;
+                }
+                position = frameStart + header.getFrameLength();
+                window = 0;
+                windowBytes = 0;
+                resyncBytes = 0;
+            }
+        }
+
+        if (count == 0) {
+            return null;
+        }
+        return new Mp3SeekIndex(firstHeader.getSampleRate(), firstHeader.getSamplesPerFrame(),
+                                Arrays.copyOf(byteOffsets, count), Arrays.copyOf(pcmFrames, count),
+                                pcmFrame, false, preview == null ? null : preview.finish());
+    }
+
+    static long skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return bytes - remaining;
+    }
+
+    private static int readShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    private static String cacheKey(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return path + "|" + file.length() + "|" + file.lastModified();
+    }
+}
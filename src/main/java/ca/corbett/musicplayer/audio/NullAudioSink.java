@@ -0,0 +1,158 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * An AudioSink that throws its audio away. In real-time mode it behaves like a sound card
+ * with a half-second buffer: audio "plays" at the format's frame rate, and write() blocks
+ * when the buffer is full, so the rest of the pipeline sees realistic timing. Otherwise
+ * it accepts everything immediately, which is useful for measuring raw decode throughput.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+final class NullAudioSink implements AudioSink {
+
+    private static final int BUFFER_MILLIS = 500;
+    private static final long WAIT_MILLIS = 5;
+
+    private final AudioFormat format;
+    private final boolean realTime;
+    private final int frameSize;
+    private final double frameRate;
+    private final long bufferFrames;
+
+    private long framesWritten;
+    private long playedBase;     // frames played as of startNanos
+    private long startNanos;
+    private boolean started;
+    private boolean open = true;
+    private long flushCount;
+
+    NullAudioSink(AudioFormat format, boolean realTime) {
+        this.format = format;
+        this.realTime = realTime;
+        this.frameSize = Math.max(1, format.getFrameSize());
+        this.frameRate = format.getFrameRate() > 0 ? format.getFrameRate() : format.getSampleRate();
+        this.bufferFrames = Math.max(1L, (long) (frameRate * BUFFER_MILLIS / 1000d));
+    }
+
+    @Override
+    public Type getType() {
+        return realTime ? Type.NULL_REALTIME : Type.NULL_FAST;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            startNanos = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (started) {
+            playedBase = framesPlayed();
+            started = false;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        playedBase = framesPlayed();
+        startNanos = System.nanoTime();
+        framesWritten = playedBase;
+        flushCount++;
+        notifyAll();
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int len) {
+        long framesToWrite = len / frameSize;
+        if (!realTime) {
+            synchronized (this) {
+                framesWritten += framesToWrite;
+            }
+            return len;
+        }
+
+        long done = 0;
+        synchronized (this) {
+            long startFlushCount = flushCount;
+            while (done < framesToWrite && open && flushCount == startFlushCount) {
+                // If we ran dry, the clock restarts from here - a real device doesn't play silence ahead:
+                if (started && framesPlayed() >= framesWritten) {
+                    playedBase = framesWritten;
+                    startNanos = System.nanoTime();
+                }
+                long room = bufferFrames - (framesWritten - framesPlayed());
+                if (room > 0) {
+                    long frames = Math.min(room, framesToWrite - done);
+                    framesWritten += frames;
+                    done += frames;
+                    continue;
+                }
+                try {
+                    wait(WAIT_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return (int) (done * frameSize);
+    }
+
+    @Override
+    public synchronized long getLongFramePosition() {
+        return framesPlayed();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return (int) (bufferFrames * frameSize);
+    }
+
+    @Override
+    public synchronized int available() {
+        if (!realTime) {
+            return getBufferSize();
+        }
+        return (int) ((bufferFrames - (framesWritten - framesPlayed())) * frameSize);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        started = false;
+        notifyAll();
+    }
+
+    /**
+     * Must be called while synchronized on this.
+     */
+    private long framesPlayed() {
+        if (!realTime) {
+            return framesWritten;
+        }
+        if (!started) {
+            return playedBase;
+        }
+        long elapsed = (long) ((System.nanoTime() - startNanos) * frameRate / 1_000_000_000d);
+        return Math.min(framesWritten, playedBase + elapsed);
+    }
+}
@@ -0,0 +1,214 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps audio output lines (AudioSinks) open between tracks so that they can be reused.
+ * <p>
+ * Opening a SourceDataLine is surprisingly expensive (50-200ms on some Linux/PulseAudio
+ * setups) and tends to produce an audible click. Since consecutive tracks almost always
+ * share the same PCM format, a PlaybackEngine asks this pool for a line instead of
+ * opening its own, and hands it back when it's done. Idle lines are keyed by format,
+ * and a new line is only opened when no idle line matches the requested format.
+ * </p>
+ * <p>
+ * A line released at the natural end of a track is deliberately left running, so that
+ * whatever is still in its buffer plays out. If the next track picks the line up
+ * right away, its audio simply follows on with no gap.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class OutputLinePool {
+
+    private static final Logger logger = Logger.getLogger(OutputLinePool.class.getName());
+
+    /**
+     * We keep at most this many idle lines open (covers albums alternating 44.1kHz and 48kHz, say).
+     */
+    private static final int MAX_IDLE_LINES = 2;
+
+    private static OutputLinePool instance;
+
+    private final Map<FormatKey, AudioSink> idleLines = new LinkedHashMap<>();
+    private long linesOpened;
+    private long linesReused;
+    private long linesClosed;
+    private long totalOpenMillis;
+
+    private OutputLinePool() {
+    }
+
+    public static synchronized OutputLinePool getInstance() {
+        if (instance == null) {
+            instance = new OutputLinePool();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns an open line for the given format: an idle one if we have a match,
+     * otherwise a newly opened one of the type given by AudioSink.getConfiguredType().
+     * The returned line may already be started (if it is still playing out the tail of
+     * the previous track); callers should start() it regardless and just write to it.
+     *
+     * @param format The PCM format that will be written to the line.
+     * @return An open AudioSink for that format.
+     * @throws LineUnavailableException If no idle line matched and a new one could not be opened.
+     */
+    public synchronized AudioSink acquire(AudioFormat format) throws LineUnavailableException {
+        AudioSink.Type type = AudioSink.getConfiguredType();
+        FormatKey key = FormatKey.of(type, format);
+        AudioSink line = idleLines.remove(key);
+        if (line != null && line.isOpen()) {
+            linesReused++;
+            return line;
+        }
+
+        // No match, so anything else still playing out a tail would now overlap with us:
+        for (AudioSink idleLine : idleLines.values()) {
+            idleLine.stop();
+            idleLine.flush();
+        }
+
+        // Every WAV sink writes to the same file, which the new one is about to truncate, so an
+        // idle one can't be left around to write into it (or rewrite its header on close) later:
+        if (type == AudioSink.Type.WAV_FILE) {
+            Iterator<AudioSink> iterator = idleLines.values().iterator();
+            while (iterator.hasNext()) {
+                AudioSink idleLine = iterator.next();
+                if (idleLine.getType() == AudioSink.Type.WAV_FILE) {
+                    iterator.remove();
+                    close(idleLine);
+                }
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        line = AudioSink.open(type, format);
+        long elapsed = System.currentTimeMillis() - start;
+        linesOpened++;
+        totalOpenMillis += elapsed;
+        logger.log(Level.FINE, "Opened {0} output for {1} in {2}ms (opened: {3}, reused: {4})",
+                   new Object[]{type.getKey(), format, elapsed, linesOpened, linesReused});
+        return line;
+    }
+
+    /**
+     * Returns the given line to the pool for reuse. The line is not stopped - callers
+     * should stop() and flush() it first, unless they want its buffered audio to play out.
+     */
+    public synchronized void release(AudioSink line) {
+        if (line == null || !line.isOpen()) {
+            return;
+        }
+        AudioSink previous = idleLines.put(FormatKey.of(line.getType(), line.getFormat()), line);
+        if (previous != null && previous != line) {
+            close(previous);
+        }
+        Iterator<AudioSink> iterator = idleLines.values().iterator();
+        while (idleLines.size() > MAX_IDLE_LINES && iterator.hasNext()) {
+            AudioSink eldest = iterator.next();
+            iterator.remove();
+            close(eldest);
+        }
+    }
+
+    /**
+     * Closes the given line instead of returning it to the pool. Use this when
+     * the line may be in a bad state, for example after an output error.
+     */
+    public synchronized void discard(AudioSink line) {
+        if (line != null) {
+            idleLines.values().remove(line);
+            close(line);
+        }
+    }
+
+    /**
+     * Stops and flushes every idle line, cutting off any track tail that is still playing out.
+     * The lines stay open for reuse.
+     */
+    public synchronized void silence() {
+        for (AudioSink line : idleLines.values()) {
+            line.stop();
+            line.flush();
+        }
+    }
+
+    /**
+     * Closes all idle lines. Intended for application shutdown.
+     */
+    public synchronized void closeAll() {
+        for (AudioSink line : idleLines.values()) {
+            close(line);
+        }
+        idleLines.clear();
+        logger.log(Level.FINE, "Output line pool closed. Lines opened: {0} ({1}ms total), reused: {2}, closed: {3}",
+                   new Object[]{linesOpened, totalOpenMillis, linesReused, linesClosed});
+    }
+
+    /**
+     * Returns how many times a new output line had to be opened.
+     */
+    public synchronized long getLinesOpened() {
+        return linesOpened;
+    }
+
+    /**
+     * Returns how many times an already-open line was handed out instead of opening a new one.
+     */
+    public synchronized long getLinesReused() {
+        return linesReused;
+    }
+
+    /**
+     * Returns how many lines have been closed, either on eviction, discard, or shutdown.
+     */
+    public synchronized long getLinesClosed() {
+        return linesClosed;
+    }
+
+    /**
+     * Returns the total time spent opening new lines, in milliseconds.
+     */
+    public synchronized long getTotalOpenMillis() {
+        return totalOpenMillis;
+    }
+
+    /**
+     * Returns the number of lines currently sitting idle in the pool.
+     */
+    public synchronized int getIdleLineCount() {
+        return idleLines.size();
+    }
+
+    private void close(AudioSink line) {
+        line.stop();
+        line.flush();
+        line.close();
+        linesClosed++;
+    }
+
+    /**
+     * The sink type plus the parts of an AudioFormat that matter when deciding whether a line can be reused.
+     */
+    record FormatKey(AudioSink.Type type, String encoding, float sampleRate, int sampleSizeInBits, int channels,
+                     boolean bigEndian) {
+        static FormatKey of(AudioSink.Type type, AudioFormat format) {
+            return new FormatKey(type,
+                                 format.getEncoding().toString(),
+                                 format.getSampleRate(),
+                                 format.getSampleSizeInBits(),
+                                 format.getChannels(),
+                                 format.isBigEndian());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ca.corbett.musicplayer.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free ring of reusable PCM buffers, intended for exactly one producer
+ * thread (the decoder) and exactly one consumer thread (the output line writer).
+ * <p>
+ * All slot buffers are allocated up front and recycled, so steady-state playback
+ * produces no garbage. The producer claims the next free slot, fills it, and publishes it.
+ * The consumer peeks at the oldest published slot, drains it, and releases it back
+ * to the producer. Neither side ever blocks inside this class - if the ring is full
+ * (or empty), claim() (or peek()) simply returns null and the caller decides how to wait.
+ * </p>
+ * <p>
+ * <b>Threading:</b> claim() and publish() must only ever be called from the producer thread,
+ * and peek(), getPeekedLength() and release() only from the consumer thread. The
+ * sequence counters are published with release/acquire semantics, which is what makes
+ * the slot contents safely visible from one thread to the other.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class PcmRingBuffer {
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final AtomicLong writeSequence = new AtomicLong(0); // next slot to be published
+    private final AtomicLong readSequence = new AtomicLong(0);  // next slot to be consumed
+
+    /**
+     * Creates a ring with the given number of slots, each of the given size in bytes.
+     *
+     * @param depth     How many slots in the ring (must be at least 2).
+     * @param slotBytes The size of each slot buffer, in bytes.
+     */
+    public PcmRingBuffer(int depth, int slotBytes) {
+        if (depth < 2) {
+            throw new IllegalArgumentException("Ring depth must be at least 2.");
+        }
+        if (slotBytes <= 0) {
+            throw new IllegalArgumentException("Slot size must be positive.");
+        }
+        slots = new byte[depth][slotBytes];
+        lengths = new int[depth];
+    }
+
+    /**
+     * Returns the number of slots in this ring.
+     */
+    public int getDepth() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the size of each slot buffer, in bytes.
+     */
+    public int getSlotBytes() {
+        return slots[0].length;
+    }
+
+    /**
+     * Returns the number of slots that are currently published and waiting to be consumed.
+     * From any thread other than the producer or consumer, this is only an estimate.
+     */
+    public int size() {
+        return (int) (writeSequence.get() - readSequence.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Producer only: returns the next free slot buffer for filling, or null if the ring
+     * is currently full. The same slot is returned on repeated calls until publish() is invoked.
+     */
+    public byte[] claim() {
+        long write = writeSequence.get();
+        if (write - readSequence.get() >= slots.length) {
+            return null;
+        }
+        return slots[index(write)];
+    }
+
+    /**
+     * Producer only: publishes the most recently claimed slot, making it visible to the consumer.
+     *
+     * @param length How many bytes of the slot buffer hold valid PCM data.
+     */
+    public void publish(int length) {
+        long write = writeSequence.get();
+        lengths[index(write)] = length;
+        writeSequence.lazySet(write + 1);
+    }
+
+    /**
+     * Consumer only: returns the oldest published slot buffer, or null if the ring is empty.
+     * The same slot is returned on repeated calls until release() is invoked.
+     */
+    public byte[] peek() {
+        long read = readSequence.get();
+        if (read >= writeSequence.get()) {
+            return null;
+        }
+        return slots[index(read)];
+    }
+
+    /**
+     * Consumer only: returns the count of valid bytes in the slot most recently returned by peek().
+     */
+    public int getPeekedLength() {
+        return lengths[index(readSequence.get())];
+    }
+
+    /**
+     * Consumer only: hands the most recently peeked slot back to the producer for reuse.
+     */
+    public void release() {
+        readSequence.lazySet(readSequence.get() + 1);
+    }
+
+    /**
+     * Consumer only: releases every published slot without reading it.
+     * This is useful when playback is stopped or repositioned and whatever was
+     * buffered is no longer wanted.
+     */
+    public void releaseAll() {
+        readSequence.lazySet(writeSequence.get());
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % slots.length);
+    }
+}
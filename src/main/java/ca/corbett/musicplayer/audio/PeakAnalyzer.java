@@ -0,0 +1,55 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Built-in Analyzer that reduces the decoded PCM into a WaveformPeaks, using PeakExtractor.
+ * The peaks are filled in as the decode progresses, so that the UI can show a partial
+ * waveform, and the given callback is run every so often to let it know there's more.
+ * The peaks are not marked complete here; that's up to whoever owns them.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class PeakAnalyzer implements Analyzer {
+
+    public static final TrackAnalysis.Key<WaveformPeaks> PEAKS = new TrackAnalysis.Key<>("peaks", WaveformPeaks.class);
+
+    private final WaveformPeaks peaks;
+    private final int updateIntervalBuckets;
+    private final Runnable onUpdate;
+    private PeakExtractor extractor;
+    private int updateCounter;
+
+    /**
+     * @param peaks                 The peaks to fill in.
+     * @param updateIntervalBuckets Run onUpdate each time at least this many buckets have been added.
+     * @param onUpdate              Called from the decoding thread as buckets are added. May be null.
+     */
+    public PeakAnalyzer(WaveformPeaks peaks, int updateIntervalBuckets, Runnable onUpdate) {
+        this.peaks = peaks;
+        this.updateIntervalBuckets = Math.max(1, updateIntervalBuckets);
+        this.onUpdate = onUpdate == null ? () -> { } : onUpdate;
+    }
+
+    @Override
+    public void begin(AudioFormat format) {
+        extractor = PeakExtractor.forFormat(format, peaks.getSourceFramesPerBucket());
+        updateCounter = 0;
+    }
+
+    @Override
+    public void process(byte[] pcm, int length) {
+        updateCounter += extractor.process(pcm, length, peaks);
+        if (updateCounter >= updateIntervalBuckets) {
+            updateCounter = 0;
+            onUpdate.run();
+        }
+    }
+
+    @Override
+    public void finish(TrackAnalysis analysis) {
+        extractor.finish(peaks);
+        analysis.put(PEAKS, peaks);
+    }
+}
@@ -0,0 +1,218 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Reduces raw PCM audio to per-channel peak buckets for a WaveformPeaks.
+ * <p>
+ * AudioUtil.openPlaybackStream() nearly always gives us 16-bit signed little-endian PCM,
+ * so that format gets a fast path: samples are read straight out of the byte buffer
+ * through a little-endian short view (a VarHandle), with separate tight loops for
+ * stereo, mono and other channel counts. Those loops have no per-sample branches or
+ * per-byte assembly, which lets the JIT unroll and vectorize them. Any other format goes
+ * through a general (and much slower) scalar decoder.
+ * </p>
+ * <p>
+ * We considered the jdk.incubator.vector API for this, but it's still an incubator module,
+ * which means --add-modules flags at both compile time and on every launch. The VarHandle
+ * loops get most of the benefit without that. See PeakExtractorBenchmark in the tests.
+ * </p>
+ * <p>
+ * Instances are stateful (a bucket may span several buffers), and are not thread safe.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class PeakExtractor {
+
+    private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final int channels;
+    private final int frameSize;
+    private final int framesPerBucket;
+    private final int sampleSizeInBits;
+    private final int bytesPerSample;
+    private final boolean bigEndian;
+    private final boolean signedPcm;
+    private final boolean fastPath;
+    private final int[] maxAbs;
+    private final short[] bucket;
+    private int frameCount;
+
+    private PeakExtractor(AudioFormat format, int framesPerBucket, boolean allowFastPath) {
+        this.channels = Math.max(1, format.getChannels());
+        this.sampleSizeInBits = format.getSampleSizeInBits() > 0 ? format.getSampleSizeInBits() : 16;
+        this.bytesPerSample = Math.max(1, (sampleSizeInBits + 7) / 8);
+        this.frameSize = Math.max(bytesPerSample * channels, format.getFrameSize());
+        this.framesPerBucket = Math.max(1, framesPerBucket);
+        this.bigEndian = format.isBigEndian();
+        this.signedPcm = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
+        this.fastPath = allowFastPath && signedPcm && !bigEndian && sampleSizeInBits == 16 && frameSize == 2 * channels;
+        this.maxAbs = new int[channels];
+        this.bucket = new short[channels];
+    }
+
+    /**
+     * Returns an extractor for the given format, using the fast path if the format allows it.
+     *
+     * @param format          The format of the PCM data that will be given to process().
+     * @param framesPerBucket The number of frames to reduce into each peak bucket.
+     */
+    public static PeakExtractor forFormat(AudioFormat format, int framesPerBucket) {
+        return new PeakExtractor(format, framesPerBucket, true);
+    }
+
+    /**
+     * Returns an extractor that always uses the general scalar decoder. For testing and benchmarking.
+     */
+    static PeakExtractor scalar(AudioFormat format, int framesPerBucket) {
+        return new PeakExtractor(format, framesPerBucket, false);
+    }
+
+    /**
+     * Reports whether this extractor is using the 16-bit little-endian fast path.
+     */
+    public boolean isFastPath() {
+        return fastPath;
+    }
+
+    /**
+     * Scans the whole frames in the first length bytes of the given buffer, adding a bucket
+     * to the given peaks each time one fills up.
+     *
+     * @return The number of buckets added.
+     */
+    public int process(byte[] buffer, int length, WaveformPeaks peaks) {
+        int frames = length / frameSize;
+        int frame = 0;
+        int added = 0;
+        while (frame < frames) {
+            int count = Math.min(frames - frame, framesPerBucket - frameCount);
+            int offset = frame * frameSize;
+            if (!fastPath) {
+                scanScalar(buffer, offset, count);
+            }
+            else if (channels == 2) {
+                scanStereo16(buffer, offset, count);
+            }
+            else if (channels == 1) {
+                scanMono16(buffer, offset, count);
+            }
+            else {
+                scanInterleaved16(buffer, offset, count);
+            }
+            frame += count;
+            frameCount += count;
+            if (frameCount == framesPerBucket) {
+                emit(peaks);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds whatever is left over in a partially filled bucket, if anything, to the given peaks.
+     */
+    public void finish(WaveformPeaks peaks) {
+        if (frameCount > 0) {
+            emit(peaks);
+        }
+    }
+
+    private void emit(WaveformPeaks peaks) {
+        for (int ch = 0; ch < channels; ch++) {
+            bucket[ch] = (short) Math.min(Short.MAX_VALUE, maxAbs[ch]);
+            maxAbs[ch] = 0;
+        }
+        peaks.addBucket(bucket); // not retained, so we can reuse it
+        frameCount = 0;
+    }
+
+    private void scanStereo16(byte[] buffer, int offset, int frames) {
+        int left = maxAbs[0];
+        int right = maxAbs[1];
+        int end = offset + frames * 4;
+        for (int i = offset; i < end; i += 4) {
+            left = Math.max(left, Math.abs((short) SHORT_LE.get(buffer, i)));
+            right = Math.max(right, Math.abs((short) SHORT_LE.get(buffer, i + 2)));
+        }
+        maxAbs[0] = left;
+        maxAbs[1] = right;
+    }
+
+    private void scanMono16(byte[] buffer, int offset, int frames) {
+        int max = maxAbs[0];
+        int end = offset + frames * 2;
+        for (int i = offset; i < end; i += 2) {
+            max = Math.max(max, Math.abs((short) SHORT_LE.get(buffer, i)));
+        }
+        maxAbs[0] = max;
+    }
+
+    private void scanInterleaved16(byte[] buffer, int offset, int frames) {
+        for (int ch = 0; ch < channels; ch++) {
+            int max = maxAbs[ch];
+            int end = offset + frames * frameSize;
+            for (int i = offset + ch * 2; i < end; i += frameSize) {
+                max = Math.max(max, Math.abs((short) SHORT_LE.get(buffer, i)));
+            }
+            maxAbs[ch] = max;
+        }
+    }
+
+    private void scanScalar(byte[] buffer, int offset, int frames) {
+        for (int f = 0; f < frames; f++) {
+            int idx = offset + f * frameSize;
+            for (int ch = 0; ch < channels; ch++) {
+                int sample = decodeSample(buffer, idx, bytesPerSample, bigEndian, signedPcm);
+                idx += bytesPerSample;
+                int abs = toPeakMagnitude(sample, sampleSizeInBits);
+                if (abs > maxAbs[ch]) {
+                    maxAbs[ch] = abs;
+                }
+            }
+        }
+    }
+
+    private static int decodeSample(byte[] buffer, int offset, int bytesPerSample, boolean bigEndian, boolean signedPcm) {
+        int sample = 0;
+        if (bigEndian) {
+            for (int i = 0; i < bytesPerSample; i++) {
+                sample = (sample << 8) | (buffer[offset + i] & 0xff);
+            }
+        }
+        else {
+            for (int i = bytesPerSample - 1; i >= 0; i--) {
+                sample = (sample << 8) | (buffer[offset + i] & 0xff);
+            }
+        }
+
+        int bits = bytesPerSample * 8;
+        if (signedPcm) {
+            int signBit = 1 << (bits - 1);
+            if ((sample & signBit) != 0) {
+                sample -= 1 << bits;
+            }
+        }
+        else {
+            sample -= 1 << (bits - 1);
+        }
+        return sample;
+    }
+
+    private static short toPeakMagnitude(int sample, int sampleSizeInBits) {
+        long abs = Math.abs((long) sample);
+        if (sampleSizeInBits > 16) {
+            abs >>= (sampleSizeInBits - 16);
+        }
+        else if (sampleSizeInBits > 0 && sampleSizeInBits < 16) {
+            abs <<= (16 - sampleSizeInBits);
+        }
+        return (short) Math.min(Short.MAX_VALUE, abs);
+    }
+}
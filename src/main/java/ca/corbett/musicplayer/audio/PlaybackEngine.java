@@ -0,0 +1,609 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.LineUnavailableException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams a single decoded PCM stream to an {@link AudioSink} (normally the sound card).
+ * <p>
+ * Decoding and output are decoupled onto two threads: a decoder thread reads from the
+ * source stream (which, for mp3, is where the actual decoding happens) into a
+ * {@link PcmRingBuffer} of reusable buffers, and a separate high-priority output thread
+ * drains that ring into the sink. A hiccup on the decode side (a slow network
+ * read, a GC pause in the mp3 decoder, a CPU-hungry visualizer) is absorbed by whatever
+ * is buffered in the ring instead of turning into an audible underrun.
+ * </p>
+ * <p>
+ * Sinks come from the {@link OutputLinePool} rather than being opened per engine,
+ * so stopping one engine and starting the next (on next, prev, or seek) doesn't pay for
+ * closing and reopening the audio device each time.
+ * </p>
+ * <p>
+ * For gapless playback, the stream of the following track can be queued up behind the
+ * current one with queueNext(). The decoder thread then carries straight on into it
+ * when the current stream runs out, within the same ring buffer, so the output line
+ * never drains and there is no gap (not even a single silent frame) at the join.
+ * Listeners find out about the change of track afterwards.
+ * </p>
+ * <p>
+ * Callers are notified of progress and of the end of playback via the {@link Listener}
+ * interface, which mirrors the callbacks of the swing-extras PlaybackThread that this
+ * class replaces.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public class PlaybackEngine {
+
+    private static final Logger logger = Logger.getLogger(PlaybackEngine.class.getName());
+
+    /**
+     * The default number of buffers in the decode ring.
+     */
+    public static final int DEFAULT_BUFFER_DEPTH = 8;
+
+    /**
+     * Each ring buffer holds this many PCM frames (about 93ms at 44.1kHz).
+     */
+    public static final int FRAMES_PER_BUFFER = 4096;
+
+    private static final long DEFAULT_UPDATE_INTERVAL_MS = 500;
+    private static final long IDLE_PARK_NANOS = 2_000_000L;
+    private static final long STOP_JOIN_MILLIS = 250;
+
+    /**
+     * Why playback ended.
+     */
+    public enum StopReason {
+        /**
+         * The end of the audio stream was reached and everything was played out.
+         */
+        FINISHED,
+
+        /**
+         * The end of the audio stream was reached, and playback carried straight on
+         * into the stream that was queued up behind it with queueNext().
+         */
+        CONTINUED,
+
+        /**
+         * Playback was stopped on request before the end of the stream.
+         */
+        INTERRUPTED,
+
+        /**
+         * Playback was aborted because of a decode or output error.
+         */
+        ERROR
+    }
+
+    /**
+     * Callers can listen for playback events. Note that all callbacks are invoked
+     * from the engine's output thread, not from the Swing EDT.
+     */
+    public interface Listener {
+        /**
+         * Invoked once the output line is open and audio is about to start flowing.
+         * For a stream that was queued up with queueNext(), this is invoked when the
+         * first of its audio is handed to the output line.
+         */
+        void started();
+
+        /**
+         * Invoked exactly once, when playback ends for whatever reason.
+         */
+        void stopped(StopReason stopReason);
+
+        /**
+         * Invoked periodically during playback.
+         *
+         * @param curMillis   The current playback position, in milliseconds from the start of the track.
+         * @param totalMillis The total track length in milliseconds, or -1 if not known.
+         * @return false to request that playback stop, true to continue.
+         */
+        boolean updateProgress(long curMillis, long totalMillis);
+    }
+
+    private static volatile long updateIntervalMs = DEFAULT_UPDATE_INTERVAL_MS;
+
+    private final AudioFormat format;
+    private final PcmRingBuffer ring;
+    private final AtomicBoolean stopFired = new AtomicBoolean(false);
+    private final Object queueLock = new Object();
+
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile boolean decodeFinished;
+    private volatile boolean decodeFailed;
+    private volatile AudioSink sink;
+    private volatile long framesWritten;
+    private volatile long finalFramePosition;
+    private volatile long startNanos;
+    private volatile long firstFrameNanos;
+    private volatile long framesDecoded;
+    private volatile long decodeNanos;
+    private long baseFramePosition;
+    private volatile Track decodingTrack;
+    private volatile Track playingTrack;
+    private Track queuedTrack;
+    private boolean queueClosed;
+    private Thread decoderThread;
+    private Thread outputThread;
+
+    /**
+     * Creates a new engine for the given stream. Nothing happens until start() is invoked.
+     *
+     * @param stream       A PCM stream as returned by AudioUtil.openPlaybackStream().
+     * @param offsetMillis The track position at which the given stream begins, in milliseconds.
+     *                     The stream is expected to already be positioned there.
+     * @param bufferDepth  How many buffers in the decode ring (at least 2).
+     * @param listener     An optional listener for playback events.
+     */
+    public PlaybackEngine(AudioInputStream stream, long offsetMillis, int bufferDepth, Listener listener) {
+        this.format = stream.getFormat();
+        int frameSize = Math.max(1, format.getFrameSize());
+        this.ring = new PcmRingBuffer(Math.max(2, bufferDepth), FRAMES_PER_BUFFER * frameSize);
+        this.decodingTrack = new Track(stream, Math.max(0L, offsetMillis), listener, 0L);
+        this.playingTrack = decodingTrack;
+    }
+
+    /**
+     * Sets how often, in milliseconds, all playback engines should report progress to their listeners.
+     * Values below 10ms are ignored.
+     */
+    public static void setUpdateIntervalMs(long intervalMs) {
+        if (intervalMs >= 10) {
+            updateIntervalMs = intervalMs;
+        }
+    }
+
+    /**
+     * Acquires an output line from the OutputLinePool and starts the decoder and output threads.
+     * The line is acquired on the calling thread so that failures are reported right away.
+     *
+     * @throws LineUnavailableException If no suitable output line could be opened.
+     */
+    public synchronized void start() throws LineUnavailableException {
+        if (running || decoderThread != null) {
+            throw new IllegalStateException("PlaybackEngine can only be started once.");
+        }
+        startNanos = System.nanoTime();
+        AudioSink newSink = OutputLinePool.getInstance().acquire(format);
+
+        // A reused line has a frame position carried over from earlier tracks, and may still
+        // have the tail of the previous track queued up. Our own audio starts after all that:
+        int queuedBytes = newSink.getBufferSize() - newSink.available();
+        baseFramePosition = newSink.getLongFramePosition() + queuedBytes / Math.max(1, format.getFrameSize());
+        sink = newSink;
+        running = true;
+
+        decoderThread = new Thread(this::decodeLoop, "musicplayer-decoder");
+        decoderThread.setDaemon(true);
+        outputThread = new Thread(this::outputLoop, "musicplayer-output");
+        outputThread.setDaemon(true);
+        outputThread.setPriority(Thread.MAX_PRIORITY);
+        decoderThread.start();
+        outputThread.start();
+    }
+
+    /**
+     * Queues up the given stream to be played as soon as the current one runs out, with no gap
+     * between the two. The switch happens on the decoder thread, so the output line keeps running
+     * straight through it. When the first audio from the queued stream reaches the output line,
+     * the current listener receives a stopped() notification with StopReason.CONTINUED, and the
+     * given listener receives started(), and from then on, the progress updates and the eventual
+     * stopped() notification. The reported position starts over from zero at that point.
+     * <p>
+     * This only works for a stream in the same audio format as the current one, and only until
+     * the current stream has been fully decoded, and only one stream can be queued at a time.
+     * If the stream is not accepted, false is returned and the caller still owns the stream.
+     * Otherwise, this engine takes ownership of it, and closes it if playback stops before
+     * the queued stream is reached.
+     * </p>
+     *
+     * @param stream   A PCM stream as returned by AudioUtil.openPlaybackStream(), positioned at the
+     *                 start of its track.
+     * @param listener An optional listener for playback events of the queued stream.
+     * @return true if the stream was queued up, false otherwise.
+     */
+    public boolean queueNext(AudioInputStream stream, Listener listener) {
+        if (stream == null || !format.matches(stream.getFormat())) {
+            return false;
+        }
+        synchronized (queueLock) {
+            if (queueClosed || queuedTrack != null) {
+                return false;
+            }
+            queuedTrack = new Track(stream, 0L, listener, -1L);
+            return true;
+        }
+    }
+
+    /**
+     * Stops playback, if it's in progress. Whatever is still buffered is discarded.
+     * Listeners will receive a stopped() notification with StopReason.INTERRUPTED
+     * (unless playback had already ended on its own).
+     * <p>
+     * This waits briefly for the output thread to hand its line back to the OutputLinePool,
+     * so that a new engine started right after this one can reuse it.
+     * </p>
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        AudioSink currentSink = sink;
+        if (currentSink != null) {
+            // Remember where we got to before the line goes away:
+            finalFramePosition = framesPlayed(currentSink);
+            sink = null;
+
+            // This unblocks the output thread if it's waiting inside write():
+            currentSink.stop();
+            currentSink.flush();
+        }
+        LockSupport.unpark(outputThread);
+        LockSupport.unpark(decoderThread);
+        if (outputThread != null && Thread.currentThread() != outputThread) {
+            try {
+                outputThread.join(STOP_JOIN_MILLIS);
+            }
+            catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Suspends playback without tearing anything down. The output line is stopped (but not
+     * flushed, so nothing already buffered is lost), the output thread stops feeding it,
+     * and the decoder fills up the ring and then waits. The stream position, decoder state
+     * and line are all kept, so that resume() picks up at exactly the next sample.
+     * Does nothing if playback is not running or is already paused.
+     */
+    public void pause() {
+        AudioSink currentSink = sink;
+        if (!running || paused || currentSink == null) {
+            return;
+        }
+        paused = true;
+        currentSink.stop();
+    }
+
+    /**
+     * Resumes playback after pause(). Does nothing if we are not paused.
+     */
+    public void resume() {
+        AudioSink currentSink = sink;
+        if (!running || !paused || currentSink == null) {
+            return;
+        }
+        paused = false;
+        currentSink.start();
+        LockSupport.unpark(outputThread);
+    }
+
+    /**
+     * Reports whether playback is currently in progress. This includes the paused state.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Reports whether playback is currently suspended via pause().
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Returns the audio format of the stream being played.
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the number of buffers in the decode ring.
+     */
+    public int getBufferDepth() {
+        return ring.getDepth();
+    }
+
+    /**
+     * Returns how long it took from start() until the first buffer of audio was accepted
+     * by the sink, in milliseconds, or -1 if that hasn't happened yet.
+     */
+    public long getFirstFrameLatencyMillis() {
+        long first = firstFrameNanos;
+        return first == 0 ? -1L : (first - startNanos) / 1_000_000L;
+    }
+
+    /**
+     * Returns how many PCM frames the decoder thread has produced so far.
+     */
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    /**
+     * Returns the total time the decoder thread has spent reading from the stream
+     * (that is, decoding), in milliseconds. Time spent waiting for room in the ring is not counted.
+     */
+    public long getDecodeMillis() {
+        return decodeNanos / 1_000_000L;
+    }
+
+    /**
+     * Returns the current playback position, in milliseconds from the start of the track.
+     * This is based on what the output line reports as actually played, so audio
+     * that is still sitting in the ring or in the line's own buffer is not counted.
+     */
+    public long getCurrentOffset() {
+        Track track = playingTrack;
+        AudioSink currentSink = sink;
+        long framesPlayed = currentSink == null ? finalFramePosition : framesPlayed(currentSink);
+        long trackFrames = Math.min(framesPlayed, framesWritten) - track.startFrame;
+        return track.offsetMillis + framesToMillis(Math.max(0L, trackFrames));
+    }
+
+    private void decodeLoop() {
+        try {
+            while (running) {
+                byte[] buffer = ring.claim();
+                if (buffer == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS); // ring is full, give the output side a moment
+                    continue;
+                }
+
+                long readStart = System.nanoTime();
+                int length = readFully(buffer);
+                decodeNanos += System.nanoTime() - readStart;
+                framesDecoded += length / Math.max(1, format.getFrameSize());
+                if (length > 0) {
+                    ring.publish(length);
+                    LockSupport.unpark(outputThread);
+                }
+                if (length < buffer.length) {
+                    break; // end of stream
+                }
+            }
+        }
+        catch (IOException ex) {
+            logger.log(Level.WARNING, "Audio decode failed: " + ex.getMessage(), ex);
+            decodeFailed = true;
+        }
+        finally {
+            logger.log(Level.FINE, "Decoded {0}ms of audio in {1}ms",
+                       new Object[]{framesToMillis(framesDecoded), getDecodeMillis()});
+            closeQueue();
+            decodeFinished = true;
+            LockSupport.unpark(outputThread);
+            closeQuietly(decodingTrack.stream);
+        }
+    }
+
+    private void outputLoop() {
+        AudioSink outputSink = sink;
+        StopReason reason = StopReason.INTERRUPTED;
+        long lastProgressMillis = 0L;
+        try {
+            Listener listener = playingTrack.listener;
+            if (listener != null) {
+                listener.started();
+            }
+            outputSink.start();
+
+            while (running) {
+                if (paused) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS * 10);
+                    continue;
+                }
+
+                byte[] buffer = ring.peek();
+                if (buffer == null) {
+                    if (decodeFinished && ring.isEmpty()) {
+                        if (decodeFailed) {
+                            reason = StopReason.ERROR;
+                        }
+                        else {
+                            // We don't drain() here: the line goes back to the pool still running,
+                            // and the next track can start writing to it while our tail plays out.
+                            reason = running ? StopReason.FINISHED : StopReason.INTERRUPTED;
+                        }
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS); // underrun: wait for the decoder
+                    continue;
+                }
+
+                int length = ring.getPeekedLength();
+                int offset = 0;
+                while (offset < length && running) {
+                    offset += outputSink.write(buffer, offset, length - offset);
+                }
+                framesWritten += offset / Math.max(1, format.getFrameSize());
+                if (firstFrameNanos == 0) {
+                    firstFrameNanos = System.nanoTime();
+                    logger.log(Level.FINE, "First audio reached the output {0}ms after start",
+                               getFirstFrameLatencyMillis());
+                }
+                ring.release();
+                LockSupport.unpark(decoderThread);
+                if (advancePlayingTrack()) {
+                    lastProgressMillis = 0L; // let the new listener know where it's at right away
+                }
+
+                Track track = playingTrack;
+                long now = System.currentTimeMillis();
+                if (track.listener != null && !paused && now - lastProgressMillis >= updateIntervalMs) {
+                    lastProgressMillis = now;
+                    if (!track.listener.updateProgress(getCurrentOffset(), track.totalMillis)) {
+                        running = false;
+                    }
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Audio output failed: " + ex.getMessage(), ex);
+            reason = StopReason.ERROR;
+        }
+        finally {
+            running = false;
+            if (sink != null) {
+                finalFramePosition = framesPlayed(outputSink);
+                sink = null;
+            }
+            ring.releaseAll();
+            LockSupport.unpark(decoderThread);
+            if (reason == StopReason.ERROR) {
+                OutputLinePool.getInstance().discard(outputSink);
+            }
+            else {
+                if (reason != StopReason.FINISHED) {
+                    outputSink.stop();
+                    outputSink.flush();
+                }
+                OutputLinePool.getInstance().release(outputSink);
+            }
+            fireStopped(reason);
+        }
+    }
+
+    /**
+     * Fills the given buffer from the stream being decoded. If that stream runs out and another
+     * one was queued up behind it, we carry on reading from that one into the same buffer.
+     */
+    private int readFully(byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length && running) {
+            int bytesRead = decodingTrack.stream.read(buffer, total, buffer.length - total);
+            if (bytesRead < 0) {
+                if (!advanceDecodingTrack(framesDecoded + total / Math.max(1, format.getFrameSize()))) {
+                    break;
+                }
+                continue;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * Invoked on the decoder thread when the current stream runs out. Moves on to the queued
+     * stream, if there is one, which starts at the given frame of our output.
+     * Once this returns false, nothing more can be queued.
+     */
+    private boolean advanceDecodingTrack(long startFrame) {
+        Track next;
+        synchronized (queueLock) {
+            next = queuedTrack;
+            queuedTrack = null;
+            queueClosed = next == null;
+        }
+        if (next == null) {
+            return false;
+        }
+        Track finished = decodingTrack;
+        closeQuietly(finished.stream);
+        next.startFrame = startFrame;
+        decodingTrack = next;
+        finished.next = next; // published to the output thread along with the buffer holding the join
+        return true;
+    }
+
+    /**
+     * Invoked on the output thread after each write. Once all of the audio before a track that the
+     * decoder moved on to has gone out to the line, its listener takes over from the previous one.
+     *
+     * @return true if the playing track changed.
+     */
+    private boolean advancePlayingTrack() {
+        boolean advanced = false;
+        Track next = playingTrack.next;
+        while (next != null && framesWritten >= next.startFrame) {
+            if (playingTrack.listener != null) {
+                playingTrack.listener.stopped(StopReason.CONTINUED);
+            }
+            playingTrack = next;
+            if (next.listener != null) {
+                next.listener.started();
+            }
+            advanced = true;
+            next = next.next;
+        }
+        return advanced;
+    }
+
+    private void closeQueue() {
+        Track discarded;
+        synchronized (queueLock) {
+            discarded = queuedTrack;
+            queuedTrack = null;
+            queueClosed = true;
+        }
+        if (discarded != null) {
+            closeQuietly(discarded.stream);
+        }
+    }
+
+    private static void closeQuietly(AudioInputStream stream) {
+        try {
+            stream.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    private void fireStopped(StopReason reason) {
+        Listener listener = playingTrack.listener;
+        if (listener != null && stopFired.compareAndSet(false, true)) {
+            listener.stopped(reason);
+        }
+    }
+
+    /**
+     * Returns how many of our frames the given sink has actually played.
+     */
+    private long framesPlayed(AudioSink outputSink) {
+        return outputSink.getLongFramePosition() - baseFramePosition;
+    }
+
+    private long framesToMillis(long frames) {
+        float frameRate = format.getFrameRate() > 0 ? format.getFrameRate() : format.getSampleRate();
+        return frameRate > 0 ? (long) (frames * 1000d / frameRate) : 0L;
+    }
+
+    /**
+     * One of the streams played by this engine: the one it was created with, or one queued up after it.
+     */
+    private static final class Track {
+        private final AudioInputStream stream;
+        private final long offsetMillis;
+        private final Listener listener;
+        private final long totalMillis;
+        private volatile long startFrame; // where this track starts in our output, in frames
+        private volatile Track next;
+
+        private Track(AudioInputStream stream, long offsetMillis, Listener listener, long startFrame) {
+            this.stream = stream;
+            this.offsetMillis = offsetMillis;
+            this.listener = listener;
+            this.startFrame = startFrame;
+            AudioFormat format = stream.getFormat();
+            long frameLength = stream.getFrameLength();
+            this.totalMillis = (frameLength > 0 && format.getFrameRate() > 0)
+                ? offsetMillis + (long) (frameLength * 1000d / format.getFrameRate())
+                : -1L;
+        }
+    }
+}
@@ -114,6 +114,28 @@ public class PlaylistUtil {
         return list;
     }
 
+    /**
+     * Given a mix of audio files and playlist files (for example, from a drag and drop or
+     * from the command line), returns a flat list of every track they add up to, in order.
+     * Playlists are expanded in place, and anything that is neither a valid audio file nor a
+     * playlist is skipped. This lets callers add everything to the Playlist in one go.
+     *
+     * @param files Any list of files.
+     * @return The audio files given, with each playlist replaced by the tracks it contains.
+     */
+    public static List<File> resolveTracks(List<File> files) {
+        List<File> tracks = new ArrayList<>();
+        for (File file : files) {
+            if (AudioUtil.isValidAudioFile(file)) {
+                tracks.add(file);
+            }
+            else if (AudioUtil.isValidPlaylist(file)) {
+                tracks.addAll(loadPlaylist(file));
+            }
+        }
+        return tracks;
+    }
+
     /**
      * Saves the given list of files to a playlist described by targetFile.
      * The save strategy is driven by the file extension on the targetFile.
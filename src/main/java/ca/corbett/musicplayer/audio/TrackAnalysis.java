@@ -0,0 +1,102 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the results of every Analyzer that was run over a single track, along with
+ * the exact length of the track as counted by the decode pass itself.
+ * <p>
+ * Results are looked up by typed Key, which each analyzer publishes as a constant,
+ * for example PeakAnalyzer.PEAKS.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class TrackAnalysis {
+
+    /**
+     * Identifies one kind of result, and the type of object it is stored as.
+     */
+    public static final class Key<T> {
+        private final String name;
+        private final Class<T> type;
+
+        public Key(String name, Class<T> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final File sourceFile;
+    private final AudioFormat format;
+    private final long totalFrames;
+    private final Map<Key<?>, Object> results = new ConcurrentHashMap<>();
+
+    public TrackAnalysis(File sourceFile, AudioFormat format, long totalFrames) {
+        this.sourceFile = sourceFile;
+        this.format = format;
+        this.totalFrames = totalFrames;
+    }
+
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Returns the format of the decoded PCM that the analyzers were given.
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the number of PCM frames in the track, as counted during decoding.
+     */
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * Returns the exact length of the track in milliseconds, as counted during decoding.
+     */
+    public long getDurationMillis() {
+        float frameRate = format.getFrameRate() > 0 ? format.getFrameRate() : format.getSampleRate();
+        if (frameRate <= 0) {
+            return 0L;
+        }
+        return Math.round(totalFrames * 1000d / frameRate);
+    }
+
+    public <T> void put(Key<T> key, T value) {
+        if (value == null) {
+            results.remove(key);
+        }
+        else {
+            results.put(key, value);
+        }
+    }
+
+    /**
+     * Returns the result stored under the given key, or null if there isn't one.
+     */
+    public <T> T get(Key<T> key) {
+        return key.type.cast(results.get(key));
+    }
+
+    public boolean has(Key<?> key) {
+        return results.containsKey(key);
+    }
+}
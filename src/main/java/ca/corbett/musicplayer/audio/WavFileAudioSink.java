@@ -0,0 +1,155 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+
+/**
+ * An AudioSink that writes everything it's given to a PCM WAV file, as fast as it arrives.
+ * Because the sink is pooled like any other, consecutive tracks in the same format end up
+ * back to back in the same file, which makes it easy to inspect track transitions offline.
+ * A track in a different format needs a new sink, which starts the file over; the pool
+ * closes the old one first (see OutputLinePool.acquire()), so only one sink ever has the
+ * file open. The RIFF header sizes are filled in when the sink is closed.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+final class WavFileAudioSink implements AudioSink {
+
+    private static final int HEADER_LENGTH = 44;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AudioFormat format;
+    private final File file;
+    private final int frameSize;
+    private RandomAccessFile output;
+    private long bytesWritten;
+
+    WavFileAudioSink(AudioFormat format, File file) throws IOException {
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || format.isBigEndian()) {
+            throw new IOException("WAV output requires signed little-endian PCM, not " + format);
+        }
+        this.format = format;
+        this.file = file;
+        this.frameSize = Math.max(1, format.getFrameSize());
+        output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        writeHeader();
+    }
+
+    /**
+     * Returns the file we're writing to.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.WAV_FILE;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized int write(byte[] buffer, int offset, int len) {
+        if (output == null) {
+            return 0;
+        }
+        try {
+            output.write(buffer, offset, len);
+            bytesWritten += len;
+            return len;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Problem writing " + file.getName(), e);
+        }
+    }
+
+    @Override
+    public synchronized long getLongFramePosition() {
+        return bytesWritten / frameSize;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return BUFFER_SIZE;
+    }
+
+    @Override
+    public int available() {
+        return BUFFER_SIZE;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return output != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (output == null) {
+            return;
+        }
+        try {
+            writeHeader();
+            output.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Problem finishing " + file.getName(), e);
+        }
+        finally {
+            output = null;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        int channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        output.seek(0);
+        output.writeBytes("RIFF");
+        writeIntLE((int) Math.min(0xFFFFFFFFL, HEADER_LENGTH - 8 + bytesWritten));
+        output.writeBytes("WAVE");
+        output.writeBytes("fmt ");
+        writeIntLE(16);
+        writeShortLE(1); // PCM
+        writeShortLE(channels);
+        writeIntLE(sampleRate);
+        writeIntLE(sampleRate * frameSize);
+        writeShortLE(frameSize);
+        writeShortLE(format.getSampleSizeInBits());
+        output.writeBytes("data");
+        writeIntLE((int) Math.min(0xFFFFFFFFL, bytesWritten));
+        output.seek(HEADER_LENGTH + bytesWritten);
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        output.write(value & 0xFF);
+        output.write((value >>> 8) & 0xFF);
+        output.write((value >>> 16) & 0xFF);
+        output.write((value >>> 24) & 0xFF);
+    }
+
+    private void writeShortLE(int value) throws IOException {
+        output.write(value & 0xFF);
+        output.write((value >>> 8) & 0xFF);
+    }
+}
@@ -0,0 +1,333 @@
+package ca.corbett.musicplayer.audio;
+
+import ca.corbett.musicplayer.AppConfig;
+import ca.corbett.musicplayer.Version;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent on-disk cache of waveform peaks, so that a track we've seen before doesn't
+ * need to be decoded all over again just to draw its waveform.
+ * <p>
+ * Each track gets one small binary file, named for a hash of the track's canonical path,
+ * size and last-modified time (so an edited or replaced file is simply a cache miss).
+ * The file starts with a versioned header, and peaks are quantized to one byte per channel
+ * per bucket using square-root companding, which keeps quiet passages legible while
+ * cutting the size to a quarter of the in-memory representation.
+ * </p>
+ * <p>
+ * The total size of the cache is capped (see AppConfig), and when it grows past that,
+ * the least recently used entries are deleted. Reading an entry counts as using it.
+ * </p>
+ * <p>
+ * Entries are written to a temp file of their own and then moved into place, so two writers
+ * storing the same track at once (the PlaylistIndexer and the AudioPanel's waveform build,
+ * say) can't trip over each other: whichever finishes last wins.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class WaveformPeakCache {
+
+    private static final Logger logger = Logger.getLogger(WaveformPeakCache.class.getName());
+
+    private static final int MAGIC = 0x4D50504B; // "MPPK"
+    private static final int FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".peaks";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    /**
+     * A temp file this old can't belong to a write that's still going, so it was left behind
+     * by one that failed (or by a crash) and can be deleted.
+     */
+    private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * What we take an entry to cost until there are some to measure: about four minutes of
+     * stereo at 44.1kHz, at 512 frames per bucket.
+     */
+    private static final long TYPICAL_ENTRY_BYTES = 40 * 1024L;
+
+    private static WaveformPeakCache instance;
+
+    private final File cacheDir;
+    private final LongSupplier maxBytes;
+    private long totalBytes = -1; // lazily computed
+    private int entryCount; // computed along with totalBytes
+
+    WaveformPeakCache(File cacheDir, LongSupplier maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized WaveformPeakCache getInstance() {
+        if (instance == null) {
+            instance = new WaveformPeakCache(new File(Version.SETTINGS_DIR, "peakcache"),
+                                             () -> AppConfig.getInstance().getWaveformCacheSizeMB() * 1024L * 1024L);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached peaks for the given source file, fully populated and marked complete,
+     * or null if there is no valid cache entry for the file in its current state.
+     */
+    public WaveformPeaks load(File sourceFile) {
+        if (sourceFile == null || maxBytes.getAsLong() <= 0) {
+            return null;
+        }
+        String key = cacheKey(sourceFile);
+        File entry = entryFile(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int channels = in.readInt();
+            float sampleRate = in.readFloat();
+            int framesPerBucket = in.readInt();
+            int bucketCount = in.readInt();
+            if (channels <= 0 || framesPerBucket <= 0 || bucketCount < 0) {
+                return null;
+            }
+
+            WaveformPeaks peaks = new WaveformPeaks(channels, sampleRate, framesPerBucket,
+                                                    AppConfig.getInstance().getWaveformPeakMemoryMB() * 1024L * 1024L);
+            byte[] quantized = new byte[channels];
+            short[] bucket = new short[channels];
+            for (int i = 0; i < bucketCount; i++) {
+                in.readFully(quantized);
+                for (int ch = 0; ch < channels; ch++) {
+                    bucket[ch] = dequantize(quantized[ch]);
+                }
+                peaks.addBucket(bucket);
+            }
+            peaks.setComplete(true);
+
+            // Touch the entry so LRU eviction sees it as recently used:
+            entry.setLastModified(System.currentTimeMillis());
+            return peaks;
+        }
+        catch (IOException e) {
+            logger.log(Level.FINE, "Ignoring unreadable peak cache entry for {0}: {1}",
+                       new Object[]{sourceFile.getName(), e.getMessage()});
+            return null;
+        }
+    }
+
+    /**
+     * Reports whether there is a cache entry for the given source file in its current state,
+     * without reading it. This is a cheap check, but not a guarantee that load() will succeed.
+     */
+    public boolean contains(File sourceFile) {
+        if (sourceFile == null || maxBytes.getAsLong() <= 0) {
+            return false;
+        }
+        return entryFile(cacheKey(sourceFile)).isFile();
+    }
+
+    /**
+     * Reports whether there is a cache entry for the given source file, as contains() does, and
+     * if there is, marks it as recently used, so that eviction picks on other entries first.
+     */
+    public boolean touch(File sourceFile) {
+        if (!contains(sourceFile)) {
+            return false;
+        }
+        return entryFile(cacheKey(sourceFile)).setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Estimates how many tracks the cache can hold, going by the average size of its entries
+     * if we've totalled them up yet, or of a typical entry if not. This never scans the cache
+     * itself, so it's cheap enough to call from the EDT. Returns 0 if the cache is disabled.
+     */
+    public synchronized int estimateCapacity() {
+        long limit = maxBytes.getAsLong();
+        if (limit <= 0) {
+            return 0;
+        }
+        long entryBytes = totalBytes > 0 && entryCount > 0 ? totalBytes / entryCount : TYPICAL_ENTRY_BYTES;
+        return (int) Math.min(Integer.MAX_VALUE, limit / Math.max(1L, entryBytes));
+    }
+
+    /**
+     * Writes the given peaks to the cache for the given source file, and then evicts
+     * old entries if the cache has grown past its size limit. Incomplete peaks are ignored.
+     */
+    public void store(File sourceFile, WaveformPeaks peaks) {
+        if (sourceFile == null || peaks == null || !peaks.isComplete() || maxBytes.getAsLong() <= 0) {
+            return;
+        }
+        String key = cacheKey(sourceFile);
+        File entry = entryFile(key);
+        File temp = null;
+        try {
+            Files.createDirectories(cacheDir.toPath());
+            temp = Files.createTempFile(cacheDir.toPath(), entry.getName() + ".", TEMP_EXTENSION).toFile();
+            WaveformPeaks.View view = peaks.view();
+            int channels = view.getChannels();
+            int bucketCount = view.getBucketCount();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeInt(channels);
+                out.writeFloat(peaks.getSampleRate());
+                out.writeInt(view.getFramesPerBucket());
+                out.writeInt(bucketCount);
+                for (int i = 0; i < bucketCount; i++) {
+                    for (int ch = 0; ch < channels; ch++) {
+                        out.writeByte(quantize(view.getPeak(i, ch)));
+                    }
+                }
+            }
+
+            synchronized (this) {
+                long previousLength = entry.isFile() ? entry.length() : 0L;
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (totalBytes >= 0) {
+                    totalBytes += entry.length() - previousLength;
+                    if (previousLength == 0L) {
+                        entryCount++;
+                    }
+                }
+            }
+            enforceSizeLimit();
+        }
+        catch (IOException e) {
+            logger.log(Level.FINE, "Unable to write peak cache entry for {0}: {1}",
+                       new Object[]{sourceFile.getName(), e.getMessage()});
+            if (temp != null && !temp.delete() && temp.exists()) {
+                logger.log(Level.FINE, "Unable to delete peak cache temp file {0}", temp.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of all cache entries, in bytes. The first time this is called,
+     * any temp files left behind by failed writes are cleaned up as well.
+     */
+    public synchronized long getTotalBytes() {
+        if (totalBytes < 0) {
+            deleteStaleTempFiles();
+            totalBytes = 0L;
+            File[] entries = listEntries();
+            for (File file : entries) {
+                totalBytes += file.length();
+            }
+            entryCount = entries.length;
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Deletes least recently used entries until the cache is within its size limit.
+     */
+    synchronized void enforceSizeLimit() {
+        long limit = maxBytes.getAsLong();
+        if (getTotalBytes() <= limit) {
+            return;
+        }
+
+        File[] entries = listEntries();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        int evicted = 0;
+        for (File entry : entries) {
+            if (totalBytes <= limit) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                totalBytes -= length;
+                entryCount--;
+                evicted++;
+            }
+        }
+        logger.log(Level.FINE, "Evicted {0} peak cache entries, cache is now {1} bytes",
+                   new Object[]{evicted, totalBytes});
+    }
+
+    private void deleteStaleTempFiles() {
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        File[] temps = cacheDir.listFiles((dir, name) -> name.endsWith(TEMP_EXTENSION));
+        if (temps == null) {
+            return;
+        }
+        for (File temp : temps) {
+            if (temp.lastModified() < cutoff && temp.delete()) {
+                logger.log(Level.FINE, "Deleted stale peak cache temp file {0}", temp.getName());
+            }
+        }
+    }
+
+    private File[] listEntries() {
+        File[] entries = cacheDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        return entries == null ? new File[0] : entries;
+    }
+
+    private File entryFile(String key) {
+        return new File(cacheDir, sha1(key) + EXTENSION);
+    }
+
+    /**
+     * Square-root companding: more of our 256 levels go to quiet signals, where the eye
+     * would notice the steps, and fewer to loud ones, where it wouldn't.
+     */
+    static byte quantize(int peak) {
+        double normalized = Math.min(1d, Math.max(0d, peak / (double) Short.MAX_VALUE));
+        return (byte) Math.round(Math.sqrt(normalized) * 255d);
+    }
+
+    static short dequantize(byte quantized) {
+        double normalized = (quantized & 0xFF) / 255d;
+        return (short) Math.round(normalized * normalized * Short.MAX_VALUE);
+    }
+
+    private static String cacheKey(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return path + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to support SHA-1, but just in case:
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
@@ -1,66 +1,140 @@
 package ca.corbett.musicplayer.audio;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Compact waveform data represented as peak amplitudes per bucket.
  *
- * Instances are appended to by a background decode thread while the UI thread reads
- * snapshots for rendering, so mutable operations are synchronized.
+ * Instances are appended to by a single background decode thread while the UI thread
+ * reads them for rendering. Peaks are stored in fixed-size chunks of primitive shorts,
+ * and each append is published through a volatile bucket count, so readers never take
+ * a lock and never copy: view() captures a consistent, immutable window over whatever
+ * has been published so far.
+ * <p>
+ * Alongside the base buckets, we maintain a mipmap-style pyramid: each level above the
+ * base has half as many buckets as the one below it, and each of its buckets holds the
+ * max, min and RMS of the two buckets beneath it. The pyramid is extended incrementally
+ * as buckets are added, so it costs nothing extra to keep up to date. Renderers can then
+ * use aggregate() to reduce any range of buckets to any number of columns in time
+ * proportional to the number of columns (times a log factor), instead of to the length
+ * of the track.
+ * </p>
+ * <p>
+ * Memory use can optionally be bounded. When the pyramid outgrows its budget, the base
+ * level is dropped and the first pyramid level (its maxes) becomes the new base, so the
+ * resolution halves and getFramesPerBucket() doubles. Incoming buckets are then merged
+ * in pairs (or fours, and so on) before they are stored. A multi-hour recording therefore
+ * stays within a fixed budget at the cost of some horizontal detail.
+ * </p>
  */
 public class WaveformPeaks {
 
+    /**
+     * Index of the max statistic within a pyramid bucket.
+     */
+    public static final int STAT_MAX = 0;
+
+    /**
+     * Index of the min statistic within a pyramid bucket.
+     */
+    public static final int STAT_MIN = 1;
+
+    /**
+     * Index of the RMS statistic within a pyramid bucket.
+     */
+    public static final int STAT_RMS = 2;
+
+    private static final int STATS = 3;
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_BUCKETS = 1 << CHUNK_SHIFT; // buckets per chunk
+    private static final int CHUNK_MASK = CHUNK_BUCKETS - 1;
+
     private final int channels;
     private final float sampleRate;
-    private final int framesPerBucket;
-    private final List<short[]> buckets;
+    private final int sourceFramesPerBucket;
+    private final long maxBytes;
     private volatile boolean complete;
+    private volatile WaveformPeaks preview;
+
+    // Published state. Replaced wholesale (never modified in place) when we merge down.
+    private volatile Pyramid pyramid;
+
+    // Writer-only state for merging incoming buckets after the resolution has been reduced:
+    private final short[] pending;
+    private int pendingCount;
 
+    /**
+     * Creates an unbounded WaveformPeaks.
+     */
     public WaveformPeaks(int channels, float sampleRate, int framesPerBucket) {
+        this(channels, sampleRate, framesPerBucket, 0L);
+    }
+
+    /**
+     * Creates a WaveformPeaks that will reduce its resolution as needed to stay
+     * within roughly the given number of bytes (0 for no limit).
+     */
+    public WaveformPeaks(int channels, float sampleRate, int framesPerBucket, long maxBytes) {
         this.channels = Math.max(1, channels);
         this.sampleRate = sampleRate > 0 ? sampleRate : 44100f;
-        this.framesPerBucket = Math.max(1, framesPerBucket);
-        this.buckets = new ArrayList<>();
+        this.sourceFramesPerBucket = Math.max(1, framesPerBucket);
+        this.maxBytes = Math.max(0L, maxBytes);
+        this.pyramid = new Pyramid(this.channels, this.sourceFramesPerBucket);
+        this.pending = new short[this.channels];
         this.complete = false;
     }
 
     /**
-     * Adds a single peak bucket.
+     * Adds a single peak bucket, covering getSourceFramesPerBucket() frames. The given array
+     * is not retained, so callers may reuse it. This must only be called from one thread.
      *
      * If the source bucket is mono (length 1), the value is mirrored into all channels
      * to preserve symmetric top/bottom waveform rendering.
      */
-    public synchronized void addBucket(short[] bucket) {
+    public void addBucket(short[] bucket) {
         if (bucket == null || bucket.length == 0) {
             return;
         }
-        short[] copy = new short[channels];
 
-        // For mono inputs, mirror the single channel so top/bottom waveform stays symmetric.
-        if (bucket.length == 1) {
-            for (int i = 0; i < copy.length; i++) {
-                copy[i] = bucket[0];
-            }
-            buckets.add(copy);
-            return;
+        for (int ch = 0; ch < channels; ch++) {
+            // For mono inputs, mirror the single channel so top/bottom waveform stays symmetric.
+            short value = bucket.length == 1 ? bucket[0] : (ch < bucket.length ? bucket[ch] : 0);
+            pending[ch] = pendingCount == 0 ? value : (short) Math.max(pending[ch], value);
         }
+        pendingCount++;
 
-        for (int i = 0; i < copy.length; i++) {
-            copy[i] = i < bucket.length ? bucket[i] : 0;
+        Pyramid current = pyramid;
+        if (pendingCount >= current.framesPerBucket / sourceFramesPerBucket) {
+            flushPending(current);
         }
-        buckets.add(copy);
     }
 
     /**
-     * Returns an immutable-style snapshot arranged as [channel][bucketIndex].
+     * Returns an immutable view of everything published so far. Views are cheap
+     * (no peak data is copied) and safe to use from any thread.
      */
-    public synchronized int[][] snapshotByChannel() {
-        int[][] out = new int[channels][buckets.size()];
-        for (int i = 0; i < buckets.size(); i++) {
-            short[] bucket = buckets.get(i);
+    public View view() {
+        return new View(pyramid);
+    }
+
+    /**
+     * Convenience for view().aggregate(...) - see View.aggregate().
+     */
+    public void aggregate(int channel, int startBucket, int endBucket, short[] max, short[] min, short[] rms) {
+        view().aggregate(channel, startBucket, endBucket, max, min, rms);
+    }
+
+    /**
+     * Returns a copy of the base buckets arranged as [channel][bucketIndex].
+     * Prefer view() where possible, as this copies everything.
+     */
+    public int[][] snapshotByChannel() {
+        View view = view();
+        int count = view.getBucketCount();
+        int[][] out = new int[channels][count];
+        for (int i = 0; i < count; i++) {
             for (int ch = 0; ch < channels; ch++) {
-                out[ch][i] = bucket[ch];
+                out[ch][i] = view.getPeak(i, ch);
             }
         }
         return out;
@@ -69,8 +143,30 @@ public class WaveformPeaks {
     /**
      * Returns the number of peak buckets currently collected.
      */
-    public synchronized int getBucketCount() {
-        return buckets.size();
+    public int getBucketCount() {
+        return pyramid.levels[0].count;
+    }
+
+    /**
+     * Returns the number of levels in the pyramid, including the base level.
+     */
+    public int getLevelCount() {
+        return view().getLevelCount();
+    }
+
+    /**
+     * Returns the number of buckets at the given pyramid level (level 0 is the base).
+     */
+    public int getBucketCount(int level) {
+        return view().getBucketCount(level);
+    }
+
+    /**
+     * Returns one statistic (STAT_MAX, STAT_MIN or STAT_RMS) of one bucket at the given pyramid level.
+     * At the base level, all three statistics are simply the bucket's peak.
+     */
+    public int getStat(int level, int index, int channel, int stat) {
+        return view().getStat(level, index, channel, stat);
     }
 
     public int getChannels() {
@@ -81,8 +177,27 @@ public class WaveformPeaks {
         return sampleRate;
     }
 
+    /**
+     * Returns the number of audio frames covered by each stored bucket. This starts out
+     * equal to getSourceFramesPerBucket(), but doubles each time we reduce resolution
+     * to stay within our memory budget.
+     */
     public int getFramesPerBucket() {
-        return framesPerBucket;
+        return pyramid.framesPerBucket;
+    }
+
+    /**
+     * Returns the number of audio frames that each bucket given to addBucket() should cover.
+     */
+    public int getSourceFramesPerBucket() {
+        return sourceFramesPerBucket;
+    }
+
+    /**
+     * Returns the approximate number of bytes of peak data currently held.
+     */
+    public long getMemoryBytes() {
+        return pyramid.usedBytes;
     }
 
     /**
@@ -91,15 +206,276 @@ public class WaveformPeaks {
      * This is most useful while background peak generation is still in progress.
      */
     public long getDurationMillisEstimate() {
-        return (long) ((getBucketCount() * (double) framesPerBucket / sampleRate) * 1000d);
+        View view = view();
+        return (long) ((view.getBucketCount() * (double) view.getFramesPerBucket() / sampleRate) * 1000d);
     }
 
     public boolean isComplete() {
         return complete;
     }
 
+    /**
+     * Marks these peaks as complete (or not). Completing also stores any partially merged
+     * trailing bucket, so this should be called from the writer thread.
+     */
     public void setComplete(boolean complete) {
+        if (complete && pendingCount > 0) {
+            flushPending(pyramid);
+        }
         this.complete = complete;
+        if (complete) {
+            preview = null; // we have the real thing now
+        }
+    }
+
+    /**
+     * Sets a coarse, approximate stand-in for these peaks (see Mp3PreviewScanner), to be shown
+     * wherever the real peaks haven't arrived yet. The preview should itself be complete, and
+     * may be at any resolution. It is dropped once these peaks are complete.
+     */
+    public void setPreview(WaveformPeaks preview) {
+        this.preview = complete ? null : preview;
     }
-}
 
+    /**
+     * Returns the preview set with setPreview(), or null if there isn't one (or we're complete).
+     * The preview may be set from another thread than the writer's, and might just lose a race
+     * with setComplete(), so we check for completion here as well.
+     */
+    public WaveformPeaks getPreview() {
+        return complete ? null : preview;
+    }
+
+    private void flushPending(Pyramid current) {
+        current.append(pending);
+        pendingCount = 0;
+
+        // We only merge down on an even bucket count so that no base bucket is left unpaired:
+        if (maxBytes > 0 && current.usedBytes > maxBytes && current.levels[0].count % 2 == 0
+                && current.levels.length > 1) {
+            pyramid = current.mergeDown();
+        }
+    }
+
+    /**
+     * An immutable window over the peaks that had been published when the view was created.
+     */
+    public static final class View {
+        private final Pyramid pyramid;
+        private final short[][][] chunks;
+        private final int[] counts;
+
+        private View(Pyramid pyramid) {
+            this.pyramid = pyramid;
+            Level[] levels = pyramid.levels;
+            this.chunks = new short[levels.length][][];
+            this.counts = new int[levels.length];
+
+            // Read each count before its chunk table, so the table is at least as new as the count:
+            for (int level = 0; level < levels.length; level++) {
+                int count = levels[level].count;
+                counts[level] = level == 0 ? count : Math.min(count, counts[0] >> level);
+                chunks[level] = levels[level].chunks;
+            }
+        }
+
+        public int getBucketCount() {
+            return counts[0];
+        }
+
+        public int getLevelCount() {
+            return counts.length;
+        }
+
+        public int getBucketCount(int level) {
+            return level >= 0 && level < counts.length ? counts[level] : 0;
+        }
+
+        public int getFramesPerBucket() {
+            return pyramid.framesPerBucket;
+        }
+
+        public int getChannels() {
+            return pyramid.channels;
+        }
+
+        /**
+         * Returns the peak of the given base bucket and channel.
+         */
+        public int getPeak(int index, int channel) {
+            return getStat(0, index, channel, STAT_MAX);
+        }
+
+        public int getStat(int level, int index, int channel, int stat) {
+            return pyramid.stat(chunks[level], level, index, channel, stat);
+        }
+
+        /**
+         * Reduces the base buckets in the range [startBucket, endBucket) of the given channel
+         * to max.length evenly sized columns, writing the max, min and RMS of each column into
+         * the given arrays (any of which may be null if not needed). Each column is assembled
+         * from the fewest possible pyramid buckets, so the cost depends on the number of
+         * columns rather than the size of the range.
+         *
+         * @param channel     The channel to read.
+         * @param startBucket The first base bucket to include.
+         * @param endBucket   One past the last base bucket to include.
+         * @param max         Receives the max peak of each column.
+         * @param min         Receives the min peak of each column.
+         * @param rms         Receives the RMS of the peaks in each column.
+         */
+        public void aggregate(int channel, int startBucket, int endBucket, short[] max, short[] min, short[] rms) {
+            int columns = max != null ? max.length : (rms != null ? rms.length : (min != null ? min.length : 0));
+            int ch = Math.max(0, Math.min(channel, pyramid.channels - 1));
+            int start = Math.max(0, startBucket);
+            int end = Math.min(endBucket, counts[0]);
+            double perColumn = (end - start) / (double) Math.max(1, columns);
+            for (int c = 0; c < columns; c++) {
+                int from = start + (int) (c * perColumn);
+                int to = Math.min(end, Math.max(from + 1, start + (int) ((c + 1) * perColumn)));
+                int colMax = 0;
+                int colMin = Short.MAX_VALUE;
+                double sumSquares = 0d;
+                int count = 0;
+
+                // Walk the range greedily using the largest aligned pyramid bucket that fits:
+                int i = from;
+                while (i < to) {
+                    int level = 0;
+                    while (level + 1 < counts.length
+                        && (i & ((1 << (level + 1)) - 1)) == 0
+                        && i + (1 << (level + 1)) <= to
+                        && (i >> (level + 1)) < counts[level + 1]) {
+                        level++;
+                    }
+                    int index = i >> level;
+                    int weight = 1 << level;
+                    colMax = Math.max(colMax, getStat(level, index, ch, STAT_MAX));
+                    colMin = Math.min(colMin, getStat(level, index, ch, STAT_MIN));
+                    double r = getStat(level, index, ch, STAT_RMS);
+                    sumSquares += r * r * weight;
+                    count += weight;
+                    i += weight;
+                }
+
+                if (max != null) {
+                    max[c] = (short) colMax;
+                }
+                if (min != null) {
+                    min[c] = (short) (count == 0 ? 0 : colMin);
+                }
+                if (rms != null) {
+                    rms[c] = (short) (count == 0 ? 0 : Math.round(Math.sqrt(sumSquares / count)));
+                }
+            }
+        }
+    }
+
+    /**
+     * One level of the pyramid: a growable table of fixed-size chunks. Only the writer
+     * thread modifies it, and it publishes each append by writing the volatile count last.
+     */
+    private static final class Level {
+        private final int stride; // shorts per bucket
+        private volatile short[][] chunks = new short[0][];
+        private volatile int count;
+
+        Level(int stride) {
+            this.stride = stride;
+        }
+
+        short[] chunkFor(int index) {
+            int chunk = index >> CHUNK_SHIFT;
+            short[][] table = chunks;
+            if (chunk >= table.length) {
+                table = Arrays.copyOf(table, chunk + 1);
+                table[chunk] = new short[CHUNK_BUCKETS * stride];
+                chunks = table;
+            }
+            return table[chunk];
+        }
+    }
+
+    /**
+     * A complete set of levels at one base resolution.
+     */
+    private static final class Pyramid {
+        private final int channels;
+        private final int framesPerBucket;
+        private volatile Level[] levels;
+        private long usedBytes;
+
+        Pyramid(int channels, int framesPerBucket) {
+            this.channels = channels;
+            this.framesPerBucket = framesPerBucket;
+            this.levels = new Level[]{new Level(channels)};
+        }
+
+        int stat(short[][] table, int level, int index, int channel, int stat) {
+            short[] chunk = table[index >> CHUNK_SHIFT];
+            int offset = (index & CHUNK_MASK) * (level == 0 ? channels : channels * STATS);
+            return level == 0 ? chunk[offset + channel] : chunk[offset + channel * STATS + stat];
+        }
+
+        /**
+         * Appends one base bucket and carries it up through the pyramid.
+         */
+        void append(short[] values) {
+            Level base = levels[0];
+            int index = base.count;
+            short[] chunk = base.chunkFor(index);
+            System.arraycopy(values, 0, chunk, (index & CHUNK_MASK) * channels, channels);
+            usedBytes += channels * 2L;
+            base.count = index + 1;
+
+            // Carry upwards: every time a level completes a pair, its parent gains a bucket.
+            int level = 0;
+            while (levels[level].count % 2 == 0) {
+                if (level + 1 == levels.length) {
+                    Level[] grown = Arrays.copyOf(levels, levels.length + 1);
+                    grown[level + 1] = new Level(channels * STATS);
+                    levels = grown;
+                }
+                Level child = levels[level];
+                Level parent = levels[level + 1];
+                int parentIndex = parent.count;
+                int left = parentIndex * 2;
+                short[][] childTable = child.chunks;
+                short[] parentChunk = parent.chunkFor(parentIndex);
+                int offset = (parentIndex & CHUNK_MASK) * parent.stride;
+                for (int ch = 0; ch < channels; ch++) {
+                    int max = Math.max(stat(childTable, level, left, ch, STAT_MAX),
+                                       stat(childTable, level, left + 1, ch, STAT_MAX));
+                    int min = Math.min(stat(childTable, level, left, ch, STAT_MIN),
+                                       stat(childTable, level, left + 1, ch, STAT_MIN));
+                    double a = stat(childTable, level, left, ch, STAT_RMS);
+                    double b = stat(childTable, level, left + 1, ch, STAT_RMS);
+                    parentChunk[offset + ch * STATS + STAT_MAX] = (short) max;
+                    parentChunk[offset + ch * STATS + STAT_MIN] = (short) min;
+                    parentChunk[offset + ch * STATS + STAT_RMS] = (short) Math.round(Math.sqrt((a * a + b * b) / 2d));
+                }
+                usedBytes += parent.stride * 2L;
+                parent.count = parentIndex + 1;
+                level++;
+            }
+        }
+
+        /**
+         * Returns a new pyramid at half our resolution, whose base is built from our first level's maxes.
+         */
+        Pyramid mergeDown() {
+            Pyramid merged = new Pyramid(channels, framesPerBucket * 2);
+            Level source = levels[1];
+            short[][] table = source.chunks;
+            int count = source.count;
+            short[] values = new short[channels];
+            for (int i = 0; i < count; i++) {
+                for (int ch = 0; ch < channels; ch++) {
+                    values[ch] = (short) stat(table, 1, i, ch, STAT_MAX);
+                }
+                merged.append(values);
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package ca.corbett.musicplayer.audio;
+
+import ca.corbett.extras.audio.WaveformConfig;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Renders waveform images from WaveformPeaks, at exactly the size they'll be displayed at,
+ * and incrementally where possible.
+ * <p>
+ * Each pixel column is reduced straight from the peak pyramid and written directly into
+ * the image's pixel buffer, so there's no intermediate image to scale down, and
+ * no Graphics2D line drawing. The caller asks for an image the size of its display area
+ * (in device pixels), and we re-rasterize only when that size changes.
+ * </p>
+ * <p>
+ * A waveform only ever has four colours in it (background, fill, outline and baseline),
+ * so rather than spending four bytes per pixel on RGB, we render into a 2-bit packed
+ * image whose palette is built from the WaveformConfig colours. That's a sixteenth of
+ * the memory, and since the palette holds the exact colours, it looks identical.
+ * </p>
+ * <p>
+ * While the WaveformBuildThread is still adding peaks, the UI asks for a fresh image
+ * every few hundred milliseconds. Rather than redrawing the whole thing each time,
+ * we keep the image from last time and only draw the columns for buckets that have
+ * arrived since. The image is laid out for the track's expected length up front, so
+ * the waveform fills in from left to right at its final horizontal scale.
+ * </p>
+ * <p>
+ * We fall back to a full render only when the scale changes: a new WaveformConfig
+ * (theme or preferences), a different image size or bucket size, or a column louder than
+ * our current vertical scale allows for. To keep that last case rare, the vertical
+ * scale has some headroom while the build is in progress. Once the peaks are complete,
+ * the image is rendered at exactly the scale a one-shot render would use.
+ * </p>
+ * <p>
+ * If the peaks have a preview (see Mp3PreviewScanner), the columns that the real peaks
+ * haven't reached yet are drawn from the preview, and each real column simply replaces
+ * the preview column underneath it. Preview values are only relative, so once there are
+ * enough real columns to compare against, we re-render once with the preview scaled to
+ * match them.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+final class WaveformRenderer {
+
+    // Palette indexes:
+    private static final int BG = 0;
+    private static final int FILL = 1;
+    private static final int OUTLINE = 2;
+    private static final int BASELINE = 3;
+
+    /**
+     * The number of real columns we want before calibrating the preview against them.
+     */
+    private static final int CALIBRATION_COLUMNS = 16;
+
+    private BufferedImage image;
+    private List<Object> configSignature;
+    private int framesPerBucket;
+    private int layoutBuckets;
+    private int scaleY1;
+    private int scaleY2;
+    private int observedMaxY1;
+    private int observedMaxY2;
+    private int renderedColumns;
+    private int previousSample1;
+    private int previousSample2;
+    private WaveformPeaks renderedPreview;
+    private boolean previewCalibrated;
+    private long fullRenderCount;
+    private long incrementalRenderCount;
+
+    /**
+     * Returns an image of the given peaks at the given size, drawing only what has changed since
+     * the last call if possible. The returned image may be the same instance as last time, with
+     * new columns drawn into it.
+     *
+     * @param peaks           The peaks to render.
+     * @param config          The waveform settings to render with.
+     * @param expectedBuckets The number of buckets we expect once the peaks are complete, or 0 if unknown.
+     * @param width           The width of the image to render, in pixels.
+     * @param height          The height of the image to render, in pixels.
+     * @return A waveform image, or null if there are no peaks yet or the requested size is empty.
+     */
+    synchronized BufferedImage render(WaveformPeaks peaks, WaveformConfig config, int expectedBuckets, int width, int height) {
+        WaveformPeaks.View view = peaks.view();
+        boolean complete = peaks.isComplete();
+        WaveformPeaks previewPeaks = complete ? null : peaks.getPreview();
+        WaveformPeaks.View preview = previewPeaks == null ? null : previewPeaks.view();
+        int bucketCount = view.getBucketCount();
+        if ((bucketCount <= 0 && preview == null) || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        // Make sure our audio channel indexes make sense:
+        int channels = view.getChannels();
+        int topChannelIndex = Math.min(Math.max(config.getTopChannelIndex(), 0), channels - 1);
+        int btmChannelIndex = Math.min(Math.max(config.getBottomChannelIndex(), 0), channels - 1);
+
+        List<Object> signature = signatureOf(config, topChannelIndex, btmChannelIndex);
+        boolean sameLayout = image != null
+            && signature.equals(configSignature)
+            && image.getWidth() == width
+            && image.getHeight() == height
+            && view.getFramesPerBucket() == framesPerBucket
+            && previewPeaks == renderedPreview;
+
+        // Lay out for the expected length while we're still building (with some slack if
+        // the estimate turns out to be short), and for the real length once done:
+        int targetBuckets;
+        if (complete) {
+            targetBuckets = bucketCount;
+        }
+        else {
+            targetBuckets = Math.max(expectedBuckets, sameLayout ? layoutBuckets : 0);
+            if (preview != null) {
+                // The preview covers the whole track, so it knows how long the track is:
+                long previewFrames = (long) preview.getBucketCount() * preview.getFramesPerBucket();
+                targetBuckets = (int) Math.max(targetBuckets, previewFrames / view.getFramesPerBucket());
+            }
+            if (bucketCount > targetBuckets) {
+                targetBuckets = bucketCount + bucketCount / 8;
+            }
+            targetBuckets = Math.max(1, targetBuckets);
+        }
+        int lastColumn = completedColumns(bucketCount, targetBuckets, width);
+        boolean calibrate = preview != null && !previewCalibrated && lastColumn >= CALIBRATION_COLUMNS;
+        boolean fullRender = !sameLayout || targetBuckets != layoutBuckets || calibrate;
+
+        // Reduce any newly completed columns and see whether they fit our vertical scale:
+        int firstColumn = fullRender ? 0 : renderedColumns;
+        short[] columns1 = new short[Math.max(0, lastColumn - firstColumn)];
+        short[] columns2 = new short[columns1.length];
+        reduceColumns(view, topChannelIndex, btmChannelIndex, targetBuckets, width, firstColumn, columns1, columns2);
+        int maxY1 = fullRender ? 0 : observedMaxY1;
+        int maxY2 = fullRender ? 0 : observedMaxY2;
+        for (int i = 0; i < columns1.length; i++) {
+            maxY1 = Math.max(maxY1, columns1[i]);
+            maxY2 = Math.max(maxY2, columns2[i]);
+        }
+        if (!fullRender) {
+            boolean outgrown = maxY1 > scaleY1 || maxY2 > scaleY2;
+            boolean inexact = complete && (maxY1 != scaleY1 || maxY2 != scaleY2);
+            if (outgrown || inexact) {
+                // Start again from column 0 at the new scale:
+                fullRender = true;
+                firstColumn = 0;
+                columns1 = new short[lastColumn];
+                columns2 = new short[lastColumn];
+                reduceColumns(view, topChannelIndex, btmChannelIndex, targetBuckets, width, 0, columns1, columns2);
+            }
+        }
+
+        if (fullRender) {
+            // Fill in whatever the real peaks haven't reached yet from the preview, if we have one:
+            short[] previewColumns1 = new short[0];
+            short[] previewColumns2 = new short[0];
+            int previewMaxY1 = 0;
+            int previewMaxY2 = 0;
+            if (preview != null) {
+                previewColumns1 = new short[width];
+                previewColumns2 = new short[width];
+                reducePreview(preview, topChannelIndex, btmChannelIndex, targetBuckets, view.getFramesPerBucket(), width,
+                              previewColumns1, previewColumns2);
+                previewCalibrated = lastColumn >= CALIBRATION_COLUMNS;
+                double gain = previewCalibrated ? calibrationGain(columns1, columns2, previewColumns1, previewColumns2) : 1d;
+                previewColumns1 = scaleColumns(previewColumns1, lastColumn, gain);
+                previewColumns2 = scaleColumns(previewColumns2, lastColumn, gain);
+                for (int i = 0; i < previewColumns1.length; i++) {
+                    previewMaxY1 = Math.max(previewMaxY1, previewColumns1[i]);
+                    previewMaxY2 = Math.max(previewMaxY2, previewColumns2[i]);
+                }
+            }
+
+            configSignature = signature;
+            framesPerBucket = view.getFramesPerBucket();
+            layoutBuckets = targetBuckets;
+            renderedPreview = previewPeaks;
+            int baseY1 = Math.max(maxY1, previewMaxY1);
+            int baseY2 = Math.max(maxY2, previewMaxY2);
+            scaleY1 = complete ? baseY1 : baseY1 + baseY1 / 4;
+            scaleY2 = complete ? baseY2 : baseY2 + baseY2 / 4;
+            previousSample1 = 0;
+            previousSample2 = 0;
+
+            // A new packed image is all zeros, which is already our background colour:
+            BufferedImage fresh = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, paletteOf(config));
+            drawColumns(fresh, config, columns1, columns2, 0, false);
+            if (previewColumns1.length > 0) {
+                // The next real column should join up with the last real one, not the last preview one:
+                int realSample1 = previousSample1;
+                int realSample2 = previousSample2;
+                drawColumns(fresh, config, previewColumns1, previewColumns2, lastColumn, false);
+                previousSample1 = realSample1;
+                previousSample2 = realSample2;
+            }
+
+            // Swap in the new image only once it's fully drawn, as the old one may be on screen:
+            image = fresh;
+            fullRenderCount++;
+        }
+        else if (columns1.length > 0) {
+            drawColumns(image, config, columns1, columns2, firstColumn, renderedPreview != null);
+            incrementalRenderCount++;
+        }
+
+        observedMaxY1 = maxY1;
+        observedMaxY2 = maxY2;
+        renderedColumns = fullRender ? lastColumn : Math.max(renderedColumns, lastColumn);
+        return image;
+    }
+
+    /**
+     * Discards the current image, so that the next render starts from scratch.
+     */
+    synchronized void invalidate() {
+        image = null;
+        configSignature = null;
+        renderedPreview = null;
+        previewCalibrated = false;
+        renderedColumns = 0;
+    }
+
+    /**
+     * Returns how many times we've had to render the whole image.
+     */
+    synchronized long getFullRenderCount() {
+        return fullRenderCount;
+    }
+
+    /**
+     * Returns how many times we've been able to just add new columns to the existing image.
+     */
+    synchronized long getIncrementalRenderCount() {
+        return incrementalRenderCount;
+    }
+
+    /**
+     * Returns the first bucket covered by the given column.
+     */
+    private static int columnStart(int column, int targetBuckets, int width) {
+        return (int) ((long) column * targetBuckets / width);
+    }
+
+    /**
+     * Returns the number of leading columns whose buckets have all arrived.
+     */
+    private static int completedColumns(int bucketCount, int targetBuckets, int width) {
+        int column = (int) Math.min(width, (long) bucketCount * width / targetBuckets);
+        while (column > 0 && Math.max(columnStart(column, targetBuckets, width),
+                                      columnStart(column - 1, targetBuckets, width) + 1) > bucketCount) {
+            column--;
+        }
+        return column;
+    }
+
+    private static void reduceColumns(WaveformPeaks.View view, int topChannelIndex, int btmChannelIndex,
+                                      int targetBuckets, int width, int firstColumn, short[] columns1, short[] columns2) {
+        short[] rms = new short[1];
+        for (int i = 0; i < columns1.length; i++) {
+            int column = firstColumn + i;
+            int from = columnStart(column, targetBuckets, width);
+            int to = Math.max(from + 1, columnStart(column + 1, targetBuckets, width));
+            view.aggregate(topChannelIndex, from, to, null, null, rms);
+            columns1[i] = rms[0];
+            view.aggregate(btmChannelIndex, from, to, null, null, rms);
+            columns2[i] = rms[0];
+        }
+    }
+
+    /**
+     * Reduces the preview into the given columns, which are laid out for targetBuckets real buckets.
+     * The preview has its own bucket size, so we line the two up by frame position.
+     */
+    private static void reducePreview(WaveformPeaks.View preview, int topChannelIndex, int btmChannelIndex, int targetBuckets,
+                                      int framesPerBucket, int width, short[] columns1, short[] columns2) {
+        int previewChannels = preview.getChannels();
+        int previewBuckets = preview.getBucketCount();
+        long previewFramesPerBucket = preview.getFramesPerBucket();
+        short[] rms = new short[1];
+        for (int column = 0; column < width; column++) {
+            long fromFrame = (long) columnStart(column, targetBuckets, width) * framesPerBucket;
+            long toFrame = (long) columnStart(column + 1, targetBuckets, width) * framesPerBucket;
+            int from = (int) (fromFrame / previewFramesPerBucket);
+            int to = (int) Math.min(previewBuckets, Math.max(from + 1, toFrame / previewFramesPerBucket));
+            if (from >= to) {
+                continue; // past the end of the preview
+            }
+            preview.aggregate(Math.min(topChannelIndex, previewChannels - 1), from, to, null, null, rms);
+            columns1[column] = rms[0];
+            preview.aggregate(Math.min(btmChannelIndex, previewChannels - 1), from, to, null, null, rms);
+            columns2[column] = rms[0];
+        }
+    }
+
+    /**
+     * Returns the factor that brings the preview columns in line with the real columns that overlap them.
+     */
+    private static double calibrationGain(short[] columns1, short[] columns2, short[] previewColumns1, short[] previewColumns2) {
+        long real = 0;
+        long preview = 0;
+        for (int i = 0; i < columns1.length && i < previewColumns1.length; i++) {
+            real += columns1[i] + columns2[i];
+            preview += previewColumns1[i] + previewColumns2[i];
+        }
+        return preview > 0 ? real / (double) preview : 1d;
+    }
+
+    /**
+     * Returns the given columns from firstColumn onward, multiplied by gain.
+     */
+    private static short[] scaleColumns(short[] columns, int firstColumn, double gain) {
+        short[] scaled = new short[Math.max(0, columns.length - firstColumn)];
+        for (int i = 0; i < scaled.length; i++) {
+            scaled[i] = (short) Math.min(Short.MAX_VALUE, Math.round(columns[firstColumn + i] * gain));
+        }
+        return scaled;
+    }
+
+    /**
+     * Writes the given columns straight into the image's pixel buffer, starting at column firstX.
+     * If clear is set, each column is reset to the background first, because there's something
+     * (a preview column) already drawn there.
+     */
+    private void drawColumns(BufferedImage target, WaveformConfig config, short[] columns1, short[] columns2, int firstX,
+                             boolean clear) {
+        byte[] pixels = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel) target.getRaster().getSampleModel()).getScanlineStride();
+        int height = target.getHeight();
+        int outlineThickness = config.isOutlineEnabled() ? config.getOutlineThickness() : 0;
+        int baselineThickness = config.isBaselineEnabled() ? Math.max(1, config.getBaselineThickness() / 2) : -1;
+
+        // The loudest column on each side reaches the edge of the image:
+        double scale = (scaleY1 + scaleY2) > 0 ? height / (double) (scaleY1 + scaleY2) : 0d;
+        int centerY = (scaleY1 + scaleY2) > 0 ? (int) Math.round(scaleY1 * scale) : height / 2;
+
+        for (int i = 0; i < columns1.length; i++) {
+            int x = firstX + i;
+            int sample1 = (int) Math.round(columns1[i] * scale);
+            int sample2 = (int) Math.round(columns2[i] * scale);
+
+            if (clear) {
+                fillColumn(pixels, stride, height, x, 0, height - 1, BG);
+            }
+            fillColumn(pixels, stride, height, x, centerY - sample1, centerY + sample2, FILL);
+
+            if (outlineThickness > 0) {
+                // Join this column's edge to the previous one's:
+                int top = centerY - Math.max(sample1, previousSample1) - (outlineThickness - 1);
+                fillColumn(pixels, stride, height, x, top, centerY - Math.min(sample1, previousSample1), OUTLINE);
+                int bottom = centerY + Math.max(sample2, previousSample2) + (outlineThickness - 1);
+                fillColumn(pixels, stride, height, x, centerY + Math.min(sample2, previousSample2), bottom, OUTLINE);
+            }
+
+            if (baselineThickness >= 0) {
+                fillColumn(pixels, stride, height, x, centerY - baselineThickness, centerY + baselineThickness, BASELINE);
+            }
+
+            previousSample1 = sample1;
+            previousSample2 = sample2;
+        }
+    }
+
+    /**
+     * Sets the pixels of column x from y1 to y2 inclusive (clipped to the image) to the given
+     * palette index. Pixels are packed four to a byte, leftmost pixel in the high bits.
+     */
+    private static void fillColumn(byte[] pixels, int stride, int height, int x, int y1, int y2, int colorIndex) {
+        int from = Math.max(0, y1);
+        int to = Math.min(height - 1, y2);
+        int shift = (3 - (x & 3)) * 2;
+        int clear = ~(0x3 << shift);
+        int set = colorIndex << shift;
+        for (int y = from, index = from * stride + (x >> 2); y <= to; y++, index += stride) {
+            pixels[index] = (byte) ((pixels[index] & clear) | set);
+        }
+    }
+
+    /**
+     * Builds our four-colour palette from the given config.
+     */
+    private static IndexColorModel paletteOf(WaveformConfig config) {
+        Color[] colors = new Color[4];
+        colors[BG] = config.getBgColor();
+        colors[FILL] = config.getFillColor();
+        colors[OUTLINE] = config.getOutlineColor();
+        colors[BASELINE] = config.getBaselineColor();
+        byte[] r = new byte[4];
+        byte[] g = new byte[4];
+        byte[] b = new byte[4];
+        for (int i = 0; i < colors.length; i++) {
+            Color color = colors[i] == null ? Color.BLACK : colors[i];
+            r[i] = (byte) color.getRed();
+            g[i] = (byte) color.getGreen();
+            b[i] = (byte) color.getBlue();
+        }
+        return new IndexColorModel(2, 4, r, g, b);
+    }
+
+    /**
+     * Everything about a WaveformConfig that affects rendering, in a form we can compare.
+     */
+    private static List<Object> signatureOf(WaveformConfig config, int topChannelIndex, int btmChannelIndex) {
+        return Arrays.asList(topChannelIndex,
+                             btmChannelIndex,
+                             config.getBgColor(),
+                             config.getFillColor(),
+                             config.getOutlineColor(),
+                             config.isOutlineEnabled(),
+                             config.getOutlineThickness(),
+                             config.getBaselineColor(),
+                             config.isBaselineEnabled(),
+                             config.getBaselineThickness());
+    }
+}
@@ -1,12 +1,23 @@
 package ca.corbett.musicplayer.ui;
 
 import ca.corbett.extras.MessageUtil;
+import ca.corbett.musicplayer.AppConfig;
+import ca.corbett.musicplayer.audio.AnalysisPipeline;
 import ca.corbett.musicplayer.audio.AudioData;
+import ca.corbett.musicplayer.audio.AudioMetadata;
+import ca.corbett.musicplayer.audio.AudioProbe;
+import ca.corbett.musicplayer.audio.AudioUtil;
+import ca.corbett.musicplayer.audio.Mp3SeekIndex;
 
+import javax.sound.sampled.AudioInputStream;
 import javax.swing.SwingUtilities;
 import java.io.File;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +25,19 @@ import java.util.logging.Logger;
  * Coordinates track load requests so that only the most recent request is allowed
  * to affect the UI. Requests are serialized onto a single background worker and
  * rapid repeated requests are coalesced down to the latest pending file.
+ * <p>
+ * For gapless playback, we also pre-roll the upcoming track: during the last few
+ * seconds of the current track (see AppConfig.getPrerollSeconds()), the next track
+ * is resolved from the Playlist, probed (reusing the Playlist's metadata for it), and
+ * the decoder the probe opened is primed with the first PCM frames. The primed stream
+ * is then queued up on the running PlaybackEngine (see AudioPanel.queueNext()), whose
+ * decoder thread carries straight on into it when the current track runs out, so that
+ * the join is sample-continuous. The UI learns about the change of track afterwards,
+ * via advanceTo(). If the stream can't be queued up (for example because the next
+ * track has a different audio format), the current track finishes as usual, and when
+ * the load request for the next track arrives, the pre-rolled AudioData is used as-is
+ * instead of loading from scratch.
+ * </p>
  *
  * @author scorbo2
  * @since 2026-04-11
@@ -21,6 +45,7 @@ import java.util.logging.Logger;
 public final class AudioLoadCoordinator {
 
     private static final long MIN_WAVEFORM_REFRESH_INTERVAL_MS = 500;
+    private static final long PREROLL_PRIME_MILLIS = 1500;
 
     private static final Logger logger = Logger.getLogger(AudioLoadCoordinator.class.getName());
     private static AudioLoadCoordinator instance;
@@ -35,6 +60,8 @@ public final class AudioLoadCoordinator {
     private volatile long lastWaveformUiRefreshMillis;
     private volatile boolean waveformRefreshQueued;
     private volatile boolean running = true;
+    private final AtomicReference<Preroll> preroll = new AtomicReference<>();
+    private volatile long prerollRequestId;
     private MessageUtil messageUtil;
 
     private AudioLoadCoordinator() {
@@ -58,6 +85,21 @@ public final class AudioLoadCoordinator {
      * @return The request id assigned to this request.
      */
     public long requestLoad(File sourceFile) {
+        return requestLoad(sourceFile, null);
+    }
+
+    /**
+     * Queues a request to load the given track, reusing its metadata instead of reading
+     * it from the file again. If another request is already pending, it is replaced by this one.
+     *
+     * @param metadata The track to load, as held by the Playlist.
+     * @return The request id assigned to this request.
+     */
+    public long requestLoad(AudioMetadata metadata) {
+        return requestLoad(metadata == null ? null : metadata.getSourceFile(), metadata);
+    }
+
+    private long requestLoad(File sourceFile, AudioMetadata metadata) {
         if (sourceFile == null) {
             return latestRequestId.get();
         }
@@ -65,7 +107,7 @@ public final class AudioLoadCoordinator {
         long requestId = requestCounter.incrementAndGet();
         latestRequestId.set(requestId);
         synchronized (requestLock) {
-            pendingRequest = new LoadRequest(requestId, sourceFile);
+            pendingRequest = new LoadRequest(requestId, sourceFile, metadata);
             requestLock.notifyAll();
         }
         return requestId;
@@ -100,9 +142,141 @@ public final class AudioLoadCoordinator {
             requestLock.notifyAll();
         }
         stopWaveformBuild();
+        discardPreroll(preroll.getAndSet(null));
         workerThread.interrupt();
     }
 
+    /**
+     * Invoked by AudioPanel on the EDT as playback of the given request progresses.
+     * Once we get within the pre-roll window at the end of the track, the upcoming
+     * track is resolved from the Playlist (honouring shuffle and repeat) and pre-rolled
+     * on a background thread. This is done at most once per request.
+     *
+     * @param requestId   The request id of the track that is playing.
+     * @param curMillis   The current playback position in milliseconds.
+     * @param totalMillis The total track length in milliseconds.
+     */
+    public void playbackProgressed(long requestId, long curMillis, long totalMillis) {
+        int prerollSeconds = AppConfig.getInstance().getPrerollSeconds();
+        if (!running || prerollSeconds <= 0 || !isCurrentRequest(requestId) || prerollRequestId == requestId) {
+            return;
+        }
+        if (totalMillis - curMillis > prerollSeconds * 1000L) {
+            return;
+        }
+
+        prerollRequestId = requestId;
+        AudioMetadata next = Playlist.getInstance().peekNext();
+        if (next != null && next.getSourceFile() != null) {
+            startPreroll(requestId, next);
+        }
+    }
+
+    /**
+     * Invoked by AudioPanel on the EDT once the playback engine has carried on by itself from
+     * the track of the given previous request into the queued track, which it has given the
+     * given request id. That request becomes the current one, the queued track is selected
+     * in the Playlist, and its waveform build is started.
+     *
+     * @param previousRequestId The request id of the track that was playing before.
+     * @param requestId         The request id of the queued track.
+     * @param audioData         The queued track.
+     * @return false if some other request came along in the meantime, in which case nothing is changed.
+     */
+    public boolean advanceTo(long previousRequestId, long requestId, AudioData audioData) {
+        if (!running || audioData == null || !latestRequestId.compareAndSet(previousRequestId, requestId)) {
+            return false;
+        }
+        Playlist.getInstance().selectNext();
+        Mp3SeekIndex.prefetch(audioData.getSourceFile());
+        startWaveformBuild(requestId, audioData);
+        return true;
+    }
+
+    private void startPreroll(long requestId, AudioMetadata metadata) {
+        File sourceFile = metadata.getSourceFile();
+        Preroll current = preroll.get();
+        if (current != null && current.sourceFile.equals(sourceFile)) {
+            return; // already pre-rolled or in progress
+        }
+
+        CompletableFuture<AudioData> future = new CompletableFuture<>();
+        Preroll started = new Preroll(sourceFile, future);
+        discardPreroll(preroll.getAndSet(started));
+        Thread thread = new Thread(() -> {
+            try {
+                // Prime the stream the probe already opened, rather than opening the file again:
+                AudioData audioData = new AudioData(AudioProbe.probe(sourceFile, metadata));
+                AudioInputStream stream = audioData.takePrimedPlaybackStream();
+                if (stream == null) {
+                    stream = AudioUtil.openPlaybackStream(sourceFile);
+                }
+                audioData.setPrimedPlaybackStream(AudioUtil.primePlaybackStream(stream, PREROLL_PRIME_MILLIS));
+                if (!future.complete(audioData)) {
+                    audioData.discardPrimedPlaybackStream(); // we were discarded while working
+                    return;
+                }
+                SwingUtilities.invokeLater(() -> queuePreroll(requestId, started));
+            }
+            catch (Exception exc) {
+                logger.log(Level.FINE, "Unable to pre-roll {0}: {1}", new Object[]{sourceFile.getName(), exc.getMessage()});
+                future.complete(null);
+            }
+        }, "musicplayer-preroll");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Invoked on the EDT when a pre-roll is ready. If the track that triggered it is still
+     * playing, the pre-rolled track is queued up to follow it on the same playback engine.
+     * Otherwise, the pre-roll is left for processRequests() to pick up.
+     */
+    private void queuePreroll(long requestId, Preroll ready) {
+        AudioData audioData = ready.future.getNow(null);
+        if (!running || audioData == null || preroll.get() != ready || !isCurrentRequest(requestId)) {
+            return;
+        }
+        long nextRequestId = requestCounter.incrementAndGet();
+        if (AudioPanel.getInstance().queueNext(requestId, nextRequestId, audioData)) {
+            preroll.compareAndSet(ready, null); // the playback engine owns the primed stream now
+        }
+    }
+
+    /**
+     * Returns the pre-rolled AudioData for the given file, waiting for the pre-roll to
+     * finish if it is still in progress. Returns null if the given file was not pre-rolled,
+     * in which case any pre-roll for some other file is discarded.
+     */
+    private AudioData takePreroll(File sourceFile) throws InterruptedException {
+        Preroll current = preroll.getAndSet(null);
+        if (current == null) {
+            return null;
+        }
+        if (!current.sourceFile.equals(sourceFile)) {
+            discardPreroll(current);
+            return null;
+        }
+        try {
+            return current.future.get();
+        }
+        catch (ExecutionException | CancellationException exc) {
+            return null;
+        }
+    }
+
+    private void discardPreroll(Preroll discarded) {
+        if (discarded == null) {
+            return;
+        }
+        if (!discarded.future.cancel(false)) {
+            AudioData audioData = discarded.future.getNow(null);
+            if (audioData != null) {
+                audioData.discardPrimedPlaybackStream();
+            }
+        }
+    }
+
     private void processRequests() {
         while (running) {
             LoadRequest request = waitForNextRequest();
@@ -114,22 +288,33 @@ public final class AudioLoadCoordinator {
                 continue;
             }
 
-            AudioLoadThread loader = new AudioLoadThread(request.sourceFile, () -> running && isCurrentRequest(request.requestId));
             try {
-                AudioData audioData = loader.loadAudioData();
-                if (audioData == null || !isCurrentRequest(request.requestId)) {
+                AudioData audioData = takePreroll(request.sourceFile);
+                if (audioData == null) {
+                    AudioLoadThread loader = new AudioLoadThread(request.sourceFile, request.metadata,
+                                                                 () -> running && isCurrentRequest(request.requestId));
+                    audioData = loader.loadAudioData();
+                }
+                if (audioData == null) {
+                    continue;
+                }
+                if (!isCurrentRequest(request.requestId)) {
+                    audioData.discardPrimedPlaybackStream();
                     continue;
                 }
 
-                SwingUtilities.invokeLater(() -> {
-                    if (!isCurrentRequest(request.requestId)) {
-                        return;
-                    }
+                // Get the seek index ready in the background so the first seek or resume is quick:
+                Mp3SeekIndex.prefetch(request.sourceFile);
 
+                final AudioData loadedData = audioData;
+                SwingUtilities.invokeLater(() -> {
                     AudioPanel panel = AudioPanel.getInstance();
-                    if (panel.applyLoadedAudioData(request.requestId, audioData)) {
+                    if (isCurrentRequest(request.requestId) && panel.applyLoadedAudioData(request.requestId, loadedData)) {
                         panel.playRequest(request.requestId);
-                        startWaveformBuild(request.requestId, audioData);
+                        startWaveformBuild(request.requestId, loadedData);
+                    }
+                    else {
+                        loadedData.discardPrimedPlaybackStream();
                     }
                 });
             }
@@ -180,6 +365,12 @@ public final class AudioLoadCoordinator {
             return;
         }
 
+        // If the peaks came out of the cache, there's nothing left to build,
+        // unless there are analyzers that haven't seen this track yet:
+        if (audioData.getWaveformPeaks().isComplete() && !AnalysisPipeline.getInstance().hasRegisteredAnalyzers()) {
+            return;
+        }
+
         waveformRequestId = requestId;
         lastWaveformUiRefreshMillis = 0L;
         waveformRefreshQueued = false;
@@ -187,6 +378,7 @@ public final class AudioLoadCoordinator {
                                                       audioData.getWaveformPeaks(),
                                                       () -> running && isCurrentRequest(requestId) && waveformRequestId == requestId,
                                                       () -> requestWaveformRefresh(requestId, audioData.getWaveformPeaks().isComplete()));
+        waveformBuildThread.setOnAnalysis(audioData::setAnalysis);
         waveformBuildThread.start();
     }
 
@@ -243,9 +435,15 @@ public final class AudioLoadCoordinator {
         });
     }
 
-    private record LoadRequest(long requestId, File sourceFile) {
+    private record LoadRequest(long requestId, File sourceFile, AudioMetadata metadata) {
         private LoadRequest {
             Objects.requireNonNull(sourceFile);
         }
     }
+
+    private record Preroll(File sourceFile, CompletableFuture<AudioData> future) {
+        private Preroll {
+            Objects.requireNonNull(sourceFile);
+        }
+    }
 }
@@ -3,6 +3,8 @@ package ca.corbett.musicplayer.ui;
 import ca.corbett.extras.MessageUtil;
 import ca.corbett.extras.progress.MultiProgressWorker;
 import ca.corbett.musicplayer.audio.AudioData;
+import ca.corbett.musicplayer.audio.AudioMetadata;
+import ca.corbett.musicplayer.audio.AudioProbe;
 
 import java.io.File;
 import java.util.function.BooleanSupplier;
@@ -11,8 +13,9 @@ import java.util.logging.Logger;
 /**
  * A simple worker that performs lightweight track loading for a given file.
  *
- * The current implementation only parses metadata and creates an {@link AudioData}
- * wrapper. Waveform peak extraction is performed later on a separate background
+ * The current implementation only probes the file with {@link AudioProbe} and creates an
+ * {@link AudioData} wrapper, reusing the track's metadata if the caller already has it.
+ * Waveform peak extraction is performed later on a separate background
  * thread managed by {@link AudioLoadCoordinator}.
  *
  * @author scorbo2
@@ -22,6 +25,7 @@ public class AudioLoadThread extends MultiProgressWorker {
 
     private static final Logger logger = Logger.getLogger(AudioLoadThread.class.getName());
     private final File sourceFile;
+    private final AudioMetadata knownMetadata;
     private final BooleanSupplier keepGoing;
     private MessageUtil messageUtil;
 
@@ -30,7 +34,18 @@ public class AudioLoadThread extends MultiProgressWorker {
     }
 
     public AudioLoadThread(File inputFile, BooleanSupplier keepGoing) {
+        this(inputFile, null, keepGoing);
+    }
+
+    /**
+     * @param inputFile     The file to load.
+     * @param knownMetadata Metadata for the file that the caller already has (for example, from
+     *                      the Playlist), so that it doesn't have to be read again. May be null.
+     * @param keepGoing     Checked between steps; the load is cancelled once it returns false.
+     */
+    public AudioLoadThread(File inputFile, AudioMetadata knownMetadata, BooleanSupplier keepGoing) {
         sourceFile = inputFile;
+        this.knownMetadata = knownMetadata;
         this.keepGoing = keepGoing == null ? () -> true : keepGoing;
     }
 
@@ -55,9 +70,15 @@ public class AudioLoadThread extends MultiProgressWorker {
         fireMinorProgressUpdate(1, 0, "Reading track metadata...");
 
         checkCanceled();
-        AudioData audioData = new AudioData(sourceFile);
+        AudioData audioData = new AudioData(AudioProbe.probe(sourceFile, knownMetadata));
         fireMinorProgressUpdate(1, 1, "Preparing waveform generation...");
-        checkCanceled();
+        try {
+            checkCanceled();
+        }
+        catch (InterruptedException e) {
+            audioData.discardPrimedPlaybackStream(); // don't leave the file open
+            throw e;
+        }
         return audioData;
     }
 
@@ -1,22 +1,20 @@
 package ca.corbett.musicplayer.ui;
 
 import ca.corbett.extras.MessageUtil;
-import ca.corbett.extras.audio.PlaybackListener;
-import ca.corbett.extras.audio.PlaybackThread;
-import ca.corbett.extras.image.ImagePanel;
-import ca.corbett.extras.image.ImagePanelConfig;
 import ca.corbett.musicplayer.actions.ReloadUIAction;
 import ca.corbett.musicplayer.audio.AudioData;
 import ca.corbett.musicplayer.audio.AudioUtil;
+import ca.corbett.musicplayer.audio.OutputLinePool;
+import ca.corbett.musicplayer.audio.PlaybackEngine;
 
+import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.LineUnavailableException;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import java.awt.BorderLayout;
-import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
@@ -53,16 +51,19 @@ public class AudioPanel extends JPanel implements UIReloadable {
     }
 
     private AudioData audioData;
-    private PlaybackThread playbackThread;
+    private PlaybackEngine playbackEngine;
     private float playbackPosition; // 0f==start, 1f==end
     private final VisualizationTrackInfo trackInfo;
     private volatile long currentRequestId;
     private volatile long activePlaybackRequestId;
     private volatile long playbackGeneration;
+    private volatile long queuedRequestId;
+    private AudioData queuedAudioData;
 
     private float markPosition;
+    private boolean markMovedWhilePaused;
 
-    private final ImagePanel imagePanel;
+    private final WaveformPanel imagePanel;
     private BufferedImage waveformImage;
     private volatile boolean waveformRefreshInProgress;
     private volatile boolean waveformRefreshPending;
@@ -71,14 +72,7 @@ public class AudioPanel extends JPanel implements UIReloadable {
     private PanelState panelState;
 
     private AudioPanel() {
-        // Create and configure our image panel properties.
-        // These settings are strictly internal and cannot be overridden by clients:
-        ImagePanelConfig imagePanelProperties = ImagePanelConfig.createDefaultProperties();
-        imagePanelProperties.setDisplayMode(ImagePanelConfig.DisplayMode.STRETCH);
-        imagePanelProperties.setEnableMouseDragging(false);
-        imagePanelProperties.setEnableZoomOnMouseClick(false);
-        imagePanelProperties.setEnableZoomOnMouseWheel(false);
-        imagePanel = new ImagePanel((BufferedImage) null, imagePanelProperties);
+        imagePanel = new WaveformPanel();
         imagePanel.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
@@ -95,7 +89,8 @@ public class AudioPanel extends JPanel implements UIReloadable {
         resizeTimer = new Timer(100, new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                redrawWaveform();
+                // The waveform is rendered at the panel's exact size, so a new size means a new image:
+                refreshWaveform();
             }
         });
         resizeTimer.setRepeats(false);
@@ -109,6 +104,7 @@ public class AudioPanel extends JPanel implements UIReloadable {
         currentRequestId = 0L;
         activePlaybackRequestId = 0L;
         playbackGeneration = 0L;
+        queuedRequestId = 0L;
         trackInfo = new VisualizationTrackInfo();
         trackInfo.reset();
         panelListeners = new ArrayList<>();
@@ -137,6 +133,8 @@ public class AudioPanel extends JPanel implements UIReloadable {
      */
     public void setIdleImage(BufferedImage image) {
         imagePanel.setImage(image);
+        imagePanel.setPlaybackPosition(0f);
+        imagePanel.setMarkPosition(0f);
     }
 
     /**
@@ -186,11 +184,55 @@ public class AudioPanel extends JPanel implements UIReloadable {
         play();
     }
 
+    /**
+     * Queues up the given pre-rolled track on the running playback engine, so that it follows
+     * the track of the given request without a gap. This only works while that track is playing,
+     * and if the engine accepts the primed stream of the given track (that is, if it's in the same
+     * audio format). When the engine gets there, the given track becomes the current one, with
+     * the given request id.
+     *
+     * @param requestId     The request id of the track that is currently playing.
+     * @param nextRequestId The request id to use for the queued track, once it starts playing.
+     * @param data          The pre-rolled track to queue up.
+     * @return true if the track was queued up, false if it should be loaded the usual way instead.
+     */
+    public boolean queueNext(long requestId, long nextRequestId, AudioData data) {
+        if (panelState != PanelState.PLAYING || playbackEngine == null || queuedRequestId != 0L
+            || currentRequestId != requestId || activePlaybackRequestId != requestId) {
+            return false;
+        }
+
+        AudioInputStream stream = data.takePrimedPlaybackStream();
+        if (stream == null) {
+            return false;
+        }
+        if (!playbackEngine.queueNext(stream, createPlaybackListener(nextRequestId, playbackGeneration))) {
+            data.setPrimedPlaybackStream(stream);
+            return false;
+        }
+        queuedRequestId = nextRequestId;
+        queuedAudioData = data;
+        return true;
+    }
+
     public void refreshWaveformForRequest(long requestId) {
         if (audioData == null || currentRequestId != requestId || !AudioLoadCoordinator.getInstance().isCurrentRequest(requestId)) {
             return;
         }
 
+        refreshWaveform();
+    }
+
+    /**
+     * Renders the waveform for our current audio data at the current size of the image panel,
+     * on a background thread, and shows it when done. If a refresh is already in progress,
+     * another one is queued up to follow it.
+     */
+    private void refreshWaveform() {
+        if (audioData == null) {
+            return;
+        }
+
         if (waveformRefreshInProgress) {
             waveformRefreshPending = true;
             return;
@@ -199,13 +241,13 @@ public class AudioPanel extends JPanel implements UIReloadable {
         waveformRefreshInProgress = true;
         waveformRefreshPending = false;
         AudioData requestedData = audioData;
+        int width = getWaveformPixelWidth();
+        int height = getWaveformPixelHeight();
         Thread worker = new Thread(() -> {
-            BufferedImage rendered = requestedData.generateWaveformImageSnapshot();
+            BufferedImage rendered = requestedData.getWaveformImage(width, height);
             SwingUtilities.invokeLater(() -> {
                 try {
-                    if (audioData == requestedData
-                        && currentRequestId == requestId
-                        && AudioLoadCoordinator.getInstance().isCurrentRequest(requestId)) {
+                    if (audioData == requestedData) {
                         waveformImage = rendered;
                         redrawWaveform();
                     }
@@ -214,7 +256,7 @@ public class AudioPanel extends JPanel implements UIReloadable {
                     waveformRefreshInProgress = false;
                     if (waveformRefreshPending) {
                         waveformRefreshPending = false;
-                        refreshWaveformForRequest(requestId);
+                        refreshWaveform();
                     }
                 }
             });
@@ -224,9 +266,13 @@ public class AudioPanel extends JPanel implements UIReloadable {
     }
 
     private void setAudioDataInternal(AudioData data) {
-        // If we already had data, make sure we're stopped:
+        // If we already had data, make sure we're stopped. If the previous track already finished
+        // on its own, we're idle, and its tail may still be playing out - leave that alone:
         if (audioData != null || panelState != PanelState.IDLE) {
-            stop(false);
+            stop(false, panelState != PanelState.IDLE);
+            if (audioData != null && audioData != data) {
+                audioData.discardPrimedPlaybackStream();
+            }
             audioData = null;
             trackInfo.reset();
         }
@@ -240,7 +286,35 @@ public class AudioPanel extends JPanel implements UIReloadable {
         }
 
         AudioPanelIdleAnimation.getInstance().stop();
-        waveformImage = data.getWaveformImage();
+        showAudioData(data);
+    }
+
+    /**
+     * Invoked on the EDT once the playback engine has moved on by itself to the track
+     * that was queued up with queueNext(). That track becomes our current one, without
+     * interrupting playback.
+     */
+    private void adoptQueuedTrack(long requestId, long generation) {
+        if (queuedRequestId != requestId || playbackGeneration != generation) {
+            return;
+        }
+        AudioData data = queuedAudioData;
+        long previousRequestId = currentRequestId;
+        queuedAudioData = null;
+        if (!AudioLoadCoordinator.getInstance().advanceTo(previousRequestId, requestId, data)) {
+            queuedRequestId = 0L; // some other request got in first, and will replace us shortly
+            return;
+        }
+
+        // The queued listener is accepted as current from here on:
+        currentRequestId = requestId;
+        activePlaybackRequestId = requestId;
+        queuedRequestId = 0L;
+        showAudioData(data);
+    }
+
+    private void showAudioData(AudioData data) {
+        waveformImage = data.getWaveformImage(getWaveformPixelWidth(), getWaveformPixelHeight());
         audioData = data;
         markPosition = 0f;
         playbackPosition = 0f;
@@ -316,14 +390,14 @@ public class AudioPanel extends JPanel implements UIReloadable {
      * Pauses playing, if playback was in progress, or unpauses it if it was paused.
      * In the paused state, you can also resume by calling play().
      * <p>
-     * Implementation note: if we're playing, all this method really does is update
-     * the markPosition to the latest play position of the playback thread. Then
-     * we stop and delete the playback thread. When we "resume" later, we're really
-     * creating a new playback thread and giving it the markPosition from the last one.
+     * Implementation note: pausing suspends the playback engine rather than stopping it,
+     * so the decoder, stream position and output line all stay put, and resuming
+     * carries on from exactly the next sample with no reload or seek. We also update
+     * the markPosition to the current play position so the waveform shows where we stopped.
      * But while the panel is in the paused state, the user can left click anywhere
      * on our waveform to move the mark position somewhere else. In that case, we
-     * will "resume" from that mark position and not from the last play position
-     * of the previous thread. This is a deliberate choice on my part as I find
+     * will "resume" from that mark position instead, by starting a new playback engine
+     * there. This is a deliberate choice on my part as I find
      * it to be the least surprising behaviour. Basically we always want to "resume"
      * from the mark position, whether it was explicitly set by the user or
      * calculated by us when the pause button was hit.
@@ -343,6 +417,20 @@ public class AudioPanel extends JPanel implements UIReloadable {
 
         // If we were already paused, treat this as "resume":
         if (panelState == PanelState.PAUSED) {
+            // If the mark wasn't moved, just pick up exactly where the engine left off:
+            if (playbackEngine != null && playbackEngine.isPaused() && !markMovedWhilePaused) {
+                panelState = PanelState.PLAYING;
+                playbackEngine.resume();
+                fireStateChangedEvent();
+                return;
+            }
+
+            // Otherwise, start over from the new mark position:
+            if (playbackEngine != null) {
+                playbackGeneration++;
+                playbackEngine.stop();
+                playbackEngine = null;
+            }
             long startOffset = positionToMillis(markPosition);
             internalPlay(currentRequestId, startOffset);
             return;
@@ -351,11 +439,9 @@ public class AudioPanel extends JPanel implements UIReloadable {
         // If we were playing, treat this as a "pause":
         if (panelState == PanelState.PLAYING) {
             panelState = PanelState.PAUSED;
-            playbackGeneration++;
-            activePlaybackRequestId = 0L;
-            playbackThread.stop();
-            markPosition = millisToPosition(playbackThread.getCurrentOffset(), durationMillis);
-            playbackThread = null;
+            markMovedWhilePaused = false;
+            playbackEngine.pause();
+            markPosition = millisToPosition(playbackEngine.getCurrentOffset(), durationMillis);
             redrawWaveform();
         }
     }
@@ -370,12 +456,25 @@ public class AudioPanel extends JPanel implements UIReloadable {
     }
 
     private void stop(boolean cancelPendingLoads) {
+        stop(cancelPendingLoads, true);
+    }
+
+    /**
+     * Stops playing, optionally leaving the output line running so that the tail end of a track
+     * that finished on its own can play out (and be followed seamlessly by the next track).
+     */
+    private void stop(boolean cancelPendingLoads, boolean silenceOutput) {
         panelState = PanelState.IDLE;
         playbackGeneration++;
         activePlaybackRequestId = 0L;
-        if (playbackThread != null) {
-            playbackThread.stop();
-            playbackThread = null;
+        queuedRequestId = 0L;
+        queuedAudioData = null; // the engine closes the queued stream when it stops
+        if (playbackEngine != null) {
+            playbackEngine.stop();
+            playbackEngine = null;
+        }
+        if (silenceOutput) {
+            OutputLinePool.getInstance().silence();
         }
 
         if (cancelPendingLoads) {
@@ -447,7 +546,8 @@ public class AudioPanel extends JPanel implements UIReloadable {
         // Keep it in range:
         playbackPosition = (pos < 0f) ? 0 : Math.min(pos, 1f);
 
-        redrawWaveform();
+        // Only the playhead moves, so there's no need to touch the waveform layer:
+        imagePanel.setPlaybackPosition(playbackPosition);
     }
 
     /**
@@ -472,7 +572,7 @@ public class AudioPanel extends JPanel implements UIReloadable {
             return;
         }
 
-        waveformImage = audioData.regenerateWaveformImage(); // force redraw
+        waveformImage = audioData.regenerateWaveformImage(getWaveformPixelWidth(), getWaveformPixelHeight());
         redrawWaveform();
     }
 
@@ -484,34 +584,34 @@ public class AudioPanel extends JPanel implements UIReloadable {
         // If we have no waveform image, we're done here:
         if (waveformImage == null || audioData == null) {
             imagePanel.setImage(null);
+            imagePanel.setPlaybackPosition(0f);
+            imagePanel.setMarkPosition(0f);
             return;
         }
 
-        BufferedImage buf = new BufferedImage(imagePanel.getWidth(),
-                imagePanel.getHeight(),
-                BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = (Graphics2D) buf.createGraphics();
-        graphics.drawImage(waveformImage, 0, 0, buf.getWidth(), buf.getHeight(), null);
+        imagePanel.setImage(waveformImage);
+        imagePanel.setPlaybackPosition(playbackPosition);
+        imagePanel.setMarkPosition(markPosition);
+    }
 
-        // Add the playback position if not at the extreme edges:
-        if (playbackPosition > 0.01f && playbackPosition < 0.99f) {
-            int x = (int) (buf.getWidth() * playbackPosition);
-            graphics.setColor(Color.RED);
-            graphics.setXORMode(Color.GREEN);
-            graphics.drawLine(x, 0, x, buf.getHeight());
-            graphics.drawLine(x + 1, 0, x + 1, buf.getHeight());
-        }
+    /**
+     * Returns the width of the image panel in device pixels, which may be more than
+     * its width in user space on a HiDPI display.
+     */
+    private int getWaveformPixelWidth() {
+        return (int) Math.ceil(imagePanel.getWidth() * getDisplayScale());
+    }
 
-        // Draw the marker position if any:
-        if (markPosition > 0f) {
-            int x = (int) (imagePanel.getWidth() * markPosition);
-            graphics.setColor(Color.BLACK);
-            graphics.setXORMode(Color.WHITE);
-            graphics.drawLine(x, 0, x, imagePanel.getHeight());
-        }
+    /**
+     * Returns the height of the image panel in device pixels.
+     */
+    private int getWaveformPixelHeight() {
+        return (int) Math.ceil(imagePanel.getHeight() * getDisplayScale());
+    }
 
-        graphics.dispose();
-        imagePanel.setImage(buf);
+    private double getDisplayScale() {
+        GraphicsConfiguration graphicsConfig = imagePanel.getGraphicsConfiguration();
+        return graphicsConfig == null ? 1d : Math.max(1d, graphicsConfig.getDefaultTransform().getScaleX());
     }
 
     private void handleImagePanelClick(MouseEvent e) {
@@ -530,10 +630,13 @@ public class AudioPanel extends JPanel implements UIReloadable {
         // If it was a left click, set the new mark point:
         if (e.getButton() == MouseEvent.BUTTON1) {
             markPosition = e.getX() / (float) imagePanel.getWidth();
+            if (panelState == PanelState.PAUSED) {
+                markMovedWhilePaused = true;
+            }
         }
 
-        // Redraw with these settings:
-        redrawWaveform();
+        // Only the mark moves, so there's no need to touch the waveform layer:
+        imagePanel.setMarkPosition(markPosition);
     }
 
     /**
@@ -570,27 +673,44 @@ public class AudioPanel extends JPanel implements UIReloadable {
             panelState = PanelState.PLAYING;
             long generation = ++playbackGeneration;
             activePlaybackRequestId = requestId;
-            playbackThread = AudioUtil.play(audioData, startOffset, createPlaybackListener(requestId, generation));
+            queuedRequestId = 0L;
+            queuedAudioData = null;
+            playbackEngine = AudioUtil.play(audioData, startOffset, createPlaybackListener(requestId, generation));
             fireStateChangedEvent();
         } catch (IOException | LineUnavailableException exc) {
             getMessageUtil().error("Playback error", "Problem playing audio: " + exc.getMessage(), exc);
-            playbackThread = null;
+            playbackEngine = null;
             panelState = PanelState.IDLE;
             fireStateChangedEvent();
         }
     }
 
-    private PlaybackListener createPlaybackListener(long requestId, long generation) {
-        return new PlaybackListener() {
+    private PlaybackEngine.Listener createPlaybackListener(long requestId, long generation) {
+        return new PlaybackEngine.Listener() {
             @Override
             public void started() {
+                // If we're the queued track, the engine has just moved on to us:
+                if (requestId == queuedRequestId) {
+                    SwingUtilities.invokeLater(() -> adoptQueuedTrack(requestId, generation));
+                }
             }
 
             @Override
-            public void stopped(PlaybackThread.StopReason stopReason) {
+            public void stopped(PlaybackEngine.StopReason stopReason) {
                 runIfCurrentOnEdt(requestId, generation, () -> {
-                    // If we stopped because we ran out of audio data, hit next()
-                    if (panelState == PanelState.PLAYING && stopReason != PlaybackThread.StopReason.INTERRUPTED) {
+                    // If the engine carried on into the queued track, there's nothing to do here,
+                    // that track's own started() notification takes care of the handover.
+                    // If we stopped because we ran out of audio data, move on to the next track.
+                    // On a clean finish, the output line is still playing out our tail, so we
+                    // leave it alone and let the next track pick it up from there:
+                    if (stopReason == PlaybackEngine.StopReason.CONTINUED) {
+                        return;
+                    }
+                    if (panelState == PanelState.PLAYING && stopReason == PlaybackEngine.StopReason.FINISHED) {
+                        stop(true, false);
+                        Playlist.getInstance().loadNext();
+                    }
+                    else if (panelState == PanelState.PLAYING && stopReason != PlaybackEngine.StopReason.INTERRUPTED) {
                         next();
                     }
                 });
@@ -598,6 +718,10 @@ public class AudioPanel extends JPanel implements UIReloadable {
 
             @Override
             public boolean updateProgress(long curMillis, long totalMillis) {
+                // A queued track may report progress before the EDT has caught up with the handover:
+                if (isQueuedPlayback(requestId, generation)) {
+                    return true;
+                }
                 if (!isCurrentPlayback(requestId, generation) || audioData == null) {
                     return false;
                 }
@@ -611,6 +735,7 @@ public class AudioPanel extends JPanel implements UIReloadable {
                     trackInfo.setCurrentTimeSeconds((int) (curMillis / 1000));
                     trackInfo.setTotalTimeSeconds(audioData.getDurationSeconds());
                     VisualizationWindow.getInstance().setTrackInfo(trackInfo);
+                    AudioLoadCoordinator.getInstance().playbackProgressed(requestId, curMillis, safeTotal);
                 });
                 return true;
             }
@@ -662,6 +787,10 @@ public class AudioPanel extends JPanel implements UIReloadable {
             && currentRequestId == requestId;
     }
 
+    private boolean isQueuedPlayback(long requestId, long generation) {
+        return queuedRequestId == requestId && playbackGeneration == generation;
+    }
+
     private MessageUtil getMessageUtil() {
         if (messageUtil == null) {
             messageUtil = new MessageUtil(this, logger);
@@ -2,7 +2,6 @@ package ca.corbett.musicplayer.ui;
 
 import ca.corbett.extras.MessageUtil;
 import ca.corbett.extras.SingleInstanceManager;
-import ca.corbett.extras.audio.PlaybackThread;
 import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.io.KeyStrokeManager;
 import ca.corbett.extras.logging.LogConsole;
@@ -26,6 +25,9 @@ import ca.corbett.musicplayer.actions.SettingsAction;
 import ca.corbett.musicplayer.actions.StopAction;
 import ca.corbett.musicplayer.audio.AudioMetadata;
 import ca.corbett.musicplayer.audio.AudioUtil;
+import ca.corbett.musicplayer.audio.OutputLinePool;
+import ca.corbett.musicplayer.audio.PlaybackEngine;
+import ca.corbett.musicplayer.audio.PlaylistUtil;
 import ca.corbett.musicplayer.extensions.MusicPlayerExtensionManager;
 import ca.corbett.updates.UpdateManager;
 import ca.corbett.updates.UpdateSources;
@@ -52,6 +54,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -116,7 +119,7 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
     public void setVisible(boolean visible) {
         super.setVisible(visible);
         if (visible) {
-            PlaybackThread.setUpdateIntervalMs(250); // let's go slightly faster than default
+            PlaybackEngine.setUpdateIntervalMs(250); // let's go slightly faster than default
             MusicPlayerExtensionManager.getInstance().activateAll();
             loadWindowState();
             AudioPanelIdleAnimation.getInstance().go();
@@ -235,17 +238,8 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
                         @SuppressWarnings("unchecked")
                         List<File> files = (List<File>)transferable.getTransferData(DataFlavor.javaFileListFlavor);
 
-                        for (File file : files) {
-                            if (AudioUtil.isValidAudioFile(file)) {
-                                Playlist.getInstance().addItem(file);
-                            }
-                            else if (AudioUtil.isValidPlaylist(file)) {
-                                Playlist.getInstance().appendPlaylist(file);
-                            }
-                        }
-
-                        revalidate();
-                        repaint();
+                        // Expand any playlists first, so the whole drop goes into the list in one go:
+                        Playlist.getInstance().addItems(PlaylistUtil.resolveTracks(files));
                         dtde.dropComplete(true);
                     }
                     catch (UnsupportedFlavorException | IOException e) {
@@ -289,7 +283,8 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
         // Current list size will be the selection index of the first added item:
         int firstAddedIndex = Playlist.getInstance().getItemCount();
 
-        // Add all given tracks:
+        // Gather up all given tracks, so they can be added to the playlist in one go:
+        List<File> tracks = new ArrayList<>();
         boolean addedAtLeastOne = false;
         for (String arg : args) {
             // Strip wrapping single quotes if present:
@@ -301,12 +296,12 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
             // Now we can process the argument as usual:
             File candidate = new File(arg);
             if (AudioUtil.isValidAudioFile(candidate)) {
-                Playlist.getInstance().addItem(candidate);
+                tracks.add(candidate);
                 logger.info("Added file from startup argument: " + arg);
                 addedAtLeastOne = true;
             }
             else if (AudioUtil.isValidPlaylist(candidate)) {
-                Playlist.getInstance().appendPlaylist(candidate);
+                tracks.addAll(PlaylistUtil.loadPlaylist(candidate));
                 addedAtLeastOne = true;
                 logger.info("Added playlist from startup argument: " + arg);
             }
@@ -319,6 +314,7 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
         if (!addedAtLeastOne) {
             return;
         }
+        Playlist.getInstance().addItems(tracks);
 
         // Otherwise, select and start playing the first added item:
         // Arbitrary decision: if we were already playing something, interrupt it and play the new stuff.
@@ -363,6 +359,7 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
         MainWindow.getInstance().keyStrokeManager.dispose();
         new StopAction().actionPerformed(null);
         AudioLoadCoordinator.getInstance().shutdown();
+        OutputLinePool.getInstance().closeAll();
         try {
             // If we're already on the UI thread, we can just stop fullscreen mode directly:
             if (SwingUtilities.isEventDispatchThread()) {
@@ -525,12 +522,14 @@ public class MainWindow extends JFrame implements UIReloadable, AudioPanelListen
 
     /**
      * Called when an audio clip is loaded into the AudioPanel.
-     * We update the window title to show the formatted track metadata.
+     * We update the window title to show the formatted track metadata, and let the
+     * background indexer know that it should work outwards from the new track.
      */
     @Override
     public void audioLoaded(AudioPanel sourcePanel, VisualizationTrackInfo trackInfo) {
         currentMetadata = sourcePanel.getAudioData() != null ? sourcePanel.getAudioData().getMetadata() : null;
         updateTitleFromAudioData(sourcePanel);
+        Playlist.getInstance().refreshBackgroundIndexer();
     }
 
     /**
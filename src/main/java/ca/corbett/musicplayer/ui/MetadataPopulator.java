@@ -0,0 +1,179 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.audio.AudioMetadata;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the real metadata for placeholder playlist rows on a small pool of worker threads,
+ * so that adding thousands of tracks to the Playlist doesn't freeze the UI while jaudiotagger
+ * opens every one of them.
+ * <p>
+ * Placeholders are queued in the order they were added, but any that are currently visible
+ * in the playlist can be moved to the front of the line with prioritize(). As results come
+ * in, they are handed to the publisher in batches on the UI thread: while one batch is
+ * waiting to be published, any further results are added to it rather than scheduling
+ * another, so the UI gets one update per batch instead of one per track.
+ * </p>
+ * <p>
+ * Placeholders are tracked by identity, not by equals(), since the same file can appear
+ * in a playlist more than once.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class MetadataPopulator {
+
+    private static final Logger logger = Logger.getLogger(MetadataPopulator.class.getName());
+
+    private final int maxWorkers;
+    private final Function<File, AudioMetadata> reader;
+    private final Consumer<Map<AudioMetadata, AudioMetadata>> publisher;
+    private final Executor uiExecutor;
+
+    private final Deque<AudioMetadata> queue = new ArrayDeque<>();
+    private final Deque<AudioMetadata> priorityQueue = new ArrayDeque<>();
+    private final Set<AudioMetadata> waiting = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Map<AudioMetadata, AudioMetadata> completed = new IdentityHashMap<>();
+    private int activeWorkers;
+    private int workerCounter;
+
+    /**
+     * @param maxWorkers The most worker threads to run at once.
+     * @param reader     Reads the real metadata for a file. Called from worker threads.
+     * @param publisher  Given each batch of results, as a map of placeholder to real metadata.
+     * @param uiExecutor Runs the publisher. Normally SwingUtilities::invokeLater.
+     */
+    public MetadataPopulator(int maxWorkers, Function<File, AudioMetadata> reader,
+                             Consumer<Map<AudioMetadata, AudioMetadata>> publisher, Executor uiExecutor) {
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.reader = reader;
+        this.publisher = publisher;
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Queues the given placeholders to have their real metadata read. Anything that isn't a
+     * placeholder, or doesn't have a source file, is ignored.
+     */
+    public synchronized void enqueue(List<AudioMetadata> placeholders) {
+        for (AudioMetadata meta : placeholders) {
+            if (meta != null && meta.isPlaceholder() && meta.getSourceFile() != null && waiting.add(meta)) {
+                queue.addLast(meta);
+            }
+        }
+        startWorkers();
+    }
+
+    /**
+     * Moves the given placeholders (typically, the ones currently visible) to the front of the
+     * line, replacing whatever was given to the previous call. Placeholders that aren't queued are ignored.
+     */
+    public synchronized void prioritize(List<AudioMetadata> placeholders) {
+        priorityQueue.clear();
+        for (AudioMetadata meta : placeholders) {
+            if (waiting.contains(meta)) {
+                priorityQueue.addLast(meta);
+            }
+        }
+    }
+
+    /**
+     * Forgets everything that hasn't been started yet. Work already in progress will still be
+     * published, and the publisher should ignore any placeholders that are no longer around.
+     */
+    public synchronized void cancelPending() {
+        queue.clear();
+        priorityQueue.clear();
+        waiting.clear();
+    }
+
+    /**
+     * Reports how many placeholders are still waiting to be read.
+     */
+    public synchronized int getPendingCount() {
+        return waiting.size();
+    }
+
+    private void startWorkers() {
+        while (activeWorkers < maxWorkers && activeWorkers < waiting.size()) {
+            Thread worker = new Thread(this::workLoop, "musicplayer-metadata-populator-" + workerCounter++);
+            worker.setDaemon(true);
+            activeWorkers++;
+            worker.start();
+        }
+    }
+
+    private void workLoop() {
+        AudioMetadata placeholder;
+        while ((placeholder = next()) != null) {
+            AudioMetadata real;
+            try {
+                real = reader.apply(placeholder.getSourceFile());
+            }
+            catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to read metadata for " + placeholder.getSourceFile(), e);
+                continue;
+            }
+            if (real != null) {
+                publish(placeholder, real);
+            }
+        }
+    }
+
+    /**
+     * Returns the next placeholder to work on, visible ones first, or null if this worker should exit.
+     */
+    private synchronized AudioMetadata next() {
+        while (true) {
+            AudioMetadata meta = priorityQueue.pollFirst();
+            if (meta == null) {
+                meta = queue.pollFirst();
+            }
+            if (meta == null) {
+                activeWorkers--;
+                return null;
+            }
+
+            // Prioritized entries are still in the regular queue too, so may have been done already:
+            if (waiting.remove(meta)) {
+                return meta;
+            }
+        }
+    }
+
+    private void publish(AudioMetadata placeholder, AudioMetadata real) {
+        boolean schedule;
+        synchronized (this) {
+            schedule = completed.isEmpty();
+            completed.put(placeholder, real);
+        }
+        if (schedule) {
+            uiExecutor.execute(this::flushCompleted);
+        }
+    }
+
+    private void flushCompleted() {
+        Map<AudioMetadata, AudioMetadata> batch;
+        synchronized (this) {
+            batch = completed;
+            completed = new IdentityHashMap<>();
+        }
+        if (!batch.isEmpty()) {
+            publisher.accept(batch);
+        }
+    }
+}
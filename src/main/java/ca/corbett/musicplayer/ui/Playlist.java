@@ -7,10 +7,8 @@ import ca.corbett.musicplayer.actions.PlaylistSortAction;
 import ca.corbett.musicplayer.actions.ReloadUIAction;
 import ca.corbett.musicplayer.audio.AudioData;
 import ca.corbett.musicplayer.audio.AudioMetadata;
-import ca.corbett.musicplayer.audio.AudioUtil;
 import ca.corbett.musicplayer.audio.PlaylistUtil;
 
-import javax.swing.DefaultListModel;
 import javax.swing.DropMode;
 import javax.swing.JButton;
 import javax.swing.JComponent;
@@ -19,8 +17,13 @@ import javax.swing.JList;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.TransferHandler;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
@@ -33,9 +36,14 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -49,7 +57,14 @@ import java.util.logging.Logger;
  *     The formatting of the list items is handled by PlaylistCellRenderer,
  *     and is user-configurable via the playlist item format setting in
  *     the application preferences. The default format is "[artist] - title (01:23)"
- *     but this can be changed in AppConfig.
+ *     but this can be changed in AppConfig. The list has a fixed cell size, so that
+ *     Swing only ever has to deal with the rows that are on screen, and each row's
+ *     formatted text is cached by the PlaylistModel until the row or the format changes.
+ * </p>
+ * <p>
+ *     Tracks are kept in a PlaylistModel, which stores them column by column rather than
+ *     as AudioMetadata objects, so that very large playlists stay small in memory. The
+ *     AudioMetadata you get from it is built on request, so rows are tracked by row id.
  * </p>
  *
  * @author scorbo
@@ -62,7 +77,31 @@ public class Playlist extends JPanel implements UIReloadable {
     private MessageUtil messageUtil;
     private final JPanel buttonPanel;
     private final JList<AudioMetadata> fileList;
-    private final DefaultListModel<AudioMetadata> fileListModel;
+    private final PlaylistModel fileListModel;
+
+    // Remembers a shuffle pick made by peekNext() so that loadNext() agrees with it (as row ids):
+    private int pendingShuffleTrack = PlaylistModel.NO_ROW;
+    private int pendingShuffleFrom = PlaylistModel.NO_ROW;
+
+    /**
+     * Playlist edits tend to come in bursts (loading a saved playlist adds tracks one at a time),
+     * so we wait for things to settle before telling the background indexer about them.
+     */
+    private static final int INDEXER_REFRESH_DELAY_MS = 500;
+    private final Timer indexerRefreshTimer;
+
+    // Reads real metadata for rows that were added as placeholders. Reading is mostly waiting
+    // on the disk (or the network), so we can afford a few more threads than we have cores:
+    private static final int METADATA_WORKERS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    private final MetadataPopulator metadataPopulator;
+
+    // The list's cells start out this wide, and grow as wider rows are displayed:
+    private static final int MIN_CELL_WIDTH = 1;
+
+    // The placeholders we've handed to the MetadataPopulator, by row id and the other way around.
+    // Our model doesn't keep AudioMetadata instances around, so these are the only references to them:
+    private final Map<Integer, AudioMetadata> pendingPlaceholders = new HashMap<>();
+    private final Map<AudioMetadata, Integer> pendingPlaceholderRows = new IdentityHashMap<>();
 
     public enum SortAttribute {
         Genre("%g"),
@@ -96,9 +135,12 @@ public class Playlist extends JPanel implements UIReloadable {
         buttonPanel = new JPanel();
         buttonPanel.setLayout(new GridBagLayout());
 
-        fileListModel = new DefaultListModel<>();
+        metadataPopulator = new MetadataPopulator(METADATA_WORKERS, AudioMetadata::fromFile,
+                                                  this::replacePlaceholders, SwingUtilities::invokeLater);
+        fileListModel = new PlaylistModel();
         fileList = new JList<>(fileListModel);
         fileList.setCellRenderer(new PlaylistCellRenderer());
+        resetCellSize();
         fileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         fileList.addMouseListener(new DoubleClickListener());
 
@@ -110,6 +152,25 @@ public class Playlist extends JPanel implements UIReloadable {
         initComponents();
         ReloadUIAction.getInstance().registerReloadable(this);
         AudioMetadata.addChangeListener(this::metadataChanged);
+
+        indexerRefreshTimer = new Timer(INDEXER_REFRESH_DELAY_MS, e -> updateBackgroundIndexer());
+        indexerRefreshTimer.setRepeats(false);
+        fileListModel.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                refreshBackgroundIndexer();
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                refreshBackgroundIndexer();
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                refreshBackgroundIndexer();
+            }
+        });
     }
 
     public static Playlist getInstance() {
@@ -130,7 +191,47 @@ public class Playlist extends JPanel implements UIReloadable {
      * @param file Any File.
      */
     public void addItem(File file) {
-        addItem(AudioMetadata.fromFile(file));
+        addItems(List.of(file));
+    }
+
+    /**
+     * Adds the given files to the end of the list. Each one is shown straight away with
+     * whatever we can guess from its file name, and its real metadata is filled in
+     * in the background.
+     */
+    public void addItems(List<File> files) {
+        insertItemsAt(files, fileListModel.getSize());
+    }
+
+    /**
+     * Inserts the given files into the list, starting at the given index. As with addItems(),
+     * real metadata is filled in in the background.
+     *
+     * @return The count of items actually inserted into the list.
+     */
+    public int insertItemsAt(List<File> files, int index) {
+        if (files.isEmpty()) {
+            return 0;
+        }
+        List<AudioMetadata> placeholders = createPlaceholders(files);
+        int start = Math.max(0, Math.min(index, fileListModel.getSize()));
+        fileListModel.insertAll(start, placeholders);
+        populatePlaceholders(placeholders, start);
+        return placeholders.size();
+    }
+
+    /**
+     * Replaces the entire contents of the list with the given files, as a single change to our
+     * model rather than a clear followed by an add. As with addItems(), real metadata is filled
+     * in in the background.
+     */
+    public void setItems(List<File> files) {
+        cancelPendingPlaceholders();
+        fileList.clearSelection();
+        List<AudioMetadata> placeholders = createPlaceholders(files);
+        fileListModel.replaceAll(placeholders);
+        resetCellSize();
+        populatePlaceholders(placeholders, 0);
     }
 
     /**
@@ -141,9 +242,7 @@ public class Playlist extends JPanel implements UIReloadable {
      * realizing it until you try to actually play it.
      */
     public void addItem(AudioMetadata meta) {
-        fileListModel.addElement(meta);
-        revalidate();
-        repaint();
+        fileListModel.addAll(List.of(meta));
     }
 
     /**
@@ -155,7 +254,7 @@ public class Playlist extends JPanel implements UIReloadable {
      * realizing it until you try to actually play it.
      */
     public void insertItemAt(File file, int index) {
-        insertItemAt(AudioMetadata.fromFile(file), index);
+        insertItemsAt(List.of(file), index);
     }
 
     /**
@@ -167,9 +266,7 @@ public class Playlist extends JPanel implements UIReloadable {
      * realizing it until you try to actually play it.
      */
     public void insertItemAt(AudioMetadata meta, int index) {
-        fileListModel.add(index, meta);
-        revalidate();
-        repaint();
+        fileListModel.insertAll(index, List.of(meta));
     }
 
     /**
@@ -195,10 +292,7 @@ public class Playlist extends JPanel implements UIReloadable {
                 AudioPanel.getInstance().setAudioData(null);
             }
 
-            fileListModel.removeElementAt(fileList.getSelectedIndex());
-
-            revalidate();
-            repaint();
+            fileListModel.remove(fileList.getSelectedIndex());
         }
     }
 
@@ -206,17 +300,18 @@ public class Playlist extends JPanel implements UIReloadable {
      * Reports the number of items currently in the playlist.
      */
     public int getItemCount() {
-        return fileListModel.size();
+        return fileListModel.getSize();
     }
 
     /**
-     * Returns the AudioMetadata object at the given index in the playlist.
+     * Returns the AudioMetadata object at the given index in the playlist. This is built fresh
+     * from our PlaylistModel on each call, so don't count on getting the same instance twice.
      */
     public AudioMetadata getItemAt(int index) {
-        if (index < 0 || index >= fileListModel.size()) {
+        if (index < 0 || index >= fileListModel.getSize()) {
             return null;
         }
-        return fileListModel.get(index);
+        return fileListModel.getElementAt(index);
     }
 
     /**
@@ -227,9 +322,9 @@ public class Playlist extends JPanel implements UIReloadable {
      * be unloaded from the audio panel automatically.
      */
     public void clear() {
+        cancelPendingPlaceholders();
         fileListModel.clear();
-        revalidate();
-        repaint();
+        resetCellSize();
 
         // Arbitrary decision: stop and unload any loaded track:
         AudioPanel.getInstance().stop();
@@ -240,17 +335,12 @@ public class Playlist extends JPanel implements UIReloadable {
      * Programmatically reverses the sort order of the current playlist.
      */
     public void reverseSort() {
-        List<AudioMetadata> metas = new ArrayList<>();
-        for (int i = 0; i < fileListModel.size(); i++) {
-            metas.add(fileListModel.get(i));
+        int size = fileListModel.getSize();
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = size - 1 - i;
         }
-        fileListModel.clear();
-        for (int i = metas.size() - 1; i >= 0; i--) {
-            fileListModel.addElement(metas.get(i));
-        }
-
-        revalidate();
-        repaint();
+        fileListModel.permute(order);
     }
 
     /**
@@ -260,19 +350,17 @@ public class Playlist extends JPanel implements UIReloadable {
         if (sortKeys == null || sortKeys.isEmpty()) {
             return;
         }
-        List<AudioMetadata> metas = new ArrayList<>();
-        for (int i = 0; i < fileListModel.size(); i++) {
-            metas.add(fileListModel.get(i));
+        // Sort row indexes straight off the model's columns, rather than building every AudioMetadata:
+        Integer[] rows = new Integer[fileListModel.getSize()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
         }
-        sortList(metas, sortKeys);
-
-        fileListModel.clear();
-        for (AudioMetadata meta : metas) {
-            fileListModel.addElement(meta);
+        Arrays.sort(rows, (a, b) -> compareRows(a, b, sortKeys));
+        int[] order = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            order[i] = rows[i];
         }
-
-        revalidate();
-        repaint();
+        fileListModel.permute(order);
     }
 
     /**
@@ -313,16 +401,7 @@ public class Playlist extends JPanel implements UIReloadable {
         if (audioData == null || audioData.getMetadata() == null || audioData.getMetadata().getSourceFile() == null) {
             return -1;
         }
-        String sourcePath = audioData.getMetadata().getSourceFile().getAbsolutePath();
-        for (int i = 0; i < fileListModel.size(); i++) {
-            AudioMetadata meta = fileListModel.get(i);
-            if (meta != null
-                && meta.getSourceFile() != null
-                && sourcePath.equals(meta.getSourceFile().getAbsolutePath())) {
-                return i;
-            }
-        }
-        return -1;
+        return fileListModel.indexOfFile(audioData.getMetadata().getSourceFile(), 0);
     }
 
     /**
@@ -341,8 +420,55 @@ public class Playlist extends JPanel implements UIReloadable {
      * </p>
      */
     public void loadNext() {
+        if (selectNext()) {
+            loadSelected();
+        }
+    }
+
+    /**
+     * Moves the selection on to the track that loadNext() would pick, without loading it.
+     * This is for when that track is already playing, because AudioLoadCoordinator had
+     * queued it up to follow the previous one without a gap.
+     *
+     * @return false if there is no next track, true otherwise.
+     */
+    public boolean selectNext() {
+        int index = resolveNextIndex();
+        if (index == -1) {
+            return false; // empty list, or we hit the end and repeat is off
+        }
+
+        // The shuffle pick (if any) has now been used up:
+        pendingShuffleTrack = PlaylistModel.NO_ROW;
+        pendingShuffleFrom = PlaylistModel.NO_ROW;
+
+        // Select whatever we landed on:
+        fileList.setSelectedIndex(index);
+        fileList.ensureIndexIsVisible(index);
+        return true;
+    }
+
+    /**
+     * Reports which track loadNext() would pick if it were invoked right now, without
+     * changing the selection or loading anything. Shuffle and repeat are honoured. In the
+     * case of shuffle, the random pick made here is remembered, so that the next call to
+     * loadNext() will land on the same track (this is what allows AudioLoadCoordinator
+     * to pre-roll the upcoming track before the current one ends).
+     *
+     * @return The AudioMetadata of the upcoming track, or null if there isn't one.
+     */
+    public AudioMetadata peekNext() {
+        int index = resolveNextIndex();
+        return index == -1 ? null : fileListModel.getElementAt(index);
+    }
+
+    /**
+     * Invoked internally to figure out the index of the "next" track, as described
+     * in loadNext(). Returns -1 if there is no next track.
+     */
+    private int resolveNextIndex() {
         if (fileListModel.isEmpty()) {
-            return;
+            return -1;
         }
 
         // Make note of whatever is currently selected:
@@ -357,26 +483,32 @@ public class Playlist extends JPanel implements UIReloadable {
 
         // If "shuffle" is enabled, pick something at random:
         if (AppConfig.getInstance().isShuffleEnabled()) {
-            index = getRandomSelectionIndex();
+            // If we already made a pick from this same starting point, stick with it:
+            int from = index == -1 ? PlaylistModel.NO_ROW : fileListModel.getRowId(index);
+            if (pendingShuffleTrack != PlaylistModel.NO_ROW && pendingShuffleFrom == from) {
+                int pendingIndex = fileListModel.indexOfRowId(pendingShuffleTrack);
+                if (pendingIndex != -1) {
+                    return pendingIndex;
+                }
+            }
+            int newIndex = getRandomSelectionIndex();
+            pendingShuffleTrack = fileListModel.getRowId(newIndex);
+            pendingShuffleFrom = from;
+            return newIndex;
         }
 
         // Otherwise, go sequentially:
-        else {
-            index++;
-            boolean isRepeat = AppConfig.getInstance().isRepeatEnabled();
+        index++;
+        boolean isRepeat = AppConfig.getInstance().isRepeatEnabled();
 
-            // Did we hit the end of the list?
-            if (index >= fileListModel.size()) {
-                if (!isRepeat) {
-                    return; // we're done here.
-                }
-                index = 0;
+        // Did we hit the end of the list?
+        if (index >= fileListModel.getSize()) {
+            if (!isRepeat) {
+                return -1; // we're done here.
             }
+            index = 0;
         }
-
-        // Select whatever we landed on and return it:
-        fileList.setSelectedIndex(index);
-        loadSelected();
+        return index;
     }
 
     /**
@@ -417,7 +549,7 @@ public class Playlist extends JPanel implements UIReloadable {
                 if (!isRepeat) {
                     return; // we're done here.
                 }
-                index = fileListModel.size() - 1;
+                index = fileListModel.getSize() - 1;
             }
         }
 
@@ -440,13 +572,9 @@ public class Playlist extends JPanel implements UIReloadable {
             return;
         }
 
-        fileListModel.clear();
-        // Convert to metadata objects
-        for (File f : newTracks) {
-            fileListModel.addElement(AudioMetadata.fromFile(f));
-        }
-        revalidate();
-        repaint();
+        setItems(newTracks);
+        logger.log(Level.INFO, "Loaded {0} tracks; the playlist is using about {1} KiB of memory",
+                   new Object[]{fileListModel.getSize(), fileListModel.estimateHeapBytes() / 1024});
         AudioPanel.getInstance().next();
     }
 
@@ -454,12 +582,7 @@ public class Playlist extends JPanel implements UIReloadable {
      * Appends the contents of the given playlist to the end of the current playlist.
      */
     public void appendPlaylist(File playlistFile) {
-        List<File> loaded = PlaylistUtil.loadPlaylist(playlistFile);
-        for (File f : loaded) {
-            fileListModel.addElement(AudioMetadata.fromFile(f));
-        }
-        revalidate();
-        repaint();
+        addItems(PlaylistUtil.loadPlaylist(playlistFile));
     }
 
     /**
@@ -468,17 +591,7 @@ public class Playlist extends JPanel implements UIReloadable {
      * @return The count of items actually inserted into the list.
      */
     public int insertPlaylistAt(File playlistFile, int index) {
-        int count = 0;
-        List<File> loaded = PlaylistUtil.loadPlaylist(playlistFile);
-        for (File f : loaded) {
-            AudioMetadata meta = AudioMetadata.fromFile(f);
-            fileListModel.add(index, meta);
-            index++;
-            count++;
-        }
-        revalidate();
-        repaint();
-        return count;
+        return insertItemsAt(PlaylistUtil.loadPlaylist(playlistFile), index);
     }
 
     /**
@@ -487,7 +600,7 @@ public class Playlist extends JPanel implements UIReloadable {
      * This will stop and unload any track that is currently playing.
      */
     public void selectAndPlay(int index) {
-        if (index < 0 || index >= fileListModel.size()) {
+        if (index < 0 || index >= fileListModel.getSize()) {
             return;
         }
 
@@ -519,10 +632,10 @@ public class Playlist extends JPanel implements UIReloadable {
      */
     public void savePlaylist(File targetFile) {
         List<File> list = new ArrayList<>();
-        for (int i = 0; i < fileListModel.size(); i++) {
-            AudioMetadata meta = fileListModel.get(i);
-            if (meta != null && meta.getSourceFile() != null) {
-                list.add(meta.getSourceFile());
+        for (int i = 0; i < fileListModel.getSize(); i++) {
+            File file = fileListModel.getSourceFile(i);
+            if (file != null) {
+                list.add(file);
             }
         }
 
@@ -588,7 +701,7 @@ public class Playlist extends JPanel implements UIReloadable {
             return;
         }
 
-        AudioLoadCoordinator.getInstance().requestLoad(selected);
+        AudioLoadCoordinator.getInstance().requestLoad(selectedMeta);
     }
 
     protected void initComponents() {
@@ -605,6 +718,7 @@ public class Playlist extends JPanel implements UIReloadable {
     @Override
     public void reloadUI() {
         rebuildControls();
+        resetCellSize();
         fileList.invalidate();
         fileList.revalidate();
         fileList.repaint();
@@ -685,14 +799,14 @@ public class Playlist extends JPanel implements UIReloadable {
         }
         int index = fileList.getSelectedIndex();
         Random rand = new Random(System.currentTimeMillis());
-        int newIndex = rand.nextInt(fileListModel.size());
+        int newIndex = rand.nextInt(fileListModel.getSize());
 
         // Try to avoid returning the same thing that was already selected:
-        if (fileListModel.size() > 1) {
+        if (fileListModel.getSize() > 1) {
             while (newIndex == index) {
                 // According to math theory, this might loop infinitely.
                 // But in practice, it'll eventually stop.
-                newIndex = rand.nextInt(fileListModel.size());
+                newIndex = rand.nextInt(fileListModel.getSize());
             }
         }
         return newIndex;
@@ -702,6 +816,7 @@ public class Playlist extends JPanel implements UIReloadable {
         JPanel panel = new JPanel();
         panel.setLayout(new BorderLayout());
         JScrollPane scrollPane = new JScrollPane(fileList);
+        scrollPane.getViewport().addChangeListener(e -> prioritizeVisibleRows());
         scrollPane.getVerticalScrollBar().setBlockIncrement(32);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         panel.add(scrollPane, BorderLayout.CENTER);
@@ -709,13 +824,118 @@ public class Playlist extends JPanel implements UIReloadable {
         return panel;
     }
 
+    /**
+     * Swaps each placeholder in the given batch for its real metadata. Placeholders that have
+     * since been removed from the list are ignored. Called on the EDT by our MetadataPopulator.
+     */
+    private void replacePlaceholders(Map<AudioMetadata, AudioMetadata> batch) {
+        Map<Integer, AudioMetadata> byRow = new HashMap<>();
+        for (Map.Entry<AudioMetadata, AudioMetadata> entry : batch.entrySet()) {
+            Integer rowId = pendingPlaceholderRows.remove(entry.getKey());
+            if (rowId != null) {
+                pendingPlaceholders.remove(rowId);
+                byRow.put(rowId, entry.getValue());
+            }
+        }
+        fileListModel.setAll(byRow);
+    }
+
+    /**
+     * Fixes the list's row height to whatever our renderer needs. Without a fixed cell size,
+     * Swing runs every row in the list through the renderer to measure it whenever the list
+     * changes. The width starts out narrow, and the renderer widens it as wider rows are shown.
+     */
+    private void resetCellSize() {
+        fileList.setFixedCellHeight(-1); // so the renderer won't try to widen anything while we measure
+        Component prototype = fileList.getCellRenderer().getListCellRendererComponent(fileList, null, -1, false, false);
+        fileList.setFixedCellWidth(MIN_CELL_WIDTH);
+        fileList.setFixedCellHeight(prototype.getPreferredSize().height);
+    }
+
+    private static List<AudioMetadata> createPlaceholders(List<File> files) {
+        List<AudioMetadata> placeholders = new ArrayList<>(files.size());
+        for (File file : files) {
+            placeholders.add(AudioMetadata.placeholder(file));
+        }
+        return placeholders;
+    }
+
+    /**
+     * Remembers which rows the given placeholders went into, starting at the given index,
+     * and hands them to the MetadataPopulator to be filled in.
+     */
+    private void populatePlaceholders(List<AudioMetadata> placeholders, int start) {
+        for (int i = 0; i < placeholders.size(); i++) {
+            int rowId = fileListModel.getRowId(start + i);
+            pendingPlaceholders.put(rowId, placeholders.get(i));
+            pendingPlaceholderRows.put(placeholders.get(i), rowId);
+        }
+        metadataPopulator.enqueue(placeholders);
+        prioritizeVisibleRows();
+    }
+
+    /**
+     * Tells the MetadataPopulator to forget whatever it hasn't started on, and forgets our
+     * own record of those placeholders, ahead of the list being cleared.
+     */
+    private void cancelPendingPlaceholders() {
+        metadataPopulator.cancelPending();
+        pendingPlaceholders.clear();
+        pendingPlaceholderRows.clear();
+    }
+
+    /**
+     * Asks the MetadataPopulator to fill in whichever placeholder rows are on screen first.
+     */
+    private void prioritizeVisibleRows() {
+        if (metadataPopulator.getPendingCount() == 0) {
+            return;
+        }
+        int first = fileList.getFirstVisibleIndex();
+        int last = fileList.getLastVisibleIndex();
+        if (first < 0) {
+            // Not laid out yet, so assume we're looking at the top of the list:
+            first = 0;
+            last = Math.min(fileListModel.getSize(), 50) - 1;
+        }
+        List<AudioMetadata> visible = new ArrayList<>();
+        for (int i = first; i <= last && i < fileListModel.getSize(); i++) {
+            AudioMetadata placeholder = pendingPlaceholders.get(fileListModel.getRowId(i));
+            if (placeholder != null) {
+                visible.add(placeholder);
+            }
+        }
+        metadataPopulator.prioritize(visible);
+    }
+
+    /**
+     * Lets the PlaylistIndexer know (shortly) that the playlist or the current track has changed,
+     * so that it can work outwards from the current track through whatever is in the list now.
+     */
+    public void refreshBackgroundIndexer() {
+        indexerRefreshTimer.restart();
+    }
+
+    private void updateBackgroundIndexer() {
+        List<File> files = new ArrayList<>(fileListModel.getSize());
+        for (int i = 0; i < fileListModel.getSize(); i++) {
+            files.add(fileListModel.getSourceFile(i));
+        }
+        PlaylistIndexer.getInstance().setPlaylist(files, getIndexOfCurrentlyPlayingTrack());
+    }
+
     private void metadataChanged(AudioMetadata metadata) {
-        // This is a bit of a hack to trigger a repaint of the playlist when metadata changes.
-        // We have to do this because the metadata objects are mutable and can change after
-        // they've been added to the playlist, and the playlist needs to update itself when
-        // that happens. The AudioMetadata class will broadcast a change event whenever its
-        // data changes, so we can listen for those events and trigger a repaint of the
-        // playlist when they occur.
+        // The AudioMetadata class will broadcast a change event whenever a track's tags are saved.
+        // Our model doesn't hold on to AudioMetadata instances (whoever edited the track was working
+        // on a copy), so copy the new values into every row for that file:
+        File file = metadata.getSourceFile();
+        if (file != null) {
+            Map<Integer, AudioMetadata> byRow = new HashMap<>();
+            for (int i = fileListModel.indexOfFile(file, 0); i != -1; i = fileListModel.indexOfFile(file, i + 1)) {
+                byRow.put(fileListModel.getRowId(i), metadata);
+            }
+            fileListModel.setAll(byRow);
+        }
         fileList.repaint();
     }
 
@@ -726,6 +946,10 @@ public class Playlist extends JPanel implements UIReloadable {
 
         private static final DataFlavor AUDIO_METADATA_FLAVOR = new DataFlavor(AudioMetadata.class, "AudioMetadata");
 
+        // The row being dragged, if this is an internal reorder. We can't find it again from the
+        // transferred AudioMetadata, since the model hands out a new instance for every lookup:
+        private int draggedRowId = PlaylistModel.NO_ROW;
+
         @Override
         public int getSourceActions(JComponent c) {
             return COPY_OR_MOVE;
@@ -739,6 +963,7 @@ public class Playlist extends JPanel implements UIReloadable {
             if (selectedValue == null) {
                 return null;
             }
+            draggedRowId = ((PlaylistModel)list.getModel()).getRowId(list.getSelectedIndex());
             return new AudioMetadataTransferable(selectedValue);
         }
 
@@ -775,16 +1000,8 @@ public class Playlist extends JPanel implements UIReloadable {
                     List<File> files = (List<File>)support.getTransferable()
                                                           .getTransferData(DataFlavor.javaFileListFlavor);
 
-                    for (File file : files) {
-                        if (AudioUtil.isValidAudioFile(file)) {
-                            Playlist.getInstance().insertItemAt(file, dropIndex);
-                            dropIndex++; // Increment drop index for next insert
-                        }
-                        else if (AudioUtil.isValidPlaylist(file)) {
-                            int countInserted = Playlist.getInstance().insertPlaylistAt(file, dropIndex);
-                            dropIndex += countInserted; // Increment drop index for next insert
-                        }
-                    }
+                    // Expand any playlists first, so the whole drop goes in at the drop location in one go:
+                    Playlist.getInstance().insertItemsAt(PlaylistUtil.resolveTracks(files), dropIndex);
 
                     return true;
                 }
@@ -796,36 +1013,27 @@ public class Playlist extends JPanel implements UIReloadable {
 
             // Handle internal playlist reordering:
             try {
-                AudioMetadata metadata = (AudioMetadata)support.getTransferable()
-                                                               .getTransferData(AUDIO_METADATA_FLAVOR);
+                // Make sure this really is one of ours before going any further:
+                support.getTransferable().getTransferData(AUDIO_METADATA_FLAVOR);
 
                 @SuppressWarnings("unchecked")
                 JList<AudioMetadata> list = (JList<AudioMetadata>)support.getComponent();
-                DefaultListModel<AudioMetadata> model = (DefaultListModel<AudioMetadata>)list.getModel();
+                PlaylistModel model = (PlaylistModel)list.getModel();
 
                 // Find the current index of the item being dragged
-                int sourceIndex = -1;
-                for (int i = 0; i < model.getSize(); i++) {
-                    if (model.getElementAt(i) == metadata) {
-                        sourceIndex = i;
-                        break;
-                    }
-                }
-
+                int sourceIndex = model.indexOfRowId(draggedRowId);
+                draggedRowId = PlaylistModel.NO_ROW;
                 if (sourceIndex == -1) {
                     return false;
                 }
 
-                // Remove from old position
-                model.remove(sourceIndex);
-
-                // Adjust drop index if necessary (if we removed an item before the drop location)
+                // Adjust drop index if necessary (if the item comes out from before the drop location)
                 if (sourceIndex < dropIndex) {
                     dropIndex--;
                 }
 
-                // Insert at new position
-                model.add(dropIndex, metadata);
+                // Move it to its new position
+                model.move(sourceIndex, dropIndex);
 
                 // Select the moved item
                 list.setSelectedIndex(dropIndex);
@@ -880,26 +1088,25 @@ public class Playlist extends JPanel implements UIReloadable {
         }
     }
 
-    protected void sortList(List<AudioMetadata> toSort, List<SortKey> sortKeys) {
-        if (toSort == null || sortKeys == null || toSort.isEmpty() || sortKeys.isEmpty()) {
-            return;
-        }
-        toSort.sort((a, b) -> {
-            for (SortKey sortKey : sortKeys) {
-                int comparison = switch (sortKey.attribute) {
-                    case Genre -> compareStrings(a.getGenre(), b.getGenre());
-                    case Artist -> compareStrings(a.getAuthor(), b.getAuthor());
-                    case Album -> compareStrings(a.getAlbum(), b.getAlbum());
-                    case Title -> compareStrings(a.getTitle(), b.getTitle());
-                    case TrackNumber -> Integer.compare(a.getTrackNumber(), b.getTrackNumber());
-                    case FilePath -> compareFilePaths(a.getSourceFile(), b.getSourceFile());
-                };
-                if (comparison != 0) {
-                    return sortKey.isAscending ? comparison : -comparison;
-                }
+    /**
+     * Compares two rows of our model by the given sort keys, in order, reading the values straight
+     * off the model's columns. Strings and file paths are compared ignoring case, with nulls first.
+     */
+    private int compareRows(int a, int b, List<SortKey> sortKeys) {
+        for (SortKey sortKey : sortKeys) {
+            int comparison = switch (sortKey.attribute) {
+                case Genre -> compareStrings(fileListModel.getGenre(a), fileListModel.getGenre(b));
+                case Artist -> compareStrings(fileListModel.getArtist(a), fileListModel.getArtist(b));
+                case Album -> compareStrings(fileListModel.getAlbum(a), fileListModel.getAlbum(b));
+                case Title -> compareStrings(fileListModel.getTitle(a), fileListModel.getTitle(b));
+                case TrackNumber -> Integer.compare(fileListModel.getTrackNumber(a), fileListModel.getTrackNumber(b));
+                case FilePath -> compareFilePaths(fileListModel.getSourceFile(a), fileListModel.getSourceFile(b));
+            };
+            if (comparison != 0) {
+                return sortKey.isAscending ? comparison : -comparison;
             }
-            return 0;
-        });
+        }
+        return 0;
     }
 
     private static int compareStrings(String a, String b) {
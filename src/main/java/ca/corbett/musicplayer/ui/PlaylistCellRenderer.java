@@ -6,9 +6,22 @@ import ca.corbett.musicplayer.audio.AudioMetadata;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.ListCellRenderer;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 import java.awt.Component;
 
+/**
+ * Renders each playlist entry using the playlist format string from AppConfig.
+ * <p>
+ * When the list is backed by a PlaylistModel, the formatted text comes from the model's
+ * display string cache instead of being worked out again on every paint. And when the list
+ * has a fixed cell size (see Playlist), we widen it as we come across rows that are wider
+ * than it, so that the horizontal scrollbar still works without Swing having to measure
+ * every row in the list up front.
+ * </p>
+ *
+ * @author scorbo2
+ */
 public class PlaylistCellRenderer extends JLabel implements ListCellRenderer<AudioMetadata> {
 
     private static final int DEFAULT_MARGIN = 4;
@@ -31,14 +44,37 @@ public class PlaylistCellRenderer extends JLabel implements ListCellRenderer<Aud
         }
         setOpaque(true);
 
+        if (list.getModel() instanceof PlaylistModel model && index >= 0 && index < model.getSize()) {
+            setText(model.getDisplayString(index, AppConfig.getInstance().getPlaylistFormatString()));
+        }
+
         // Defensive: value might be null in some edge cases
-        if (value == null) {
+        else if (value == null) {
             setText("(unknown)");
         }
         else {
             setText(value.getFormatted());
         }
 
+        if (list.getFixedCellHeight() != -1) {
+            growFixedCellWidth(list, getPreferredSize().width);
+        }
+
         return this;
     }
+
+    /**
+     * We're usually called in the middle of a paint, which is no time to be changing the
+     * list's layout, so the new width is applied afterwards.
+     */
+    private static void growFixedCellWidth(JList<?> list, int width) {
+        if (width <= list.getFixedCellWidth()) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (width > list.getFixedCellWidth()) {
+                list.setFixedCellWidth(width);
+            }
+        });
+    }
 }
@@ -0,0 +1,325 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.AppConfig;
+import ca.corbett.musicplayer.audio.AudioData;
+import ca.corbett.musicplayer.audio.WaveformPeakCache;
+import ca.corbett.musicplayer.audio.WaveformPeaks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Works through the playlist in the background, building waveform peaks for every track
+ * that isn't already in the WaveformPeakCache, so that by the time a track is played its
+ * waveform (and its exact duration, which AudioData works out from complete peaks) is
+ * available immediately. Any registered analyzers run in the same decode pass, and their
+ * results go to the AnalysisPipeline's listeners.
+ * <p>
+ * Tracks are visited nearest-to-current first: the next track, then the previous one, then
+ * the one after next, and so on. Each call to setPlaylist() replaces the queue, and any
+ * track in progress that is no longer in the playlist is abandoned. The currently playing
+ * track is skipped, because AudioPanel is already building that one.
+ * </p>
+ * <p>
+ * We only go as far out from the current track as the cache can hold (less some slack, since
+ * its capacity is only an estimate), so a playlist bigger than the cache doesn't have us
+ * building tracks that evict each other forever. Tracks in that window that are already
+ * cached are marked as used, so the cache evicts tracks outside it first. If the cache is
+ * disabled, there's nowhere to put what we build, so we don't build anything.
+ * </p>
+ * <p>
+ * Workers run at minimum priority, one track per worker, and we never use more workers than
+ * the configured number of cores (zero disables this entirely). Work is paused while the
+ * visualizer is running or while the machine is on battery power, if so configured. A track
+ * that is interrupted by a pause is picked up again from the start when we resume.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class PlaylistIndexer {
+
+    private static final Logger logger = Logger.getLogger(PlaylistIndexer.class.getName());
+
+    /**
+     * How often a paused worker checks whether it can carry on.
+     */
+    private static final long PAUSE_POLL_MILLIS = 2000;
+
+    /**
+     * Power supply state is read from the filesystem, so we don't check it on every buffer.
+     */
+    private static final long POWER_CHECK_MILLIS = 10000;
+
+    private static final File POWER_SUPPLY_DIR = new File("/sys/class/power_supply");
+
+    /**
+     * The share of the cache's estimated capacity that we'll fill, in percent.
+     */
+    private static final int CACHE_WINDOW_PERCENT = 75;
+
+    private static PlaylistIndexer instance;
+    private static long lastPowerCheck;
+    private static boolean onBattery;
+
+    /**
+     * Builds and caches the peaks for a single track.
+     */
+    interface TrackBuilder {
+        /**
+         * @return true if the track was finished, or false if keepGoing said to stop.
+         */
+        boolean build(File file, BooleanSupplier keepGoing) throws IOException;
+    }
+
+    private final IntSupplier maxWorkers;
+    private final IntSupplier cacheCapacity;
+    private final BooleanSupplier paused;
+    private final Predicate<File> alreadyIndexed;
+    private final TrackBuilder builder;
+
+    private final Deque<File> queue = new ArrayDeque<>();
+    private final Set<File> inProgress = new HashSet<>();
+    private final Set<File> failed = new HashSet<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile Set<File> wanted = Set.of();
+
+    PlaylistIndexer(IntSupplier maxWorkers, IntSupplier cacheCapacity, BooleanSupplier paused,
+                    Predicate<File> alreadyIndexed, TrackBuilder builder) {
+        this.maxWorkers = maxWorkers;
+        this.cacheCapacity = cacheCapacity;
+        this.paused = paused;
+        this.alreadyIndexed = alreadyIndexed;
+        this.builder = builder;
+    }
+
+    public static synchronized PlaylistIndexer getInstance() {
+        if (instance == null) {
+            instance = new PlaylistIndexer(() -> AppConfig.getInstance().getBackgroundIndexerCores(),
+                                           () -> WaveformPeakCache.getInstance().estimateCapacity(),
+                                           PlaylistIndexer::shouldPause,
+                                           file -> WaveformPeakCache.getInstance().touch(file),
+                                           PlaylistIndexer::buildTrack);
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces whatever we were working on with the given playlist.
+     *
+     * @param files        The tracks in the playlist, in playlist order.
+     * @param currentIndex The index of the currently playing track, or -1 if there isn't one.
+     */
+    public synchronized void setPlaylist(List<File> files, int currentIndex) {
+        int windowSize = (int) (cacheCapacity.getAsInt() * (long) CACHE_WINDOW_PERCENT / 100);
+        Set<File> newWanted = new HashSet<>();
+        queue.clear();
+        for (int index : visitOrder(files.size(), currentIndex)) {
+            if (newWanted.size() >= windowSize) {
+                break;
+            }
+            File file = files.get(index);
+            if (file != null && !failed.contains(file) && newWanted.add(file)) {
+                queue.addLast(file);
+            }
+        }
+        wanted = newWanted;
+        ensureWorkers();
+        notifyAll();
+    }
+
+    /**
+     * Returns the order in which to visit a playlist of the given size: nearest to the current
+     * track first, favouring the next track over the previous one. The current track itself is
+     * not included. If there is no current track, we just go from the top.
+     */
+    static int[] visitOrder(int size, int current) {
+        if (current < 0 || current >= size) {
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+
+        int[] order = new int[size - 1];
+        int count = 0;
+        for (int distance = 1; count < order.length; distance++) {
+            if (current + distance < size) {
+                order[count++] = current + distance;
+            }
+            if (current - distance >= 0) {
+                order[count++] = current - distance;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Starts a worker in every free slot within our budget, if there's anything to do.
+     */
+    private synchronized void ensureWorkers() {
+        int allowed = maxWorkers.getAsInt();
+        while (workers.size() < allowed) {
+            workers.add(null);
+        }
+        for (int slot = 0; slot < allowed && !queue.isEmpty(); slot++) {
+            if (workers.get(slot) == null) {
+                int workerSlot = slot;
+                Thread worker = new Thread(() -> workLoop(workerSlot), "musicplayer-playlist-indexer-" + slot);
+                worker.setDaemon(true);
+                worker.setPriority(Thread.MIN_PRIORITY);
+                workers.set(slot, worker);
+                worker.start();
+            }
+        }
+    }
+
+    private void workLoop(int slot) {
+        try {
+            File file;
+            while ((file = nextFile(slot)) != null) {
+                indexTrack(file, slot);
+            }
+        }
+        catch (InterruptedException e) {
+            synchronized (this) {
+                workers.set(slot, null);
+            }
+        }
+    }
+
+    private void indexTrack(File file, int slot) {
+        boolean finished = false;
+        try {
+            if (alreadyIndexed.test(file)) {
+                finished = true;
+                return;
+            }
+            long start = System.currentTimeMillis();
+            finished = builder.build(file, () -> wanted.contains(file) && withinBudget(slot));
+            if (finished) {
+                logger.log(Level.FINE, "Indexed {0} in the background in {1}ms",
+                           new Object[]{file.getName(), System.currentTimeMillis() - start});
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "Unable to index {0} in the background: {1}",
+                       new Object[]{file.getName(), e.getMessage()});
+            synchronized (this) {
+                failed.add(file);
+            }
+            finished = true;
+        }
+        finally {
+            synchronized (this) {
+                inProgress.remove(file);
+
+                // If we were only stopped by a pause or a smaller budget, try again later:
+                if (!finished && wanted.contains(file) && !withinBudget(slot) && !queue.contains(file)) {
+                    queue.addFirst(file);
+                }
+                ensureWorkers();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next track for the given worker slot, or returns null if that worker
+     * should exit, because we've run out of work or the budget no longer includes it.
+     */
+    private synchronized File nextFile(int slot) throws InterruptedException {
+        while (true) {
+            if (slot >= maxWorkers.getAsInt() || queue.isEmpty()) {
+                workers.set(slot, null);
+                return null;
+            }
+            if (paused.getAsBoolean()) {
+                wait(PAUSE_POLL_MILLIS);
+                continue;
+            }
+            File file = queue.pollFirst();
+            if (wanted.contains(file) && inProgress.add(file)) {
+                return file;
+            }
+        }
+    }
+
+    private boolean withinBudget(int slot) {
+        return slot < maxWorkers.getAsInt() && !paused.getAsBoolean();
+    }
+
+    private static boolean buildTrack(File file, BooleanSupplier keepGoing) throws IOException {
+        WaveformPeaks peaks = AudioData.createWaveformPeaks(file);
+        WaveformBuildThread buildThread = new WaveformBuildThread(file, peaks, keepGoing, null, 1);
+        buildThread.setPreviewEnabled(false);
+
+        // We don't start this thread, we just borrow its decoder, which runs here on our own worker:
+        if (!buildThread.decode()) {
+            return false;
+        }
+        WaveformPeakCache.getInstance().store(file, peaks);
+        return true;
+    }
+
+    private static boolean shouldPause() {
+        AppConfig config = AppConfig.getInstance();
+        if (config.isBackgroundIndexerPauseForVisualizer() && VisualizationWindow.isVisualizationRunning()) {
+            return true;
+        }
+        return config.isBackgroundIndexerPauseOnBattery() && isOnBattery();
+    }
+
+    /**
+     * Makes a best guess as to whether we're running on battery power. We can only tell on Linux,
+     * where the kernel lists power supplies under /sys/class/power_supply. Everywhere else,
+     * we assume we're plugged in.
+     */
+    private static synchronized boolean isOnBattery() {
+        long now = System.currentTimeMillis();
+        if (now - lastPowerCheck < POWER_CHECK_MILLIS) {
+            return onBattery;
+        }
+        lastPowerCheck = now;
+
+        File[] supplies = POWER_SUPPLY_DIR.listFiles();
+        if (supplies == null) {
+            onBattery = false;
+            return false;
+        }
+        boolean discharging = false;
+        for (File supply : supplies) {
+            String type = readSysValue(new File(supply, "type"));
+            if ("Mains".equals(type) && "1".equals(readSysValue(new File(supply, "online")))) {
+                onBattery = false;
+                return false;
+            }
+            if ("Battery".equals(type) && "Discharging".equals(readSysValue(new File(supply, "status")))) {
+                discharging = true;
+            }
+        }
+        onBattery = discharging;
+        return discharging;
+    }
+
+    private static String readSysValue(File file) {
+        try {
+            return Files.readString(file.toPath()).trim();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,659 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.audio.AudioMetadata;
+
+import javax.swing.AbstractListModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The list model behind the Playlist, stored column by column instead of as a list of
+ * AudioMetadata objects, so that a playlist of a hundred thousand tracks costs tens of
+ * megabytes instead of hundreds.
+ * <p>
+ * Each row is a handful of primitive array slots. Artist, album and genre are stored as
+ * ids into a shared dictionary, since the same few values repeat across thousands of rows,
+ * and likewise each row's directory, so only the file name is stored per row. Lyrics aren't
+ * stored at all; the AudioMetadata we hand out loads them on demand if anyone asks.
+ * </p>
+ * <p>
+ * Removing or overwriting rows doesn't take their values out of the dictionaries, since
+ * other rows may still be using them. Instead, the dictionaries are rebuilt from the rows
+ * that are left whenever the rows are rearranged (see permute()), and whenever a dictionary
+ * grows to more than twice the size it could possibly need to be for the rows we have.
+ * </p>
+ * <p>
+ * getElementAt() builds a fresh AudioMetadata each time it's called, so two calls for the same
+ * row won't return the same instance. Anything that needs to keep track of a row as the list
+ * changes around it should hold on to its row id (see getRowId()), which never changes for as
+ * long as the row is in the list.
+ * </p>
+ * <p>
+ * We also remember the formatted text that each row was last displayed with (see
+ * getDisplayString()), so that repainting or scrolling back over a row doesn't run the
+ * playlist format string over it again. Only rows that have actually been displayed have
+ * an entry, and a row's entry is dropped whenever the row is overwritten.
+ * </p>
+ * <p>
+ * Like any Swing model, this should only be touched from the EDT.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class PlaylistModel extends AbstractListModel<AudioMetadata> {
+
+    /**
+     * Never handed out as a row id, so callers can use it to mean "no row".
+     */
+    public static final int NO_ROW = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NO_VALUE = -1;
+
+    private static final byte FLAG_PLACEHOLDER = 0x1;
+    private static final byte FLAG_NO_LYRICS = 0x2; // the track is known to have no lyrics
+
+    private final StringPool directories = new StringPool();
+    private final StringPool tags = new StringPool(); // artist, album and genre share one dictionary
+
+    private int size;
+    private int nextRowId = NO_ROW + 1;
+    private int[] rowIds = new int[INITIAL_CAPACITY];
+    private int[] directoryIds = new int[INITIAL_CAPACITY];
+    private String[] fileNames = new String[INITIAL_CAPACITY];
+    private String[] titles = new String[INITIAL_CAPACITY];
+    private int[] artistIds = new int[INITIAL_CAPACITY];
+    private int[] albumIds = new int[INITIAL_CAPACITY];
+    private int[] genreIds = new int[INITIAL_CAPACITY];
+    private int[] durations = new int[INITIAL_CAPACITY];
+    private int[] trackNumbers = new int[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private String[] displayStrings = new String[INITIAL_CAPACITY];
+    private String displayFormat; // the format string that displayStrings were built with
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Builds an AudioMetadata for the given row. Placeholder rows come back as placeholders.
+     */
+    @Override
+    public AudioMetadata getElementAt(int index) {
+        checkIndex(index);
+        File file = getSourceFile(index);
+        if ((flags[index] & FLAG_PLACEHOLDER) != 0) {
+            return AudioMetadata.placeholder(file);
+        }
+        return AudioMetadata.fromRawValues(titles[index], tags.get(albumIds[index]), tags.get(artistIds[index]),
+                                           tags.get(genreIds[index]), file, durations[index], trackNumbers[index],
+                                           (flags[index] & FLAG_NO_LYRICS) != 0 ? "" : null);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the id of the given row, which stays the same no matter where the row moves to.
+     */
+    public int getRowId(int index) {
+        checkIndex(index);
+        return rowIds[index];
+    }
+
+    /**
+     * Returns the current index of the row with the given id, or -1 if it isn't in the list.
+     */
+    public int indexOfRowId(int rowId) {
+        if (rowId == NO_ROW) {
+            return -1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (rowIds[i] == rowId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first row at or after fromIndex for the given file, or -1 if there
+     * isn't one. Files are compared by absolute path, as getIndexOfCurrentlyPlayingTrack() always has.
+     */
+    public int indexOfFile(File file, int fromIndex) {
+        if (file == null) {
+            return -1;
+        }
+        File absolute = file.getAbsoluteFile();
+        String name = absolute.getName();
+        String parent = absolute.getParent();
+
+        // Work out which of our directories are the one we want, rather than building a File per row:
+        boolean[] directoryMatches = new boolean[directories.size()];
+        boolean anyMatch = false;
+        for (int id = 0; id < directoryMatches.length; id++) {
+            String directory = new File(directories.get(id)).getAbsolutePath();
+            directoryMatches[id] = directory.equals(parent);
+            anyMatch |= directoryMatches[id];
+        }
+        boolean relativeMatches = new File("").getAbsolutePath().equals(parent);
+        if (!anyMatch && !relativeMatches) {
+            return -1;
+        }
+
+        for (int i = Math.max(0, fromIndex); i < size; i++) {
+            if (fileNames[i] == null || !fileNames[i].equals(name)) {
+                continue;
+            }
+            int directoryId = directoryIds[i];
+            if (directoryId == NO_VALUE ? relativeMatches : directoryMatches[directoryId]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public File getSourceFile(int index) {
+        checkIndex(index);
+        if (fileNames[index] == null) {
+            return null;
+        }
+        int directoryId = directoryIds[index];
+        return directoryId == NO_VALUE
+            ? new File(fileNames[index])
+            : new File(directories.get(directoryId), fileNames[index]);
+    }
+
+    public String getTitle(int index) {
+        checkIndex(index);
+        return titles[index];
+    }
+
+    public String getArtist(int index) {
+        checkIndex(index);
+        return tags.get(artistIds[index]);
+    }
+
+    public String getAlbum(int index) {
+        checkIndex(index);
+        return tags.get(albumIds[index]);
+    }
+
+    public String getGenre(int index) {
+        checkIndex(index);
+        return tags.get(genreIds[index]);
+    }
+
+    public int getDurationSeconds(int index) {
+        checkIndex(index);
+        return durations[index];
+    }
+
+    public int getTrackNumber(int index) {
+        checkIndex(index);
+        return trackNumbers[index];
+    }
+
+    public boolean isPlaceholder(int index) {
+        checkIndex(index);
+        return (flags[index] & FLAG_PLACEHOLDER) != 0;
+    }
+
+    /**
+     * Returns the given row formatted with the given format string, as it should appear in the
+     * list. This is only worked out the first time a row is displayed, and remembered until the
+     * row is overwritten or the format string changes.
+     */
+    public String getDisplayString(int index, String formatString) {
+        checkIndex(index);
+        if (!Objects.equals(formatString, displayFormat)) {
+            invalidateDisplayStrings();
+            displayFormat = formatString;
+        }
+        if (displayStrings[index] == null) {
+            displayStrings[index] = getElementAt(index).getFormatted(formatString);
+        }
+        return displayStrings[index];
+    }
+
+    /**
+     * Forgets every row's display string, so they're all formatted again the next time they're
+     * displayed. There's no need to call this when the format string changes, as
+     * getDisplayString() notices that for itself.
+     */
+    public void invalidateDisplayStrings() {
+        Arrays.fill(displayStrings, 0, size, null);
+    }
+
+    /**
+     * Adds the given tracks as new rows at the end of the list. Listeners get a single
+     * intervalAdded event no matter how many tracks there are.
+     */
+    public void addAll(List<AudioMetadata> metas) {
+        insertAll(size, metas);
+    }
+
+    /**
+     * Inserts the given tracks as new rows, starting at the given index. Listeners get a single
+     * intervalAdded event no matter how many tracks there are.
+     *
+     * @throws IndexOutOfBoundsException if the index is less than 0 or greater than our size.
+     */
+    public void insertAll(int index, List<AudioMetadata> metas) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int count = metas.size();
+        if (count == 0) {
+            return;
+        }
+        ensureCapacity(size + count);
+        shift(index, index + count, size - index);
+        for (int i = 0; i < count; i++) {
+            rowIds[index + i] = nextRowId++;
+            store(index + i, metas.get(i));
+        }
+        size += count;
+        fireIntervalAdded(this, index, index + count - 1);
+    }
+
+    /**
+     * Throws away everything in the list and replaces it with the given tracks, which all get
+     * new row ids. Listeners get at most two events, whatever the number of tracks: one
+     * contentsChanged for the rows that exist both before and after, and one intervalRemoved
+     * or intervalAdded for the rows that are gone or new at the end. A JList's selection model
+     * only follows added and removed intervals, so the caller should clear the selection first.
+     */
+    public void replaceAll(List<AudioMetadata> metas) {
+        int oldSize = size;
+        reset(metas.size());
+        for (AudioMetadata meta : metas) {
+            rowIds[size] = nextRowId++;
+            store(size++, meta);
+        }
+        // Every index in each event has to be valid by the time it's fired:
+        if (oldSize > size) {
+            fireIntervalRemoved(this, size, oldSize - 1);
+        }
+        int overlap = Math.min(oldSize, size);
+        if (overlap > 0) {
+            fireContentsChanged(this, 0, overlap - 1);
+        }
+        if (size > oldSize) {
+            fireIntervalAdded(this, oldSize, size - 1);
+        }
+    }
+
+    /**
+     * Overwrites the given row with the given track. The row keeps its row id.
+     */
+    public void set(int index, AudioMetadata meta) {
+        checkIndex(index);
+        store(index, meta);
+        compactIfSparse();
+        fireContentsChanged(this, index, index);
+    }
+
+    /**
+     * Overwrites each of the given rows, identified by row id, with its new track. Rows keep
+     * their row ids, and any ids that are no longer in the list are ignored. Listeners get a
+     * single contentsChanged event spanning the first to the last row that changed.
+     *
+     * @return The number of rows that were updated.
+     */
+    public int setAll(Map<Integer, AudioMetadata> metasByRowId) {
+        if (metasByRowId.isEmpty()) {
+            return 0;
+        }
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        int updated = 0;
+        for (int i = 0; i < size && updated < metasByRowId.size(); i++) {
+            AudioMetadata meta = metasByRowId.get(rowIds[i]);
+            if (meta == null) {
+                continue;
+            }
+            store(i, meta);
+            first = Math.min(first, i);
+            last = i;
+            updated++;
+        }
+        if (updated > 0) {
+            compactIfSparse();
+            fireContentsChanged(this, first, last);
+        }
+        return updated;
+    }
+
+    public void remove(int index) {
+        checkIndex(index);
+        shift(index + 1, index, size - index - 1);
+        size--;
+        clearSlot(size);
+        compactIfSparse();
+        fireIntervalRemoved(this, index, index);
+    }
+
+    /**
+     * Moves a row from one index to another, as if it were removed and then inserted at the given
+     * index. Used for drag and drop reordering.
+     */
+    public void move(int fromIndex, int toIndex) {
+        checkIndex(fromIndex);
+        checkIndex(toIndex);
+        if (fromIndex == toIndex) {
+            return;
+        }
+        int[] order = new int[size];
+        int source = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == toIndex) {
+                order[i] = fromIndex;
+                continue;
+            }
+            if (source == fromIndex) {
+                source++;
+            }
+            order[i] = source++;
+        }
+        permute(order);
+    }
+
+    /**
+     * Rearranges the rows so that row i becomes whatever was previously at order[i].
+     * The given array must be a permutation of 0 to size-1. As we're rewriting every row anyway,
+     * this is also when we drop dictionary entries that no row uses any more.
+     */
+    public void permute(int[] order) {
+        if (order.length != size) {
+            throw new IllegalArgumentException("Expected " + size + " rows, got " + order.length);
+        }
+        rowIds = permuted(rowIds, order);
+        directoryIds = permuted(directoryIds, order);
+        artistIds = permuted(artistIds, order);
+        albumIds = permuted(albumIds, order);
+        genreIds = permuted(genreIds, order);
+        durations = permuted(durations, order);
+        trackNumbers = permuted(trackNumbers, order);
+        String[] newFileNames = new String[fileNames.length];
+        String[] newTitles = new String[titles.length];
+        byte[] newFlags = new byte[flags.length];
+        String[] newDisplayStrings = new String[displayStrings.length];
+        for (int i = 0; i < size; i++) {
+            newFileNames[i] = fileNames[order[i]];
+            newTitles[i] = titles[order[i]];
+            newFlags[i] = flags[order[i]];
+            newDisplayStrings[i] = displayStrings[order[i]];
+        }
+        fileNames = newFileNames;
+        titles = newTitles;
+        flags = newFlags;
+        displayStrings = newDisplayStrings;
+        compact();
+        if (size > 0) {
+            fireContentsChanged(this, 0, size - 1);
+        }
+    }
+
+    public void clear() {
+        int oldSize = size;
+        reset(0);
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+    }
+
+    /**
+     * Roughly how much heap this model is using, in bytes: our arrays plus the strings they
+     * refer to, counting each dictionary entry once. This assumes compressed object pointers
+     * and compact (one byte per character) strings, which is what we'll nearly always have.
+     */
+    public long estimateHeapBytes() {
+        long bytes = 0;
+        int capacity = rowIds.length;
+        bytes += 7L * arrayBytes(capacity, 4);     // the int columns
+        bytes += 3L * arrayBytes(capacity, 4);     // the three String[] columns
+        bytes += arrayBytes(capacity, 1);          // flags
+        for (int i = 0; i < size; i++) {
+            bytes += stringBytes(fileNames[i]);
+            if (titles[i] != fileNames[i]) {
+                bytes += stringBytes(titles[i]);
+            }
+            bytes += stringBytes(displayStrings[i]);
+        }
+        bytes += directories.estimateHeapBytes();
+        bytes += tags.estimateHeapBytes();
+        return bytes;
+    }
+
+    private void store(int index, AudioMetadata meta) {
+        displayStrings[index] = null;
+        File file = meta == null ? null : meta.getSourceFile();
+        if (file == null) {
+            directoryIds[index] = NO_VALUE;
+            fileNames[index] = null;
+        }
+        else {
+            directoryIds[index] = directories.idOf(file.getParent());
+            fileNames[index] = file.getName();
+        }
+        if (meta == null) {
+            titles[index] = "";
+            artistIds[index] = NO_VALUE;
+            albumIds[index] = NO_VALUE;
+            genreIds[index] = NO_VALUE;
+            durations[index] = 0;
+            trackNumbers[index] = 0;
+            flags[index] = 0;
+            return;
+        }
+
+        // Placeholder titles are just the file name, so share the string rather than keep two copies:
+        String title = meta.getTitle();
+        titles[index] = fileNames[index] != null && fileNames[index].equals(title) ? fileNames[index] : title;
+        artistIds[index] = tags.idOf(meta.getAuthor());
+        albumIds[index] = tags.idOf(meta.getAlbum());
+        genreIds[index] = tags.idOf(meta.getGenre());
+        durations[index] = meta.getDurationSeconds();
+        trackNumbers[index] = meta.getTrackNumber();
+        byte rowFlags = 0;
+        if (meta.isPlaceholder()) {
+            rowFlags |= FLAG_PLACEHOLDER;
+        }
+        if ("".equals(meta.getLyricsIfLoaded())) {
+            rowFlags |= FLAG_NO_LYRICS;
+        }
+        flags[index] = rowFlags;
+    }
+
+    /**
+     * Empties every column and both dictionaries without telling anyone, leaving room for
+     * the given number of rows.
+     */
+    private void reset(int capacity) {
+        capacity = Math.max(INITIAL_CAPACITY, capacity);
+        size = 0;
+        rowIds = new int[capacity];
+        directoryIds = new int[capacity];
+        fileNames = new String[capacity];
+        titles = new String[capacity];
+        artistIds = new int[capacity];
+        albumIds = new int[capacity];
+        genreIds = new int[capacity];
+        durations = new int[capacity];
+        trackNumbers = new int[capacity];
+        flags = new byte[capacity];
+        displayStrings = new String[capacity];
+        directories.clear();
+        tags.clear();
+    }
+
+    /**
+     * Rebuilds the dictionaries if either has grown to more than twice as many entries as our rows
+     * could be using: one directory per row, and three tags. Checked after rows are removed or
+     * overwritten, so an edit-heavy session can't grow them without bound.
+     */
+    private void compactIfSparse() {
+        long limit = 2L * size + INITIAL_CAPACITY;
+        if (directories.size() > limit || tags.size() > 3 * limit) {
+            compact();
+        }
+    }
+
+    /**
+     * Rebuilds both dictionaries from only the values our rows are using, renumbering the ids.
+     */
+    private void compact() {
+        directories.retainOnly(size, directoryIds);
+        tags.retainOnly(size, artistIds, albumIds, genreIds);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= rowIds.length) {
+            return;
+        }
+        int capacity = Math.max(needed, rowIds.length + (rowIds.length >> 1));
+        rowIds = Arrays.copyOf(rowIds, capacity);
+        directoryIds = Arrays.copyOf(directoryIds, capacity);
+        fileNames = Arrays.copyOf(fileNames, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        artistIds = Arrays.copyOf(artistIds, capacity);
+        albumIds = Arrays.copyOf(albumIds, capacity);
+        genreIds = Arrays.copyOf(genreIds, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        trackNumbers = Arrays.copyOf(trackNumbers, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        displayStrings = Arrays.copyOf(displayStrings, capacity);
+    }
+
+    /**
+     * Copies count rows starting at from to start at to, in every column.
+     */
+    private void shift(int from, int to, int count) {
+        if (count <= 0 || from == to) {
+            return;
+        }
+        System.arraycopy(rowIds, from, rowIds, to, count);
+        System.arraycopy(directoryIds, from, directoryIds, to, count);
+        System.arraycopy(fileNames, from, fileNames, to, count);
+        System.arraycopy(titles, from, titles, to, count);
+        System.arraycopy(artistIds, from, artistIds, to, count);
+        System.arraycopy(albumIds, from, albumIds, to, count);
+        System.arraycopy(genreIds, from, genreIds, to, count);
+        System.arraycopy(durations, from, durations, to, count);
+        System.arraycopy(trackNumbers, from, trackNumbers, to, count);
+        System.arraycopy(flags, from, flags, to, count);
+        System.arraycopy(displayStrings, from, displayStrings, to, count);
+    }
+
+    /**
+     * Lets go of the strings in a slot that's no longer in use.
+     */
+    private void clearSlot(int index) {
+        fileNames[index] = null;
+        titles[index] = null;
+        displayStrings[index] = null;
+    }
+
+    private static int[] permuted(int[] column, int[] order) {
+        int[] result = new int[column.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = column[order[i]];
+        }
+        return result;
+    }
+
+    private static long arrayBytes(int length, int elementBytes) {
+        return align(16L + (long) length * elementBytes);
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : align(24) + arrayBytes(value.length(), 1);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * A dictionary of strings, each with a small int id. Ids are handed out in order, and stay
+     * valid until the pool is cleared or compacted with retainOnly(). A null string has the id NO_VALUE.
+     * Entries are never removed one at a time, so the pool only ever grows between those calls.
+     */
+    private static final class StringPool {
+        private List<String> values = new ArrayList<>();
+        private Map<String, Integer> ids = new HashMap<>();
+
+        int idOf(String value) {
+            if (value == null) {
+                return NO_VALUE;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        String get(int id) {
+            return id == NO_VALUE ? null : values.get(id);
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        void clear() {
+            values = new ArrayList<>();
+            ids = new HashMap<>();
+        }
+
+        /**
+         * Throws away every entry that isn't used by the first size rows of the given id columns,
+         * and renumbers what's left, rewriting the ids in the columns to match.
+         */
+        void retainOnly(int size, int[]... columns) {
+            List<String> oldValues = values;
+            int[] newIds = new int[oldValues.size()];
+            Arrays.fill(newIds, NO_VALUE);
+            clear();
+            for (int[] column : columns) {
+                for (int i = 0; i < size; i++) {
+                    int id = column[i];
+                    if (id == NO_VALUE) {
+                        continue;
+                    }
+                    if (newIds[id] == NO_VALUE) {
+                        newIds[id] = idOf(oldValues.get(id));
+                    }
+                    column[i] = newIds[id];
+                }
+            }
+        }
+
+        long estimateHeapBytes() {
+            // Each entry is a string, plus a map node, a boxed id, and a slot in each of two arrays:
+            long bytes = 0;
+            for (String value : values) {
+                bytes += stringBytes(value) + 32 + 16 + 8;
+            }
+            return bytes;
+        }
+    }
+}
@@ -116,6 +116,15 @@ public class VisualizationWindow implements UIReloadable {
         return instance;
     }
 
+    /**
+     * Reports whether the visualizer is currently running. Unlike getInstance(), this
+     * won't create the visualization window if it doesn't exist yet.
+     */
+    public static boolean isVisualizationRunning() {
+        VisualizationWindow window = instance;
+        return window != null && window.thread.isRunning();
+    }
+
     /**
      * Updates the current track info.
      *
@@ -1,138 +1,388 @@
 package ca.corbett.musicplayer.ui;
 
+import ca.corbett.musicplayer.audio.AnalysisPipeline;
+import ca.corbett.musicplayer.audio.Analyzer;
 import ca.corbett.musicplayer.audio.AudioUtil;
+import ca.corbett.musicplayer.audio.Mp3PreviewScanner;
+import ca.corbett.musicplayer.audio.Mp3SeekIndex;
+import ca.corbett.musicplayer.audio.PeakAnalyzer;
+import ca.corbett.musicplayer.audio.PeakExtractor;
+import ca.corbett.musicplayer.audio.TrackAnalysis;
+import ca.corbett.musicplayer.audio.WaveformPeakCache;
 import ca.corbett.musicplayer.audio.WaveformPeaks;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Background worker that decodes source audio into compact waveform peaks.
+ * Completed peaks are written to the {@link WaveformPeakCache} so that we
+ * don't have to do this again the next time the same track is loaded.
+ * <p>
+ * Normally the track is decoded once, from start to finish, through the AnalysisPipeline,
+ * so that any registered analyzers get to see the same decode pass as the peaks do.
+ * The results are available from getAnalysis() once we're done, and are also handed to
+ * the AnalysisPipeline's listeners and to our own onAnalysis callback, if there is one.
+ * </p>
+ * <p>
+ * If the peaks we're given are already complete (they came out of the cache), the track is
+ * decoded only for the sake of the registered analyzers, and the peaks are left alone.
+ * </p>
+ * <p>
+ * If there are no other analyzers registered, and the track is long and its frames can be
+ * seeked to exactly (wav files, and mp3 files with a header-walked Mp3SeekIndex), the track
+ * is split into bucket-aligned segments which are decoded in parallel on a ForkJoinPool.
+ * Each segment decodes into its own private WaveformPeaks, and this thread copies them into
+ * the real one strictly in order, so the real one still only ever has one writer and the UI
+ * still sees the waveform grow from left to right. Everything else is decoded sequentially on this thread.
+ * </p>
+ * <p>
+ * Alongside all of that, for mp3 files we fetch a rough preview built from the frames' side
+ * information (see Mp3PreviewScanner) on a thread of its own, and publish it as soon as it's
+ * ready. The preview comes with the track's Mp3SeekIndex, which is usually already being
+ * built in the background by the time we start, but walking the file for it can still take
+ * a moment, so the real decode doesn't wait for it. The real peaks replace it from left to
+ * right as they arrive.
+ * </p>
  */
 public class WaveformBuildThread extends Thread {
 
     private static final Logger logger = Logger.getLogger(WaveformBuildThread.class.getName());
 
+    /**
+     * Tracks are only split if each segment would be at least this long. Below that,
+     * the cost of opening (and for mp3, priming) another decoder isn't worth it.
+     */
+    private static final int MIN_SEGMENT_SECONDS = 20;
+
+    /**
+     * How often we check on the segment currently being copied when it has nothing new for us.
+     */
+    private static final long POLL_MILLIS = 25;
+
+    private static final int UPDATE_INTERVAL_BUCKETS = 24;
+
     private final File sourceFile;
     private final WaveformPeaks peaks;
     private final BooleanSupplier keepGoing;
     private final Runnable onUpdate;
+    private final int parallelism;
+    private boolean previewEnabled = true;
+    private Consumer<TrackAnalysis> onAnalysis = analysis -> { };
+    private volatile TrackAnalysis analysis;
 
     public WaveformBuildThread(File sourceFile, WaveformPeaks peaks, BooleanSupplier keepGoing, Runnable onUpdate) {
+        // Leave a core free for playback and the UI:
+        this(sourceFile, peaks, keepGoing, onUpdate, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    WaveformBuildThread(File sourceFile, WaveformPeaks peaks, BooleanSupplier keepGoing, Runnable onUpdate, int parallelism) {
         super("musicplayer-waveform-builder");
         this.sourceFile = sourceFile;
         this.peaks = peaks;
         this.keepGoing = keepGoing == null ? () -> true : keepGoing;
         this.onUpdate = onUpdate == null ? () -> { } : onUpdate;
+        this.parallelism = Math.max(1, parallelism);
         setDaemon(true);
         setPriority(Thread.MIN_PRIORITY);
     }
 
-    private static int decodeSample(byte[] buffer, int offset, int bytesPerSample, boolean bigEndian, boolean signedPcm) {
-        int sample = 0;
-        if (bigEndian) {
-            for (int i = 0; i < bytesPerSample; i++) {
-                sample = (sample << 8) | (buffer[offset + i] & 0xff);
+    /**
+     * Background builds that nobody is watching have no use for a preview.
+     */
+    void setPreviewEnabled(boolean previewEnabled) {
+        this.previewEnabled = previewEnabled;
+    }
+
+    /**
+     * Sets a callback to be given the results of the decode pass, on this thread, once we're done.
+     * It isn't called if we're cancelled.
+     */
+    public void setOnAnalysis(Consumer<TrackAnalysis> onAnalysis) {
+        this.onAnalysis = onAnalysis == null ? analysis -> { } : onAnalysis;
+    }
+
+    /**
+     * Returns the results of the decode pass, or null if we haven't finished (or were cancelled).
+     * Always includes the peaks, under PeakAnalyzer.PEAKS.
+     */
+    public TrackAnalysis getAnalysis() {
+        return analysis;
+    }
+
+    @Override
+    public void run() {
+        if (sourceFile == null || peaks == null) {
+            return;
+        }
+
+        try {
+            boolean alreadyCached = peaks.isComplete();
+            if (decode() && !alreadyCached) {
+                WaveformPeakCache.getInstance().store(sourceFile, peaks);
             }
         }
-        else {
-            for (int i = bytesPerSample - 1; i >= 0; i--) {
-                sample = (sample << 8) | (buffer[offset + i] & 0xff);
+        catch (IOException ex) {
+            logger.log(Level.FINE, "Waveform build aborted for {0}: {1}", new Object[]{sourceFile.getName(), ex.getMessage()});
+        }
+    }
+
+    /**
+     * Decodes the whole source file into our peaks, and marks them complete.
+     * Package-private so that tests can run it without touching the real peak cache.
+     *
+     * @return true if we got to the end, or false if we were cancelled along the way.
+     */
+    boolean decode() throws IOException {
+        if (previewEnabled && peaks.getPreview() == null && peaks.view().getBucketCount() == 0
+            && sourceFile.getName().toLowerCase().endsWith(".mp3")) {
+            startPreview();
+        }
+
+        try (AudioInputStream stream = AudioUtil.openPlaybackStream(sourceFile)) {
+            TrackAnalysis result;
+            if (peaks.isComplete()) {
+                result = analyzeOnly(stream);
             }
+            else {
+                long[] segmentStarts = planSegments(stream);
+                result = segmentStarts.length > 1
+                    ? decodeSegmented(stream, segmentStarts)
+                    : decodeSequential(stream);
+            }
+            if (result == null) {
+                return false;
+            }
+            peaks.setComplete(true);
+            analysis = result;
+            onUpdate.run();
+            onAnalysis.accept(result);
+            AnalysisPipeline.getInstance().publish(result);
+            return true;
         }
+    }
 
-        int bits = bytesPerSample * 8;
-        if (signedPcm) {
-            int signBit = 1 << (bits - 1);
-            if ((sample & signBit) != 0) {
-                sample -= 1 << bits;
+    /**
+     * Builds the preview on a thread of its own, and publishes it if the real peaks still
+     * aren't finished by the time it's ready.
+     */
+    private void startPreview() {
+        Thread previewThread = new Thread(() -> {
+            WaveformPeaks preview = Mp3PreviewScanner.scan(sourceFile);
+            if (preview != null && keepGoing.getAsBoolean() && !isInterrupted() && !peaks.isComplete()) {
+                peaks.setPreview(preview);
+                onUpdate.run();
             }
+        }, "musicplayer-waveform-preview");
+        previewThread.setDaemon(true);
+        previewThread.setPriority(Thread.MIN_PRIORITY);
+        previewThread.start();
+    }
+
+    /**
+     * Works out where each segment should start, in PCM frames. Every start is a multiple of
+     * our bucket size, so that no bucket straddles two segments. Returns a single segment
+     * starting at 0 if the track shouldn't (or can't) be split.
+     */
+    private long[] planSegments(AudioInputStream stream) {
+        long[] whole = new long[]{0L};
+
+        // Other analyzers need to see the whole track in order, in one pass:
+        if (parallelism < 2 || AnalysisPipeline.getInstance().hasRegisteredAnalyzers()) {
+            return whole;
         }
-        else {
-            sample -= 1 << (bits - 1);
+
+        long totalFrames = stream.getFrameLength();
+        if (totalFrames <= 0) {
+            // Decoded mp3 streams don't know their own length, but the seek index does, and we
+            // can only land on exact frames if the index was built by walking the frame headers:
+            Mp3SeekIndex index = Mp3SeekIndex.forFile(sourceFile);
+            if (index == null || index.isFromToc()) {
+                return whole;
+            }
+            totalFrames = index.getTotalPcmFrames();
         }
-        return sample;
-    }
 
-    private static short toPeakMagnitude(int sample, int sampleSizeInBits) {
-        long abs = Math.abs((long) sample);
-        if (sampleSizeInBits > 16) {
-            abs >>= (sampleSizeInBits - 16);
+        AudioFormat format = stream.getFormat();
+        float frameRate = format.getFrameRate() > 0 ? format.getFrameRate() : format.getSampleRate();
+        long minSegmentFrames = Math.max(1L, (long) (frameRate * MIN_SEGMENT_SECONDS));
+        int count = (int) Math.min(parallelism, totalFrames / minSegmentFrames);
+        if (count < 2) {
+            return whole;
         }
-        else if (sampleSizeInBits > 0 && sampleSizeInBits < 16) {
-            abs <<= (16 - sampleSizeInBits);
+
+        int framesPerBucket = peaks.getSourceFramesPerBucket();
+        long totalBuckets = totalFrames / framesPerBucket;
+        long[] starts = new long[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = totalBuckets * i / count * framesPerBucket;
         }
-        return (short) Math.min(Short.MAX_VALUE, abs);
+        return starts;
     }
 
-    @Override
-    public void run() {
-        if (sourceFile == null || peaks == null) {
-            return;
+    private TrackAnalysis decodeSequential(AudioInputStream stream) throws IOException {
+        List<Analyzer> analyzers = new ArrayList<>();
+        analyzers.add(new PeakAnalyzer(peaks, UPDATE_INTERVAL_BUCKETS, onUpdate));
+        analyzers.addAll(AnalysisPipeline.getInstance().createAnalyzers());
+        return AnalysisPipeline.run(sourceFile, stream, analyzers, this::shouldContinue);
+    }
+
+    /**
+     * Runs just the registered analyzers over the track, for peaks that we already have.
+     */
+    private TrackAnalysis analyzeOnly(AudioInputStream stream) throws IOException {
+        TrackAnalysis result = AnalysisPipeline.run(sourceFile, stream, AnalysisPipeline.getInstance().createAnalyzers(),
+                                                    this::shouldContinue);
+        if (result != null) {
+            result.put(PeakAnalyzer.PEAKS, peaks);
         }
+        return result;
+    }
 
-        try (AudioInputStream stream = AudioUtil.openPlaybackStream(sourceFile)) {
-            AudioFormat format = stream.getFormat();
-            int channels = Math.max(1, format.getChannels());
-            int sampleSizeInBits = format.getSampleSizeInBits() > 0 ? format.getSampleSizeInBits() : 16;
-            int bytesPerSample = Math.max(1, (sampleSizeInBits + 7) / 8);
-            int frameSize = Math.max(bytesPerSample * channels, format.getFrameSize());
-            boolean bigEndian = format.isBigEndian();
-            boolean signedPcm = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding());
-            int framesPerBucket = Math.max(1, peaks.getFramesPerBucket());
-            byte[] buffer = new byte[frameSize * 2048];
-            short[] maxAbs = new short[channels];
-            int frameCount = 0;
-            int updateCounter = 0;
+    /**
+     * Decodes each segment on a worker thread, and copies their buckets into our peaks in order.
+     * The first segment reuses the stream we already have open; the others open their own.
+     */
+    private TrackAnalysis decodeSegmented(AudioInputStream stream, long[] segmentStarts) throws IOException {
+        int count = segmentStarts.length;
+        AudioFormat format = stream.getFormat();
+        WaveformPeaks[] segments = new WaveformPeaks[count];
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[count];
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        AtomicLong totalFrames = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, count), WaveformBuildThread::newWorkerThread, null, false);
+        logger.log(Level.FINE, "Decoding waveform for {0} in {1} segments", new Object[]{sourceFile.getName(), count});
 
-            int bytesRead;
-            while ((bytesRead = stream.read(buffer)) > 0) {
-                if (!keepGoing.getAsBoolean() || Thread.currentThread().isInterrupted()) {
-                    return;
-                }
+        try {
+            for (int i = 0; i < count; i++) {
+                WaveformPeaks segment = new WaveformPeaks(peaks.getChannels(), format.getSampleRate(), peaks.getSourceFramesPerBucket());
+                AudioInputStream segmentStream = i == 0 ? stream : null;
+                long startFrame = segmentStarts[i];
+                long frameCount = i + 1 < count ? segmentStarts[i + 1] - startFrame : Long.MAX_VALUE;
+                segments[i] = segment;
+                tasks[i] = pool.submit(() -> decodeSegment(segmentStream, startFrame, frameCount, segment, cancelled,
+                                                            totalFrames));
+            }
 
-                int frames = bytesRead / frameSize;
-                int idx = 0;
-                for (int f = 0; f < frames; f++) {
-                    int frameStart = idx;
-                    for (int ch = 0; ch < channels; ch++) {
-                        int sample = decodeSample(buffer, idx, bytesPerSample, bigEndian, signedPcm);
-                        idx += bytesPerSample;
-                        short abs = toPeakMagnitude(sample, sampleSizeInBits);
-                        if (abs > maxAbs[ch]) {
-                            maxAbs[ch] = abs;
-                        }
+            short[] bucket = new short[peaks.getChannels()];
+            int updateCounter = 0;
+            for (int i = 0; i < count; i++) {
+                int copied = 0;
+                while (true) {
+                    if (!shouldContinue()) {
+                        return null;
                     }
-                    idx = frameStart + frameSize;
 
-                    frameCount++;
-                    if (frameCount >= framesPerBucket) {
-                        peaks.addBucket(maxAbs);
-                        maxAbs = new short[channels];
-                        frameCount = 0;
-                        updateCounter++;
-                        if (updateCounter >= 24) {
-                            updateCounter = 0;
-                            onUpdate.run();
+                    // Check for completion before taking the view, so we can't miss the last few buckets:
+                    boolean done = tasks[i].isDone();
+                    WaveformPeaks.View view = segments[i].view();
+                    for (; copied < view.getBucketCount(); copied++) {
+                        for (int ch = 0; ch < bucket.length; ch++) {
+                            bucket[ch] = (short) view.getPeak(copied, ch);
                         }
+                        peaks.addBucket(bucket);
+                        updateCounter++;
+                    }
+                    if (updateCounter >= UPDATE_INTERVAL_BUCKETS) {
+                        updateCounter = 0;
+                        onUpdate.run();
+                    }
+                    if (done) {
+                        tasks[i].get(); // rethrows anything that went wrong in the segment
+                        segments[i] = null;
+                        break;
                     }
+                    Thread.sleep(POLL_MILLIS);
                 }
             }
+            TrackAnalysis result = new TrackAnalysis(sourceFile, format, totalFrames.get());
+            result.put(PeakAnalyzer.PEAKS, peaks);
+            return result;
+        }
+        catch (InterruptedException e) {
+            return null;
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException("Waveform segment failed: " + e.getCause(), e.getCause());
+        }
+        finally {
+            cancelled.set(true);
+            pool.shutdownNow();
 
-            if (frameCount > 0) {
-                peaks.addBucket(maxAbs);
+            // Segment 0 is reading from the caller's stream, which will be closed as soon as we return.
+            // Every segment checks for cancellation between blocks, so this doesn't take long:
+            for (ForkJoinTask<?> task : tasks) {
+                if (task != null) {
+                    task.quietlyJoin();
+                }
             }
-            peaks.setComplete(true);
-            onUpdate.run();
         }
-        catch (IOException ex) {
-            logger.log(Level.FINE, "Waveform build aborted for {0}: {1}", new Object[]{sourceFile.getName(), ex.getMessage()});
+    }
+
+    /**
+     * Decodes frameCount frames (or everything, for Long.MAX_VALUE) starting at startFrame into
+     * the given segment peaks. Runs on a pool thread. If no stream is given, we open our own.
+     */
+    private Void decodeSegment(AudioInputStream stream, long startFrame, long frameCount, WaveformPeaks segment,
+                               AtomicBoolean cancelled, AtomicLong totalFrames) throws IOException {
+        AudioInputStream ownStream = stream == null ? AudioUtil.openPlaybackStreamAtFrame(sourceFile, startFrame) : null;
+        try {
+            AudioInputStream source = ownStream != null ? ownStream : stream;
+            AudioFormat format = source.getFormat();
+            int frameSize = Math.max(1, format.getFrameSize());
+            PeakExtractor extractor = PeakExtractor.forFormat(format, segment.getSourceFramesPerBucket());
+            byte[] buffer = new byte[frameSize * 2048];
+            long remainingBytes = frameCount == Long.MAX_VALUE ? Long.MAX_VALUE : frameCount * frameSize;
+
+            while (remainingBytes > 0) {
+                if (cancelled.get() || !keepGoing.getAsBoolean()) {
+                    return null;
+                }
+                int bytesRead = source.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+                if (bytesRead <= 0) {
+                    break;
+                }
+                extractor.process(buffer, bytesRead, segment);
+                totalFrames.addAndGet(bytesRead / frameSize);
+                remainingBytes -= bytesRead;
+            }
+
+            extractor.finish(segment);
+            return null;
+        }
+        finally {
+            if (ownStream != null) {
+                ownStream.close();
+            }
         }
     }
-}
 
+    private boolean shouldContinue() {
+        return keepGoing.getAsBoolean() && !Thread.currentThread().isInterrupted();
+    }
+
+    private static ForkJoinWorkerThread newWorkerThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("musicplayer-waveform-segment");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    }
+}
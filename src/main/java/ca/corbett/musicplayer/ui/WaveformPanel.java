@@ -0,0 +1,130 @@
+package ca.corbett.musicplayer.ui;
+
+import javax.swing.JPanel;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+/**
+ * Displays the waveform image in the AudioPanel, in two layers.
+ * <p>
+ * The static layer is the waveform image itself (or an idle animation frame), which
+ * only changes when a new image is rendered. The dynamic layer is the playback position
+ * and the mark position, which are painted over the static layer as simple lines.
+ * Moving either of them only repaints the few columns that changed, so steady-state
+ * playback doesn't allocate images or redraw the whole waveform on every progress tick.
+ * </p>
+ * <p>
+ * The static image is expected to be rendered at our actual size in device pixels (see
+ * AudioPanel), so drawing it into our bounds is a straight copy even on HiDPI screens.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public class WaveformPanel extends JPanel {
+
+    private static final int PLAYHEAD_WIDTH = 2;
+    private static final int MARK_WIDTH = 1;
+
+    private BufferedImage image;
+    private float playbackPosition; // 0f==start, 1f==end
+    private float markPosition;
+    private int playheadX = -1; // last painted x, or -1 if not shown
+    private int markX = -1;
+
+    public WaveformPanel() {
+        setOpaque(true);
+        setDoubleBuffered(true);
+    }
+
+    /**
+     * Sets the static layer and repaints everything. The image may be the same instance as
+     * before, with new content drawn into it.
+     *
+     * @param image The image to display, or null to display nothing.
+     */
+    public void setImage(BufferedImage image) {
+        this.image = image;
+        repaint();
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Moves the playback position line, repainting only the columns it moved from and to.
+     * The line is hidden when the position is at either extreme edge.
+     *
+     * @param pos From 0 - 1, indicating the percentage of our width (eg. 0.5 == middle).
+     */
+    public void setPlaybackPosition(float pos) {
+        playbackPosition = pos;
+        int x = (pos > 0.01f && pos < 0.99f) ? (int) (getWidth() * pos) : -1;
+        playheadX = moveLine(playheadX, x, PLAYHEAD_WIDTH);
+    }
+
+    /**
+     * Moves the mark position line, repainting only the columns it moved from and to.
+     * The line is hidden when the position is 0.
+     *
+     * @param pos From 0 - 1, indicating the percentage of our width (eg. 0.5 == middle).
+     */
+    public void setMarkPosition(float pos) {
+        markPosition = pos;
+        int x = pos > 0f ? (int) (getWidth() * pos) : -1;
+        markX = moveLine(markX, x, MARK_WIDTH);
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        super.setBounds(x, y, width, height);
+
+        // Our overlay positions are fractions of our width, so recompute them for the new size:
+        playheadX = (playbackPosition > 0.01f && playbackPosition < 0.99f) ? (int) (width * playbackPosition) : -1;
+        markX = markPosition > 0f ? (int) (width * markPosition) : -1;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (image == null) {
+            super.paintComponent(g);
+        }
+        else {
+            // Swing has already clipped g to the dirty region, so this only copies what changed:
+            g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        }
+
+        int height = getHeight();
+        if (playheadX >= 0) {
+            g.setColor(Color.RED);
+            g.setXORMode(Color.GREEN);
+            for (int i = 0; i < PLAYHEAD_WIDTH; i++) {
+                g.drawLine(playheadX + i, 0, playheadX + i, height);
+            }
+        }
+        if (markX >= 0) {
+            g.setColor(Color.BLACK);
+            g.setXORMode(Color.WHITE);
+            g.drawLine(markX, 0, markX, height);
+        }
+        g.setPaintMode();
+    }
+
+    /**
+     * Repaints the columns covered by a line at its old and new positions, and returns the new position.
+     */
+    private int moveLine(int oldX, int newX, int lineWidth) {
+        if (oldX == newX) {
+            return oldX;
+        }
+        if (oldX >= 0) {
+            repaint(oldX, 0, lineWidth, getHeight());
+        }
+        if (newX >= 0) {
+            repaint(newX, 0, lineWidth, getHeight());
+        }
+        return newX;
+    }
+}
@@ -0,0 +1,118 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AnalysisPipelineTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(8000f, 16, 2, true, false);
+
+    @Test
+    public void run_shouldFeedEveryAnalyzerFromOnePass() throws Exception {
+        // GIVEN two seconds of audio, a peak analyzer and a second analyzer that counts what it sees:
+        int frames = 16000;
+        WaveformPeaks peaks = new WaveformPeaks(2, 8000f, 512);
+        CountingAnalyzer counter = new CountingAnalyzer();
+
+        // WHEN we run them both through the pipeline:
+        TrackAnalysis analysis = AnalysisPipeline.run(new File("track.wav"),
+                                                      TestAudioFiles.createStream(FORMAT, frames),
+                                                      List.of(new PeakAnalyzer(peaks, 24, null), counter), null);
+
+        // THEN both should have seen the whole track, and their results should be collected:
+        assertNotNull(analysis);
+        assertEquals(frames, analysis.getTotalFrames());
+        assertEquals(2000, analysis.getDurationMillis());
+        assertEquals(frames * FORMAT.getFrameSize(), counter.bytes);
+        assertEquals(Long.valueOf(frames), analysis.get(CountingAnalyzer.FRAMES));
+        assertSame(peaks, analysis.get(PeakAnalyzer.PEAKS));
+        assertEquals((int) Math.ceil(frames / 512d), peaks.view().getBucketCount());
+    }
+
+    @Test
+    public void run_whenCancelled_shouldNotFinish() throws Exception {
+        CountingAnalyzer counter = new CountingAnalyzer();
+
+        TrackAnalysis analysis = AnalysisPipeline.run(new File("track.wav"),
+                                                      TestAudioFiles.createStream(FORMAT, 16000),
+                                                      List.of(counter), () -> counter.bytes == 0);
+
+        assertNull(analysis);
+        assertTrue(counter.began);
+        assertFalse(counter.finished);
+    }
+
+    @Test
+    public void createAnalyzers_shouldCreateFreshInstances() {
+        // GIVEN a pipeline with one registered analyzer:
+        AnalysisPipeline pipeline = new AnalysisPipeline();
+        assertFalse(pipeline.hasRegisteredAnalyzers());
+        pipeline.register(CountingAnalyzer::new);
+
+        // WHEN we ask for analyzers twice:
+        List<Analyzer> first = pipeline.createAnalyzers();
+        List<Analyzer> second = pipeline.createAnalyzers();
+
+        // THEN each track should get its own instance:
+        assertTrue(pipeline.hasRegisteredAnalyzers());
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertFalse(first.get(0) == second.get(0));
+    }
+
+    @Test
+    public void publish_shouldReachEveryListener() {
+        // GIVEN a pipeline with a listener that throws, and one that records what it's given:
+        AnalysisPipeline pipeline = new AnalysisPipeline();
+        List<TrackAnalysis> received = new ArrayList<>();
+        pipeline.addAnalysisListener(analysis -> {
+            throw new IllegalStateException("broken listener");
+        });
+        pipeline.addAnalysisListener(received::add);
+        TrackAnalysis analysis = new TrackAnalysis(new File("track.wav"), FORMAT, 8000);
+
+        // WHEN we publish an analysis:
+        pipeline.publish(analysis);
+
+        // THEN the broken listener shouldn't stop the other one from getting it:
+        assertEquals(1, received.size());
+        assertSame(analysis, received.get(0));
+    }
+
+    private static final class CountingAnalyzer implements Analyzer {
+        static final TrackAnalysis.Key<Long> FRAMES = new TrackAnalysis.Key<>("frames", Long.class);
+
+        private boolean began;
+        private boolean finished;
+        private int frameSize;
+        private long bytes;
+
+        @Override
+        public void begin(AudioFormat format) {
+            began = true;
+            frameSize = format.getFrameSize();
+        }
+
+        @Override
+        public void process(byte[] pcm, int length) {
+            bytes += length;
+        }
+
+        @Override
+        public void finish(TrackAnalysis analysis) {
+            finished = true;
+            analysis.put(FRAMES, bytes / frameSize);
+        }
+    }
+}
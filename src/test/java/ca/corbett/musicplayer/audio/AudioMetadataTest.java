@@ -2,7 +2,11 @@ package ca.corbett.musicplayer.audio;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class AudioMetadataTest {
     @Test
@@ -151,7 +155,7 @@ class AudioMetadataTest {
                                                          "Album",
                                                          "Artist",
                                                          "Genre",
-                                                         new java.io.File("/path/to/audiofile.mp3"),
+                                                         new File("/path/to/audiofile.mp3"),
                                                          200,
                                                          0);
 
@@ -162,4 +166,31 @@ class AudioMetadataTest {
         String expected = "File: (audiofile.mp3) Path: (/path/to/audiofile.mp3)";
         assertEquals(expected, formatted);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void placeholder_shouldGuessFromFileName() {
+        // GIVEN a file we haven't read:
+        File file = new File("/music/Some Album/track01.mp3");
+
+        // WHEN we create a placeholder for it:
+        AudioMetadata meta = AudioMetadata.placeholder(file);
+
+        // THEN it should be marked as such, and filled in from the path alone:
+        assertTrue(meta.isPlaceholder());
+        assertEquals("track01.mp3", meta.getTitle());
+        assertEquals("Some Album", meta.getAlbum());
+        assertEquals("", meta.getAuthor());
+        assertFalse(AudioMetadata.fromRawValues("", "", "", "", file, 0, 0).isPlaceholder());
+    }
+
+    @Test
+    public void equals_beforeAndAfterLyricsLoad_shouldNotChange() {
+        // GIVEN two copies of a track, one of which hasn't loaded its lyrics yet:
+        AudioMetadata loaded = AudioMetadata.fromRawValues("Title", "Album", "Artist", "", null, 100, 1, "la la");
+        AudioMetadata notLoaded = AudioMetadata.fromRawValues("Title", "Album", "Artist", "", null, 100, 1, null);
+
+        // THEN they should still be the same track, with the same hash:
+        assertEquals(loaded, notLoaded);
+        assertEquals(loaded.hashCode(), notLoaded.hashCode());
+    }
+}
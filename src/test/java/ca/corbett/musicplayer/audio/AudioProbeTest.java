@@ -0,0 +1,103 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AudioProbeTest {
+
+    private static final float SAMPLE_RATE = 22050f;
+
+    // MPEG1 layer 3, 128kbps, 44.1kHz, stereo, no padding: 417 bytes per frame.
+    private static final byte[] MP3_FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int MP3_FRAME_LENGTH = 417;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void probe_withKnownMetadata_shouldReuseItAndOpenOnce() throws Exception {
+        // GIVEN a two second wav file, and metadata for it that doesn't know the duration:
+        File file = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 2);
+        AudioMetadata known = AudioMetadata.fromRawValues("Title", "Album", "Artist", "", file, 0, 1);
+
+        // WHEN we probe it:
+        AudioProbe probe = AudioProbe.probe(file, known);
+
+        // THEN we should get the same metadata back, and the rest from the stream:
+        assertSame(known, probe.getMetadata());
+        assertNotNull(probe.getFormat());
+        assertEquals(2, probe.getFormat().getChannels());
+        assertEquals(SAMPLE_RATE, probe.getFormat().getSampleRate());
+        assertEquals(2000, probe.getDurationMillis());
+
+        // AND the stream should be handed over exactly once:
+        try (AudioInputStream stream = probe.takePlaybackStream()) {
+            assertNotNull(stream);
+            assertEquals(2 * (long) SAMPLE_RATE, stream.getFrameLength());
+        }
+        assertNull(probe.takePlaybackStream());
+    }
+
+    @Test
+    public void probe_withUnknownMp3_shouldReadTagsAndStreamFromOneOpen() throws Exception {
+        // GIVEN an mp3 file with a title tag, about 13 seconds long, that we know nothing about:
+        byte[] title = "Probed Title".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tag = new byte[10 + 10 + 1 + title.length];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 3;
+        tag[9] = (byte) (tag.length - 10);
+        System.arraycopy("TIT2".getBytes(StandardCharsets.ISO_8859_1), 0, tag, 10, 4);
+        TestAudioFiles.writeInt(tag, 14, 1 + title.length);
+        System.arraycopy(title, 0, tag, 21, title.length);
+        byte[] frames = new byte[500 * MP3_FRAME_LENGTH];
+        for (int i = 0; i < frames.length; i += MP3_FRAME_LENGTH) {
+            System.arraycopy(MP3_FRAME_HEADER, 0, frames, i, MP3_FRAME_HEADER.length);
+        }
+        File file = TestAudioFiles.writeFile(tempDir, "probe.mp3", tag, frames);
+
+        // WHEN we probe it:
+        AudioProbe probe = AudioProbe.probe(file, null);
+
+        // THEN the metadata should come from its tags:
+        assertEquals("Probed Title", probe.getMetadata().getTitle());
+        assertEquals(13000, probe.getDurationMillis());
+
+        // AND the decoder should be running on the same open file:
+        assertNotNull(probe.getFormat());
+        assertEquals(44100f, probe.getFormat().getSampleRate());
+        try (AudioInputStream stream = probe.takePlaybackStream()) {
+            assertNotNull(stream);
+            assertTrue(stream.read(new byte[4096]) > 0);
+        }
+    }
+
+    @Test
+    public void probe_withUnplayableFile_shouldStillReturnMetadata() throws Exception {
+        // GIVEN a file that isn't really audio, but for which we do have metadata:
+        File file = new File(tempDir, "garbage.wav");
+        Files.write(file.toPath(), new byte[1000]);
+        AudioMetadata known = AudioMetadata.fromRawValues("Title", "Album", "Artist", "", file, 42, 1);
+
+        // WHEN we probe it:
+        AudioProbe probe = AudioProbe.probe(file, known);
+
+        // THEN we should get the metadata and its duration, but no format or stream:
+        assertSame(known, probe.getMetadata());
+        assertEquals(42000, probe.getDurationMillis());
+        assertNull(probe.getFormat());
+        assertNull(probe.takePlaybackStream());
+    }
+}
@@ -0,0 +1,151 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AudioSinkTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void fromKey_withKnownAndUnknownKeys_shouldResolve() {
+        assertSame(AudioSink.Type.NULL_FAST, AudioSink.Type.fromKey("null-fast"));
+        assertSame(AudioSink.Type.WAV_FILE, AudioSink.Type.fromKey("WAV"));
+        assertNull(AudioSink.Type.fromKey("speakers"));
+    }
+
+    @Test
+    public void nullFastSink_shouldAcceptEverythingImmediately() {
+        // GIVEN a fast null sink:
+        NullAudioSink sink = new NullAudioSink(FORMAT, false);
+        sink.start();
+
+        // WHEN we write far more than its buffer holds:
+        byte[] buffer = new byte[sink.getBufferSize() * 4];
+        int written = sink.write(buffer, 0, buffer.length);
+
+        // THEN it should all be accepted and counted as played:
+        assertEquals(buffer.length, written);
+        assertEquals(buffer.length / 4, sink.getLongFramePosition());
+    }
+
+    @Test
+    public void nullRealTimeSink_shouldPlayAtFrameRate() throws Exception {
+        // GIVEN a real-time null sink with a little audio in it:
+        NullAudioSink sink = new NullAudioSink(FORMAT, true);
+        byte[] buffer = new byte[44100]; // 250ms
+        assertEquals(buffer.length, sink.write(buffer, 0, buffer.length));
+
+        // THEN nothing should play until it's started:
+        Thread.sleep(20);
+        assertEquals(0, sink.getLongFramePosition());
+
+        // WHEN we start it and wait a bit:
+        sink.start();
+        Thread.sleep(50);
+
+        // THEN some, but not all, of it should have played:
+        long position = sink.getLongFramePosition();
+        assertTrue(position > 0);
+        assertTrue(position <= buffer.length / 4);
+    }
+
+    @Test
+    public void nullRealTimeSink_flush_shouldDiscardBufferedAudio() {
+        // GIVEN a stopped real-time null sink with a full buffer:
+        NullAudioSink sink = new NullAudioSink(FORMAT, true);
+        byte[] buffer = new byte[sink.getBufferSize()];
+        sink.write(buffer, 0, buffer.length);
+        assertEquals(0, sink.available());
+
+        // WHEN we flush it:
+        sink.flush();
+
+        // THEN it should be empty again, with nothing counted as played:
+        assertEquals(sink.getBufferSize(), sink.available());
+        assertEquals(0, sink.getLongFramePosition());
+    }
+
+    @Test
+    public void wavFileSink_shouldWriteValidHeader() throws Exception {
+        // GIVEN a WAV sink that we write some audio to:
+        File file = new File(tempDir, "out.wav");
+        WavFileAudioSink sink = new WavFileAudioSink(FORMAT, file);
+        byte[] buffer = new byte[4000];
+        sink.write(buffer, 0, buffer.length);
+        sink.write(buffer, 0, buffer.length);
+
+        // WHEN we close it:
+        sink.close();
+
+        // THEN the file should hold a header with the right sizes, followed by our audio:
+        assertFalse(sink.isOpen());
+        assertEquals(44 + 8000, file.length());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] header = new byte[44];
+            raf.readFully(header);
+            assertEquals("RIFF", new String(header, 0, 4));
+            assertEquals(36 + 8000, readIntLE(header, 4));
+            assertEquals("WAVE", new String(header, 8, 4));
+            assertEquals(44100, readIntLE(header, 24));
+            assertEquals("data", new String(header, 36, 4));
+            assertEquals(8000, readIntLE(header, 40));
+        }
+    }
+
+    @Test
+    public void wavFileSink_afterTwoFormatChanges_shouldHoldOnlyTheLastFormat() throws Exception {
+        // GIVEN pooled WAV output:
+        File file = new File(tempDir, "pooled.wav");
+        AudioFormat other = new AudioFormat(48000f, 16, 2, true, false);
+        System.setProperty("AUDIO_SINK", "wav");
+        System.setProperty("AUDIO_SINK_FILE", file.getAbsolutePath());
+        OutputLinePool pool = OutputLinePool.getInstance();
+        pool.closeAll();
+        try {
+            // WHEN a track is played in one format, then another, then the first again:
+            byte[] buffer = new byte[4000];
+            for (AudioFormat format : new AudioFormat[]{FORMAT, other, FORMAT}) {
+                AudioSink sink = pool.acquire(format);
+                sink.start();
+                sink.write(buffer, 0, buffer.length);
+                pool.release(sink);
+            }
+            pool.closeAll();
+
+            // THEN the file should be a valid WAV holding just the last track:
+            try (AudioInputStream stream = AudioSystem.getAudioInputStream(file)) {
+                assertEquals(44100f, stream.getFormat().getSampleRate());
+                assertEquals(buffer.length / FORMAT.getFrameSize(), stream.getFrameLength());
+            }
+            assertEquals(44 + buffer.length, file.length());
+        }
+        finally {
+            pool.closeAll();
+            System.clearProperty("AUDIO_SINK");
+            System.clearProperty("AUDIO_SINK_FILE");
+        }
+    }
+
+    private static int readIntLE(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+            | ((buffer[offset + 1] & 0xFF) << 8)
+            | ((buffer[offset + 2] & 0xFF) << 16)
+            | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,125 @@
+package ca.corbett.musicplayer.audio;
+
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares Id3TagReader against a full jaudiotagger read of the same file, which is what
+ * AudioMetadata.fromFile() used to do for every track. The file is a typical ripped mp3:
+ * an ID3v2.3 tag with the usual text frames and 200KiB of cover art, followed by about
+ * a minute of 128kbps audio. The file will be in the OS cache, so this measures parsing
+ * cost rather than disk; on a network share the difference in bytes read matters even more.
+ * This isn't a unit test and won't be picked up by surefire. To run it:
+ * <pre>
+ *     mvn test-compile
+ *     mvn exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *         "-Dexec.args=-cp %classpath ca.corbett.musicplayer.audio.Id3TagReaderBenchmark"
+ * </pre>
+ * As with PeakExtractorBenchmark, exec:java won't work, because JMH's forked JVM wouldn't get our classpath.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Id3TagReaderBenchmark {
+
+    private static final byte[] FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int FRAME_LENGTH = 417;
+    private static final int FRAME_COUNT = 2300;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream tagBody = new ByteArrayOutputStream();
+        tagBody.write(textFrame("TIT2", "Benchmark Title"));
+        tagBody.write(textFrame("TPE1", "Benchmark Artist"));
+        tagBody.write(textFrame("TALB", "Benchmark Album"));
+        tagBody.write(textFrame("TCON", "(17)"));
+        tagBody.write(textFrame("TRCK", "3/12"));
+        tagBody.write(frame("APIC", new byte[200 * 1024]));
+        tagBody.write(new byte[1024]); // padding
+
+        byte[] header = {'I', 'D', '3', 3, 0, 0, 0, 0, 0, 0};
+        int size = tagBody.size();
+        header[6] = (byte) ((size >> 21) & 0x7F);
+        header[7] = (byte) ((size >> 14) & 0x7F);
+        header[8] = (byte) ((size >> 7) & 0x7F);
+        header[9] = (byte) (size & 0x7F);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        tagBody.writeTo(out);
+        byte[] frame = new byte[FRAME_LENGTH];
+        System.arraycopy(FRAME_HEADER, 0, frame, 0, 4);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            out.write(frame);
+        }
+
+        file = File.createTempFile("id3-benchmark", ".mp3");
+        Files.write(file.toPath(), out.toByteArray());
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Id3TagReader.Tags leanReader() {
+        return Id3TagReader.read(file);
+    }
+
+    @Benchmark
+    public Tag jaudiotagger() throws Exception {
+        return AudioFileIO.read(file).getTag();
+    }
+
+    private static byte[] textFrame(String id, String value) {
+        byte[] text = value.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = new byte[text.length + 1]; // leading 0 is the ISO-8859-1 encoding byte
+        System.arraycopy(text, 0, data, 1, text.length);
+        return frame(id, data);
+    }
+
+    private static byte[] frame(String id, byte[] data) {
+        byte[] frame = new byte[10 + data.length];
+        System.arraycopy(id.getBytes(StandardCharsets.ISO_8859_1), 0, frame, 0, 4);
+        frame[4] = (byte) (data.length >>> 24);
+        frame[5] = (byte) (data.length >>> 16);
+        frame[6] = (byte) (data.length >>> 8);
+        frame[7] = (byte) data.length;
+        System.arraycopy(data, 0, frame, 10, data.length);
+        return frame;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(Id3TagReaderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,287 @@
+package ca.corbett.musicplayer.audio;
+
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class Id3TagReaderTest {
+
+    // MPEG1 layer 3, 128kbps, 44.1kHz, stereo, no padding: 417 bytes per frame, 1152 samples per frame.
+    private static final byte[] FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int FRAME_LENGTH = 417;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void read_withId3v23Tag_shouldReadTextFramesAndCbrDuration() throws Exception {
+        // GIVEN an mp3 with an ID3v2.3 tag and 1000 frames (about 26 seconds):
+        byte[] tag = id3v2(3, 0,
+                           frame3("TIT2", text(0, "Title")),
+                           frame3("TPE1", text(0, "Artist")),
+                           frame3("TALB", text(1, "Album")),
+                           frame3("TCON", text(0, "(17)")),
+                           frame3("TRCK", text(0, "3/12")));
+        File file = TestAudioFiles.writeFile(tempDir, "v23.mp3", tag, frames(1000));
+
+        // WHEN we read it:
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+
+        // THEN we should get everything back:
+        assertNotNull(tags);
+        assertEquals("Title", tags.title());
+        assertEquals("Artist", tags.artist());
+        assertEquals("Album", tags.album());
+        assertEquals("Rock", tags.genre());
+        assertEquals(3, tags.trackNumber());
+        assertEquals(26, tags.durationSeconds());
+    }
+
+    @Test
+    public void read_withId3v24Tag_shouldReadUtf8AndSyncsafeSizes() throws Exception {
+        // GIVEN a v2.4 tag with a UTF-8 title long enough that its syncsafe size differs from a plain int:
+        String title = "Ça va " + "x".repeat(200);
+        byte[] tag = id3v2(4, 0,
+                           frame4("TIT2", text(3, title)),
+                           frame4("TPE1", text(3, "Björk")));
+        File file = TestAudioFiles.writeFile(tempDir, "v24.mp3", tag, frames(100));
+
+        // WHEN we read it:
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+
+        // THEN the text should come through intact:
+        assertNotNull(tags);
+        assertEquals(title, tags.title());
+        assertEquals("Björk", tags.artist());
+    }
+
+    @Test
+    public void read_withId3v22Tag_shouldReadThreeLetterFrames() throws Exception {
+        byte[] tag = id3v2(2, 0,
+                           frame2("TT2", text(0, "Old Title")),
+                           frame2("TP1", text(0, "Old Artist")),
+                           frame2("TRK", text(0, "9")));
+        File file = TestAudioFiles.writeFile(tempDir, "v22.mp3", tag, frames(100));
+
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+
+        assertNotNull(tags);
+        assertEquals("Old Title", tags.title());
+        assertEquals("Old Artist", tags.artist());
+        assertEquals(9, tags.trackNumber());
+    }
+
+    @Test
+    public void read_withLargeArtworkBeforeText_shouldStillFindText() throws Exception {
+        // GIVEN a tag that starts with cover art bigger than the read buffer:
+        byte[] tag = id3v2(3, 0,
+                           frame3("APIC", new byte[100 * 1024]),
+                           frame3("TIT2", text(0, "After The Art")));
+        File file = TestAudioFiles.writeFile(tempDir, "art.mp3", tag, frames(1000));
+
+        // WHEN we read it:
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+
+        // THEN we should skip over the artwork to the title, and still find the audio after the tag:
+        assertNotNull(tags);
+        assertEquals("After The Art", tags.title());
+        assertEquals(26, tags.durationSeconds());
+    }
+
+    @Test
+    public void read_shouldAgreeWithJaudiotagger() throws Exception {
+        // GIVEN the same tags written as v2.3 and as v2.4, each ahead of about 52 seconds of audio:
+        File v23 = TestAudioFiles.writeFile(tempDir, "compare23.mp3",
+                                            id3v2(3, 0,
+                                                  frame3("TIT2", text(1, "Compared Title")),
+                                                  frame3("TPE1", text(0, "Compared Artist")),
+                                                  frame3("TALB", text(0, "Compared Album")),
+                                                  frame3("TCON", text(0, "Jazz")),
+                                                  frame3("APIC", new byte[10 * 1024]),
+                                                  frame3("TRCK", text(0, "4/10"))),
+                                            frames(2000));
+        File v24 = TestAudioFiles.writeFile(tempDir, "compare24.mp3",
+                                            id3v2(4, 0,
+                                                  frame4("TIT2", text(3, "Compared Title")),
+                                                  frame4("TPE1", text(3, "Compared Artist")),
+                                                  frame4("TALB", text(3, "Compared Album")),
+                                                  frame4("TCON", text(3, "Jazz")),
+                                                  frame4("TRCK", text(3, "4"))),
+                                            frames(2000));
+
+        for (File file : new File[]{v23, v24}) {
+            // WHEN we read each one with both readers:
+            Id3TagReader.Tags tags = Id3TagReader.read(file);
+            AudioFile audioFile = AudioFileIO.read(file);
+            Tag expected = audioFile.getTag();
+
+            // THEN we should get the same answers that AudioMetadata used to get from jaudiotagger:
+            assertNotNull(tags, file.getName());
+            assertEquals(expected.getFirst(FieldKey.TITLE), tags.title(), file.getName());
+            assertEquals(expected.getFirst(FieldKey.ARTIST), tags.artist(), file.getName());
+            assertEquals(expected.getFirst(FieldKey.ALBUM), tags.album(), file.getName());
+            assertEquals(expected.getFirst(FieldKey.GENRE), tags.genre(), file.getName());
+            assertEquals(Integer.parseInt(expected.getFirst(FieldKey.TRACK)), tags.trackNumber(), file.getName());
+            assertEquals(audioFile.getAudioHeader().getTrackLength(), tags.durationSeconds(), file.getName());
+        }
+    }
+
+    @Test
+    public void read_withXingHeader_shouldUseItsFrameCount() throws Exception {
+        // GIVEN a VBR file whose first frame is a Xing header claiming 5000 frames:
+        byte[] xing = new byte[FRAME_LENGTH];
+        System.arraycopy(FRAME_HEADER, 0, xing, 0, 4);
+        System.arraycopy("Xing".getBytes(StandardCharsets.ISO_8859_1), 0, xing, 4 + 32, 4);
+        xing[4 + 32 + 7] = 0x01; // frame count present
+        TestAudioFiles.writeInt(xing, 4 + 32 + 8, 5000);
+        File file = TestAudioFiles.writeFile(tempDir, "vbr.mp3",
+                                             id3v2(3, 0, frame3("TIT2", text(0, "VBR"))), xing, frames(10));
+
+        // WHEN we read it:
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+
+        // THEN the duration should come from the header, not the file size:
+        assertNotNull(tags);
+        assertEquals(131, tags.durationSeconds()); // 5000 * 1152 / 44100
+    }
+
+    @Test
+    public void read_withOnlyId3v1_shouldUseIt() throws Exception {
+        // GIVEN an mp3 with no ID3v2 tag, only an ID3v1.1 one at the end:
+        byte[] v1 = new byte[128];
+        System.arraycopy("TAG".getBytes(StandardCharsets.ISO_8859_1), 0, v1, 0, 3);
+        System.arraycopy("V1 Title".getBytes(StandardCharsets.ISO_8859_1), 0, v1, 3, 8);
+        System.arraycopy("V1 Artist".getBytes(StandardCharsets.ISO_8859_1), 0, v1, 33, 9);
+        v1[126] = 4;
+        v1[127] = 8; // Jazz
+        File file = TestAudioFiles.writeFile(tempDir, "v1.mp3", frames(100), v1);
+
+        // WHEN we read it:
+        Id3TagReader.Tags tags = Id3TagReader.read(file);
+
+        // THEN we should get its fields:
+        assertNotNull(tags);
+        assertEquals("V1 Title", tags.title());
+        assertEquals("V1 Artist", tags.artist());
+        assertEquals("", tags.album());
+        assertEquals("Jazz", tags.genre());
+        assertEquals(4, tags.trackNumber());
+    }
+
+    @Test
+    public void read_withUnsynchronisedTag_shouldDeferToJaudiotagger() throws Exception {
+        File file = TestAudioFiles.writeFile(tempDir, "unsync.mp3",
+                                             id3v2(3, 0x80, frame3("TIT2", text(0, "Title"))), frames(10));
+
+        assertNull(Id3TagReader.read(file));
+    }
+
+    @Test
+    public void read_withNonMp3OrNoAudio_shouldReturnNull() throws Exception {
+        assertNull(Id3TagReader.read(TestAudioFiles.writeFile(tempDir, "song.ogg", frames(10))));
+        assertNull(Id3TagReader.read(TestAudioFiles.writeFile(tempDir, "empty.mp3", new byte[2000])));
+        assertNull(Id3TagReader.read(new File(tempDir, "missing.mp3")));
+    }
+
+    @Test
+    public void parseGenre_shouldHandleAllTheUsualForms() {
+        assertEquals("Rock", Id3TagReader.parseGenre("(17)"));
+        assertEquals("Rock", Id3TagReader.parseGenre("17"));
+        assertEquals("Rock", Id3TagReader.parseGenre("(17)Rock"));
+        assertEquals("Shoegaze", Id3TagReader.parseGenre("Shoegaze"));
+        assertEquals("", Id3TagReader.parseGenre(""));
+    }
+
+    @Test
+    public void parseTrackNumber_shouldHandleAllTheUsualForms() {
+        assertEquals(3, Id3TagReader.parseTrackNumber("3"));
+        assertEquals(3, Id3TagReader.parseTrackNumber("3/12"));
+        assertEquals(0, Id3TagReader.parseTrackNumber(""));
+        assertEquals(0, Id3TagReader.parseTrackNumber("three"));
+    }
+
+    private static byte[] id3v2(int version, int flags, byte[]... frames) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            body.write(frame);
+        }
+        body.write(new byte[64]); // a little padding
+        byte[] header = new byte[10];
+        header[0] = 'I';
+        header[1] = 'D';
+        header[2] = '3';
+        header[3] = (byte) version;
+        header[5] = (byte) flags;
+        writeSyncsafe(header, 6, body.size());
+        return concat(header, body.toByteArray());
+    }
+
+    private static byte[] frame2(String id, byte[] data) {
+        byte[] header = new byte[6];
+        System.arraycopy(id.getBytes(StandardCharsets.ISO_8859_1), 0, header, 0, 3);
+        header[3] = (byte) (data.length >> 16);
+        header[4] = (byte) (data.length >> 8);
+        header[5] = (byte) data.length;
+        return concat(header, data);
+    }
+
+    private static byte[] frame3(String id, byte[] data) {
+        byte[] header = new byte[10];
+        System.arraycopy(id.getBytes(StandardCharsets.ISO_8859_1), 0, header, 0, 4);
+        TestAudioFiles.writeInt(header, 4, data.length);
+        return concat(header, data);
+    }
+
+    private static byte[] frame4(String id, byte[] data) {
+        byte[] header = new byte[10];
+        System.arraycopy(id.getBytes(StandardCharsets.ISO_8859_1), 0, header, 0, 4);
+        writeSyncsafe(header, 4, data.length);
+        return concat(header, data);
+    }
+
+    private static byte[] text(int encoding, String value) {
+        byte[] bytes = switch (encoding) {
+            case 1 -> value.getBytes(StandardCharsets.UTF_16);
+            case 3 -> value.getBytes(StandardCharsets.UTF_8);
+            default -> value.getBytes(StandardCharsets.ISO_8859_1);
+        };
+        byte[] result = new byte[bytes.length + 1];
+        result[0] = (byte) encoding;
+        System.arraycopy(bytes, 0, result, 1, bytes.length);
+        return result;
+    }
+
+    private static byte[] frames(int count) {
+        byte[] data = new byte[count * FRAME_LENGTH];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(FRAME_HEADER, 0, data, i * FRAME_LENGTH, 4);
+        }
+        return data;
+    }
+
+    private static void writeSyncsafe(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) ((value >> 21) & 0x7F);
+        buffer[offset + 1] = (byte) ((value >> 14) & 0x7F);
+        buffer[offset + 2] = (byte) ((value >> 7) & 0x7F);
+        buffer[offset + 3] = (byte) (value & 0x7F);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
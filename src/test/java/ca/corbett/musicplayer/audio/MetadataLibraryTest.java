@@ -0,0 +1,137 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MetadataLibraryTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void lookup_afterFlush_shouldSurviveReopening() throws Exception {
+        // GIVEN a track whose metadata we store and flush:
+        File track = createTrack("song.mp3");
+        File database = new File(tempDir, "library.db");
+        MetadataLibrary library = new MetadataLibrary(database);
+        library.store(AudioMetadata.fromRawValues("Title", "Album", "Artist", "Rock", track, 245, 7, "la la"));
+        library.close();
+
+        // WHEN we open the library again and look it up:
+        MetadataLibrary reopened = new MetadataLibrary(database);
+        AudioMetadata meta = reopened.lookup(track);
+        reopened.close();
+
+        // THEN we should get back what we stored:
+        assertNotNull(meta);
+        assertEquals("Title", meta.getTitle());
+        assertEquals("Album", meta.getAlbum());
+        assertEquals("Artist", meta.getAuthor());
+        assertEquals("Rock", meta.getGenre());
+        assertEquals("la la", meta.getLyrics());
+        assertEquals(245, meta.getDurationSeconds());
+        assertEquals(7, meta.getTrackNumber());
+        assertEquals(track, meta.getSourceFile());
+    }
+
+    @Test
+    public void lookup_beforeFlush_shouldSeeQueuedEntry() throws Exception {
+        File track = createTrack("queued.mp3");
+        MetadataLibrary library = new MetadataLibrary(new File(tempDir, "library.db"));
+
+        library.store(AudioMetadata.fromRawValues("Queued", "Album", "Artist", "", track, 10, 1));
+
+        assertEquals("Queued", library.lookup(track).getTitle());
+        library.close();
+    }
+
+    @Test
+    public void lookup_withModifiedFile_shouldMiss() throws Exception {
+        // GIVEN a stored track:
+        File track = createTrack("changed.mp3");
+        MetadataLibrary library = new MetadataLibrary(new File(tempDir, "library.db"));
+        library.store(AudioMetadata.fromRawValues("Title", "Album", "Artist", "", track, 10, 1));
+        library.flush();
+
+        // WHEN the file changes underneath us:
+        Files.write(track.toPath(), new byte[200]);
+
+        // THEN the old entry should no longer be used:
+        assertNull(library.lookup(track));
+        library.close();
+    }
+
+    @Test
+    public void lookup_withMissingFile_shouldMiss() {
+        MetadataLibrary library = new MetadataLibrary(new File(tempDir, "library.db"));
+
+        assertNull(library.lookup(new File(tempDir, "nope.mp3")));
+        assertNull(library.lookup(null));
+        library.close();
+    }
+
+    @Test
+    public void lookup_whileBatchesAreWritten_shouldAlwaysFindStoredEntries() throws Exception {
+        // GIVEN enough tracks to fill a few batches:
+        int count = 1200;
+        List<File> tracks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tracks.add(createTrack("track" + i + ".mp3"));
+        }
+        MetadataLibrary library = new MetadataLibrary(new File(tempDir, "library.db"));
+        AtomicInteger stored = new AtomicInteger();
+        AtomicInteger misses = new AtomicInteger();
+
+        // WHEN we store them on one thread, while other threads keep looking up the ones stored so far:
+        List<Thread> lookups = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            Thread thread = new Thread(() -> {
+                int i = 0;
+                while (stored.get() < count) {
+                    int available = stored.get();
+                    if (available == 0) {
+                        continue;
+                    }
+                    File track = tracks.get(i++ % available);
+                    AudioMetadata meta = library.lookup(track);
+                    if (meta == null || !meta.getTitle().equals(track.getName())) {
+                        misses.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            lookups.add(thread);
+        }
+        for (File track : tracks) {
+            library.store(AudioMetadata.fromRawValues(track.getName(), "Album", "Artist", "", track, 10, 1));
+            stored.incrementAndGet();
+        }
+        for (Thread thread : lookups) {
+            thread.join();
+        }
+
+        // THEN no entry should ever have gone missing between the queue and the database:
+        assertEquals(0, misses.get());
+        library.close();
+        MetadataLibrary reopened = new MetadataLibrary(new File(tempDir, "library.db"));
+        assertFalse(reopened.lookup(tracks.get(count - 1)) == null);
+        reopened.close();
+    }
+
+    private File createTrack(String name) throws Exception {
+        File file = new File(tempDir, name);
+        Files.write(file.toPath(), new byte[100]);
+        return file;
+    }
+}
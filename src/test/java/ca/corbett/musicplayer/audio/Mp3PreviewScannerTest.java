@@ -0,0 +1,135 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Mp3PreviewScannerTest {
+
+    // MPEG1 layer 3, 128kbps, 44.1kHz, stereo, no CRC: 417 bytes per frame, 32 bytes of side info.
+    private static final int STEREO_HEADER = 0xFFFB9000;
+    private static final int JOINT_STEREO_MS_HEADER = 0xFFFB9060;
+    private static final int FRAME_LENGTH = 417;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void preview_shouldFollowGlobalGain() throws Exception {
+        // GIVEN an mp3 whose second half has a global_gain 8 steps higher than its first:
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 40; i++) {
+            out.write(frame(STEREO_HEADER, i < 20 ? 160 : 168, 500));
+        }
+        File file = TestAudioFiles.writeFile(tempDir, "gain.mp3", out.toByteArray());
+
+        // WHEN we index it:
+        WaveformPeaks preview = Mp3SeekIndex.build(file).getPreview();
+
+        // THEN the index should come with one complete preview bucket per frame, four times louder in the second half:
+        assertNotNull(preview);
+        assertTrue(preview.isComplete());
+        assertEquals(1152, preview.view().getFramesPerBucket());
+        assertEquals(40, preview.view().getBucketCount());
+        assertEquals(Mp3PreviewScanner.PREVIEW_CEILING, preview.view().getPeak(30, 0));
+        assertEquals(Mp3PreviewScanner.PREVIEW_CEILING / 4, preview.view().getPeak(10, 0));
+        assertEquals(Mp3PreviewScanner.PREVIEW_CEILING / 4, preview.view().getPeak(10, 1));
+    }
+
+    @Test
+    public void preview_withEmptyGranules_shouldBeSilent() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            out.write(frame(STEREO_HEADER, 170, i == 5 ? 0 : 500));
+        }
+        File file = TestAudioFiles.writeFile(tempDir, "silence.mp3", out.toByteArray());
+
+        WaveformPeaks preview = Mp3SeekIndex.build(file).getPreview();
+
+        assertNotNull(preview);
+        assertEquals(0, preview.view().getPeak(5, 0));
+        assertEquals(Mp3PreviewScanner.PREVIEW_CEILING, preview.view().getPeak(4, 0));
+    }
+
+    @Test
+    public void readLoudness_withMidSide_shouldCombineChannels() throws Exception {
+        // GIVEN a mid/side frame with a loud mid channel and a silent side channel:
+        byte[] frame = frame(JOINT_STEREO_MS_HEADER, 170, 500, 0);
+        Mp3FrameHeader header = Mp3FrameHeader.parse(frame, 0, 4);
+        assertTrue(header.isMidSideStereo());
+
+        // WHEN we read its loudness:
+        float[] loudness = new float[2];
+        Mp3PreviewScanner.readLoudness(header, frame, 4, loudness);
+
+        // THEN both output channels should get a share of the mid channel:
+        assertTrue(loudness[0] > 0f);
+        assertEquals(loudness[0], loudness[1], 0.0001f);
+    }
+
+    @Test
+    public void scan_shouldTakePreviewFromSeekIndex() throws Exception {
+        // GIVEN an mp3 file:
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            out.write(frame(STEREO_HEADER, 170, 500));
+        }
+        File file = TestAudioFiles.writeFile(tempDir, "indexed.mp3", out.toByteArray());
+
+        // WHEN we ask for its preview:
+        WaveformPeaks preview = Mp3PreviewScanner.scan(file);
+
+        // THEN it should be the one that came with its seek index, rather than another walk of the file:
+        assertNotNull(preview);
+        assertSame(Mp3SeekIndex.forFile(file).getPreview(), preview);
+    }
+
+    @Test
+    public void scan_withNonMp3_shouldReturnNull() throws Exception {
+        assertNull(Mp3PreviewScanner.scan(TestAudioFiles.writeFile(tempDir, "track.wav", new byte[1000])));
+        assertNull(Mp3PreviewScanner.scan(TestAudioFiles.writeFile(tempDir, "junk.mp3", new byte[1000])));
+    }
+
+    /**
+     * Builds a frame whose side info has the given global_gain and part2_3_length in every granule and channel.
+     */
+    private static byte[] frame(int header, int globalGain, int part23Length) {
+        return frame(header, globalGain, part23Length, part23Length);
+    }
+
+    private static byte[] frame(int header, int globalGain, int leftPart23Length, int rightPart23Length) {
+        byte[] frame = new byte[FRAME_LENGTH];
+        frame[0] = (byte) (header >>> 24);
+        frame[1] = (byte) (header >>> 16);
+        frame[2] = (byte) (header >>> 8);
+        frame[3] = (byte) header;
+
+        int bit = 4 * 8 + 9 + 3 + 8; // header, main_data_begin, private_bits, scfsi
+        for (int gr = 0; gr < 2; gr++) {
+            for (int ch = 0; ch < 2; ch++) {
+                bit = writeBits(frame, bit, 12, ch == 0 ? leftPart23Length : rightPart23Length);
+                bit += 9;
+                bit = writeBits(frame, bit, 8, globalGain);
+                bit += 4 + 1 + 22 + 3;
+            }
+        }
+        return frame;
+    }
+
+    private static int writeBits(byte[] buffer, int bitPosition, int count, int value) {
+        for (int i = count - 1; i >= 0; i--, bitPosition++) {
+            if (((value >> i) & 0x1) != 0) {
+                buffer[bitPosition >> 3] |= (byte) (0x80 >> (bitPosition & 7));
+            }
+        }
+        return bitPosition;
+    }
+}
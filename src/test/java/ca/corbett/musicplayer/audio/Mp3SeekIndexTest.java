@@ -0,0 +1,210 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Mp3SeekIndexTest {
+
+    // MPEG1 layer 3, 128kbps, 44.1kHz, stereo, no padding: 417 bytes per frame, 1152 samples per frame.
+    private static final byte[] FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final byte[] PADDED_FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x92, 0x00};
+    private static final int FRAME_LENGTH = 417;
+    private static final int ID3_LENGTH = 30;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void frameHeader_withKnownHeader_shouldParse() {
+        // WHEN we parse a well known frame header:
+        Mp3FrameHeader header = Mp3FrameHeader.parse(FRAME_HEADER, 0, 4);
+
+        // THEN we should get the expected values:
+        assertNotNull(header);
+        assertEquals(Mp3FrameHeader.MPEG1, header.getVersion());
+        assertEquals(3, header.getLayer());
+        assertEquals(128, header.getBitrateKbps());
+        assertEquals(44100, header.getSampleRate());
+        assertEquals(FRAME_LENGTH, header.getFrameLength());
+        assertEquals(1152, header.getSamplesPerFrame());
+        assertEquals(32, header.getSideInfoLength());
+        assertFalse(header.isCrcProtected());
+        assertFalse(header.isMidSideStereo());
+    }
+
+    @Test
+    public void frameHeader_withGarbage_shouldReturnNull() {
+        assertNull(Mp3FrameHeader.parse(0x12345678));
+        assertNull(Mp3FrameHeader.parse(0xFFFBF000)); // bad bitrate index
+        assertNull(Mp3FrameHeader.parse(0xFFFB9C00)); // reserved sample rate
+    }
+
+    @Test
+    public void build_withPlainFrames_shouldRecordEveryStrideFrames() throws Exception {
+        // GIVEN an mp3 with an ID3v2 tag followed by 100 frames and no TOC:
+        File file = TestAudioFiles.writeFile(tempDir, "plain.mp3", id3Tag(), frames(100));
+
+        // WHEN we index it:
+        Mp3SeekIndex index = Mp3SeekIndex.build(file);
+
+        // THEN we should get a seek point every STRIDE frames, starting after the tag:
+        assertNotNull(index);
+        assertFalse(index.isFromToc());
+        assertEquals(4, index.size()); // frames 0, 32, 64, 96
+        assertEquals(100L * 1152 * 1000 / 44100, index.getDurationMillis());
+        assertEquals(ID3_LENGTH, index.seekPointFor(0).byteOffset());
+
+        // AND the same walk should have gathered a preview bucket for every frame:
+        assertNotNull(index.getPreview());
+        assertEquals(100, index.getPreview().view().getBucketCount());
+    }
+
+    @Test
+    public void seekPointFor_withMidTrackTarget_shouldReturnLastPointBeforeIt() throws Exception {
+        // GIVEN an indexed file:
+        File file = TestAudioFiles.writeFile(tempDir, "seek.mp3", id3Tag(), frames(100));
+        Mp3SeekIndex index = Mp3SeekIndex.build(file);
+
+        // WHEN we ask for a position that falls at frame 40:
+        long millis = (long) (40 * 1152 * 1000d / 44100) + 1;
+        Mp3SeekIndex.SeekPoint seekPoint = index.seekPointFor(millis);
+
+        // THEN we should get the seek point at frame 32:
+        assertEquals(ID3_LENGTH + 32L * FRAME_LENGTH, seekPoint.byteOffset());
+        assertEquals((long) (32 * 1152 * 1000d / 44100), seekPoint.millis());
+        assertTrue(seekPoint.millis() <= millis);
+    }
+
+    @Test
+    public void build_withJunkBetweenFrames_shouldResync() throws Exception {
+        // GIVEN a file with some junk bytes in the middle of the frame sequence:
+        File file = TestAudioFiles.writeFile(tempDir, "junk.mp3", frames(40), new byte[]{1, 2, 3, 4, 5}, frames(40));
+
+        // WHEN we index it:
+        Mp3SeekIndex index = Mp3SeekIndex.build(file);
+
+        // THEN all 80 frames should still be found:
+        assertEquals(80L * 1152 * 1000 / 44100, index.getDurationMillis());
+        assertEquals(3, index.size()); // frames 0, 32, 64
+    }
+
+    @Test
+    public void build_withXingToc_shouldScanFramesInstead() throws Exception {
+        // GIVEN a file whose first frame holds a Xing tag with a linear TOC:
+        int frameCount = 50;
+        File file = TestAudioFiles.writeFile(tempDir, "xing.mp3",
+                                             xingFrame(frameCount, (frameCount + 1) * FRAME_LENGTH),
+                                             frames(frameCount));
+
+        // WHEN we index it:
+        Mp3SeekIndex index = Mp3SeekIndex.build(file);
+
+        // THEN the TOC should be ignored in favour of the frame headers, tag frame included:
+        assertNotNull(index);
+        assertFalse(index.isFromToc());
+        assertEquals(2, index.size()); // frames 0 and 32
+        assertEquals((frameCount + 1) * 1152L * 1000 / 44100, index.getDurationMillis());
+    }
+
+    @Test
+    public void seekPointFor_withXingToc_shouldLandOnExactFrame() throws Exception {
+        // GIVEN a LAME-style CBR file: an Info tag, then frames that are padded now and then,
+        // so the TOC's positions (1/256 of the audio size) fall in the middle of frames:
+        int frameCount = 500;
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        Map<Long, Long> pcmFrameAtOffset = new HashMap<>();
+        long offset = FRAME_LENGTH; // after the Info frame
+        pcmFrameAtOffset.put(0L, 0L);
+        for (int i = 0; i < frameCount; i++) {
+            boolean padded = i % 3 == 0;
+            byte[] frame = new byte[padded ? FRAME_LENGTH + 1 : FRAME_LENGTH];
+            System.arraycopy(padded ? PADDED_FRAME_HEADER : FRAME_HEADER, 0, frame, 0, 4);
+            pcmFrameAtOffset.put(offset, (i + 1) * 1152L);
+            audio.write(frame);
+            offset += frame.length;
+        }
+        File file = TestAudioFiles.writeFile(tempDir, "info.mp3",
+                                             xingFrame(frameCount, (int) offset), audio.toByteArray());
+        Mp3SeekIndex index = Mp3SeekIndex.build(file);
+
+        for (long target = 0; target < frameCount * 1152L; target += 12345) {
+            // WHEN we seek to that position:
+            Mp3SeekIndex.SeekPoint seekPoint = index.seekPointForFrame(target);
+
+            // THEN decoding should start on a real frame, and that frame really should start at
+            // the PCM position we're told, which shouldn't be far short of the target:
+            Long actualPcmFrame = pcmFrameAtOffset.get(seekPoint.byteOffset());
+            assertNotNull(actualPcmFrame, "Offset " + seekPoint.byteOffset() + " is not a frame boundary");
+            assertEquals(actualPcmFrame.longValue(), seekPoint.pcmFrame());
+            assertTrue(seekPoint.pcmFrame() <= target);
+            assertTrue(target - seekPoint.pcmFrame() < Mp3SeekIndex.STRIDE * 1152L);
+        }
+    }
+
+    @Test
+    public void forFile_withNonMp3_shouldReturnNull() throws Exception {
+        File file = TestAudioFiles.writeFile(tempDir, "not-an-mp3.wav", frames(10));
+        assertNull(Mp3SeekIndex.forFile(file));
+    }
+
+    @Test
+    public void forFile_calledTwice_shouldReturnCachedIndex() throws Exception {
+        // GIVEN an mp3 that we index once:
+        File file = TestAudioFiles.writeFile(tempDir, "cached.mp3", frames(10));
+        Mp3SeekIndex first = Mp3SeekIndex.forFile(file);
+
+        // WHEN we ask again:
+        Mp3SeekIndex second = Mp3SeekIndex.forFile(file);
+
+        // THEN we should get the very same instance:
+        assertNotNull(first);
+        assertSame(first, second);
+    }
+
+    private static byte[] id3Tag() {
+        // An ID3v2.3 header claiming (ID3_LENGTH - 10) bytes of (empty) tag data:
+        byte[] tag = new byte[ID3_LENGTH];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 3;
+        tag[9] = (byte) (ID3_LENGTH - 10);
+        return tag;
+    }
+
+    /**
+     * A frame holding a Xing tag with frame count, byte count and a linear TOC.
+     */
+    private static byte[] xingFrame(int frameCount, int byteCount) {
+        byte[] xingFrame = frames(1);
+        int pos = 4 + 32;
+        System.arraycopy("Xing".getBytes(), 0, xingFrame, pos, 4);
+        TestAudioFiles.writeInt(xingFrame, pos + 4, 0x7); // frames, bytes and TOC present
+        TestAudioFiles.writeInt(xingFrame, pos + 8, frameCount);
+        TestAudioFiles.writeInt(xingFrame, pos + 12, byteCount);
+        for (int i = 0; i < 100; i++) {
+            xingFrame[pos + 16 + i] = (byte) (i * 256 / 100);
+        }
+        return xingFrame;
+    }
+
+    private static byte[] frames(int count) {
+        byte[] data = new byte[count * FRAME_LENGTH];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(FRAME_HEADER, 0, data, i * FRAME_LENGTH, 4);
+        }
+        return data;
+    }
+}
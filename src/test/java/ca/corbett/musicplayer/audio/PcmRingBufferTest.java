@@ -0,0 +1,154 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PcmRingBufferTest {
+
+    @Test
+    public void constructor_withTooShallowDepth_shouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> new PcmRingBuffer(1, 16));
+    }
+
+    @Test
+    public void peek_withEmptyRing_shouldReturnNull() {
+        // GIVEN a brand new ring:
+        PcmRingBuffer ring = new PcmRingBuffer(4, 16);
+
+        // THEN there should be nothing to read:
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void claim_withFullRing_shouldReturnNull() {
+        // GIVEN a ring that we fill to capacity:
+        PcmRingBuffer ring = new PcmRingBuffer(3, 16);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(ring.claim());
+            ring.publish(16);
+        }
+
+        // THEN there should be no more room:
+        assertNull(ring.claim());
+        assertEquals(3, ring.size());
+
+        // WHEN we consume one slot:
+        ring.peek();
+        ring.release();
+
+        // THEN there should be room for exactly one more:
+        assertNotNull(ring.claim());
+    }
+
+    @Test
+    public void publishAndPeek_shouldPreserveOrderAndLength() {
+        // GIVEN a ring with some published data:
+        PcmRingBuffer ring = new PcmRingBuffer(2, 4);
+        byte[] slot = ring.claim();
+        slot[0] = 1;
+        slot[1] = 2;
+        ring.publish(2);
+        slot = ring.claim();
+        slot[0] = 3;
+        ring.publish(1);
+
+        // WHEN we read it back:
+        byte[] first = ring.peek();
+        int firstLength = ring.getPeekedLength();
+        byte[] firstCopy = {first[0], first[1]};
+        ring.release();
+        byte[] second = ring.peek();
+        int secondLength = ring.getPeekedLength();
+        ring.release();
+
+        // THEN we should get it back in order:
+        assertEquals(2, firstLength);
+        assertArrayEquals(new byte[]{1, 2}, firstCopy);
+        assertEquals(1, secondLength);
+        assertEquals(3, second[0]);
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void claim_afterWrapAround_shouldReuseSlotBuffers() {
+        // GIVEN a ring that we cycle all the way around:
+        PcmRingBuffer ring = new PcmRingBuffer(2, 8);
+        byte[] firstSlot = ring.claim();
+        ring.publish(8);
+        ring.peek();
+        ring.release();
+        ring.claim();
+        ring.publish(8);
+        ring.peek();
+        ring.release();
+
+        // THEN the next claim should hand back the very first buffer (no allocation):
+        assertSame(firstSlot, ring.claim());
+    }
+
+    @Test
+    public void releaseAll_shouldEmptyTheRing() {
+        // GIVEN a ring with published data:
+        PcmRingBuffer ring = new PcmRingBuffer(4, 8);
+        for (int i = 0; i < 3; i++) {
+            ring.claim();
+            ring.publish(8);
+        }
+
+        // WHEN we release everything:
+        ring.releaseAll();
+
+        // THEN it should be empty:
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void producerAndConsumer_onSeparateThreads_shouldTransferAllBytesInOrder() throws Exception {
+        // GIVEN a producer thread that pushes a known sequence through a small ring:
+        final int total = 100_000;
+        PcmRingBuffer ring = new PcmRingBuffer(4, 64);
+        Thread producer = new Thread(() -> {
+            int next = 0;
+            while (next < total) {
+                byte[] slot = ring.claim();
+                if (slot == null) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int length = Math.min(slot.length, total - next);
+                for (int i = 0; i < length; i++) {
+                    slot[i] = (byte) (next++);
+                }
+                ring.publish(length);
+            }
+        });
+        producer.start();
+
+        // WHEN we consume on this thread:
+        int expected = 0;
+        while (expected < total) {
+            byte[] slot = ring.peek();
+            if (slot == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int length = ring.getPeekedLength();
+            for (int i = 0; i < length; i++) {
+                // THEN every byte should arrive, in order:
+                assertEquals((byte) expected++, slot[i]);
+            }
+            ring.release();
+        }
+        producer.join(5000);
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,77 @@
+package ca.corbett.musicplayer.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+
+/**
+ * Compares the 16-bit fast path in PeakExtractor against the general scalar decoder.
+ * Each operation scans one MiB of PCM, so the reported ops/s is directly MiB/s.
+ * This isn't a unit test and won't be picked up by surefire. To run it:
+ * <pre>
+ *     mvn test-compile
+ *     mvn exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *         "-Dexec.args=-cp %classpath ca.corbett.musicplayer.audio.PeakExtractorBenchmark"
+ * </pre>
+ * Note that exec:java won't work here: JMH runs each benchmark in a forked JVM, and under
+ * exec:java that fork gets Maven's own classpath instead of ours, so it can't find anything.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeakExtractorBenchmark {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private byte[] buffer;
+    private PeakExtractor fast;
+    private PeakExtractor scalar;
+    private WaveformPeaks peaks;
+
+    @Setup
+    public void setup() {
+        AudioFormat format = new AudioFormat(44100f, 16, channels, true, false);
+        buffer = new byte[BUFFER_SIZE];
+        new Random(42).nextBytes(buffer);
+        fast = PeakExtractor.forFormat(format, 512);
+        scalar = PeakExtractor.scalar(format, 512);
+
+        // Keep the bucket storage small and bounded so we're measuring extraction, not allocation:
+        peaks = new WaveformPeaks(channels, 44100f, 512, 64 * 1024);
+    }
+
+    @Benchmark
+    public int fastPath() {
+        return fast.process(buffer, buffer.length, peaks);
+    }
+
+    @Benchmark
+    public int scalarPath() {
+        return scalar.process(buffer, buffer.length, peaks);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PeakExtractorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,125 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeakExtractorTest {
+
+    @Test
+    public void forFormat_with16BitLittleEndian_shouldUseFastPath() {
+        assertTrue(PeakExtractor.forFormat(new AudioFormat(44100f, 16, 2, true, false), 512).isFastPath());
+        assertFalse(PeakExtractor.forFormat(new AudioFormat(44100f, 16, 2, true, true), 512).isFastPath());
+        assertFalse(PeakExtractor.forFormat(new AudioFormat(44100f, 24, 2, true, false), 512).isFastPath());
+        assertFalse(PeakExtractor.forFormat(new AudioFormat(44100f, 8, 1, false, false), 512).isFastPath());
+    }
+
+    @Test
+    public void process_stereo_shouldMatchScalar() {
+        assertFastPathMatchesScalar(2, 512);
+    }
+
+    @Test
+    public void process_mono_shouldMatchScalar() {
+        assertFastPathMatchesScalar(1, 512);
+    }
+
+    @Test
+    public void process_multiChannel_shouldMatchScalar() {
+        assertFastPathMatchesScalar(6, 100);
+    }
+
+    @Test
+    public void process_withBucketsSpanningBuffers_shouldMatchScalar() {
+        // 333 frames per bucket never lines up with our buffer size:
+        assertFastPathMatchesScalar(2, 333);
+    }
+
+    @Test
+    public void process_withMostNegativeSample_shouldClampToShortMax() {
+        // GIVEN one bucket of stereo audio containing -32768 on the left:
+        AudioFormat format = new AudioFormat(44100f, 16, 2, true, false);
+        byte[] buffer = new byte[4 * 4];
+        buffer[4] = 0x00;
+        buffer[5] = (byte) 0x80; // -32768 little-endian
+        buffer[14] = 0x34;
+        buffer[15] = 0x12; // 0x1234 on the right
+
+        // WHEN we extract peaks:
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 4);
+        int added = PeakExtractor.forFormat(format, 4).process(buffer, buffer.length, peaks);
+
+        // THEN we should get exactly one bucket with the clamped magnitude:
+        assertEquals(1, added);
+        assertEquals(Short.MAX_VALUE, peaks.view().getPeak(0, 0));
+        assertEquals(0x1234, peaks.view().getPeak(0, 1));
+    }
+
+    @Test
+    public void finish_withPartialBucket_shouldAddIt() {
+        AudioFormat format = new AudioFormat(44100f, 16, 1, true, false);
+        byte[] buffer = new byte[]{0x10, 0x00, 0x20, 0x00, 0x30, 0x00};
+        WaveformPeaks peaks = new WaveformPeaks(1, 44100f, 2);
+        PeakExtractor extractor = PeakExtractor.forFormat(format, 2);
+
+        assertEquals(1, extractor.process(buffer, buffer.length, peaks));
+        extractor.finish(peaks);
+
+        assertEquals(2, peaks.view().getBucketCount());
+        assertEquals(0x20, peaks.view().getPeak(0, 0));
+        assertEquals(0x30, peaks.view().getPeak(1, 0));
+    }
+
+    @Test
+    public void process_unsigned8Bit_shouldScaleTo16Bits() {
+        AudioFormat format = new AudioFormat(8000f, 8, 1, false, false);
+        byte[] buffer = new byte[]{(byte) 128, (byte) 0, (byte) 200};
+        WaveformPeaks peaks = new WaveformPeaks(1, 8000f, 3);
+
+        PeakExtractor.forFormat(format, 3).process(buffer, buffer.length, peaks);
+
+        // 0 is 128 below the unsigned midpoint, which scales to 32768 and is clamped:
+        assertEquals(Short.MAX_VALUE, peaks.view().getPeak(0, 0));
+    }
+
+    private static void assertFastPathMatchesScalar(int channels, int framesPerBucket) {
+        // GIVEN random 16-bit PCM fed through in awkwardly sized reads:
+        AudioFormat format = new AudioFormat(44100f, 16, channels, true, false);
+        Random random = new Random(channels * 31L + framesPerBucket);
+        byte[] audio = new byte[channels * 2 * 20_011];
+        random.nextBytes(audio);
+        WaveformPeaks fastPeaks = new WaveformPeaks(channels, 44100f, framesPerBucket);
+        WaveformPeaks scalarPeaks = new WaveformPeaks(channels, 44100f, framesPerBucket);
+        PeakExtractor fast = PeakExtractor.forFormat(format, framesPerBucket);
+        PeakExtractor scalar = PeakExtractor.scalar(format, framesPerBucket);
+        assertTrue(fast.isFastPath());
+        assertFalse(scalar.isFastPath());
+
+        // WHEN we extract peaks with both the fast path and the scalar decoder:
+        int frameSize = channels * 2;
+        int chunk = frameSize * 777;
+        byte[] buffer = new byte[chunk];
+        for (int offset = 0; offset < audio.length; offset += chunk) {
+            int length = Math.min(chunk, audio.length - offset);
+            System.arraycopy(audio, offset, buffer, 0, length);
+            assertEquals(scalar.process(buffer, length, scalarPeaks), fast.process(buffer, length, fastPeaks));
+        }
+        fast.finish(fastPeaks);
+        scalar.finish(scalarPeaks);
+
+        // THEN the results should be identical:
+        WaveformPeaks.View expected = scalarPeaks.view();
+        WaveformPeaks.View actual = fastPeaks.view();
+        assertEquals(expected.getBucketCount(), actual.getBucketCount());
+        for (int i = 0; i < expected.getBucketCount(); i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                assertEquals(expected.getPeak(i, ch), actual.getPeak(i, ch), "bucket " + i + " channel " + ch);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaybackEngineTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+
+    @TempDir
+    File tempDir;
+
+    @BeforeEach
+    public void setup() {
+        // No sound card required - discard the audio as fast as it's decoded:
+        System.setProperty("AUDIO_SINK", AudioSink.Type.NULL_FAST.getKey());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty("AUDIO_SINK");
+        System.clearProperty("AUDIO_SINK_FILE");
+        OutputLinePool.getInstance().closeAll();
+    }
+
+    @Test
+    public void start_withNullSink_shouldPlayToTheEnd() throws Exception {
+        // GIVEN an engine with one second of audio:
+        RecordingListener listener = new RecordingListener();
+        PlaybackEngine engine = new PlaybackEngine(TestAudioFiles.createStream(FORMAT, 44100), 0, 4, listener);
+
+        // WHEN we play it:
+        engine.start();
+
+        // THEN it should finish on its own, having played every frame:
+        assertTrue(listener.stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(PlaybackEngine.StopReason.FINISHED, listener.stopReason.get());
+        assertEquals(44100, engine.getFramesDecoded());
+        assertEquals(1000, engine.getCurrentOffset());
+        assertTrue(engine.getFirstFrameLatencyMillis() >= 0);
+    }
+
+    @Test
+    public void start_withOffset_shouldReportPositionFromOffset() throws Exception {
+        // GIVEN an engine for a stream that begins 5 seconds into the track:
+        RecordingListener listener = new RecordingListener();
+        PlaybackEngine engine = new PlaybackEngine(TestAudioFiles.createStream(FORMAT, 4410), 5000, 4, listener);
+
+        // WHEN we play it to the end:
+        engine.start();
+        assertTrue(listener.stopped.await(5, TimeUnit.SECONDS));
+
+        // THEN the position should account for the offset:
+        assertEquals(5100, engine.getCurrentOffset());
+    }
+
+    @Test
+    public void start_twiceInSameFormat_shouldReuseSink() throws Exception {
+        // GIVEN two tracks played one after the other:
+        OutputLinePool pool = OutputLinePool.getInstance();
+        long reusedBefore = pool.getLinesReused();
+        long openedBefore = pool.getLinesOpened();
+        for (int i = 0; i < 2; i++) {
+            RecordingListener listener = new RecordingListener();
+            new PlaybackEngine(TestAudioFiles.createStream(FORMAT, 4410), 0, 4, listener).start();
+            assertTrue(listener.stopped.await(5, TimeUnit.SECONDS));
+        }
+
+        // THEN only the first should have opened a sink:
+        assertEquals(openedBefore + 1, pool.getLinesOpened());
+        assertEquals(reusedBefore + 1, pool.getLinesReused());
+    }
+
+    @Test
+    public void queueNext_shouldJoinStreamsWithoutSilentFrames() throws Exception {
+        // GIVEN an engine writing to a WAV file, with a second track queued up behind the first:
+        File file = new File(tempDir, "gapless.wav");
+        System.setProperty("AUDIO_SINK", AudioSink.Type.WAV_FILE.getKey());
+        System.setProperty("AUDIO_SINK_FILE", file.getAbsolutePath());
+        OutputLinePool.getInstance().closeAll();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        PlaybackEngine engine = new PlaybackEngine(TestAudioFiles.createStream(FORMAT, 10000), 0, 4, first);
+        assertTrue(engine.queueNext(TestAudioFiles.createStream(FORMAT, 22050), second));
+
+        // WHEN we play it:
+        engine.start();
+        assertTrue(second.stopped.await(5, TimeUnit.SECONDS));
+        OutputLinePool.getInstance().closeAll();
+
+        // THEN the first track should have handed over to the second:
+        assertEquals(PlaybackEngine.StopReason.CONTINUED, first.stopReason.get());
+        assertEquals(0, second.started.getCount());
+        assertEquals(PlaybackEngine.StopReason.FINISHED, second.stopReason.get());
+        assertEquals(500, engine.getCurrentOffset());
+
+        // THEN the output should hold both tracks back to back, with not a single silent frame between them:
+        byte[] pcm;
+        try (AudioInputStream stream = AudioSystem.getAudioInputStream(file)) {
+            assertEquals(10000 + 22050, stream.getFrameLength());
+            pcm = stream.readAllBytes();
+        }
+        int silentFrames = 0;
+        for (int frame = 0; frame < pcm.length; frame += FORMAT.getFrameSize()) {
+            boolean silent = true;
+            for (int i = frame; i < frame + FORMAT.getFrameSize(); i++) {
+                silent &= pcm[i] == 0;
+            }
+            silentFrames += silent ? 1 : 0;
+        }
+        assertEquals(0, silentFrames);
+    }
+
+    @Test
+    public void queueNext_withDifferentFormat_shouldRefuse() throws Exception {
+        // GIVEN an engine for a 44.1kHz stream:
+        RecordingListener listener = new RecordingListener();
+        PlaybackEngine engine = new PlaybackEngine(TestAudioFiles.createStream(FORMAT, 4410), 0, 4, listener);
+
+        // WHEN we try to queue up a 48kHz stream behind it:
+        AudioFormat other = new AudioFormat(48000f, 16, 2, true, false);
+        boolean queued = engine.queueNext(TestAudioFiles.createStream(other, 4800), new RecordingListener());
+
+        // THEN it should be refused, and the engine should just finish its own stream:
+        assertFalse(queued);
+        engine.start();
+        assertTrue(listener.stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(PlaybackEngine.StopReason.FINISHED, listener.stopReason.get());
+    }
+
+    @Test
+    public void pause_shouldHoldPositionUntilResumed() throws Exception {
+        // GIVEN an engine playing a couple of seconds of audio in real time:
+        System.setProperty("AUDIO_SINK", AudioSink.Type.NULL_REALTIME.getKey());
+        RecordingListener listener = new RecordingListener();
+        PlaybackEngine engine = new PlaybackEngine(TestAudioFiles.createStream(FORMAT, 88200), 0, 4, listener);
+        engine.start();
+        Thread.sleep(100);
+
+        // WHEN we pause it:
+        engine.pause();
+        long pausedAt = engine.getCurrentOffset();
+        Thread.sleep(100);
+
+        // THEN the position should not move while paused:
+        assertTrue(engine.isPaused());
+        assertEquals(pausedAt, engine.getCurrentOffset());
+
+        // WHEN we resume:
+        engine.resume();
+
+        // THEN it should play through to the end:
+        assertTrue(listener.stopped.await(5, TimeUnit.SECONDS));
+        assertEquals(PlaybackEngine.StopReason.FINISHED, listener.stopReason.get());
+    }
+
+    private static class RecordingListener implements PlaybackEngine.Listener {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicReference<PlaybackEngine.StopReason> stopReason = new AtomicReference<>();
+
+        @Override
+        public void started() {
+            started.countDown();
+        }
+
+        @Override
+        public void stopped(PlaybackEngine.StopReason reason) {
+            stopReason.set(reason);
+            stopped.countDown();
+        }
+
+        @Override
+        public boolean updateProgress(long curMillis, long totalMillis) {
+            return true;
+        }
+    }
+}
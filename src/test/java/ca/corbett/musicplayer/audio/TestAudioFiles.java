@@ -0,0 +1,75 @@
+package ca.corbett.musicplayer.audio;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Builds the audio streams and files that our tests feed to the code under test.
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public final class TestAudioFiles {
+
+    private TestAudioFiles() {
+    }
+
+    /**
+     * Writes a 16 bit stereo wav file of the given length to the given directory. The content is
+     * noise, which is the same every time for a given length.
+     */
+    public static File createWavFile(File dir, float sampleRate, int seconds) throws IOException {
+        AudioFormat format = new AudioFormat(sampleRate, 16, 2, true, false);
+        int frames = (int) (seconds * sampleRate);
+        byte[] pcm = new byte[frames * format.getFrameSize()];
+        new Random(seconds).nextBytes(pcm);
+        File file = new File(dir, "track" + seconds + ".wav");
+        try (AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(pcm), format, frames)) {
+            AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+        }
+        return file;
+    }
+
+    /**
+     * Returns an in-memory 16 bit stream of the given number of frames. No frame in it is completely
+     * silent, so a gap in the output is easy to spot.
+     */
+    public static AudioInputStream createStream(AudioFormat format, int frames) {
+        byte[] pcm = new byte[frames * format.getFrameSize()];
+        for (int i = 0; i < pcm.length; i += 2) {
+            pcm[i + 1] = (byte) (i % 97);
+        }
+        return new AudioInputStream(new ByteArrayInputStream(pcm), format, frames);
+    }
+
+    /**
+     * Writes the given value big-endian into four bytes of the given buffer.
+     */
+    public static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Writes the given parts, one after another, to a file of the given name in the given directory.
+     */
+    public static File writeFile(File dir, String name, byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        File file = new File(dir, name);
+        Files.write(file.toPath(), out.toByteArray());
+        return file;
+    }
+}
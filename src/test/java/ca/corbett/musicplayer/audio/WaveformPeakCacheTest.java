@@ -0,0 +1,225 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaveformPeakCacheTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void quantize_shouldRoundTripWithinTolerance() {
+        for (int peak = 0; peak <= Short.MAX_VALUE; peak += 97) {
+            int restored = WaveformPeakCache.dequantize(WaveformPeakCache.quantize(peak));
+
+            // Square-root companding: the error grows with the amplitude, but stays small:
+            assertTrue(Math.abs(restored - peak) <= 1 + Math.sqrt(peak) * 2, "peak " + peak + " came back as " + restored);
+        }
+        assertEquals(0, WaveformPeakCache.dequantize(WaveformPeakCache.quantize(0)));
+        assertEquals(Short.MAX_VALUE, WaveformPeakCache.dequantize(WaveformPeakCache.quantize(Short.MAX_VALUE)));
+    }
+
+    @Test
+    public void storeAndLoad_shouldRoundTripPeaks() throws Exception {
+        // GIVEN a cache and some completed peaks for a source file:
+        WaveformPeakCache cache = new WaveformPeakCache(new File(tempDir, "cache"), () -> 1024L * 1024L);
+        File source = createSourceFile("track.mp3");
+        WaveformPeaks peaks = createPeaks(100);
+
+        // WHEN we store and then load them:
+        cache.store(source, peaks);
+        WaveformPeaks loaded = cache.load(source);
+
+        // THEN we should get back equivalent peaks:
+        assertNotNull(loaded);
+        assertTrue(loaded.isComplete());
+        assertEquals(2, loaded.getChannels());
+        assertEquals(44100f, loaded.getSampleRate());
+        assertEquals(512, loaded.getFramesPerBucket());
+        assertEquals(100, loaded.getBucketCount());
+        assertEquals(Short.MAX_VALUE, loaded.snapshotByChannel()[0][99]);
+    }
+
+    @Test
+    public void store_withIncompletePeaks_shouldNotCache() throws Exception {
+        WaveformPeakCache cache = new WaveformPeakCache(new File(tempDir, "cache"), () -> 1024L * 1024L);
+        File source = createSourceFile("track.mp3");
+        WaveformPeaks peaks = createPeaks(10);
+        peaks.setComplete(false);
+
+        cache.store(source, peaks);
+
+        assertNull(cache.load(source));
+    }
+
+    @Test
+    public void load_afterSourceFileChanges_shouldMiss() throws Exception {
+        // GIVEN a cached track:
+        WaveformPeakCache cache = new WaveformPeakCache(new File(tempDir, "cache"), () -> 1024L * 1024L);
+        File source = createSourceFile("track.mp3");
+        cache.store(source, createPeaks(10));
+
+        // WHEN the source file is modified:
+        Files.write(source.toPath(), new byte[]{1, 2, 3, 4, 5});
+
+        // THEN the old entry should no longer be used:
+        assertNull(cache.load(source));
+    }
+
+    @Test
+    public void store_pastSizeLimit_shouldEvictLeastRecentlyUsed() throws Exception {
+        // GIVEN a cache with room for only about two entries:
+        WaveformPeakCache cache = new WaveformPeakCache(new File(tempDir, "cache"), () -> 2500L);
+        File first = createSourceFile("first.mp3");
+        File second = createSourceFile("second.mp3");
+        File third = createSourceFile("third.mp3");
+        cache.store(first, createPeaks(500));
+        new File(tempDir, "cache").listFiles()[0].setLastModified(System.currentTimeMillis() - 60_000);
+        cache.store(second, createPeaks(500));
+
+        // WHEN we add a third:
+        cache.store(third, createPeaks(500));
+
+        // THEN the oldest should have been evicted:
+        assertTrue(cache.getTotalBytes() <= 2500L);
+        assertNull(cache.load(first));
+        assertNotNull(cache.load(third));
+    }
+
+    @Test
+    public void touch_shouldProtectEntryFromEviction() throws Exception {
+        // GIVEN a cache with room for only about two entries, both of them a while old:
+        File cacheDir = new File(tempDir, "cache");
+        WaveformPeakCache cache = new WaveformPeakCache(cacheDir, () -> 2500L);
+        File first = createSourceFile("first.mp3");
+        File second = createSourceFile("second.mp3");
+        File third = createSourceFile("third.mp3");
+        cache.store(first, createPeaks(500));
+        cacheDir.listFiles()[0].setLastModified(System.currentTimeMillis() - 60_000);
+        cache.store(second, createPeaks(500));
+        for (File entry : cacheDir.listFiles()) {
+            if (entry.lastModified() > System.currentTimeMillis() - 50_000) {
+                entry.setLastModified(System.currentTimeMillis() - 30_000);
+            }
+        }
+
+        // WHEN we touch the oldest one before adding a third:
+        assertTrue(cache.touch(first));
+        assertFalse(cache.touch(third));
+        cache.store(third, createPeaks(500));
+
+        // THEN the other one should have been evicted instead:
+        assertNotNull(cache.load(first));
+        assertNull(cache.load(second));
+    }
+
+    @Test
+    public void estimateCapacity_shouldGoByAverageEntrySize() throws Exception {
+        // GIVEN an empty 4MB cache, and a disabled one:
+        long limit = 4L * 1024 * 1024;
+        WaveformPeakCache cache = new WaveformPeakCache(new File(tempDir, "cache"), () -> limit);
+        WaveformPeakCache disabled = new WaveformPeakCache(new File(tempDir, "disabled"), () -> 0L);
+
+        // THEN the empty one should assume typical entries, and the disabled one can't hold anything:
+        assertEquals(102, cache.estimateCapacity());
+        assertEquals(0, disabled.estimateCapacity());
+
+        // WHEN we store an entry:
+        cache.store(createSourceFile("track.mp3"), createPeaks(1000));
+
+        // THEN the estimate should go by the size of that entry instead:
+        assertEquals(limit / cache.getTotalBytes(), cache.estimateCapacity());
+    }
+
+    @Test
+    public void store_withConcurrentWritersForSameTrack_shouldAllSucceed() throws Exception {
+        // GIVEN several threads that all want to cache the same track at the same moment:
+        File cacheDir = new File(tempDir, "cache");
+        WaveformPeakCache cache = new WaveformPeakCache(cacheDir, () -> 1024L * 1024L);
+        File source = createSourceFile("track.mp3");
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    cache.store(source, createPeaks(5000));
+                }
+                catch (InterruptedException ignored) {
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+
+        // WHEN they all write:
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // THEN we should end up with one good entry, and no temp files left over:
+        assertNotNull(cache.load(source));
+        assertEquals(1, cacheDir.listFiles().length);
+        assertEquals(cacheDir.listFiles()[0].length(), cache.getTotalBytes());
+    }
+
+    @Test
+    public void getTotalBytes_withStaleTempFile_shouldDeleteIt() throws Exception {
+        // GIVEN a cache directory with a temp file left behind by a write that never finished:
+        File cacheDir = new File(tempDir, "cache");
+        cacheDir.mkdirs();
+        File stale = new File(cacheDir, "abc.peaks.123.tmp");
+        Files.write(stale.toPath(), new byte[1000]);
+        stale.setLastModified(System.currentTimeMillis() - 60 * 60 * 1000L);
+        File recent = new File(cacheDir, "def.peaks.456.tmp");
+        Files.write(recent.toPath(), new byte[1000]);
+
+        // WHEN a new cache instance works out its size:
+        WaveformPeakCache cache = new WaveformPeakCache(cacheDir, () -> 1024L * 1024L);
+        long total = cache.getTotalBytes();
+
+        // THEN the stale file should be gone, but one that might still be being written is left alone:
+        assertEquals(0L, total);
+        assertFalse(stale.exists());
+        assertTrue(recent.exists());
+    }
+
+    @Test
+    public void load_withCacheDisabled_shouldMiss() throws Exception {
+        WaveformPeakCache cache = new WaveformPeakCache(new File(tempDir, "cache"), () -> 0L);
+        File source = createSourceFile("track.mp3");
+        cache.store(source, createPeaks(10));
+        assertNull(cache.load(source));
+        assertFalse(new File(tempDir, "cache").exists());
+    }
+
+    private File createSourceFile(String name) throws Exception {
+        File file = new File(tempDir, name);
+        Files.write(file.toPath(), name.getBytes());
+        return file;
+    }
+
+    private static WaveformPeaks createPeaks(int bucketCount) {
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        for (int i = 0; i < bucketCount; i++) {
+            short value = (short) (i == bucketCount - 1 ? Short.MAX_VALUE : i * 30);
+            peaks.addBucket(new short[]{value, (short) (value / 2)});
+        }
+        peaks.setComplete(true);
+        return peaks;
+    }
+}
@@ -0,0 +1,198 @@
+package ca.corbett.musicplayer.audio;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaveformPeaksTest {
+
+    @Test
+    public void addBucket_shouldBuildPyramidIncrementally() {
+        // GIVEN peaks with a handful of buckets:
+        WaveformPeaks peaks = new WaveformPeaks(1, 44100f, 512);
+
+        // WHEN we add buckets one at a time:
+        for (int i = 1; i <= 9; i++) {
+            peaks.addBucket(new short[]{(short) (i * 100)});
+        }
+
+        // THEN each level should have half the buckets of the level below it:
+        assertEquals(4, peaks.getLevelCount());
+        assertEquals(9, peaks.getBucketCount(0));
+        assertEquals(4, peaks.getBucketCount(1));
+        assertEquals(2, peaks.getBucketCount(2));
+        assertEquals(1, peaks.getBucketCount(3));
+        assertEquals(0, peaks.getBucketCount(4));
+    }
+
+    @Test
+    public void addBucket_shouldAggregateMaxMinAndRms() {
+        // GIVEN two buckets with known peaks:
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        peaks.addBucket(new short[]{300, 0});
+        peaks.addBucket(new short[]{400, 1000});
+
+        // THEN their parent should hold the max, min and rms of the pair:
+        assertEquals(400, peaks.getStat(1, 0, 0, WaveformPeaks.STAT_MAX));
+        assertEquals(300, peaks.getStat(1, 0, 0, WaveformPeaks.STAT_MIN));
+        assertEquals(354, peaks.getStat(1, 0, 0, WaveformPeaks.STAT_RMS)); // sqrt((300^2 + 400^2) / 2)
+        assertEquals(1000, peaks.getStat(1, 0, 1, WaveformPeaks.STAT_MAX));
+        assertEquals(0, peaks.getStat(1, 0, 1, WaveformPeaks.STAT_MIN));
+    }
+
+    @Test
+    public void addBucket_withMonoInput_shouldMirrorIntoAllChannels() {
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        peaks.addBucket(new short[]{1234});
+
+        int[][] data = peaks.snapshotByChannel();
+        assertEquals(1234, data[0][0]);
+        assertEquals(1234, data[1][0]);
+    }
+
+    @Test
+    public void aggregate_shouldMatchBruteForce() {
+        // GIVEN an odd number of buckets with varied peaks, so that ranges straddle pyramid boundaries:
+        WaveformPeaks peaks = new WaveformPeaks(1, 44100f, 512);
+        int bucketCount = 1001;
+        int[] raw = new int[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            raw[i] = (i * 7919) % 30000;
+            peaks.addBucket(new short[]{(short) raw[i]});
+        }
+
+        // WHEN we reduce an unaligned range to a number of columns:
+        int start = 13;
+        int end = 997;
+        int columns = 37;
+        short[] max = new short[columns];
+        short[] min = new short[columns];
+        short[] rms = new short[columns];
+        peaks.aggregate(0, start, end, max, min, rms);
+
+        // THEN each column should match what we get by walking every bucket:
+        double perColumn = (end - start) / (double) columns;
+        for (int c = 0; c < columns; c++) {
+            int from = start + (int) (c * perColumn);
+            int to = start + (int) ((c + 1) * perColumn);
+            int expectedMax = 0;
+            int expectedMin = Integer.MAX_VALUE;
+            double sumSquares = 0;
+            for (int i = from; i < to; i++) {
+                expectedMax = Math.max(expectedMax, raw[i]);
+                expectedMin = Math.min(expectedMin, raw[i]);
+                sumSquares += (double) raw[i] * raw[i];
+            }
+            assertEquals(expectedMax, max[c], "max of column " + c);
+            assertEquals(expectedMin, min[c], "min of column " + c);
+
+            // Pyramid RMS values are rounded at each level, so allow a little slack:
+            int expectedRms = (int) Math.round(Math.sqrt(sumSquares / (to - from)));
+            assertEquals(expectedRms, rms[c], 8, "rms of column " + c);
+        }
+    }
+
+    @Test
+    public void aggregate_withMoreColumnsThanBuckets_shouldRepeatBuckets() {
+        WaveformPeaks peaks = new WaveformPeaks(1, 44100f, 512);
+        peaks.addBucket(new short[]{100});
+        peaks.addBucket(new short[]{200});
+
+        short[] max = new short[4];
+        peaks.aggregate(0, 0, 2, max, null, null);
+
+        assertEquals(100, max[0]);
+        assertEquals(100, max[1]);
+        assertEquals(200, max[2]);
+        assertEquals(200, max[3]);
+    }
+
+    @Test
+    public void view_shouldNotSeeLaterBuckets() {
+        // GIVEN a view taken part way through:
+        WaveformPeaks peaks = new WaveformPeaks(1, 44100f, 512);
+        for (int i = 0; i < 5000; i++) {
+            peaks.addBucket(new short[]{(short) i});
+        }
+        WaveformPeaks.View view = peaks.view();
+
+        // WHEN more buckets are added, spilling into new chunks:
+        for (int i = 5000; i < 10000; i++) {
+            peaks.addBucket(new short[]{(short) i});
+        }
+
+        // THEN the view should be unchanged:
+        assertEquals(5000, view.getBucketCount());
+        assertEquals(4999, view.getPeak(4999, 0));
+        assertEquals(10000, peaks.getBucketCount());
+        assertEquals(9999, peaks.view().getPeak(9999, 0));
+    }
+
+    @Test
+    public void addBucket_pastMemoryLimit_shouldReduceResolution() {
+        // GIVEN peaks with a small memory budget:
+        long maxBytes = 64 * 1024;
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512, maxBytes);
+
+        // WHEN we add far more buckets than fit in that budget:
+        int added = 100_000;
+        for (int i = 0; i < added; i++) {
+            peaks.addBucket(new short[]{(short) (i % 1000), (short) (i % 500)});
+        }
+        peaks.setComplete(true);
+
+        // THEN we should have stayed within budget by merging buckets:
+        assertTrue(peaks.getMemoryBytes() <= maxBytes, "used " + peaks.getMemoryBytes() + " bytes");
+        assertTrue(peaks.getFramesPerBucket() > 512);
+        assertEquals(512, peaks.getSourceFramesPerBucket());
+        int merge = peaks.getFramesPerBucket() / 512;
+        assertEquals((added + merge - 1) / merge, peaks.getBucketCount());
+
+        // AND merged buckets should hold the peak of everything merged into them:
+        assertEquals(Math.min(999, merge - 1), peaks.view().getPeak(0, 0));
+        assertEquals(Math.min(499, merge - 1), peaks.view().getPeak(0, 1));
+        assertEquals(999, peaks.view().getPeak(999 / merge, 0));
+    }
+
+    @Test
+    public void view_whileWriting_shouldAlwaysBeConsistent() throws Exception {
+        // GIVEN a writer thread adding buckets whose peak equals their index (mod 30000):
+        WaveformPeaks peaks = new WaveformPeaks(1, 44100f, 512, 256 * 1024);
+        int total = 200_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                peaks.addBucket(new short[]{(short) (i % 30000)});
+                if (i % 1000 == 0) {
+                    Thread.yield();
+                }
+            }
+            peaks.setComplete(true);
+        });
+
+        // WHEN we read views concurrently:
+        AtomicReference<String> failure = new AtomicReference<>();
+        writer.start();
+        while (writer.isAlive() && failure.get() == null) {
+            WaveformPeaks.View view = peaks.view();
+            int count = view.getBucketCount();
+            if (count > 0 && view.getFramesPerBucket() == 512) {
+                int last = count - 1;
+                if (view.getPeak(last, 0) != last % 30000) {
+                    failure.set("bucket " + last + " read as " + view.getPeak(last, 0));
+                }
+            }
+            short[] max = new short[16];
+            view.aggregate(0, 0, count, max, null, null);
+            Thread.yield();
+        }
+        writer.join();
+
+        // THEN no reader should have seen an unpublished bucket:
+        assertNull(failure.get());
+        assertTrue(peaks.isComplete());
+    }
+}
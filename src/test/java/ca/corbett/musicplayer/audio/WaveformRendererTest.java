@@ -0,0 +1,262 @@
+package ca.corbett.musicplayer.audio;
+
+import ca.corbett.extras.audio.WaveformConfig;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaveformRendererTest {
+
+    @Test
+    public void render_withNoPeaks_shouldReturnNull() {
+        WaveformRenderer renderer = new WaveformRenderer();
+        assertNull(renderer.render(new WaveformPeaks(2, 44100f, 512), new WaveformConfig(), 1000, 800, 100));
+    }
+
+    @Test
+    public void render_whileBuilding_shouldOnlyDrawNewBuckets() {
+        // GIVEN a renderer that has already drawn the first part of a track:
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        addBuckets(peaks, 0, 1000, 10000);
+        BufferedImage first = renderer.render(peaks, config, 4000, 800, 100);
+
+        // WHEN more buckets arrive that fit within the current scale:
+        addBuckets(peaks, 1000, 2000, 10000);
+        BufferedImage second = renderer.render(peaks, config, 4000, 800, 100);
+
+        // THEN the existing image should have been drawn into, not replaced:
+        assertSame(first, second);
+        assertEquals(1, renderer.getFullRenderCount());
+        assertEquals(1, renderer.getIncrementalRenderCount());
+    }
+
+    @Test
+    public void render_whenLouderThanScale_shouldRenderFully() {
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        addBuckets(peaks, 0, 1000, 5000);
+        BufferedImage first = renderer.render(peaks, config, 4000, 800, 100);
+
+        addBuckets(peaks, 1000, 2000, 20000);
+        BufferedImage second = renderer.render(peaks, config, 4000, 800, 100);
+
+        assertNotSame(first, second);
+        assertEquals(2, renderer.getFullRenderCount());
+    }
+
+    @Test
+    public void render_withChangedConfig_shouldRenderFully() {
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        addBuckets(peaks, 0, 1000, 10000);
+        renderer.render(peaks, config, 4000, 800, 100);
+
+        config.setFillColor(Color.BLUE);
+        renderer.render(peaks, config, 4000, 800, 100);
+
+        assertEquals(2, renderer.getFullRenderCount());
+        assertEquals(0, renderer.getIncrementalRenderCount());
+    }
+
+    @Test
+    public void render_whenComplete_shouldMatchOneShotRender() {
+        // GIVEN a track rendered incrementally as its peaks arrive:
+        WaveformRenderer incremental = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        for (int step = 0; step < 10; step++) {
+            addBuckets(peaks, step * 397, (step + 1) * 397, 3000 + step * 1500);
+            incremental.render(peaks, config, 4100, 800, 100);
+        }
+        peaks.setComplete(true);
+        BufferedImage incrementalImage = incremental.render(peaks, config, 4100, 800, 100);
+
+        // WHEN we render the completed peaks from scratch:
+        BufferedImage oneShotImage = new WaveformRenderer().render(peaks, config, 4100, 800, 100);
+
+        // THEN the two images should be identical:
+        assertEquals(oneShotImage.getWidth(), incrementalImage.getWidth());
+        assertEquals(oneShotImage.getHeight(), incrementalImage.getHeight());
+        for (int y = 0; y < oneShotImage.getHeight(); y++) {
+            for (int x = 0; x < oneShotImage.getWidth(); x++) {
+                assertEquals(oneShotImage.getRGB(x, y), incrementalImage.getRGB(x, y), "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    public void render_shouldProduceImageOfRequestedSize() {
+        // GIVEN complete peaks for a track:
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        addBuckets(peaks, 0, 5000, 10000);
+        peaks.setComplete(true);
+
+        // WHEN we render it at two different sizes:
+        BufferedImage small = renderer.render(peaks, config, 0, 300, 50);
+        BufferedImage large = renderer.render(peaks, config, 0, 1920, 240);
+
+        // THEN each should be exactly the requested size, with the waveform filling it vertically:
+        assertEquals(300, small.getWidth());
+        assertEquals(50, small.getHeight());
+        assertEquals(1920, large.getWidth());
+        assertEquals(240, large.getHeight());
+        assertEquals(2, renderer.getFullRenderCount());
+        int bg = config.getBgColor().getRGB() & 0xFFFFFF;
+        boolean reachesTop = false;
+        for (int x = 0; x < large.getWidth(); x++) {
+            reachesTop |= (large.getRGB(x, 0) & 0xFFFFFF) != bg;
+        }
+        assertTrue(reachesTop);
+    }
+
+    @Test
+    public void render_withFewerBucketsThanPixels_shouldFillWidth() {
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        addBuckets(peaks, 0, 100, 10000);
+        peaks.setComplete(true);
+
+        BufferedImage image = renderer.render(peaks, config, 0, 800, 100);
+
+        // The center column of the last pixel should be drawn, not left as background:
+        int bg = config.getBgColor().getRGB() & 0xFFFFFF;
+        assertTrue((image.getRGB(799, 40) & 0xFFFFFF) != bg || (image.getRGB(799, 60) & 0xFFFFFF) != bg);
+    }
+
+    @Test
+    public void render_shouldUsePackedPaletteOfConfigColors() {
+        // GIVEN a config with distinctive colours:
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        config.setBgColor(new Color(10, 20, 30));
+        config.setFillColor(new Color(200, 100, 50));
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        addBuckets(peaks, 0, 2000, 10000);
+        peaks.setComplete(true);
+
+        // WHEN we render:
+        BufferedImage image = renderer.render(peaks, config, 0, 801, 100);
+
+        // THEN we should get a 2-bit packed image whose pixels are exactly the config colours:
+        assertEquals(BufferedImage.TYPE_BYTE_BINARY, image.getType());
+        assertEquals(2, image.getColorModel().getPixelSize());
+        Set<Integer> colors = new HashSet<>();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                colors.add(image.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+        assertTrue(colors.contains(config.getBgColor().getRGB() & 0xFFFFFF));
+        assertTrue(colors.contains(config.getFillColor().getRGB() & 0xFFFFFF));
+        assertTrue(colors.size() <= 4);
+
+        // AND the last (odd) column should be drawn like any other:
+        assertEquals(config.getFillColor().getRGB(), image.getRGB(800, image.getHeight() / 2 + 5));
+    }
+
+    @Test
+    public void render_withPreview_shouldFillColumnsNotYetBuilt() {
+        // GIVEN peaks with no real buckets yet, but a preview of the whole track:
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        peaks.setPreview(createPreview(1000, 4000));
+
+        // WHEN we render:
+        BufferedImage image = renderer.render(peaks, config, 0, 400, 100);
+
+        // THEN the preview should be drawn all the way across:
+        assertNotNull(image);
+        int bg = config.getBgColor().getRGB() & 0xFFFFFF;
+        assertTrue((image.getRGB(10, 45) & 0xFFFFFF) != bg);
+        assertTrue((image.getRGB(390, 45) & 0xFFFFFF) != bg);
+    }
+
+    @Test
+    public void render_withPreview_shouldReplaceItAsRealPeaksArrive() {
+        // GIVEN a preview that's much louder than the real peaks turn out to be:
+        WaveformRenderer renderer = new WaveformRenderer();
+        WaveformConfig config = new WaveformConfig();
+        WaveformPeaks peaks = new WaveformPeaks(2, 44100f, 512);
+        int previewBuckets = 2250; // 2250 * 1152 frames == 5062.5 real buckets
+        peaks.setPreview(createPreview(previewBuckets, 20000));
+        renderer.render(peaks, config, 0, 400, 100);
+
+        // WHEN enough real peaks arrive to calibrate against, and then a few more:
+        addSteadyBuckets(peaks, 500);
+        BufferedImage calibrated = renderer.render(peaks, config, 0, 400, 100);
+        addSteadyBuckets(peaks, 500);
+        BufferedImage updated = renderer.render(peaks, config, 0, 400, 100);
+
+        // THEN we should have re-rendered once to calibrate, then drawn the rest incrementally:
+        assertEquals(2, renderer.getFullRenderCount());
+        assertEquals(1, renderer.getIncrementalRenderCount());
+        assertSame(calibrated, updated);
+
+        // AND the calibrated preview should be about as tall as the real columns beside it:
+        assertEquals(columnHeight(updated, config, 50), columnHeight(updated, config, 300), 2);
+
+        // AND once complete, the preview should be gone entirely:
+        addSteadyBuckets(peaks, 4062);
+        peaks.setComplete(true);
+        assertNull(peaks.getPreview());
+        BufferedImage complete = renderer.render(peaks, config, 0, 400, 100);
+        BufferedImage oneShot = new WaveformRenderer().render(peaks, config, 0, 400, 100);
+        for (int x = 0; x < 400; x++) {
+            assertEquals(oneShot.getRGB(x, 10), complete.getRGB(x, 10), "pixel " + x);
+        }
+    }
+
+    private static WaveformPeaks createPreview(int buckets, int amplitude) {
+        WaveformPeaks preview = new WaveformPeaks(2, 44100f, 1152);
+        for (int i = 0; i < buckets; i++) {
+            preview.addBucket(new short[]{(short) amplitude, (short) amplitude});
+        }
+        preview.setComplete(true);
+        return preview;
+    }
+
+    private static void addSteadyBuckets(WaveformPeaks peaks, int count) {
+        for (int i = 0; i < count; i++) {
+            peaks.addBucket(new short[]{4000, 2000});
+        }
+    }
+
+    /**
+     * Returns the number of non-background pixels in the given column.
+     */
+    private static int columnHeight(BufferedImage image, WaveformConfig config, int x) {
+        int bg = config.getBgColor().getRGB() & 0xFFFFFF;
+        int count = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            if ((image.getRGB(x, y) & 0xFFFFFF) != bg) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void addBuckets(WaveformPeaks peaks, int from, int to, int amplitude) {
+        for (int i = from; i < to; i++) {
+            int value = amplitude / 2 + (i * 31) % (amplitude / 2);
+            peaks.addBucket(new short[]{(short) value, (short) (value / 2)});
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.audio.AudioMetadata;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetadataPopulatorTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void enqueue_shouldPublishEveryPlaceholderInCoalescedBatches() throws Exception {
+        // GIVEN a populator whose UI executor just collects tasks until we run them:
+        List<AudioMetadata> placeholders = placeholders(20);
+        List<Runnable> uiTasks = Collections.synchronizedList(new ArrayList<>());
+        Map<AudioMetadata, AudioMetadata> published = new IdentityHashMap<>();
+        CountDownLatch allRead = new CountDownLatch(20);
+        MetadataPopulator populator = new MetadataPopulator(4, file -> {
+            allRead.countDown();
+            return AudioMetadata.fromRawValues("Real " + file.getName(), "", "", "", file, 1, 1);
+        }, published::putAll, uiTasks::add);
+
+        // WHEN we enqueue them and let every read finish before the UI gets a chance to run:
+        populator.enqueue(placeholders);
+        assertTrue(allRead.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        // THEN they should all arrive together, in a single UI update:
+        assertEquals(1, uiTasks.size());
+        uiTasks.get(0).run();
+        assertEquals(20, published.size());
+        for (AudioMetadata placeholder : placeholders) {
+            assertEquals("Real " + placeholder.getSourceFile().getName(), published.get(placeholder).getTitle());
+        }
+        assertEquals(0, populator.getPendingCount());
+    }
+
+    @Test
+    public void prioritize_shouldJumpTheQueue() throws Exception {
+        // GIVEN a single worker that is stuck on the first of ten placeholders:
+        List<AudioMetadata> placeholders = placeholders(10);
+        List<File> readOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch allRead = new CountDownLatch(10);
+        MetadataPopulator populator = new MetadataPopulator(1, file -> {
+            readOrder.add(file);
+            started.countDown();
+            awaitQuietly(release);
+            allRead.countDown();
+            return AudioMetadata.fromRawValues("Real", "", "", "", file, 1, 1);
+        }, batch -> { }, Runnable::run);
+        populator.enqueue(placeholders);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // WHEN rows 7 and 8 scroll into view:
+        populator.prioritize(List.of(placeholders.get(7), placeholders.get(8)));
+        release.countDown();
+
+        // THEN they should be read next, followed by everything else in order:
+        assertTrue(allRead.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        List<File> expected = new ArrayList<>();
+        for (int i : new int[]{0, 7, 8, 1, 2, 3, 4, 5, 6, 9}) {
+            expected.add(placeholders.get(i).getSourceFile());
+        }
+        assertEquals(expected, readOrder);
+    }
+
+    @Test
+    public void cancelPending_shouldDropQueuedWork() throws Exception {
+        List<AudioMetadata> placeholders = placeholders(5);
+        List<File> readOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MetadataPopulator populator = new MetadataPopulator(1, file -> {
+            readOrder.add(file);
+            started.countDown();
+            awaitQuietly(release);
+            return AudioMetadata.fromRawValues("Real", "", "", "", file, 1, 1);
+        }, batch -> { }, Runnable::run);
+        populator.enqueue(placeholders);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        populator.cancelPending();
+        release.countDown();
+        Thread.sleep(200);
+
+        assertEquals(0, populator.getPendingCount());
+        assertEquals(List.of(placeholders.get(0).getSourceFile()), readOrder);
+    }
+
+    @Test
+    public void enqueue_withRealMetadata_shouldIgnoreIt() {
+        File file = new File("real.mp3");
+        MetadataPopulator populator = new MetadataPopulator(1, f -> null, batch -> { }, Runnable::run);
+
+        populator.enqueue(List.of(AudioMetadata.fromRawValues("Title", "", "", "", file, 1, 1)));
+
+        assertEquals(0, populator.getPendingCount());
+        assertSame(file, AudioMetadata.placeholder(file).getSourceFile());
+    }
+
+    private static List<AudioMetadata> placeholders(int count) {
+        List<AudioMetadata> placeholders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            placeholders.add(AudioMetadata.placeholder(new File("track" + i + ".mp3")));
+        }
+        return placeholders;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ca.corbett.musicplayer.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaylistIndexerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    public void visitOrder_shouldWorkOutwardsFromCurrent() {
+        assertArrayEquals(new int[]{3, 1, 4, 0, 5, 6}, PlaylistIndexer.visitOrder(7, 2));
+        assertArrayEquals(new int[]{1, 2, 3}, PlaylistIndexer.visitOrder(4, 0));
+        assertArrayEquals(new int[]{2, 1, 0}, PlaylistIndexer.visitOrder(4, 3));
+    }
+
+    @Test
+    public void visitOrder_withNoCurrentTrack_shouldStartAtTop() {
+        assertArrayEquals(new int[]{0, 1, 2}, PlaylistIndexer.visitOrder(3, -1));
+        assertArrayEquals(new int[0], PlaylistIndexer.visitOrder(0, -1));
+    }
+
+    @Test
+    public void setPlaylist_shouldBuildNearestTracksFirstAndSkipIndexed() throws Exception {
+        // GIVEN a five-track playlist where the third track is playing and the fifth is already cached:
+        List<File> files = tracks(5);
+        List<File> built = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        PlaylistIndexer indexer = new PlaylistIndexer(() -> 1, () -> 100, () -> false, files.get(4)::equals,
+                                                      (file, keepGoing) -> {
+                                                          built.add(file);
+                                                          done.countDown();
+                                                          return true;
+                                                      });
+
+        // WHEN we hand it the playlist:
+        indexer.setPlaylist(files, 2);
+
+        // THEN it should build every other track, nearest first:
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(List.of(files.get(3), files.get(1), files.get(0)), built);
+    }
+
+    @Test
+    public void setPlaylist_withPlaylistBiggerThanCache_shouldOnlyBuildNearestTracks() throws Exception {
+        // GIVEN a twenty-track playlist, and a cache with room for only eight tracks:
+        List<File> files = tracks(20);
+        List<File> built = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(6);
+        PlaylistIndexer indexer = new PlaylistIndexer(() -> 1, () -> 8, () -> false, file -> false,
+                                                      (file, keepGoing) -> {
+                                                          built.add(file);
+                                                          done.countDown();
+                                                          return true;
+                                                      });
+
+        // WHEN we hand it the playlist with the eleventh track playing:
+        indexer.setPlaylist(files, 10);
+
+        // THEN it should only build the six nearest tracks, leaving the rest of the cache as slack:
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(List.of(files.get(11), files.get(9), files.get(12), files.get(8), files.get(13), files.get(7)),
+                     built);
+    }
+
+    @Test
+    public void setPlaylist_withCacheDisabled_shouldBuildNothing() throws Exception {
+        List<File> built = Collections.synchronizedList(new ArrayList<>());
+        PlaylistIndexer indexer = new PlaylistIndexer(() -> 1, () -> 0, () -> false, file -> false,
+                                                      (file, keepGoing) -> built.add(file));
+
+        indexer.setPlaylist(tracks(5), 2);
+
+        Thread.sleep(200);
+        assertTrue(built.isEmpty());
+    }
+
+    @Test
+    public void setPlaylist_withTrackRemoved_shouldCancelIt() throws Exception {
+        // GIVEN an indexer partway through building a track:
+        List<File> files = tracks(2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        PlaylistIndexer indexer = new PlaylistIndexer(() -> 1, () -> 100, () -> false, file -> false,
+                                                      (file, keepGoing) -> {
+                                                          if (!file.equals(files.get(0))) {
+                                                              return true;
+                                                          }
+                                                          started.countDown();
+                                                          waitWhile(keepGoing);
+                                                          stopped.countDown();
+                                                          return false;
+                                                      });
+        indexer.setPlaylist(files, -1);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // WHEN that track is removed from the playlist:
+        indexer.setPlaylist(List.of(files.get(1)), -1);
+
+        // THEN the build should be told to stop:
+        assertTrue(stopped.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void setPlaylist_whilePaused_shouldWaitAndThenResume() throws Exception {
+        // GIVEN a paused indexer:
+        AtomicBoolean paused = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(1);
+        PlaylistIndexer indexer = new PlaylistIndexer(() -> 1, () -> 100, paused::get, file -> false,
+                                                      (file, keepGoing) -> {
+                                                          done.countDown();
+                                                          return true;
+                                                      });
+
+        // WHEN we give it something to do:
+        indexer.setPlaylist(tracks(1), -1);
+
+        // THEN nothing should happen until it is unpaused:
+        assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        paused.set(false);
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void build_whenPausedPartway_shouldRetryTrack() throws Exception {
+        // GIVEN an indexer that is paused while building a track:
+        AtomicBoolean paused = new AtomicBoolean(false);
+        List<File> files = tracks(1);
+        CountDownLatch firstAttempt = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        PlaylistIndexer indexer = new PlaylistIndexer(() -> 1, () -> 100, paused::get, file -> false,
+                                                      (file, keepGoing) -> {
+                                                          if (!interrupted.get()) {
+                                                              firstAttempt.countDown();
+                                                              waitWhile(keepGoing);
+                                                              interrupted.set(true);
+                                                              return false;
+                                                          }
+                                                          finished.countDown();
+                                                          return true;
+                                                      });
+        indexer.setPlaylist(files, -1);
+        assertTrue(firstAttempt.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // WHEN we pause and then resume:
+        paused.set(true);
+        Thread.sleep(100);
+        paused.set(false);
+
+        // THEN the track should be built again from the start:
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(interrupted.get());
+    }
+
+    private static void waitWhile(BooleanSupplier keepGoing) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (keepGoing.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private static List<File> tracks(int count) {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            files.add(new File("track" + i + ".mp3"));
+        }
+        return files;
+    }
+}
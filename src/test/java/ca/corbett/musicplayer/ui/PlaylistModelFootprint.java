@@ -0,0 +1,88 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.audio.AudioMetadata;
+
+import javax.swing.DefaultListModel;
+import javax.swing.ListModel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how much heap a large playlist takes up in a PlaylistModel, compared with the
+ * DefaultListModel of AudioMetadata that the Playlist used to keep. The tracks look like a
+ * real library: a hundred artists, a thousand albums, and lyrics on one track in four.
+ * Every string is a separate instance, as it would be coming out of the tag reader.
+ * This isn't a unit test and won't be picked up by surefire. To run it:
+ * <pre>
+ *     mvn test-compile
+ *     mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=ca.corbett.musicplayer.ui.PlaylistModelFootprint
+ * </pre>
+ *
+ * @author scorbo2
+ * @since 2026-10-16
+ */
+public class PlaylistModelFootprint {
+
+    private static final int TRACKS = 100_000;
+    private static final String LYRICS = "la ".repeat(500);
+
+    public static void main(String[] args) {
+        long baseline = usedHeap();
+        ListModel<AudioMetadata> old = buildDefaultListModel();
+        long oldBytes = usedHeap() - baseline;
+        report("DefaultListModel", old, oldBytes);
+        old = null;
+
+        baseline = usedHeap();
+        PlaylistModel model = new PlaylistModel();
+        model.insertAll(0, tracks());
+        long newBytes = usedHeap() - baseline;
+        report("PlaylistModel", model, newBytes);
+        System.out.printf("PlaylistModel estimate: %,d KiB%n", model.estimateHeapBytes() / 1024);
+    }
+
+    private static DefaultListModel<AudioMetadata> buildDefaultListModel() {
+        DefaultListModel<AudioMetadata> model = new DefaultListModel<>();
+        model.addAll(tracks());
+        return model;
+    }
+
+    private static List<AudioMetadata> tracks() {
+        List<AudioMetadata> tracks = new ArrayList<>(TRACKS);
+        for (int i = 0; i < TRACKS; i++) {
+            String artist = "Artist " + (i % 100);
+            String album = "Album " + (i % 1000);
+            File file = new File("/home/music/library/" + artist + "/" + album + "/"
+                                     + String.format("%02d", i % 12 + 1) + " - Track number " + i + ".mp3");
+            tracks.add(AudioMetadata.fromRawValues("Track number " + i, copy(album), copy(artist), copy("Rock"),
+                                                   file, 180 + i % 120, i % 12 + 1, i % 4 == 0 ? copy(LYRICS) : ""));
+        }
+        return tracks;
+    }
+
+    /**
+     * new String(String) would share the original's characters, which a real tag read wouldn't.
+     */
+    private static String copy(String value) {
+        return new String(value.toCharArray());
+    }
+
+    private static void report(String name, ListModel<AudioMetadata> model, long bytes) {
+        System.out.printf("%s: %,d tracks in %,d KiB (%,d bytes per track)%n",
+                          name, model.getSize(), bytes / 1024, bytes / model.getSize());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ignored) {
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,396 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.audio.AudioMetadata;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlaylistModelTest {
+
+    @Test
+    public void getElementAt_shouldGiveBackWhatWasInserted() {
+        // GIVEN a model with one fully tagged track in it:
+        PlaylistModel model = new PlaylistModel();
+        File file = new File("/music/artist/album/01 - song.mp3");
+        model.insertAll(0, List.of(AudioMetadata.fromRawValues("Song", "Album", "Artist", "Rock", file, 245, 1)));
+
+        // WHEN we get it back out:
+        AudioMetadata meta = model.getElementAt(0);
+
+        // THEN everything should match:
+        assertEquals("Song", meta.getTitle());
+        assertEquals("Album", meta.getAlbum());
+        assertEquals("Artist", meta.getAuthor());
+        assertEquals("Rock", meta.getGenre());
+        assertEquals(file, meta.getSourceFile());
+        assertEquals(245, meta.getDurationSeconds());
+        assertEquals(1, meta.getTrackNumber());
+        assertFalse(meta.isPlaceholder());
+    }
+
+    @Test
+    public void getElementAt_withLyrics_shouldOnlyRememberThatThereAreNone() {
+        PlaylistModel model = new PlaylistModel();
+        model.insertAll(0, List.of(
+            AudioMetadata.fromRawValues("None", "", "", "", new File("/a/none.mp3"), 1, 1, ""),
+            AudioMetadata.fromRawValues("Some", "", "", "", new File("/a/some.mp3"), 1, 1, "la la la")));
+
+        assertEquals("", model.getElementAt(0).getLyricsIfLoaded());
+        assertNull(model.getElementAt(1).getLyricsIfLoaded()); // loaded again on demand
+    }
+
+    @Test
+    public void getElementAt_withPlaceholder_shouldReturnPlaceholder() {
+        PlaylistModel model = new PlaylistModel();
+        File file = new File("/music/track.mp3");
+        model.insertAll(0, List.of(AudioMetadata.placeholder(file)));
+
+        assertTrue(model.isPlaceholder(0));
+        assertTrue(model.getElementAt(0).isPlaceholder());
+        assertEquals(file, model.getElementAt(0).getSourceFile());
+    }
+
+    @Test
+    public void insertAll_shouldKeepRowIdsAndFireOneEvent() {
+        // GIVEN a model with two tracks, and a listener:
+        PlaylistModel model = new PlaylistModel();
+        model.insertAll(0, List.of(track("a"), track("b")));
+        int rowIdOfB = model.getRowId(1);
+        List<ListDataEvent> events = listen(model);
+
+        // WHEN we insert three more in front of them:
+        model.insertAll(0, List.of(track("x"), track("y"), track("z")));
+
+        // THEN b should have moved, but kept its row id:
+        assertEquals(4, model.indexOfRowId(rowIdOfB));
+        assertEquals("b", model.getTitle(4));
+        assertEquals(1, events.size());
+        assertEquals(ListDataEvent.INTERVAL_ADDED, events.get(0).getType());
+        assertEquals(0, events.get(0).getIndex0());
+        assertEquals(2, events.get(0).getIndex1());
+    }
+
+    @Test
+    public void insertAll_withBadIndex_shouldThrow() {
+        PlaylistModel model = new PlaylistModel();
+        assertThrows(IndexOutOfBoundsException.class, () -> model.insertAll(-1, List.of(track("a"))));
+        assertThrows(IndexOutOfBoundsException.class, () -> model.insertAll(1, List.of(track("a"))));
+    }
+
+    @Test
+    public void addAll_shouldAppendWithOneEvent() {
+        PlaylistModel model = modelOf("a", "b");
+        List<ListDataEvent> events = listen(model);
+
+        model.addAll(List.of(track("c"), track("d")));
+
+        assertEquals(List.of("a", "b", "c", "d"), titles(model));
+        assertEquals(1, events.size());
+        assertEquals(ListDataEvent.INTERVAL_ADDED, events.get(0).getType());
+        assertEquals(2, events.get(0).getIndex0());
+        assertEquals(3, events.get(0).getIndex1());
+    }
+
+    @Test
+    public void replaceAll_withFewerTracks_shouldChangeOverlapAndRemoveTail() {
+        // GIVEN a model with three tracks, and a listener that reads every row it's told about:
+        PlaylistModel model = modelOf("a", "b", "c");
+        int oldRowId = model.getRowId(0);
+        List<ListDataEvent> events = listen(model);
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                readRows(e);
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                readRows(e);
+            }
+
+            private void readRows(ListDataEvent e) {
+                for (int i = e.getIndex0(); i <= e.getIndex1(); i++) {
+                    model.getElementAt(i);
+                }
+            }
+        });
+
+        // WHEN we replace them with two others:
+        model.replaceAll(List.of(track("x"), track("y")));
+
+        // THEN we should have the new tracks, with new row ids, and events that only name rows that exist:
+        assertEquals(List.of("x", "y"), titles(model));
+        assertEquals(-1, model.indexOfRowId(oldRowId));
+        assertEquals(2, events.size());
+        assertEquals(ListDataEvent.INTERVAL_REMOVED, events.get(0).getType());
+        assertEquals(2, events.get(0).getIndex0());
+        assertEquals(2, events.get(0).getIndex1());
+        assertEquals(ListDataEvent.CONTENTS_CHANGED, events.get(1).getType());
+        assertEquals(0, events.get(1).getIndex0());
+        assertEquals(1, events.get(1).getIndex1());
+    }
+
+    @Test
+    public void replaceAll_withMoreTracks_shouldChangeOverlapAndAddTail() {
+        PlaylistModel model = modelOf("a");
+        List<ListDataEvent> events = listen(model);
+
+        model.replaceAll(List.of(track("x"), track("y"), track("z")));
+
+        assertEquals(2, events.size());
+        assertEquals(ListDataEvent.CONTENTS_CHANGED, events.get(0).getType());
+        assertEquals(0, events.get(0).getIndex1());
+        assertEquals(ListDataEvent.INTERVAL_ADDED, events.get(1).getType());
+        assertEquals(1, events.get(1).getIndex0());
+        assertEquals(2, events.get(1).getIndex1());
+    }
+
+    @Test
+    public void replaceAll_withEmptyModel_shouldFireIntervalAdded() {
+        PlaylistModel model = new PlaylistModel();
+        List<ListDataEvent> events = listen(model);
+
+        model.replaceAll(List.of(track("a"), track("b")));
+
+        assertEquals(1, events.size());
+        assertEquals(ListDataEvent.INTERVAL_ADDED, events.get(0).getType());
+        assertEquals(1, events.get(0).getIndex1());
+    }
+
+    @Test
+    public void setAll_shouldUpdateByRowIdWithOneEvent() {
+        // GIVEN a model with five tracks, and new values for the second and fourth:
+        PlaylistModel model = modelOf("a", "b", "c", "d", "e");
+        Map<Integer, AudioMetadata> changes = new HashMap<>();
+        changes.put(model.getRowId(1), track("B"));
+        changes.put(model.getRowId(3), track("D"));
+        changes.put(-42, track("nowhere")); // not in the list, should be ignored
+        List<ListDataEvent> events = listen(model);
+
+        // WHEN we apply them:
+        int updated = model.setAll(changes);
+
+        // THEN both rows should change in place, and we should hear about it once:
+        assertEquals(2, updated);
+        assertEquals(List.of("a", "B", "c", "D", "e"), titles(model));
+        assertEquals(1, events.size());
+        assertEquals(ListDataEvent.CONTENTS_CHANGED, events.get(0).getType());
+        assertEquals(1, events.get(0).getIndex0());
+        assertEquals(3, events.get(0).getIndex1());
+    }
+
+    @Test
+    public void move_shouldReorderRows() {
+        PlaylistModel model = modelOf("a", "b", "c", "d");
+
+        model.move(1, 3);
+        assertEquals(List.of("a", "c", "d", "b"), titles(model));
+
+        model.move(3, 0);
+        assertEquals(List.of("b", "a", "c", "d"), titles(model));
+    }
+
+    @Test
+    public void remove_shouldCloseTheGap() {
+        PlaylistModel model = modelOf("a", "b", "c");
+        int rowIdOfC = model.getRowId(2);
+
+        model.remove(1);
+
+        assertEquals(List.of("a", "c"), titles(model));
+        assertEquals(1, model.indexOfRowId(rowIdOfC));
+    }
+
+    @Test
+    public void indexOfFile_shouldFindEveryCopy() {
+        // GIVEN a playlist with the same file in it twice:
+        PlaylistModel model = new PlaylistModel();
+        File file = new File("/music/dup.mp3");
+        model.insertAll(0, List.of(track("a"), AudioMetadata.fromRawValues("Dup", "", "", "", file, 1, 1),
+                                track("b"), AudioMetadata.fromRawValues("Dup", "", "", "", file, 1, 1)));
+
+        // THEN we should be able to find both copies, and nothing for an unknown file:
+        assertEquals(1, model.indexOfFile(new File("/music/dup.mp3"), 0));
+        assertEquals(3, model.indexOfFile(file, 2));
+        assertEquals(-1, model.indexOfFile(file, 4));
+        assertEquals(-1, model.indexOfFile(new File("/elsewhere/dup.mp3"), 0));
+    }
+
+    @Test
+    public void getDisplayString_shouldOnlyFormatOnce() {
+        PlaylistModel model = modelOf("a", "b");
+
+        String first = model.getDisplayString(1, "%a - %t");
+        String second = model.getDisplayString(1, "%a - %t");
+
+        assertEquals("Artist - b", first);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void getDisplayString_afterSet_shouldReformat() {
+        PlaylistModel model = modelOf("a", "b");
+        model.getDisplayString(0, "%t");
+
+        model.set(0, track("new"));
+
+        assertEquals("new", model.getDisplayString(0, "%t"));
+    }
+
+    @Test
+    public void getDisplayString_withNewFormat_shouldReformat() {
+        PlaylistModel model = modelOf("a");
+        model.getDisplayString(0, "%t");
+
+        assertEquals("Artist: a", model.getDisplayString(0, "%a: %t"));
+    }
+
+    @Test
+    public void getDisplayString_afterPermute_shouldFollowItsRow() {
+        // GIVEN a model where every row has been displayed:
+        PlaylistModel model = modelOf("a", "b", "c");
+        for (int i = 0; i < model.getSize(); i++) {
+            model.getDisplayString(i, "%t");
+        }
+
+        // WHEN we move rows around, and insert and remove some:
+        model.permute(new int[]{2, 0, 1});
+        model.insertAll(1, List.of(track("x")));
+        model.remove(0);
+
+        // THEN each row should still show its own track:
+        List<String> shown = new ArrayList<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            shown.add(model.getDisplayString(i, "%t"));
+        }
+        assertEquals(List.of("x", "a", "b"), shown);
+    }
+
+    @Test
+    public void estimateHeapBytes_withLargePlaylist_shouldStayCompact() {
+        // GIVEN a hundred thousand tracks from a thousand albums by a hundred artists:
+        PlaylistModel model = new PlaylistModel();
+        List<AudioMetadata> tracks = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            String artist = "Artist " + (i % 100);
+            String album = "Album " + (i % 1000);
+            File file = new File("/music/" + artist + "/" + album + "/" + String.format("%02d", i % 100) + " - Track " + i + ".mp3");
+            tracks.add(AudioMetadata.fromRawValues("Track " + i, album, artist, "Rock", file, 200, i % 100));
+        }
+
+        // WHEN we load them all:
+        model.insertAll(0, tracks);
+
+        // THEN we should be using well under 200 bytes per track:
+        long bytes = model.estimateHeapBytes();
+        assertTrue(bytes < 100_000L * 200, "Estimated " + bytes + " bytes");
+        assertEquals("Album 999", model.getAlbum(99_999));
+    }
+
+    @Test
+    public void remove_withManyDistinctValues_shouldLetGoOfThem() {
+        // GIVEN a thousand tracks, each by a different artist in a different directory:
+        PlaylistModel model = new PlaylistModel();
+        List<AudioMetadata> tracks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tracks.add(AudioMetadata.fromRawValues("Track " + i, "Album " + i, "Artist " + i, "",
+                                                   new File("/music/dir" + i + "/track.mp3"), 1, 1));
+        }
+        model.addAll(tracks);
+        long fullBytes = model.estimateHeapBytes();
+
+        // WHEN we remove all but the last one:
+        while (model.getSize() > 1) {
+            model.remove(0);
+        }
+
+        // THEN the dictionaries should have shrunk along with the list, and the last row should be intact:
+        long bytes = model.estimateHeapBytes();
+        assertTrue(bytes < fullBytes / 10, "Estimated " + bytes + " bytes, was " + fullBytes);
+        assertEquals("Artist 999", model.getArtist(0));
+        assertEquals("Album 999", model.getAlbum(0));
+        assertEquals(new File("/music/dir999/track.mp3"), model.getSourceFile(0));
+    }
+
+    @Test
+    public void permute_afterOverwrites_shouldKeepEveryRowsValues() {
+        // GIVEN rows that have been overwritten with new artists, leaving the old ones unused:
+        PlaylistModel model = modelOf("a", "b", "c");
+        model.set(0, AudioMetadata.fromRawValues("a", "New Album", "New Artist", "Jazz", new File("/other/a.mp3"), 1, 1));
+        model.set(2, AudioMetadata.fromRawValues("c", "Album", "Third Artist", "", new File("/music/c.mp3"), 1, 1));
+
+        // WHEN we rearrange them, which rebuilds the dictionaries:
+        model.permute(new int[]{2, 0, 1});
+
+        // THEN each row should still have its own values:
+        assertEquals(List.of("c", "a", "b"), titles(model));
+        assertEquals("Third Artist", model.getArtist(0));
+        assertEquals("New Artist", model.getArtist(1));
+        assertEquals("New Album", model.getAlbum(1));
+        assertEquals("Jazz", model.getGenre(1));
+        assertEquals(new File("/other/a.mp3"), model.getSourceFile(1));
+        assertEquals("Artist", model.getArtist(2));
+        assertEquals(new File("/music/b.mp3"), model.getSourceFile(2));
+        assertEquals(0, model.indexOfFile(new File("/music/c.mp3"), 0));
+    }
+
+    private static AudioMetadata track(String title) {
+        return AudioMetadata.fromRawValues(title, "Album", "Artist", "", new File("/music/" + title + ".mp3"), 1, 1);
+    }
+
+    private static PlaylistModel modelOf(String... titles) {
+        PlaylistModel model = new PlaylistModel();
+        List<AudioMetadata> tracks = new ArrayList<>();
+        for (String title : titles) {
+            tracks.add(track(title));
+        }
+        model.insertAll(0, tracks);
+        return model;
+    }
+
+    private static List<String> titles(PlaylistModel model) {
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            titles.add(model.getTitle(i));
+        }
+        return titles;
+    }
+
+    private static List<ListDataEvent> listen(PlaylistModel model) {
+        List<ListDataEvent> events = new ArrayList<>();
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                events.add(e);
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                events.add(e);
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                events.add(e);
+            }
+        });
+        return events;
+    }
+}
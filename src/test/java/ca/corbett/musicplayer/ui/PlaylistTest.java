@@ -8,7 +8,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 class PlaylistTest {
@@ -20,19 +19,17 @@ class PlaylistTest {
     }
 
     @Test
-    public void sortList_multiKey_artistThenTitle_shouldSortCorrectly() throws Exception {
+    public void sort_multiKey_artistThenTitle_shouldSortCorrectly() throws Exception {
         AudioMetadata a1 = makeMeta("Song A", "Album1", "Alpha", "", "/tmp/a1.mp3", 10, 0);
         AudioMetadata a2 = makeMeta("Song B", "Album1", "Alpha", "", "/tmp/a2.mp3", 10, 0);
         AudioMetadata b1 = makeMeta("Song C", "Album2", "Beta", "", "/tmp/b1.mp3", 10, 0);
 
-        List<AudioMetadata> list = new ArrayList<>(Arrays.asList(b1, a2, a1));
-
         List<Playlist.SortKey> keys = Arrays.asList(
                 Playlist.SortKey.asc(Playlist.SortAttribute.Artist),
                 Playlist.SortKey.asc(Playlist.SortAttribute.Title)
         );
 
-        Playlist.getInstance().sortList(list, keys);
+        List<AudioMetadata> list = sortPlaylist(List.of(b1, a2, a1), keys);
 
         assertEquals("Alpha", list.get(0).getAuthor());
         assertEquals("Song A", list.get(0).getTitle());
@@ -42,18 +39,16 @@ class PlaylistTest {
     }
 
     @Test
-    public void sortList_descendingArtist_shouldSortReverse() throws Exception {
+    public void sort_descendingArtist_shouldSortReverse() throws Exception {
         AudioMetadata a = makeMeta("One", "Album", "A", "", "/tmp/one.mp3", 5, 0);
         AudioMetadata b = makeMeta("Two", "Album", "B", "", "/tmp/two.mp3", 5, 0);
         AudioMetadata c = makeMeta("Three", "Album", "C", "", "/tmp/three.mp3", 5, 0);
 
-        List<AudioMetadata> list = new ArrayList<>(Arrays.asList(a, b, c));
-
         List<Playlist.SortKey> keys = List.of(
                 Playlist.SortKey.desc(Playlist.SortAttribute.Artist)
         );
 
-        Playlist.getInstance().sortList(list, keys);
+        List<AudioMetadata> list = sortPlaylist(List.of(a, b, c), keys);
 
         assertEquals("C", list.get(0).getAuthor());
         assertEquals("B", list.get(1).getAuthor());
@@ -61,7 +56,7 @@ class PlaylistTest {
     }
 
     @Test
-    public void sortList_genreAndTrackNumber_shouldSort() throws Exception {
+    public void sort_genreAndTrackNumber_shouldSort() throws Exception {
         AudioMetadata a1 = makeMeta("One", "Album", "A", "AAA", "/tmp/one.mp3", 5, 11);
         AudioMetadata a2 = makeMeta("One", "Album", "A", "AAA", "/tmp/one.mp3", 5, 0);
         AudioMetadata a3 = makeMeta("One", "Album", "A", "AAA", "/tmp/one.mp3", 5, 5);
@@ -69,14 +64,12 @@ class PlaylistTest {
         AudioMetadata b2 = makeMeta("One", "Album", "A", "BBB", "/tmp/one.mp3", 5, 10000);
         AudioMetadata b3 = makeMeta("One", "Album", "A", "BBB", "/tmp/one.mp3", 5, 0);
 
-        List<AudioMetadata> list = new ArrayList<>(Arrays.asList(b2, a2, b1, a3, b3, a1));
-
         List<Playlist.SortKey> keys = Arrays.asList(
             Playlist.SortKey.asc(Playlist.SortAttribute.Genre),
             Playlist.SortKey.asc(Playlist.SortAttribute.TrackNumber)
         );
 
-        Playlist.getInstance().sortList(list, keys);
+        List<AudioMetadata> list = sortPlaylist(List.of(b2, a2, b1, a3, b3, a1), keys);
 
         // AAA genre first, sorted by track number
         assertEquals("AAA", list.get(0).getGenre());
@@ -95,30 +88,34 @@ class PlaylistTest {
     }
 
     @Test
-    public void sortList_nullOrEmptyInputs_shouldNotThrowAndLeaveListUnchanged() throws Exception {
-        AudioMetadata a = makeMeta("One", "Album", "A", "", "/tmp/one.mp3", 5, 0);
-        AudioMetadata b = makeMeta("Two", "Album", "B", "", "/tmp/two.mp3", 5, 0);
+    public void sort_byFilePath_shouldIgnoreCaseAndPutMissingFilesFirst() throws Exception {
+        AudioMetadata upper = makeMeta("Upper", "Album", "A", "", "/tmp/B.mp3", 5, 0);
+        AudioMetadata lower = makeMeta("Lower", "Album", "A", "", "/tmp/a.mp3", 5, 0);
+        AudioMetadata none = makeMeta("None", "Album", "A", "", null, 5, 0);
 
-        List<AudioMetadata> original = new ArrayList<>(Arrays.asList(a, b));
+        List<AudioMetadata> list = sortPlaylist(List.of(upper, lower, none),
+                                                List.of(Playlist.SortKey.asc(Playlist.SortAttribute.FilePath)));
 
+        assertEquals("None", list.get(0).getTitle());
+        assertEquals("Lower", list.get(1).getTitle());
+        assertEquals("Upper", list.get(2).getTitle());
+    }
 
-        // null toSort
-        assertDoesNotThrow(() -> Playlist.getInstance().sortList(null, List.of(Playlist.SortKey.asc(Playlist.SortAttribute.Title))));
+    @Test
+    public void sort_nullOrEmptyInputs_shouldNotThrowAndLeaveListUnchanged() throws Exception {
+        AudioMetadata a = makeMeta("One", "Album", "A", "", "/tmp/one.mp3", 5, 0);
+        AudioMetadata b = makeMeta("Two", "Album", "B", "", "/tmp/two.mp3", 5, 0);
+
+        List<AudioMetadata> original = List.of(b, a);
 
         // null sortKeys
-        List<AudioMetadata> copy1 = new ArrayList<>(original);
-        assertDoesNotThrow(() -> Playlist.getInstance().sortList(copy1, null));
-        assertEquals(original, copy1);
+        assertEquals(original, sortPlaylist(original, null));
 
         // empty sortKeys
-        List<AudioMetadata> copy2 = new ArrayList<>(original);
-        assertDoesNotThrow(() -> Playlist.getInstance().sortList(copy2, new ArrayList<>()));
-        assertEquals(original, copy2);
-
-        // empty toSort
-        List<AudioMetadata> empty = new ArrayList<>();
-        assertDoesNotThrow(() -> Playlist.getInstance().sortList(empty, List.of(Playlist.SortKey.asc(Playlist.SortAttribute.Title))));
-        assertEquals(0, empty.size());
+        assertEquals(original, sortPlaylist(original, new ArrayList<>()));
+
+        // empty playlist
+        assertEquals(0, sortPlaylist(List.of(), List.of(Playlist.SortKey.asc(Playlist.SortAttribute.Title))).size());
     }
 
     @Test
@@ -173,4 +170,25 @@ class PlaylistTest {
         // Clean up single instance for subsequent tests
         Playlist.getInstance().clear();
     }
-}
\ No newline at end of file
+
+    /**
+     * Loads the given tracks into the playlist, sorts it with the given keys, and returns what it
+     * ends up holding, in order. The playlist is left empty for the next test.
+     */
+    private static List<AudioMetadata> sortPlaylist(List<AudioMetadata> tracks, List<Playlist.SortKey> keys) {
+        Playlist playlist = Playlist.getInstance();
+        playlist.clear();
+        for (AudioMetadata track : tracks) {
+            playlist.insertItemAt(track, playlist.getItemCount());
+        }
+
+        playlist.sort(keys);
+
+        List<AudioMetadata> sorted = new ArrayList<>();
+        for (int i = 0; i < playlist.getItemCount(); i++) {
+            sorted.add(playlist.getItemAt(i));
+        }
+        playlist.clear();
+        return sorted;
+    }
+}
@@ -0,0 +1,236 @@
+package ca.corbett.musicplayer.ui;
+
+import ca.corbett.musicplayer.audio.AnalysisPipeline;
+import ca.corbett.musicplayer.audio.Analyzer;
+import ca.corbett.musicplayer.audio.PeakAnalyzer;
+import ca.corbett.musicplayer.audio.TestAudioFiles;
+import ca.corbett.musicplayer.audio.TrackAnalysis;
+import ca.corbett.musicplayer.audio.WaveformPeaks;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaveformBuildThreadTest {
+
+    private static final float SAMPLE_RATE = 8000f;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void decode_withSegments_shouldMatchSequential() throws Exception {
+        // GIVEN a wav file long enough to be split three ways:
+        File wav = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 70);
+        WaveformPeaks sequential = new WaveformPeaks(2, SAMPLE_RATE, 512);
+        WaveformPeaks segmented = new WaveformPeaks(2, SAMPLE_RATE, 512);
+
+        // WHEN we decode it both sequentially and in parallel segments:
+        WaveformBuildThread sequentialThread = new WaveformBuildThread(wav, sequential, null, null, 1);
+        WaveformBuildThread segmentedThread = new WaveformBuildThread(wav, segmented, null, null, 3);
+        assertTrue(sequentialThread.decode());
+        assertTrue(segmentedThread.decode());
+
+        // THEN both should be complete and identical:
+        assertTrue(sequential.isComplete());
+        assertTrue(segmented.isComplete());
+        assertEquals(70000, sequentialThread.getAnalysis().getDurationMillis());
+        assertEquals(70000, segmentedThread.getAnalysis().getDurationMillis());
+        WaveformPeaks.View expected = sequential.view();
+        WaveformPeaks.View actual = segmented.view();
+        assertEquals((int) Math.ceil(70 * SAMPLE_RATE / 512), expected.getBucketCount());
+        assertEquals(expected.getBucketCount(), actual.getBucketCount());
+        for (int i = 0; i < expected.getBucketCount(); i++) {
+            for (int ch = 0; ch < 2; ch++) {
+                assertEquals(expected.getPeak(i, ch), actual.getPeak(i, ch), "bucket " + i + " channel " + ch);
+            }
+        }
+    }
+
+    @Test
+    public void decode_withShortTrack_shouldStillComplete() throws Exception {
+        File wav = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 5);
+        WaveformPeaks peaks = new WaveformPeaks(2, SAMPLE_RATE, 512);
+
+        assertTrue(new WaveformBuildThread(wav, peaks, null, null, 4).decode());
+
+        assertTrue(peaks.isComplete());
+        assertEquals((int) Math.ceil(5 * SAMPLE_RATE / 512), peaks.view().getBucketCount());
+    }
+
+    @Test
+    public void decode_whenCancelled_shouldNotComplete() throws Exception {
+        // GIVEN a build that is told to stop partway through:
+        File wav = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 70);
+        WaveformPeaks peaks = new WaveformPeaks(2, SAMPLE_RATE, 512);
+        int[] updates = new int[1];
+        WaveformBuildThread thread = new WaveformBuildThread(wav, peaks, () -> updates[0] < 2, () -> updates[0]++, 3);
+
+        // WHEN we decode:
+        boolean finished = thread.decode();
+
+        // THEN it should give up without marking the peaks complete:
+        assertFalse(finished);
+        assertFalse(peaks.isComplete());
+        assertTrue(peaks.view().getBucketCount() < Math.ceil(70 * SAMPLE_RATE / 512));
+    }
+
+    @Test
+    public void decode_whenCancelled_shouldWaitForSegmentsBeforeReturning() throws Exception {
+        // GIVEN segments that are slow enough to still be running when we're told to stop:
+        File wav = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 70);
+        WaveformPeaks peaks = new WaveformPeaks(2, SAMPLE_RATE, 512);
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicBoolean decodeReturned = new AtomicBoolean();
+        AtomicLong lastSegmentCheck = new AtomicLong();
+        BooleanSupplier keepGoing = () -> {
+            if (Thread.currentThread().getName().equals("musicplayer-waveform-segment")) {
+                // Segments act as if they're in the middle of a read when we're told to stop: they hang
+                // on for a while (or until decode() is back), don't let an interrupt cut that short, and
+                // then carry on to read their next block:
+                long until = System.nanoTime() + (stop.get() ? 200_000_000L : 1_000_000L);
+                while (!decodeReturned.get() && System.nanoTime() < until) {
+                    try {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException ignored) {
+                    }
+                }
+                lastSegmentCheck.set(System.nanoTime());
+                return true;
+            }
+            return !stop.get();
+        };
+        AtomicInteger updates = new AtomicInteger();
+        WaveformBuildThread thread = new WaveformBuildThread(wav, peaks, keepGoing, () -> {
+            if (updates.incrementAndGet() >= 2) {
+                stop.set(true);
+            }
+        }, 3);
+
+        // WHEN we decode, and it's cancelled partway through:
+        boolean finished = thread.decode();
+        long returned = System.nanoTime();
+        decodeReturned.set(true);
+        Thread.sleep(50);
+
+        // THEN no segment should still be busy (and reading from a stream that's about to be closed) once we're back:
+        assertFalse(finished);
+        assertTrue(lastSegmentCheck.get() != 0 && lastSegmentCheck.get() <= returned);
+    }
+
+    @Test
+    public void decode_withRegisteredAnalyzer_shouldShareOneSequentialPass() throws Exception {
+        // GIVEN a long track and a registered analyzer that records how many bytes it saw:
+        File wav = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 70);
+        WaveformPeaks peaks = new WaveformPeaks(2, SAMPLE_RATE, 512);
+        TrackAnalysis.Key<Long> bytesKey = new TrackAnalysis.Key<>("bytes", Long.class);
+        AtomicInteger instances = new AtomicInteger();
+        Supplier<Analyzer> factory = () -> {
+            instances.incrementAndGet();
+            return new Analyzer() {
+                private long bytes;
+
+                @Override
+                public void begin(AudioFormat format) {
+                }
+
+                @Override
+                public void process(byte[] pcm, int length) {
+                    bytes += length;
+                }
+
+                @Override
+                public void finish(TrackAnalysis analysis) {
+                    analysis.put(bytesKey, bytes);
+                }
+            };
+        };
+        AnalysisPipeline.getInstance().register(factory);
+
+        try {
+            // WHEN we decode it with room for several segments:
+            WaveformBuildThread thread = new WaveformBuildThread(wav, peaks, null, null, 3);
+            assertTrue(thread.decode());
+
+            // THEN the analyzer should have seen the whole track once, alongside the peaks:
+            TrackAnalysis analysis = thread.getAnalysis();
+            assertEquals(1, instances.get());
+            assertEquals(Long.valueOf((long) (70 * SAMPLE_RATE) * 4), analysis.get(bytesKey));
+            assertEquals(70000, analysis.getDurationMillis());
+            assertSame(peaks, analysis.get(PeakAnalyzer.PEAKS));
+            assertEquals((int) Math.ceil(70 * SAMPLE_RATE / 512), peaks.view().getBucketCount());
+        }
+        finally {
+            AnalysisPipeline.getInstance().unregister(factory);
+        }
+    }
+
+    @Test
+    public void decode_withCachedPeaks_shouldOnlyRunRegisteredAnalyzers() throws Exception {
+        // GIVEN peaks that are already complete, as if they'd come out of the cache:
+        File wav = TestAudioFiles.createWavFile(tempDir, SAMPLE_RATE, 5);
+        WaveformPeaks peaks = new WaveformPeaks(2, SAMPLE_RATE, 512);
+        peaks.addBucket(new short[]{100, 200});
+        peaks.setComplete(true);
+        TrackAnalysis.Key<Long> bytesKey = new TrackAnalysis.Key<>("bytes", Long.class);
+        Supplier<Analyzer> factory = () -> new Analyzer() {
+            private long bytes;
+
+            @Override
+            public void begin(AudioFormat format) {
+            }
+
+            @Override
+            public void process(byte[] pcm, int length) {
+                bytes += length;
+            }
+
+            @Override
+            public void finish(TrackAnalysis analysis) {
+                analysis.put(bytesKey, bytes);
+            }
+        };
+        AtomicReference<TrackAnalysis> published = new AtomicReference<>();
+        AtomicReference<TrackAnalysis> delivered = new AtomicReference<>();
+        Consumer<TrackAnalysis> listener = published::set;
+        AnalysisPipeline.getInstance().register(factory);
+        AnalysisPipeline.getInstance().addAnalysisListener(listener);
+
+        try {
+            // WHEN we decode it:
+            WaveformBuildThread thread = new WaveformBuildThread(wav, peaks, null, null, 1);
+            thread.setOnAnalysis(delivered::set);
+            assertTrue(thread.decode());
+
+            // THEN the analyzer should have seen the whole track, and the cached peaks should be untouched:
+            TrackAnalysis analysis = thread.getAnalysis();
+            assertNotNull(analysis);
+            assertEquals(Long.valueOf((long) (5 * SAMPLE_RATE) * 4), analysis.get(bytesKey));
+            assertSame(peaks, analysis.get(PeakAnalyzer.PEAKS));
+            assertEquals(1, peaks.view().getBucketCount());
+
+            // AND the result should have been handed to the callback and to the pipeline's listeners:
+            assertSame(analysis, delivered.get());
+            assertSame(analysis, published.get());
+        }
+        finally {
+            AnalysisPipeline.getInstance().unregister(factory);
+            AnalysisPipeline.getInstance().removeAnalysisListener(listener);
+        }
+    }
+}
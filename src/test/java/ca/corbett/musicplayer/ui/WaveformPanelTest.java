@@ -0,0 +1,96 @@
+package ca.corbett.musicplayer.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WaveformPanelTest {
+
+    @Test
+    public void setPlaybackPosition_shouldRepaintOnlyMovedColumns() {
+        // GIVEN a sized panel with the playhead already showing:
+        RecordingWaveformPanel panel = new RecordingWaveformPanel();
+        panel.setBounds(0, 0, 200, 50);
+        panel.setPlaybackPosition(0.5f);
+        panel.dirtyRegions.clear();
+
+        // WHEN the playhead moves:
+        panel.setPlaybackPosition(0.6f);
+
+        // THEN only its old and new columns should be repainted:
+        assertEquals(List.of(new Rectangle(100, 0, 2, 50), new Rectangle(120, 0, 2, 50)), panel.dirtyRegions);
+    }
+
+    @Test
+    public void setPlaybackPosition_withinSameColumn_shouldNotRepaint() {
+        RecordingWaveformPanel panel = new RecordingWaveformPanel();
+        panel.setBounds(0, 0, 200, 50);
+        panel.setPlaybackPosition(0.5f);
+        panel.dirtyRegions.clear();
+
+        panel.setPlaybackPosition(0.501f);
+
+        assertTrue(panel.dirtyRegions.isEmpty());
+    }
+
+    @Test
+    public void setPlaybackPosition_atEdges_shouldHidePlayhead() {
+        RecordingWaveformPanel panel = new RecordingWaveformPanel();
+        panel.setBounds(0, 0, 200, 50);
+        panel.setPlaybackPosition(0.5f);
+        panel.dirtyRegions.clear();
+
+        panel.setPlaybackPosition(1f);
+
+        assertEquals(List.of(new Rectangle(100, 0, 2, 50)), panel.dirtyRegions);
+    }
+
+    @Test
+    public void paint_shouldDrawOverlaysOverImage() {
+        // GIVEN a panel showing a solid image, with a playhead and a mark:
+        WaveformPanel panel = new WaveformPanel();
+        panel.setBounds(0, 0, 200, 50);
+        BufferedImage image = new BufferedImage(200, 50, BufferedImage.TYPE_INT_RGB);
+        Graphics2D imageGraphics = image.createGraphics();
+        imageGraphics.setColor(Color.BLUE);
+        imageGraphics.fillRect(0, 0, 200, 50);
+        imageGraphics.dispose();
+        panel.setImage(image);
+        panel.setPlaybackPosition(0.5f);
+        panel.setMarkPosition(0.25f);
+
+        // WHEN we paint it:
+        BufferedImage screen = new BufferedImage(200, 50, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = screen.createGraphics();
+        panel.paint(graphics);
+        graphics.dispose();
+
+        // THEN the image should show, with the overlay lines over it, and the image itself untouched:
+        int blue = Color.BLUE.getRGB();
+        assertEquals(blue, screen.getRGB(10, 10));
+        assertNotEquals(blue, screen.getRGB(100, 10));
+        assertNotEquals(blue, screen.getRGB(101, 10));
+        assertNotEquals(blue, screen.getRGB(50, 10));
+        assertEquals(blue, image.getRGB(100, 10));
+    }
+
+    private static class RecordingWaveformPanel extends WaveformPanel {
+        private final List<Rectangle> dirtyRegions = new ArrayList<>();
+
+        @Override
+        public void repaint(long tm, int x, int y, int width, int height) {
+            if (dirtyRegions != null) {
+                dirtyRegions.add(new Rectangle(x, y, width, height));
+            }
+        }
+    }
+}